@@ -0,0 +1,184 @@
+/**
+ * A small benchmark harness in the manner of JMH. Each benchmark is warmed
+ * up for a few timed iterations and then measured for a few more; the report
+ * gives the time per operation (mean and standard deviation over the
+ * measured iterations) and the bytes allocated per operation by the thread
+ * running it.
+ *
+ * An operation that needs fresh state every time (a transaction to complete,
+ * say) gets it from setup(), which runs before each call and is left out of
+ * the measurement.
+ */
+package Source.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+public class Bench {
+   /**
+    * One benchmarked operation.
+    */
+   public abstract static class Op {
+      private final boolean setupEachCall;
+
+      /**
+       * @param setupEachCall true if setup() must run before every call to run()
+       */
+      protected Op(boolean setupEachCall) {
+         this.setupEachCall = setupEachCall;
+      }
+
+      /**
+       * Get ready for the next call to run(), or for the next iteration if
+       * setup is not needed before every call. Not measured.
+       */
+      public void setup() {}
+
+      /**
+       * Do the operation once.
+       *
+       * @return anything computed, so the work cannot be optimised away
+       */
+      public abstract Object run();
+   }
+
+   private final int warmups;
+   private final int iterations;
+   private final long iterationNanos;
+   //the most calls in one iteration of an operation that needs setup every call
+   private final int maxCalls;
+   private final ThreadMXBean threads;
+   //bytes the allocation counter reports for itself, taken off each reading
+   private long allocationOverhead;
+   //results land here so the JIT has to compute them
+   private volatile Object sink;
+
+   /**
+    * @param warmups        unmeasured iterations before the measured ones
+    * @param iterations     measured iterations
+    * @param iterationMillis how long each iteration runs
+    * @param maxCalls       the most calls per iteration when setup runs every call
+    */
+   public Bench(int warmups, int iterations, long iterationMillis, int maxCalls) {
+      this.warmups = warmups;
+      this.iterations = iterations;
+      this.iterationNanos = iterationMillis * 1000000L;
+      this.maxCalls = maxCalls;
+      this.threads = ManagementFactory.getThreadMXBean();
+
+      long least = Long.MAX_VALUE;
+      for (int i = 0; i < 1000; i++) {
+         long start = allocated();
+         least = Math.min(least, allocated() - start);
+      }
+      allocationOverhead = Math.max(0, least);
+   }
+
+   /**
+    * Print the heading for the lines printed by run().
+    */
+   public void printHeader() {
+      System.out.println(String.format(Locale.ROOT, "%-40s %10s %14s %12s %14s %12s",
+            "Benchmark", "Items", "ns/op", "+-", "B/op", "ops"));
+   }
+
+   /**
+    * Run a benchmark and print its line of the report.
+    *
+    * @param name  the benchmark name
+    * @param items the catalog size
+    * @param op    the operation
+    */
+   public void run(String name, int items, Op op) {
+      for (int i = 0; i < warmups; i++) {
+         iteration(op);
+      }
+
+      double[] nanosPerOp = new double[iterations];
+      double bytes = 0;
+      long calls = 0;
+      for (int i = 0; i < iterations; i++) {
+         long[] result = iteration(op);
+         nanosPerOp[i] = (double) result[0] / result[2];
+         bytes += result[1];
+         calls += result[2];
+      }
+
+      double mean = 0;
+      for (double value : nanosPerOp) {
+         mean += value;
+      }
+      mean /= iterations;
+      double variance = 0;
+      for (double value : nanosPerOp) {
+         variance += (value - mean) * (value - mean);
+      }
+      double deviation = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+      System.out.println(String.format(Locale.ROOT, "%-40s %10d %14.1f %12.1f %14s %12d",
+            name, items, mean, deviation,
+            bytes < 0 ? "n/a" : String.format(Locale.ROOT, "%.1f", bytes / calls), calls));
+   }
+
+   /**
+    * Run one iteration.
+    *
+    * @return the nanoseconds measured, the bytes allocated (negative if not
+    *         known) and the number of calls, as {nanos, bytes, calls}
+    */
+   private long[] iteration(Op op) {
+      long nanos = 0;
+      long bytes = 0;
+      long calls = 0;
+
+      if (op.setupEachCall) {
+         long end = System.nanoTime() + iterationNanos;
+         while (calls < maxCalls && System.nanoTime() < end) {
+            op.setup();
+            long allocatedBefore = allocated();
+            long start = System.nanoTime();
+            sink = op.run();
+            nanos += System.nanoTime() - start;
+            bytes += allocated() - allocatedBefore - allocationOverhead;
+            calls++;
+         }
+      } else {
+         op.setup();
+         long allocatedBefore = allocated();
+         long start = System.nanoTime();
+         long end = start + iterationNanos;
+         //check the clock every so often rather than after every call
+         int batch = 1;
+         long now;
+         do {
+            for (int i = 0; i < batch; i++) {
+               sink = op.run();
+            }
+            calls += batch;
+            now = System.nanoTime();
+            if (batch < 1024) {
+               batch *= 2;
+            }
+         } while (now < end);
+         nanos = now - start;
+         bytes = allocated() - allocatedBefore - allocationOverhead;
+      }
+
+      if (allocated() < 0) {
+         bytes = -1;
+      }
+      return new long[] {nanos, bytes, calls};
+   }
+
+   /**
+    * @return the bytes allocated by this thread so far, or -1 if the JVM
+    *         cannot tell
+    */
+   private long allocated() {
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+         return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return -1;
+   }
+}
@@ -0,0 +1,123 @@
+/**
+ * Measures the cold start of a headless server: starts ServerMain in a new
+ * JVM, then connects a lane as soon as the port opens and creates a
+ * transaction, timing from launching the process to the transaction being
+ * accepted. The server's own "Ready" time (JVM start to listening) is shown
+ * beside it. Each run starts from nothing; the report gives every run and
+ * the median.
+ *
+ * Usage: java Source.bench.ColdStart [-runs 5] [-items 100000] [-port 7077]
+ *        [-store heap|packed] [-metrics true]
+ */
+package Source.bench;
+
+import Source.net.RemoteServer;
+import Source.server.POSServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+public class ColdStart {
+   //time between attempts to connect while the server starts
+   private static final long RETRY_MILLIS = 1;
+   //longest a server may take to accept a transaction
+   private static final long TIMEOUT_MILLIS = 120000;
+
+   public static void main(String[] args) throws Exception {
+      int runs = 5;
+      int items = 100000;
+      int port = 7077;
+      boolean packed = false;
+      boolean metrics = false;
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-runs")) {
+            runs = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-items")) {
+            items = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-port")) {
+            port = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-store")) {
+            packed = args[i + 1].equals("packed");
+         } else if (args[i].equals("-metrics")) {
+            metrics = Boolean.parseBoolean(args[i + 1]);
+         }
+      }
+
+      File file = File.createTempFile("inventory-" + items + "-", ".txt");
+      file.deleteOnExit();
+      InventoryGenerator.write(file, items, 1);
+
+      List<String> command = new ArrayList<>(Arrays.asList(
+            new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+            "-cp", System.getProperty("java.class.path"), "Source.main.ServerMain",
+            "-inventory", file.getPath(), "-port", Integer.toString(port),
+            "-packed", Boolean.toString(packed), "-metrics", Boolean.toString(metrics)));
+
+      System.out.println(String.format(Locale.ROOT, "items %d%s%s", items,
+            packed ? ", packed store" : "", metrics ? ", metered" : ""));
+      System.out.println(String.format(Locale.ROOT, "%6s %16s %22s", "Run", "Server ready ms", "First transaction ms"));
+      long[] firsts = new long[runs];
+      for (int run = 0; run < runs; run++) {
+         firsts[run] = run(command, port, run + 1);
+      }
+      Arrays.sort(firsts);
+      System.out.println(String.format(Locale.ROOT, "median %d ms to the first transaction (min %d, max %d)",
+            firsts[runs / 2], firsts[0], firsts[runs - 1]));
+      file.delete();
+   }
+
+   /**
+    * Start a server and time its first transaction.
+    *
+    * @return the milliseconds from launching the server to the transaction
+    */
+   private static long run(List<String> command, int port, int run) throws Exception {
+      long start = System.nanoTime();
+      Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+      try {
+         BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+         long deadline = start + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+         RemoteServer lane = null;
+         while (lane == null) {
+            try {
+               lane = new RemoteServer("localhost", port);
+            } catch (IOException ioe) {
+               if (!process.isAlive() || System.nanoTime() - deadline > 0) {
+                  throw new IOException("The server did not start", ioe);
+               }
+               Thread.sleep(RETRY_MILLIS);
+            }
+         }
+         try {
+            if (lane.createTransaction(POSServer.TransactionType.PURCHASE, 20240101000000L, 1) == null) {
+               throw new IOException("The server refused the transaction");
+            }
+         } finally {
+            lane.close();
+         }
+         long first = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+         //the server printed its ready time once it was listening
+         String ready = "?";
+         String line;
+         while ((line = out.readLine()) != null) {
+            if (line.startsWith("Ready ")) {
+               ready = line.substring("Ready ".length(), line.indexOf("ms"));
+               break;
+            }
+         }
+         System.out.println(String.format(Locale.ROOT, "%6d %16s %22d", run, ready, first));
+         return first;
+      } finally {
+         process.destroy();
+         process.waitFor();
+      }
+   }
+}
@@ -0,0 +1,178 @@
+/**
+ * A torture test of completing transactions from many lanes at once. Each
+ * lane buys and restocks baskets of items drawn from a small hot set, so
+ * the lanes fight over the same stock. At the end, every item's stock must
+ * be its starting stock plus what was restocked less what was sold, and
+ * never negative: a purchase that completed without its whole basket in
+ * stock (an oversell) shows up as a mismatch. The report gives completions
+ * per second for each number of lanes.
+ *
+ * Usage: java -ea Source.bench.CommitTorture [-items 10000] [-hot 16]
+ *        [-basket 4] [-lanes 1,2,4,8] [-time 2000]
+ */
+package Source.bench;
+
+import Source.server.POSServer;
+import Source.server.ReadServer;
+import Source.server.SearchPage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CommitTorture {
+   //client IDs of the lanes start here; the stock is read as client 0
+   private static final int FIRST_LANE = 1;
+
+   public static void main(String[] args) throws Exception {
+      int items = 10000;
+      int hot = 16;
+      int basket = 4;
+      String lanes = "1,2,4,8";
+      long time = 2000;
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-items")) {
+            items = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-hot")) {
+            hot = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-basket")) {
+            basket = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-lanes")) {
+            lanes = args[i + 1];
+         } else if (args[i].equals("-time")) {
+            time = Long.parseLong(args[i + 1]);
+         }
+      }
+
+      File file = File.createTempFile("inventory-" + items + "-", ".txt");
+      file.deleteOnExit();
+      InventoryGenerator.write(file, items, items);
+
+      System.out.println(String.format(Locale.ROOT, "%6s %6s %12s %12s %12s %10s",
+            "Lanes", "Hot", "Commits", "Commits/s", "Sold out", "Mismatches"));
+      boolean failed = false;
+      for (String count : lanes.split(",")) {
+         failed |= !run(ReadServer.newServer(file), Integer.parseInt(count.trim()), hot, basket, time);
+      }
+      file.delete();
+      if (failed) {
+         System.exit(1);
+      }
+   }
+
+   /**
+    * Run the lanes against a fresh server and check the stock afterwards.
+    *
+    * @return true if every item's stock adds up
+    */
+   private static boolean run(final POSServer server, int laneCount, int hot, final int basket, long time)
+         throws InterruptedException {
+      final String[] codes = new String[hot];
+      int[] before = stock(server, codes, true);
+      final long[] sold = new long[hot];
+      final long[] restocked = new long[hot];
+      final AtomicLong commits = new AtomicLong();
+      final AtomicLong soldOut = new AtomicLong();
+      final List<Throwable> errors = new ArrayList<>();
+      final long deadline = System.nanoTime() + time * 1000000L;
+
+      Thread[] lanes = new Thread[laneCount];
+      for (int l = 0; l < laneCount; l++) {
+         final int client = FIRST_LANE + l;
+         lanes[l] = new Thread(new Runnable() {
+            public void run() {
+               Random random = new Random(client);
+               long[] laneSold = new long[codes.length];
+               long[] laneRestocked = new long[codes.length];
+               int[] quantities = new int[codes.length];
+               try {
+                  while (System.nanoTime() < deadline) {
+                     boolean restock = random.nextInt(5) == 0;
+                     String id = server.createTransaction(restock ? POSServer.TransactionType.RESTOCK
+                           : POSServer.TransactionType.PURCHASE, 0, client);
+                     Arrays.fill(quantities, 0);
+                     for (int i = 0; i < basket; i++) {
+                        int item = random.nextInt(codes.length);
+                        int quantity = 1 + random.nextInt(3);
+                        server.addItemToTransaction(id, codes[item], quantity);
+                        quantities[item] += quantity;
+                     }
+                     server.completeTransaction(id);
+                     commits.incrementAndGet();
+
+                     //a purchase that could not be filled is cleared
+                     boolean filled = !server.queryTransaction(id, POSServer.TransactionQuery.TOTAL_QUANTITY).equals("0");
+                     if (!filled) {
+                        soldOut.incrementAndGet();
+                     }
+                     for (int i = 0; i < codes.length; i++) {
+                        if (restock) {
+                           laneRestocked[i] += quantities[i];
+                        } else if (filled) {
+                           laneSold[i] += quantities[i];
+                        }
+                     }
+                  }
+               } catch (Throwable t) {
+                  synchronized (errors) {
+                     errors.add(t);
+                  }
+               }
+               synchronized (sold) {
+                  for (int i = 0; i < codes.length; i++) {
+                     sold[i] += laneSold[i];
+                     restocked[i] += laneRestocked[i];
+                  }
+               }
+            }
+         }, "lane-" + client);
+      }
+      for (Thread lane : lanes) {
+         lane.start();
+      }
+      for (Thread lane : lanes) {
+         lane.join();
+      }
+
+      int[] after = stock(server, codes, false);
+      int mismatches = errors.size();
+      for (Throwable error : errors) {
+         System.out.println("Lane failed: " + error);
+      }
+      for (int i = 0; i < codes.length; i++) {
+         long expected = before[i] + restocked[i] - sold[i];
+         if (after[i] != expected || after[i] < 0) {
+            System.out.println(codes[i] + ": stock " + after[i] + ", expected " + expected);
+            mismatches++;
+         }
+      }
+      System.out.println(String.format(Locale.ROOT, "%6d %6d %12d %12.0f %12d %10d",
+            laneCount, hot, commits.get(), commits.get() * 1000.0 / time, soldOut.get(), mismatches));
+      return mismatches == 0;
+   }
+
+   /**
+    * Read the stock of the first items in code order.
+    *
+    * @param codes filled with the codes if first is true, otherwise the codes to read
+    * @return the stock of each item
+    */
+   private static int[] stock(POSServer server, String[] codes, boolean first) {
+      int[] stock = new int[codes.length];
+      SearchPage page = server.searchPage("", POSServer.ItemField.CODE, 0, codes.length,
+            POSServer.ItemField.CODE, POSServer.ItemField.QUANTITY);
+      for (int row = 0; row < page.size(); row++) {
+         if (first) {
+            codes[row] = page.getCode(row);
+         } else if (!codes[row].equals(page.getCode(row))) {
+            throw new IllegalStateException("The items moved");
+         }
+         stock[row] = page.getQuantity(row);
+      }
+      return stock;
+   }
+}
@@ -0,0 +1,77 @@
+/**
+ * Writes synthetic inventory files in the same format as SampleInventory.txt
+ * (code,description,cost,quantity on each line), of any size. The same seed
+ * always gives the same file.
+ *
+ * Usage: java Source.bench.InventoryGenerator file itemCount [seed]
+ */
+package Source.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class InventoryGenerator {
+   //words the descriptions are made of; a benchmark can search for one
+   public static final String[] BRANDS = {
+      "Gilbarco", "Wayne", "Tokheim", "Bennett", "Dresser", "Veeder", "Franklin", "Husky",
+      "OPW", "Emco", "Petro", "Schlumberger"
+   };
+   private static final String[] PARTS = {
+      "Advantage", "Encore", "Vista", "Ovation", "Helix", "Eclipse", "Legacy", "Premier",
+      "Nozzle", "Hose", "Breakaway", "Swivel", "Filter", "Meter", "Pulser", "Valve",
+      "Display", "Keypad", "Printer", "Reader", "Door", "Panel", "Sign", "Bezel"
+   };
+   private static final String[] DETAILS = {
+      "Wide-frame.", "Narrow-frame.", "Full-height.", "Low-profile.", "2-hose.", "3-hose.",
+      "Metal.", "Plastic.", "(Hardware sold separately)", "Left side.", "Right side.", "Kit."
+   };
+
+   //no instances
+   private InventoryGenerator() {}
+
+   /**
+    * Write an inventory file.
+    *
+    * @param file      the file to write
+    * @param itemCount the number of items (lines)
+    * @param seed      the random seed
+    * @throws IOException if the file cannot be written
+    */
+   public static void write(File file, int itemCount, long seed) throws IOException {
+      Random random = new Random(seed);
+      try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+         StringBuilder line = new StringBuilder(128);
+         for (int i = 0; i < itemCount; i++) {
+            line.setLength(0);
+            //codes are unique: a letter prefix then the line number in base 36
+            line.append((char) ('A' + random.nextInt(26))).append(Integer.toString(i, 36).toUpperCase());
+            line.append(',');
+            line.append(BRANDS[random.nextInt(BRANDS.length)]).append(' ');
+            line.append(PARTS[random.nextInt(PARTS.length)]).append(' ');
+            line.append(DETAILS[random.nextInt(DETAILS.length)]);
+            line.append(" (").append(10 + random.nextInt(40)).append("\"w x ").append(10 + random.nextInt(40)).append("\"h)");
+            line.append(',');
+            line.append(100 + random.nextInt(50000));
+            line.append(',');
+            line.append(random.nextInt(50));
+            line.append('\n');
+            out.append(line);
+         }
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.out.println("Usage: java Source.bench.InventoryGenerator file itemCount [seed]");
+         return;
+      }
+      long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+      write(new File(args[0]), Integer.parseInt(args[1]), seed);
+   }
+}
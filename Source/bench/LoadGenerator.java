@@ -0,0 +1,510 @@
+/**
+ * A headless load generator for sizing hardware: opens a number of virtual
+ * lanes against a server, each running a mix of searches, purchases,
+ * backorders, returns, restocks and cancels as fast as the server answers.
+ * Baskets are drawn from the loaded inventory: mostly a few items with a
+ * long tail of big ones, with some items far more popular than others.
+ * Searches look for a word from an item's description and read a page or
+ * two of matches. Cancels take back one of the lane's recent transactions.
+ *
+ * The report gives the throughput and the p50, p99, p99.9 and max latency
+ * of each operation in the mix, and of the server calls within them, from
+ * a LatencyHistogram per lane.
+ *
+ * Each lane draws from its own random sequence, seeded from -seed, and
+ * the inventory is generated from the seed too, so each lane makes the
+ * same requests in the same order every run. With -ops the runs do the
+ * same work and two builds can be compared side by side; with -time each
+ * lane gets as far along its sequence as it can. The first -warmup
+ * operations of each lane are not measured.
+ *
+ * Usage: java Source.bench.LoadGenerator [-lanes 8] [-time 10000 | -ops n]
+ *        [-warmup 2000] [-seed 1] [-items 100000 | -inventory file]
+ *        [-mix search=30,purchase=40,backorder=5,return=5,restock=5,cancel=15]
+ *        [-basket 6] [-store heap|packed] [-server host:port] [-metered true]
+ *
+ * With -server, each lane connects to a running NetServer on its own
+ * connection, and -inventory should name the file it was started with.
+ * With -metered, the server is wrapped in a MeteredServer, so comparing a
+ * run with and without it shows what the metering costs; its metrics are
+ * printed after the run, warmup included.
+ */
+package Source.bench;
+
+import Source.metrics.LatencyHistogram;
+import Source.metrics.MetricRegistry;
+import Source.metrics.MetricsReporter;
+import Source.net.RemoteServer;
+import Source.server.MeteredServer;
+import Source.server.POSServer;
+import Source.server.ReadServer;
+import Source.server.SearchPage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+public class LoadGenerator {
+   /**
+    * What is measured: the operations in the mix, then the server calls
+    * made within them.
+    */
+   private enum Measure {
+      SEARCH, PURCHASE, BACKORDER, RETURN, RESTOCK, CANCEL,
+      SEARCH_PAGE, NEXT_PAGE, CREATE, ADD_ITEM, COMPLETE;
+
+      //the operations that can be in the mix
+      static final Measure[] MIX = {SEARCH, PURCHASE, BACKORDER, RETURN, RESTOCK, CANCEL};
+   }
+
+   //the first lane's client ID; the setup reads the inventory as client 0
+   private static final int FIRST_LANE = 1;
+   //matches on a page of search results, and on a page while reading the inventory
+   private static final int PAGE_SIZE = 20;
+   private static final int LOAD_PAGE = 10000;
+   //the biggest basket drawn
+   private static final int MAX_BASKET = 200;
+   //a lane's recent transactions that it may cancel
+   private static final int RECENT = 256;
+   //when the simulated store day starts; each operation moves the clock on a second
+   private static final LocalDateTime OPENING = LocalDateTime.of(2026, 1, 1, 8, 0);
+   private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.ROOT);
+   private static final POSServer.ItemField[] ORDERS = POSServer.ItemField.values();
+
+   private final int lanes;
+   private final long warmup;
+   private final long ops;
+   private final long time;
+   private final long seed;
+   private final int[] mix;
+   private final double basket;
+   //item codes, most popular first, and their descriptions
+   private final String[] codes;
+   private final String[] descriptions;
+
+   private LoadGenerator(int lanes, long warmup, long ops, long time, long seed, int[] mix, double basket,
+                         String[] codes, String[] descriptions) {
+      this.lanes = lanes;
+      this.warmup = warmup;
+      this.ops = ops;
+      this.time = time;
+      this.seed = seed;
+      this.mix = mix;
+      this.basket = basket;
+      this.codes = codes;
+      this.descriptions = descriptions;
+   }
+
+   public static void main(String[] args) throws Exception {
+      int lanes = 8;
+      long time = 10000;
+      long ops = 0;
+      long warmup = 2000;
+      long seed = 1;
+      int items = 100000;
+      String inventory = null;
+      String mix = "search=30,purchase=40,backorder=5,return=5,restock=5,cancel=15";
+      double basket = 6;
+      boolean packed = false;
+      String remote = null;
+      boolean metered = false;
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-lanes")) {
+            lanes = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-time")) {
+            time = Long.parseLong(args[i + 1]);
+         } else if (args[i].equals("-ops")) {
+            ops = Long.parseLong(args[i + 1]);
+         } else if (args[i].equals("-warmup")) {
+            warmup = Long.parseLong(args[i + 1]);
+         } else if (args[i].equals("-seed")) {
+            seed = Long.parseLong(args[i + 1]);
+         } else if (args[i].equals("-items")) {
+            items = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-inventory")) {
+            inventory = args[i + 1];
+         } else if (args[i].equals("-mix")) {
+            mix = args[i + 1];
+         } else if (args[i].equals("-basket")) {
+            basket = Double.parseDouble(args[i + 1]);
+         } else if (args[i].equals("-store")) {
+            packed = args[i + 1].equals("packed");
+         } else if (args[i].equals("-server")) {
+            remote = args[i + 1];
+         } else if (args[i].equals("-metered")) {
+            metered = Boolean.parseBoolean(args[i + 1]);
+         }
+      }
+      if (lanes <= 0 || basket < 1) {
+         throw new IllegalArgumentException("Need at least one lane and a basket of at least 1");
+      }
+
+      File file;
+      if (inventory != null) {
+         file = new File(inventory);
+      } else {
+         file = File.createTempFile("inventory-" + items + "-", ".txt");
+         file.deleteOnExit();
+         InventoryGenerator.write(file, items, seed);
+      }
+      POSServer[] servers = new POSServer[lanes];
+      MetricRegistry metrics = metered ? new MetricRegistry() : null;
+      if (remote == null) {
+         POSServer server = ReadServer.newServer(file, packed);
+         if (metered) {
+            server = new MeteredServer(server, metrics);
+         }
+         for (int l = 0; l < lanes; l++) {
+            servers[l] = server;
+         }
+      } else {
+         int colon = remote.lastIndexOf(':');
+         for (int l = 0; l < lanes; l++) {
+            servers[l] = new RemoteServer(remote.substring(0, colon), Integer.parseInt(remote.substring(colon + 1)));
+            if (metered) {
+               servers[l] = new MeteredServer(servers[l], metrics);
+            }
+         }
+      }
+
+      //every item, shuffled by the seed so popularity doesn't follow the codes
+      List<String> codeList = new ArrayList<>();
+      List<String> descriptionList = new ArrayList<>();
+      SearchPage page = servers[0].searchPage("", POSServer.ItemField.CODE, 0, LOAD_PAGE,
+            POSServer.ItemField.CODE, POSServer.ItemField.DESCRIPTION);
+      while (page != null) {
+         for (int row = 0; row < page.size(); row++) {
+            codeList.add(page.getCode(row));
+            descriptionList.add(page.getDescription(row));
+         }
+         page = page.getContinuation() == null ? null
+               : servers[0].nextPage(page.getContinuation(), LOAD_PAGE, POSServer.ItemField.CODE, POSServer.ItemField.DESCRIPTION);
+      }
+      if (codeList.isEmpty()) {
+         throw new IllegalArgumentException("The inventory is empty");
+      }
+      String[] codes = new String[codeList.size()];
+      String[] descriptions = new String[codes.length];
+      Random shuffle = new Random(seed);
+      for (int row = 0; row < codes.length; row++) {
+         int at = shuffle.nextInt(row + 1);
+         codes[row] = codes[at];
+         descriptions[row] = descriptions[at];
+         codes[at] = codeList.get(row);
+         descriptions[at] = descriptionList.get(row);
+      }
+
+      System.out.println(String.format(Locale.ROOT, "lanes %d, %s, warmup %d ops/lane, seed %d, items %d, basket %.1f, mix %s%s",
+            lanes, ops > 0 ? ops + " ops/lane" : time + "ms", warmup, seed, codes.length, basket, mix,
+            remote == null ? (packed ? ", packed store" : "") : ", server " + remote) + (metered ? ", metered" : ""));
+      MetricsReporter reporter = metered ? new MetricsReporter(metrics, System.out, 1, TimeUnit.DAYS) : null;
+      new LoadGenerator(lanes, warmup, ops, time, seed, parseMix(mix), basket, codes, descriptions).run(servers);
+      if (metered) {
+         System.out.println("metrics:");
+         reporter.report();
+         reporter.close();
+      }
+
+      if (remote != null) {
+         for (POSServer server : servers) {
+            ((Closeable) (metered ? ((MeteredServer) server).getServer() : server)).close();
+         }
+      }
+      if (inventory == null) {
+         file.delete();
+      }
+   }
+
+   /**
+    * @param  mix "operation=weight,..." (operations not named get weight 0)
+    * @return the weight of each operation in Measure.MIX
+    */
+   private static int[] parseMix(String mix) {
+      int[] weights = new int[Measure.MIX.length];
+      int total = 0;
+      for (String part : mix.split(",")) {
+         String[] pair = part.split("=");
+         Measure measure = Measure.valueOf(pair[0].trim().toUpperCase(Locale.ROOT));
+         int at = measure.ordinal();
+         if (at >= weights.length || pair.length != 2) {
+            throw new IllegalArgumentException("Bad mix entry " + part);
+         }
+         weights[at] = Integer.parseInt(pair[1].trim());
+         total += weights[at];
+      }
+      if (total <= 0) {
+         throw new IllegalArgumentException("The mix is empty");
+      }
+      return weights;
+   }
+
+   /**
+    * Run the lanes, then print the report.
+    */
+   private void run(POSServer[] servers) throws InterruptedException {
+      final CyclicBarrier measuring = new CyclicBarrier(lanes + 1);
+      final List<Throwable> errors = new ArrayList<>();
+      Lane[] laneList = new Lane[lanes];
+      Thread[] threads = new Thread[lanes];
+      for (int l = 0; l < lanes; l++) {
+         final Lane lane = new Lane(servers[l], FIRST_LANE + l);
+         laneList[l] = lane;
+         threads[l] = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  lane.run(measuring);
+               } catch (Throwable t) {
+                  synchronized (errors) {
+                     errors.add(t);
+                  }
+                  measuring.reset();
+               }
+            }
+         }, "lane-" + lane.client);
+         threads[l].start();
+      }
+
+      long start;
+      try {
+         measuring.await();
+         start = System.nanoTime();
+      } catch (BrokenBarrierException bbe) {
+         start = System.nanoTime();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      for (Throwable error : errors) {
+         System.out.println("Lane failed: " + error);
+      }
+
+      LatencyHistogram[] histograms = new LatencyHistogram[Measure.values().length];
+      long[] failures = new long[histograms.length];
+      for (int m = 0; m < histograms.length; m++) {
+         histograms[m] = new LatencyHistogram();
+         for (Lane lane : laneList) {
+            histograms[m].add(lane.histograms[m]);
+            failures[m] += lane.failures[m];
+         }
+      }
+      report(histograms, failures, seconds);
+   }
+
+   private static void report(LatencyHistogram[] histograms, long[] failures, double seconds) {
+      System.out.println(String.format(Locale.ROOT, "%-12s %10s %10s %10s %10s %10s %10s %8s",
+            "Operation", "Count", "Ops/s", "p50 us", "p99 us", "p99.9 us", "max us", "Errors"));
+      long operations = 0;
+      for (Measure measure : Measure.values()) {
+         LatencyHistogram histogram = histograms[measure.ordinal()];
+         if (measure == Measure.SEARCH_PAGE) {
+            System.out.println("server calls:");
+         }
+         if (measure.ordinal() < Measure.MIX.length) {
+            operations += histogram.getCount();
+         }
+         if (histogram.getCount() == 0) {
+            continue;
+         }
+         System.out.println(String.format(Locale.ROOT, "%-12s %10d %10.0f %10.1f %10.1f %10.1f %10.1f %8d",
+               measure.name().toLowerCase(Locale.ROOT), histogram.getCount(), histogram.getCount() / seconds,
+               histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0,
+               histogram.getPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0, failures[measure.ordinal()]));
+      }
+      System.out.println(String.format(Locale.ROOT, "%d operations in %.2fs: %.0f ops/s", operations, seconds, operations / seconds));
+   }
+
+   /**
+    * One virtual lane: its own random sequence, histograms and recent
+    * transactions.
+    */
+   private class Lane {
+      final POSServer server;
+      final int client;
+      final Random random;
+      final LatencyHistogram[] histograms = new LatencyHistogram[Measure.values().length];
+      final long[] failures = new long[histograms.length];
+      //the lane's recent transactions, a ring
+      private final String[] recent = new String[RECENT];
+      private int recentCount;
+      private int recentNext;
+      //operations done, which also sets the simulated clock
+      private long done;
+
+      Lane(POSServer server, int client) {
+         this.server = server;
+         this.client = client;
+         this.random = new Random(seed * 1000003 + client);
+         for (int m = 0; m < histograms.length; m++) {
+            histograms[m] = new LatencyHistogram();
+         }
+      }
+
+      void run(CyclicBarrier measuring) throws InterruptedException, BrokenBarrierException {
+         int total = 0;
+         for (int weight : mix) {
+            total += weight;
+         }
+         for (int n = 0; n < warmup; n++) {
+            step(total);
+         }
+         for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+         }
+         Arrays.fill(failures, 0);
+
+         measuring.await();
+         long deadline = System.nanoTime() + time * 1000000L;
+         for (long n = 0; ops > 0 ? n < ops : System.nanoTime() - deadline < 0; n++) {
+            step(total);
+         }
+      }
+
+      /**
+       * Do one operation drawn from the mix.
+       */
+      private void step(int total) {
+         int draw = random.nextInt(total);
+         int op = 0;
+         while (draw >= mix[op]) {
+            draw -= mix[op];
+            op++;
+         }
+         long now = stamp();
+         long start = System.nanoTime();
+         boolean counted = true;
+         switch (Measure.MIX[op]) {
+         case SEARCH:
+            search();
+            break;
+         case PURCHASE:
+            transaction(POSServer.TransactionType.PURCHASE, now);
+            break;
+         case BACKORDER:
+            transaction(POSServer.TransactionType.BACKORDER, now);
+            break;
+         case RETURN:
+            transaction(POSServer.TransactionType.RETURN, now);
+            break;
+         case RESTOCK:
+            transaction(POSServer.TransactionType.RESTOCK, now);
+            break;
+         case CANCEL:
+            counted = cancel(now);
+            break;
+         }
+         if (counted) {
+            histograms[Measure.MIX[op].ordinal()].record(System.nanoTime() - start);
+         }
+         done++;
+      }
+
+      /**
+       * @return the simulated time of the next operation
+       */
+      private long stamp() {
+         return Long.parseLong(STAMP.format(OPENING.plusSeconds(done * lanes + client - FIRST_LANE)));
+      }
+
+      /**
+       * Search for a word (or the start of one) from an item's description
+       * and read a page or two of the matches.
+       */
+      private void search() {
+         String[] words = descriptions[pick()].split(" ");
+         String word = words[random.nextInt(words.length)];
+         String pattern = word.length() > 3 ? word.substring(0, 3 + random.nextInt(word.length() - 2)) : word;
+         POSServer.ItemField order = ORDERS[random.nextInt(ORDERS.length)];
+         int pages = 1 + (random.nextInt(3) == 0 ? 1 : 0);
+
+         long start = System.nanoTime();
+         SearchPage page = server.searchPage(pattern, order, client, PAGE_SIZE,
+               POSServer.ItemField.CODE, POSServer.ItemField.DESCRIPTION, POSServer.ItemField.COST, POSServer.ItemField.QUANTITY);
+         measured(Measure.SEARCH_PAGE, start, page == null);
+         for (int p = 1; p < pages && page != null && page.getContinuation() != null; p++) {
+            start = System.nanoTime();
+            page = server.nextPage(page.getContinuation(), PAGE_SIZE,
+                  POSServer.ItemField.CODE, POSServer.ItemField.DESCRIPTION, POSServer.ItemField.COST, POSServer.ItemField.QUANTITY);
+            measured(Measure.NEXT_PAGE, start, page == null);
+         }
+      }
+
+      /**
+       * Ring up a basket of items and complete it.
+       */
+      private void transaction(POSServer.TransactionType type, long now) {
+         long start = System.nanoTime();
+         String id = server.createTransaction(type, now, client);
+         measured(Measure.CREATE, start, id == null);
+         if (id == null) {
+            return;
+         }
+
+         int size = 1;
+         while (size < MAX_BASKET && random.nextDouble() >= 1 / basket) {
+            size++;
+         }
+         for (int i = 0; i < size; i++) {
+            int quantity = type == POSServer.TransactionType.RESTOCK ? 20 + random.nextInt(81)
+                  : random.nextInt(5) == 0 ? 2 + random.nextInt(3) : 1;
+            String code = codes[pick()];
+            start = System.nanoTime();
+            measured(Measure.ADD_ITEM, start, server.addItemToTransaction(id, code, quantity) != null);
+         }
+         start = System.nanoTime();
+         measured(Measure.COMPLETE, start, server.completeTransaction(id) != null);
+
+         recent[recentNext] = id;
+         recentNext = (recentNext + 1) % RECENT;
+         recentCount = Math.min(recentCount + 1, RECENT);
+      }
+
+      /**
+       * Cancel one of the lane's recent transactions.
+       *
+       * @return false if there was none to cancel
+       */
+      private boolean cancel(long now) {
+         if (recentCount == 0) {
+            return false;
+         }
+         //the newest go to the end of the ring, so take a random one and move the last into its place
+         int at = (recentNext - 1 - random.nextInt(recentCount) + RECENT) % RECENT;
+         int last = (recentNext - 1 + RECENT) % RECENT;
+         String id = recent[at];
+         recent[at] = recent[last];
+         recent[last] = null;
+         recentNext = last;
+         recentCount--;
+         if (server.cancelTransaction(id, now, client) != null) {
+            failures[Measure.CANCEL.ordinal()]++;
+         }
+         return true;
+      }
+
+      /**
+       * @return an item index, the popular ones (near the front) far more often
+       */
+      private int pick() {
+         double u = random.nextDouble();
+         return (int) (codes.length * u * u * u);
+      }
+
+      private void measured(Measure measure, long start, boolean failed) {
+         histograms[measure.ordinal()].record(System.nanoTime() - start);
+         if (failed) {
+            failures[measure.ordinal()]++;
+         }
+      }
+   }
+}
@@ -0,0 +1,84 @@
+/**
+ * Measures the heap a server keeps per item with each way of storing the
+ * inventory: an object per item, or items packed in arrays. The heap in
+ * use after a full collection is read before and after loading a synthetic
+ * catalog; the difference, over the number of items, is the memory per
+ * item. It includes the search indexes, which are the same either way, so
+ * the difference between the two lines is the saving of the packed store.
+ *
+ * Usage: java Source.bench.MemoryBenchmark [-sizes 100000,1000000]
+ *
+ * Give the JVM enough heap for the largest catalog (about 1GB for a million
+ * items).
+ */
+package Source.bench;
+
+import Source.server.POSServer;
+import Source.server.ReadServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Locale;
+
+public class MemoryBenchmark {
+   //keeps the server reachable while the heap is measured
+   private static volatile POSServer retained;
+
+   //no instances
+   private MemoryBenchmark() {}
+
+   public static void main(String[] args) throws IOException {
+      String sizes = "100000,1000000";
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-sizes")) {
+            sizes = args[i + 1];
+         }
+      }
+
+      System.out.println(String.format(Locale.ROOT, "%-10s %10s %16s %12s", "Store", "Items", "Retained bytes", "B/item"));
+      for (String size : sizes.split(",")) {
+         int items = Integer.parseInt(size.trim());
+         File file = File.createTempFile("inventory-" + items + "-", ".txt");
+         file.deleteOnExit();
+         InventoryGenerator.write(file, items, items);
+         for (boolean packed : new boolean[] {false, true}) {
+            long retainedBytes = measure(file, packed);
+            System.out.println(String.format(Locale.ROOT, "%-10s %10d %16d %12.1f",
+                  packed ? "packed" : "heap", items, retainedBytes, (double) retainedBytes / items));
+         }
+         file.delete();
+      }
+   }
+
+   /**
+    * @return the bytes of heap still in use, after a full collection, once
+    *         a server has loaded the file
+    */
+   private static long measure(File file, boolean packed) {
+      retained = null;
+      long before = usedAfterCollection();
+      retained = ReadServer.newServer(file, packed);
+      long after = usedAfterCollection();
+      // ask the server something so it stays live until after the measurement
+      retained.queryServer(POSServer.ServerQuery.INVENTORY_COUNT);
+      retained = null;
+      return after - before;
+   }
+
+   //collect until the heap in use stops shrinking, then report it
+   private static long usedAfterCollection() {
+      MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+      long used = Long.MAX_VALUE;
+      for (int i = 0; i < 10; i++) {
+         System.gc();
+         long now = memory.getHeapMemoryUsage().getUsed();
+         if (now >= used) {
+            break;
+         }
+         used = now;
+      }
+      return used;
+   }
+}
@@ -0,0 +1,232 @@
+/**
+ * A loopback test of the network server. Starts a NetServer on a free port
+ * over a server in this process, then drives it from many RemoteServer
+ * connections, each shared by several lanes so their requests are
+ * pipelined on the connection. Each lane buys and restocks baskets drawn
+ * from a small hot set and checks every answer: transaction IDs are never
+ * handed out twice, every change is accepted and a basket holds what was
+ * put in it. At the end, the stock read over the network must match the
+ * server's own, and each item's stock must be its starting stock plus what
+ * was restocked less what was sold. The report gives round trips per
+ * second for each number of connections.
+ *
+ * Usage: java -ea Source.bench.NetLoopback [-items 10000] [-hot 16] [-basket 4]
+ *        [-connections 1,4,16] [-lanes 4] [-workers 8] [-time 2000]
+ */
+package Source.bench;
+
+import Source.net.NetServer;
+import Source.net.RemoteServer;
+import Source.server.POSServer;
+import Source.server.ReadServer;
+import Source.server.SearchPage;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NetLoopback {
+   //client IDs of the lanes start here; the stock is read as client 0
+   private static final int FIRST_LANE = 1;
+
+   public static void main(String[] args) throws Exception {
+      int items = 10000;
+      int hot = 16;
+      int basket = 4;
+      String connections = "1,4,16";
+      int lanes = 4;
+      int workers = 8;
+      long time = 2000;
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-items")) {
+            items = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-hot")) {
+            hot = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-basket")) {
+            basket = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-connections")) {
+            connections = args[i + 1];
+         } else if (args[i].equals("-lanes")) {
+            lanes = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-workers")) {
+            workers = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-time")) {
+            time = Long.parseLong(args[i + 1]);
+         }
+      }
+
+      File file = File.createTempFile("inventory-" + items + "-", ".txt");
+      file.deleteOnExit();
+      InventoryGenerator.write(file, items, items);
+
+      System.out.println(String.format(Locale.ROOT, "%12s %6s %12s %14s %10s",
+            "Connections", "Lanes", "Round trips", "Round trips/s", "Mismatches"));
+      boolean failed = false;
+      for (String count : connections.split(",")) {
+         POSServer server = ReadServer.newServer(file);
+         NetServer net = new NetServer(server, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), workers);
+         try {
+            failed |= !run(server, net.getPort(), Integer.parseInt(count.trim()), lanes, hot, basket, time);
+         } finally {
+            net.close();
+         }
+      }
+      file.delete();
+      if (failed) {
+         System.exit(1);
+      }
+   }
+
+   /**
+    * Run the lanes over fresh connections and check the answers and the
+    * stock afterwards.
+    *
+    * @param server the server behind the network server
+    * @return true if every answer was right and every item's stock adds up
+    */
+   private static boolean run(POSServer server, int port, int connectionCount, int lanesPerConnection,
+                              int hot, final int basket, long time) throws InterruptedException, IOException {
+      final String[] codes = new String[hot];
+      int[] before = stock(server, codes, true);
+      final long[] sold = new long[hot];
+      final long[] restocked = new long[hot];
+      final AtomicLong roundTrips = new AtomicLong();
+      final Set<String> ids = ConcurrentHashMap.newKeySet();
+      final List<String> errors = new ArrayList<>();
+      final long deadline = System.nanoTime() + time * 1000000L;
+
+      RemoteServer[] connections = new RemoteServer[connectionCount];
+      for (int c = 0; c < connectionCount; c++) {
+         connections[c] = new RemoteServer(InetAddress.getLoopbackAddress().getHostAddress(), port);
+      }
+      Thread[] lanes = new Thread[connectionCount * lanesPerConnection];
+      for (int l = 0; l < lanes.length; l++) {
+         final POSServer remote = connections[l % connectionCount];
+         final int client = FIRST_LANE + l;
+         lanes[l] = new Thread(new Runnable() {
+            public void run() {
+               Random random = new Random(client);
+               long[] laneSold = new long[codes.length];
+               long[] laneRestocked = new long[codes.length];
+               int[] quantities = new int[codes.length];
+               long trips = 0;
+               try {
+                  while (System.nanoTime() < deadline) {
+                     boolean restock = random.nextInt(5) == 0;
+                     String id = remote.createTransaction(restock ? POSServer.TransactionType.RESTOCK
+                           : POSServer.TransactionType.PURCHASE, 0, client);
+                     if (id == null || !ids.add(id)) {
+                        throw new IllegalStateException("Transaction ID " + id + " handed out twice");
+                     }
+                     Arrays.fill(quantities, 0);
+                     int total = 0;
+                     for (int i = 0; i < basket; i++) {
+                        int item = random.nextInt(codes.length);
+                        int quantity = 1 + random.nextInt(3);
+                        check(remote.addItemToTransaction(id, codes[item], quantity), id);
+                        quantities[item] += quantity;
+                        total += quantity;
+                     }
+                     String held = remote.queryTransaction(id, POSServer.TransactionQuery.TOTAL_QUANTITY);
+                     if (!held.equals(Integer.toString(total))) {
+                        throw new IllegalStateException(id + " holds " + held + " items, not " + total);
+                     }
+                     check(remote.completeTransaction(id), id);
+
+                     //a purchase that could not be filled is cleared
+                     boolean filled = !remote.queryTransaction(id, POSServer.TransactionQuery.TOTAL_QUANTITY).equals("0");
+                     for (int i = 0; i < codes.length; i++) {
+                        if (restock) {
+                           laneRestocked[i] += quantities[i];
+                        } else if (filled) {
+                           laneSold[i] += quantities[i];
+                        }
+                     }
+                     trips += basket + 4;
+                  }
+               } catch (Throwable t) {
+                  synchronized (errors) {
+                     errors.add(Thread.currentThread().getName() + ": " + t);
+                  }
+               }
+               roundTrips.addAndGet(trips);
+               synchronized (sold) {
+                  for (int i = 0; i < codes.length; i++) {
+                     sold[i] += laneSold[i];
+                     restocked[i] += laneRestocked[i];
+                  }
+               }
+            }
+         }, "lane-" + client);
+      }
+      for (Thread lane : lanes) {
+         lane.start();
+      }
+      for (Thread lane : lanes) {
+         lane.join();
+      }
+
+      int[] after = stock(server, codes, false);
+      int[] remoteAfter = stock(connections[0], codes, false);
+      for (RemoteServer connection : connections) {
+         connection.close();
+      }
+      int mismatches = errors.size();
+      for (String error : errors) {
+         System.out.println("Lane failed: " + error);
+      }
+      for (int i = 0; i < codes.length; i++) {
+         long expected = before[i] + restocked[i] - sold[i];
+         if (after[i] != expected || after[i] < 0 || remoteAfter[i] != after[i]) {
+            System.out.println(codes[i] + ": stock " + after[i] + " (" + remoteAfter[i]
+                  + " over the network), expected " + expected);
+            mismatches++;
+         }
+      }
+      String created = server.queryServer(POSServer.ServerQuery.TRANSACTION_CREATED_COUNT);
+      if (!created.equals(Integer.toString(ids.size()))) {
+         System.out.println(created + " transactions created, " + ids.size() + " seen by the lanes");
+         mismatches++;
+      }
+      System.out.println(String.format(Locale.ROOT, "%12d %6d %12d %14.0f %10d",
+            connectionCount, lanes.length, roundTrips.get(), roundTrips.get() * 1000.0 / time, mismatches));
+      return mismatches == 0;
+   }
+
+   //a lane stops at the first change the server refuses
+   private static void check(String error, String id) {
+      if (error != null) {
+         throw new IllegalStateException(id + ": " + error);
+      }
+   }
+
+   /**
+    * Read the stock of the first items in code order.
+    *
+    * @param codes filled with the codes if first is true, otherwise the codes to read
+    * @return the stock of each item
+    */
+   private static int[] stock(POSServer server, String[] codes, boolean first) {
+      int[] stock = new int[codes.length];
+      SearchPage page = server.searchPage("", POSServer.ItemField.CODE, 0, codes.length,
+            POSServer.ItemField.CODE, POSServer.ItemField.QUANTITY);
+      for (int row = 0; row < page.size(); row++) {
+         if (first) {
+            codes[row] = page.getCode(row);
+         } else if (!codes[row].equals(page.getCode(row))) {
+            throw new IllegalStateException("The items moved");
+         }
+         stock[row] = page.getQuantity(row);
+      }
+      return stock;
+   }
+}
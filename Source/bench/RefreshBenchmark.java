@@ -0,0 +1,113 @@
+/**
+ * Measures the time a lane waits for a checkout (create a transaction, add
+ * an item, complete it) while other client windows are open, to show that
+ * refreshing the windows does not slow the lane down as windows are added.
+ * The windows are stand-ins that keep a search open and count refreshes.
+ *
+ * Usage: java Source.bench.RefreshBenchmark [-items 10000] [-windows 1,10,30,100]
+ *        [-warmup 3] [-iterations 5] [-time 1000]
+ */
+package Source.bench;
+
+import Source.client.GUIClient;
+import Source.main.Adapter;
+import Source.server.POSServer;
+import Source.server.ReadServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RefreshBenchmark {
+   //the lane that checks out
+   private static final int LANE = 1;
+
+   /**
+    * A window that shows a search but draws nothing.
+    */
+   private static class Window implements GUIClient {
+      static final AtomicLong refreshes = new AtomicLong();
+      private final String pattern;
+
+      Window(String pattern) {
+         this.pattern = pattern;
+      }
+
+      public void updateStatistics() {}
+
+      public void updateInventory() {}
+
+      public void updateTransaction(String transactionID) {}
+
+      public String getTimeStamp() {
+         return "20240101120000";
+      }
+
+      public String getSearchPattern() {
+         return pattern;
+      }
+
+      public String getSearchOrder() {
+         return "QUANTITY";
+      }
+
+      public void showStatistics(String inventoryCount, String completedCount, String inProgressCount) {
+         refreshes.incrementAndGet();
+      }
+
+      public void showInventory(String pattern, String order, String[] items) {
+         refreshes.incrementAndGet();
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      System.setProperty("java.awt.headless", "true");
+      int items = 10000;
+      String windowCounts = "1,10,30,100";
+      int warmups = 3;
+      int iterations = 5;
+      long time = 1000;
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-items")) {
+            items = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-windows")) {
+            windowCounts = args[i + 1];
+         } else if (args[i].equals("-warmup")) {
+            warmups = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-iterations")) {
+            iterations = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-time")) {
+            time = Long.parseLong(args[i + 1]);
+         }
+      }
+
+      File file = File.createTempFile("inventory-" + items + "-", ".txt");
+      file.deleteOnExit();
+      InventoryGenerator.write(file, items, items);
+      final POSServer server = ReadServer.newServer(file);
+      final String code = server.searchPage("", POSServer.ItemField.CODE, LANE, 1, POSServer.ItemField.CODE).getCode(0);
+
+      Bench bench = new Bench(warmups, iterations, time, Integer.MAX_VALUE);
+      bench.printHeader();
+      for (String count : windowCounts.split(",")) {
+         int windows = Integer.parseInt(count.trim());
+         final Adapter adapter = new Adapter(server);
+         adapter.newClient(LANE, new Window(InventoryGenerator.BRANDS[0]));
+         for (int i = 1; i < windows; i++) {
+            adapter.newClient(LANE + i, new Window(InventoryGenerator.BRANDS[i % InventoryGenerator.BRANDS.length]));
+         }
+
+         Window.refreshes.set(0);
+         bench.run("checkout/windows=" + windows, items, new Bench.Op(false) {
+            public Object run() {
+               String id = adapter.createTransaction(LANE, "RESTOCK");
+               adapter.addToTransaction(LANE, id, code, "1");
+               adapter.endTransaction(LANE, "COMPLETE", id);
+               return id;
+            }
+         });
+         System.out.println("   window refreshes: " + Window.refreshes.get());
+      }
+      System.exit(0);
+   }
+}
@@ -0,0 +1,100 @@
+/**
+ * Measures the sales analytics: completes a run of purchases spread over a
+ * day of hours, then times asking for the best sellers of an hour, of all
+ * time, and an item's history, each averaged over many calls. The queries
+ * read kept rankings, so their times should stay flat however many sales
+ * came before; the report prints them after each round of sales.
+ *
+ * Usage: java Source.bench.SalesBenchmark [-items 10000] [-sales 1000000]
+ *        [-rounds 3] [-top 10]
+ */
+package Source.bench;
+
+import Source.server.POSServer;
+import Source.server.ReadServer;
+import Source.server.SalesReport;
+import Source.server.SearchPage;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.Random;
+
+public class SalesBenchmark {
+   //the first hour sold in (yyyyMMddHH); sales are spread over the day after it
+   private static final long FIRST_HOUR = 2026010100L;
+   private static final int HOURS = 24;
+   //calls each query is timed over
+   private static final int QUERIES = 1000;
+
+   //no instances
+   private SalesBenchmark() {}
+
+   public static void main(String[] args) throws Exception {
+      int items = 10000;
+      int sales = 1000000;
+      int rounds = 3;
+      int top = 10;
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-items")) {
+            items = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-sales")) {
+            sales = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-rounds")) {
+            rounds = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-top")) {
+            top = Integer.parseInt(args[i + 1]);
+         }
+      }
+
+      File file = File.createTempFile("inventory-" + items + "-", ".txt");
+      file.deleteOnExit();
+      InventoryGenerator.write(file, items, items);
+      POSServer server = ReadServer.newServer(file);
+      SearchPage page = server.searchPage("", POSServer.ItemField.CODE, 0, items, POSServer.ItemField.CODE);
+      String[] codes = new String[page.size()];
+      for (int row = 0; row < codes.length; row++) {
+         codes[row] = page.getCode(row);
+      }
+
+      System.out.println(String.format(Locale.ROOT, "%12s %12s %14s %14s %14s",
+            "Sales", "Sales/s", "Hour top us", "All top us", "Item us"));
+      Random random = new Random(items);
+      long total = 0;
+      for (int round = 0; round < rounds; round++) {
+         long start = System.nanoTime();
+         for (int n = 0; n < sales; n++) {
+            long time = (FIRST_HOUR + random.nextInt(HOURS)) * 10000 + random.nextInt(3600);
+            String id = server.createTransaction(POSServer.TransactionType.BACKORDER, time, 1);
+            //skewed toward the front of the catalog, so there are clear best sellers
+            int item = (int) (codes.length * Math.pow(random.nextDouble(), 3));
+            server.addItemToTransaction(id, codes[item], 1 + random.nextInt(3));
+            server.completeTransaction(id);
+         }
+         double seconds = (System.nanoTime() - start) / 1e9;
+         total += sales;
+
+         long hourTop = time(server, FIRST_HOUR * 10000, top, null);
+         long allTop = time(server, SalesReport.ALL_TIME, top, null);
+         long history = time(server, 0, 0, codes[0]);
+         System.out.println(String.format(Locale.ROOT, "%12d %12.0f %14.1f %14.1f %14.1f",
+               total, sales / seconds, hourTop / 1000.0, allTop / 1000.0, history / 1000.0));
+      }
+      file.delete();
+   }
+
+   /**
+    * Time a query: the best sellers if code is null, else an item's history.
+    *
+    * @return the mean nanoseconds per call
+    */
+   private static long time(POSServer server, long time, int top, String code) {
+      long start = System.nanoTime();
+      for (int i = 0; i < QUERIES; i++) {
+         SalesReport report = code == null ? server.topSellers(time, top) : server.itemSales(code);
+         if (report == null || report.size() == 0) {
+            throw new IllegalStateException("No sales reported");
+         }
+      }
+      return (System.nanoTime() - start) / QUERIES;
+   }
+}
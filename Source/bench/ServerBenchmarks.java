@@ -0,0 +1,198 @@
+/**
+ * Benchmarks of the POSServer hot paths on synthetic catalogs: searching
+ * and reading every match field by field in each order, adding items to a
+ * transaction, completing each type of transaction, cancelling, querying
+ * the server and loading the inventory file.
+ *
+ * Usage: java Source.bench.ServerBenchmarks [-sizes 1000,100000,1000000]
+ *        [-warmup 3] [-iterations 5] [-time 1000] [-maxcalls 20000] [-filter text]
+ *        [-store heap|packed]
+ *
+ * Give the JVM enough heap for the largest catalog (about 1GB for a million
+ * items).
+ */
+package Source.bench;
+
+import Source.server.POSServer;
+import Source.server.ReadServer;
+import Source.server.SearchPage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ServerBenchmarks {
+   //the client every benchmark transaction belongs to
+   private static final int CLIENT = 1;
+
+   private final Bench bench;
+   private final String filter;
+   //true to keep the items packed in arrays (see MemoryBenchmark)
+   private final boolean packed;
+
+   private ServerBenchmarks(Bench bench, String filter, boolean packed) {
+      this.bench = bench;
+      this.filter = filter;
+      this.packed = packed;
+   }
+
+   public static void main(String[] args) throws IOException {
+      String sizes = "1000,100000,1000000";
+      int warmups = 3;
+      int iterations = 5;
+      long time = 1000;
+      int maxCalls = 20000;
+      String filter = "";
+      boolean packed = false;
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-sizes")) {
+            sizes = args[i + 1];
+         } else if (args[i].equals("-warmup")) {
+            warmups = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-iterations")) {
+            iterations = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-time")) {
+            time = Long.parseLong(args[i + 1]);
+         } else if (args[i].equals("-maxcalls")) {
+            maxCalls = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-filter")) {
+            filter = args[i + 1];
+         } else if (args[i].equals("-store")) {
+            packed = args[i + 1].equals("packed");
+         }
+      }
+
+      ServerBenchmarks benchmarks = new ServerBenchmarks(new Bench(warmups, iterations, time, maxCalls), filter, packed);
+      benchmarks.bench.printHeader();
+      for (String size : sizes.split(",")) {
+         benchmarks.runAll(Integer.parseInt(size.trim()));
+      }
+   }
+
+   /**
+    * Run every benchmark on a catalog of the given size.
+    *
+    * @param items the number of items
+    */
+   private void runAll(final int items) throws IOException {
+      final File file = File.createTempFile("inventory-" + items + "-", ".txt");
+      file.deleteOnExit();
+      InventoryGenerator.write(file, items, items);
+
+      final POSServer server = ReadServer.newServer(file, packed);
+      final String[] codes = codes(server);
+      final Random random = new Random(42);
+
+      final String pattern = InventoryGenerator.BRANDS[1];
+      for (final POSServer.ItemField order : POSServer.ItemField.values()) {
+         run("search+drain/" + order, items, new Bench.Op(false) {
+            public Object run() {
+               String id = server.search(pattern, order);
+               int found = 0;
+               while (server.next(id)) {
+                  for (POSServer.ItemField field : POSServer.ItemField.values()) {
+                     if (server.queryMatch(id, field) != null) {
+                        found++;
+                     }
+                  }
+               }
+               return found;
+            }
+         });
+      }
+
+      run("addItemToTransaction", items, new Bench.Op(false) {
+         private String transaction;
+         private int next;
+
+         @Override
+         public void setup() {
+            transaction = server.createTransaction(POSServer.TransactionType.RESTOCK, 0, CLIENT);
+         }
+
+         public Object run() {
+            //cycle through a fixed set of items so the transaction stays small
+            return server.addItemToTransaction(transaction, codes[(next++ & 63) % codes.length], 1);
+         }
+      });
+
+      for (final POSServer.TransactionType type : POSServer.TransactionType.values()) {
+         run("completeTransaction/" + type, items, new Bench.Op(true) {
+            private String transaction;
+
+            @Override
+            public void setup() {
+               String code = codes[random.nextInt(codes.length)];
+               //restock first so a purchase has something to take
+               String restock = server.createTransaction(POSServer.TransactionType.RESTOCK, 0, CLIENT);
+               server.addItemToTransaction(restock, code, 1);
+               server.completeTransaction(restock);
+
+               transaction = server.createTransaction(type, 0, CLIENT);
+               server.addItemToTransaction(transaction, code, 1);
+            }
+
+            public Object run() {
+               return server.completeTransaction(transaction);
+            }
+         });
+      }
+
+      run("cancelTransaction", items, new Bench.Op(true) {
+         private String transaction;
+
+         @Override
+         public void setup() {
+            transaction = server.createTransaction(POSServer.TransactionType.RETURN, 0, CLIENT);
+            server.addItemToTransaction(transaction, codes[random.nextInt(codes.length)], 1);
+            server.completeTransaction(transaction);
+         }
+
+         public Object run() {
+            return server.cancelTransaction(transaction, 0, CLIENT);
+         }
+      });
+
+      run("queryServer", items, new Bench.Op(false) {
+         private final POSServer.ServerQuery[] queries = POSServer.ServerQuery.values();
+         private int next;
+
+         public Object run() {
+            return server.queryServer(queries[next++ % queries.length]);
+         }
+      });
+
+      run("readInventory", items, new Bench.Op(true) {
+         public Object run() {
+            return ReadServer.newServer(file, packed);
+         }
+      });
+
+      file.delete();
+   }
+
+   //run a benchmark if it passes the filter
+   private void run(String name, int items, Bench.Op op) {
+      if (name.contains(filter)) {
+         bench.run(name, items, op);
+      }
+   }
+
+   /**
+    * @return the codes of every item on the server
+    */
+   private static String[] codes(POSServer server) {
+      List<String> codes = new ArrayList<>();
+      SearchPage page = server.searchPage("", POSServer.ItemField.CODE, CLIENT, 10000, POSServer.ItemField.CODE);
+      while (page != null) {
+         for (int row = 0; row < page.size(); row++) {
+            codes.add(page.getCode(row));
+         }
+         page = page.getContinuation() == null ? null
+               : server.nextPage(page.getContinuation(), 10000, POSServer.ItemField.CODE);
+      }
+      return codes.toArray(new String[codes.size()]);
+   }
+}
@@ -0,0 +1,208 @@
+/**
+ * A stress test of stock conservation with every kind of transaction. Each
+ * lane makes purchases, backorders, restocks and returns of baskets drawn
+ * from a small hot set, and cancels some of its own completed purchases
+ * and backorders, so the lanes fight over the same stock from every side.
+ * Each lane counts what its transactions took from or gave to each item.
+ * At the end, every item's stock less its backorder must be its starting
+ * value plus what the lanes gave less what they took, and neither may be
+ * negative: a lost update or an oversell shows up as a mismatch. The report
+ * gives transactions per second for each number of lanes.
+ *
+ *    purchase   takes its basket if it was filled, gives it back if cancelled
+ *    backorder  takes its basket, gives it back if cancelled
+ *    restock    gives its basket
+ *    return     leaves the stock alone
+ *
+ * Usage: java -ea Source.bench.StockStress [-items 10000] [-hot 16]
+ *        [-basket 4] [-lanes 1,2,4,8] [-time 2000]
+ */
+package Source.bench;
+
+import Source.server.POSServer;
+import Source.server.ReadServer;
+import Source.server.SearchPage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StockStress {
+   //client IDs of the lanes start here; the stock is read as client 0
+   private static final int FIRST_LANE = 1;
+   //one in this many completed purchases and backorders is cancelled
+   private static final int CANCEL_ONE_IN = 4;
+
+   public static void main(String[] args) throws Exception {
+      int items = 10000;
+      int hot = 16;
+      int basket = 4;
+      String lanes = "1,2,4,8";
+      long time = 2000;
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-items")) {
+            items = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-hot")) {
+            hot = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-basket")) {
+            basket = Integer.parseInt(args[i + 1]);
+         } else if (args[i].equals("-lanes")) {
+            lanes = args[i + 1];
+         } else if (args[i].equals("-time")) {
+            time = Long.parseLong(args[i + 1]);
+         }
+      }
+
+      File file = File.createTempFile("inventory-" + items + "-", ".txt");
+      file.deleteOnExit();
+      InventoryGenerator.write(file, items, items);
+
+      System.out.println(String.format(Locale.ROOT, "%6s %6s %12s %12s %12s %10s",
+            "Lanes", "Hot", "Done", "Done/s", "Cancelled", "Mismatches"));
+      boolean failed = false;
+      for (String count : lanes.split(",")) {
+         failed |= !run(ReadServer.newServer(file), Integer.parseInt(count.trim()), hot, basket, time);
+      }
+      file.delete();
+      if (failed) {
+         System.exit(1);
+      }
+   }
+
+   /**
+    * Run the lanes against a fresh server and check the stock afterwards.
+    *
+    * @return true if every item's stock adds up
+    */
+   private static boolean run(final POSServer server, int laneCount, int hot, final int basket, long time)
+         throws InterruptedException {
+      final String[] codes = new String[hot];
+      long[] before = available(server, codes, true);
+      final long[] change = new long[hot];
+      final AtomicLong done = new AtomicLong();
+      final AtomicLong cancelled = new AtomicLong();
+      final List<Throwable> errors = new ArrayList<>();
+      final long deadline = System.nanoTime() + time * 1000000L;
+
+      Thread[] lanes = new Thread[laneCount];
+      for (int l = 0; l < laneCount; l++) {
+         final int client = FIRST_LANE + l;
+         lanes[l] = new Thread(new Runnable() {
+            public void run() {
+               Random random = new Random(client);
+               long[] laneChange = new long[codes.length];
+               int[] quantities = new int[codes.length];
+               POSServer.TransactionType[] types = POSServer.TransactionType.values();
+               try {
+                  while (System.nanoTime() < deadline) {
+                     POSServer.TransactionType type = types[random.nextInt(types.length)];
+                     String id = server.createTransaction(type, 0, client);
+                     Arrays.fill(quantities, 0);
+                     for (int i = 0; i < basket; i++) {
+                        int item = random.nextInt(codes.length);
+                        int quantity = 1 + random.nextInt(3);
+                        check(server.addItemToTransaction(id, codes[item], quantity), id);
+                        quantities[item] += quantity;
+                     }
+                     check(server.completeTransaction(id), id);
+                     done.incrementAndGet();
+
+                     //a purchase that could not be filled is cleared and takes nothing
+                     int sign;
+                     switch (type) {
+                     case PURCHASE:
+                        boolean filled = !server.queryTransaction(id, POSServer.TransactionQuery.TOTAL_QUANTITY).equals("0");
+                        sign = filled ? -1 : 0;
+                        break;
+                     case BACKORDER:
+                        sign = -1;
+                        break;
+                     case RESTOCK:
+                        sign = 1;
+                        break;
+                     default:
+                        sign = 0;
+                     }
+                     if (sign < 0 && random.nextInt(CANCEL_ONE_IN) == 0) {
+                        check(server.cancelTransaction(id, 0, client), id);
+                        cancelled.incrementAndGet();
+                        sign = 0;
+                     }
+                     for (int i = 0; i < codes.length; i++) {
+                        laneChange[i] += sign * quantities[i];
+                     }
+                  }
+               } catch (Throwable t) {
+                  synchronized (errors) {
+                     errors.add(t);
+                  }
+               }
+               synchronized (change) {
+                  for (int i = 0; i < codes.length; i++) {
+                     change[i] += laneChange[i];
+                  }
+               }
+            }
+         }, "lane-" + client);
+      }
+      for (Thread lane : lanes) {
+         lane.start();
+      }
+      for (Thread lane : lanes) {
+         lane.join();
+      }
+
+      long[] after = available(server, codes, false);
+      int mismatches = errors.size();
+      for (Throwable error : errors) {
+         System.out.println("Lane failed: " + error);
+      }
+      for (int i = 0; i < codes.length; i++) {
+         long expected = before[i] + change[i];
+         if (after[i] != expected) {
+            System.out.println(codes[i] + ": stock less backorder " + after[i] + ", expected " + expected);
+            mismatches++;
+         }
+      }
+      System.out.println(String.format(Locale.ROOT, "%6d %6d %12d %12.0f %12d %10d",
+            laneCount, hot, done.get(), done.get() * 1000.0 / time, cancelled.get(), mismatches));
+      return mismatches == 0;
+   }
+
+   //a lane stops at the first change the server refuses
+   private static void check(String error, String id) {
+      if (error != null) {
+         throw new IllegalStateException(id + ": " + error);
+      }
+   }
+
+   /**
+    * Read the stock less the backorder of the first items in code order.
+    *
+    * @param codes filled with the codes if first is true, otherwise the codes to read
+    * @return the stock less the backorder of each item
+    * @throws IllegalStateException if a stock or backorder is negative
+    */
+   private static long[] available(POSServer server, String[] codes, boolean first) {
+      long[] available = new long[codes.length];
+      SearchPage page = server.searchPage("", POSServer.ItemField.CODE, 0, codes.length,
+            POSServer.ItemField.CODE, POSServer.ItemField.QUANTITY, POSServer.ItemField.BACKORDER_QUANTITY);
+      for (int row = 0; row < page.size(); row++) {
+         if (first) {
+            codes[row] = page.getCode(row);
+         } else if (!codes[row].equals(page.getCode(row))) {
+            throw new IllegalStateException("The items moved");
+         }
+         if (page.getQuantity(row) < 0 || page.getBackorder(row) < 0) {
+            throw new IllegalStateException(codes[row] + ": stock " + page.getQuantity(row)
+                  + ", backorder " + page.getBackorder(row));
+         }
+         available[row] = page.getQuantity(row) - (long) page.getBackorder(row);
+      }
+      return available;
+   }
+}
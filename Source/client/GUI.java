@@ -8,8 +8,13 @@ import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Objects;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import javax.swing.AbstractListModel;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
@@ -21,7 +26,11 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.border.TitledBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
@@ -48,13 +57,23 @@ public class GUI {
    private static class Window extends JFrame implements GUIClient {
       //Search orders
       private static final String[] SEARCH_ORDERS = new String[]{"Code", "Cost", "Description", "Quantity", "Backorder Quantity"};
+      //how long typing must pause before the search is run
+      private static final int SEARCH_DELAY_MILLIS = 250;
+      //sizes every row of the list, so adding rows doesn't measure all of them again
+      private static final String PROTOTYPE_ROW = "XXXXXXXXXX (XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX) ($9999.99) (Quantity: 99999) (Backorder: 99999)";
       //client id
       private final int id;
       private final GUIAdapter client;
-      //remember previous search
-      private String previousSearch;
+      //remember previous search and its order (read by the adapter off the event thread)
+      private volatile String previousSearch;
+      private volatile String previousOrder;
       private String transactionID;
       private final JList<String> list;
+      private final ResultsModel results;
+      //runs the search once typing pauses
+      private final Timer searchDelay;
+      //the search filling the list, or null when none is running (event thread only)
+      private SearchWorker search;
       //text panels
       private final Window.LabelledTextPanel inventoryCount;
       private final Window.LabelledTextPanel transactionCompletedCount;
@@ -91,7 +110,9 @@ public class GUI {
          this.id = lastID++;
          this.client = adapter;
          JPanel border = new JPanel(new BorderLayout());
-         this.list = new JList<>();
+         this.results = new ResultsModel();
+         this.list = new JList<>(this.results);
+         this.list.setPrototypeCellValue(PROTOTYPE_ROW);
          this.list.setSelectionMode(0);
          this.list.setVisibleRowCount(8);
          JScrollPane scrollPane = new JScrollPane(this.list);
@@ -186,16 +207,27 @@ public class GUI {
          });
          ActionListener listener = new ActionListener() {
             public void actionPerformed(ActionEvent var1) {
-               if (Window.this.client != null) {
-                  Window.this.previousSearch = Window.this.searchText.getText();
-                  Window.this.list.setListData(Window.this.client.search(Window.this.previousSearch, Window.this.searchOrder.getSelectedItem().toString().toUpperCase().replace(' ', '_')));
-                  Window.this.selectedItem.updateText("");
-               }
-
+               Window.this.search(Window.this.searchText.getText(), Window.this.searchOrder.getSelectedItem().toString().toUpperCase().replace(' ', '_'));
             }
          };
          searchButton.addActionListener(listener);
          this.searchOrder.addActionListener(listener);
+         this.searchText.addActionListener(listener);
+         this.searchDelay = new Timer(SEARCH_DELAY_MILLIS, listener);
+         this.searchDelay.setRepeats(false);
+         this.searchText.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent event) {
+               Window.this.searchDelay.restart();
+            }
+
+            public void removeUpdate(DocumentEvent event) {
+               Window.this.searchDelay.restart();
+            }
+
+            public void changedUpdate(DocumentEvent event) {
+               // only the text matters
+            }
+         });
          this.list.addListSelectionListener(new ListSelectionListener() {
             public void valueChanged(ListSelectionEvent event) {
                String value = "";
@@ -278,12 +310,52 @@ public class GUI {
       }
 
       public void updateInventory() {
-         if (this.client != null && this.previousSearch != null) {
-            this.list.setListData(this.client.search(this.previousSearch, Objects.requireNonNull(this.searchOrder.getSelectedItem()).toString().toUpperCase().replace(' ', '_')));
+         if (this.previousSearch != null) {
+            this.search(this.previousSearch, this.previousOrder);
+         }
+
+      }
+
+      /**
+       * Start a search behind the window, dropping any search still running.
+       * The list keeps its old results until the first page arrives.
+       */
+      private void search(String pattern, String order) {
+         this.searchDelay.stop();
+         if (this.client != null) {
+            if (this.search != null) {
+               this.search.cancel(false);
+            }
+            this.previousOrder = order;
+            this.previousSearch = pattern;
+            this.search = new SearchWorker(pattern, order);
+            this.search.execute();
+            this.selectedItem.updateText("");
          }
 
       }
 
+      public String getSearchPattern() {
+         return this.previousSearch;
+      }
+
+      public String getSearchOrder() {
+         return this.previousOrder;
+      }
+
+      public void showStatistics(String inventoryCount, String completedCount, String inProgressCount) {
+         this.inventoryCount.updateText(inventoryCount);
+         this.transactionCompletedCount.updateText(completedCount);
+         this.tranasctionInProgressCount.updateText(inProgressCount);
+      }
+
+      public void showInventory(String pattern, String order, String[] items) {
+         //a search still running will show newer results than these
+         if (this.search == null && pattern.equals(this.previousSearch) && order.equals(this.previousOrder)) {
+            this.results.set(items);
+         }
+      }
+
       public void updateTransaction(String input) {
          if (this.client != null) {
             this.transactionText.setText(this.client.getTransactionDetails(input));
@@ -294,7 +366,7 @@ public class GUI {
             String cost = this.client.getTransactionCost(input);
 
             try {
-               cost = String.format("%.2f", (double)Integer.parseInt(cost) / 100.0D);
+               cost = String.format("%.2f", (double)Long.parseLong(cost) / 100.0D);
             } catch (Exception exception) {
                System.out.println("Format error!");
             }
@@ -310,12 +382,110 @@ public class GUI {
 
       public String getTimeStamp() {
          if (sdf == null) {
-            sdf = new SimpleDateFormat("yyyymmddHHmmss");
+            sdf = new SimpleDateFormat("yyyyMMddHHmmss");
          }
 
          return sdf.format(Calendar.getInstance().getTime());
       }
 
+      /**
+       * Reads a search a page at a time off the event thread and adds each
+       * page to the list as it arrives. A search that has been replaced
+       * stops after the page it is reading.
+       */
+      private class SearchWorker extends SwingWorker<Void, String[]> {
+         private final String pattern;
+         private final String order;
+         //true once the first page has replaced the old results (event thread only)
+         private boolean shown;
+
+         SearchWorker(String pattern, String order) {
+            this.pattern = pattern;
+            this.order = order;
+         }
+
+         @Override
+         protected Void doInBackground() {
+            String searchID = Window.this.client.beginSearch(Window.this.id, this.pattern, this.order);
+            try {
+               String[] page;
+               while (!this.isCancelled() && (page = Window.this.client.nextSearchPage(searchID)) != null) {
+                  this.publish(page);
+               }
+            } finally {
+               Window.this.client.endSearch(searchID);
+            }
+            return null;
+         }
+
+         @Override
+         protected void process(List<String[]> pages) {
+            if (Window.this.search == this) {
+               if (!this.shown) {
+                  Window.this.results.clear();
+                  this.shown = true;
+               }
+               Window.this.results.add(pages);
+            }
+         }
+
+         @Override
+         protected void done() {
+            if (Window.this.search == this) {
+               Window.this.search = null;
+               if (!this.shown) {
+                  //nothing matched
+                  Window.this.results.clear();
+               }
+               try {
+                  this.get();
+               } catch (InterruptedException | ExecutionException exception) {
+                  System.out.println("Search failed: " + exception.getCause());
+               }
+            }
+         }
+      }
+
+      /**
+       * The rows of the list, which grow a page at a time.
+       */
+      private static class ResultsModel extends AbstractListModel<String> {
+         private static final long serialVersionUID = 1L;
+
+         private final ArrayList<String> rows = new ArrayList<>();
+
+         public int getSize() {
+            return this.rows.size();
+         }
+
+         public String getElementAt(int index) {
+            return this.rows.get(index);
+         }
+
+         public void set(String[] items) {
+            this.clear();
+            this.add(Collections.singletonList(items));
+         }
+
+         public void add(List<String[]> pages) {
+            int first = this.rows.size();
+            for (String[] page : pages) {
+               this.rows.addAll(Arrays.asList(page));
+            }
+            if (this.rows.size() > first) {
+               this.fireIntervalAdded(this, first, this.rows.size() - 1);
+            }
+         }
+
+         public void clear() {
+            int size = this.rows.size();
+            if (size > 0) {
+               this.rows.clear();
+               this.fireIntervalRemoved(this, 0, size - 1);
+            }
+         }
+      }
+
       private static class LabelledTextPanel extends JPanel {
          private JTextField textField;
 
@@ -11,7 +11,13 @@ public interface GUIAdapter {
    String getTransactionInProgressCount();
 
    // This is called by the Search button and updateInventory() 
-   String[] search(String pattern, String order);
+   String[] search(int clientID, String pattern, String order);
+
+   // These are called by a search running behind the window, a page at a time:
+   // nextSearchPage gives null once there are no more pages
+   String beginSearch(int clientID, String pattern, String order);
+   String[] nextSearchPage(String searchID);
+   void endSearch(String searchID);
    
    // These are called by updateTransaction()
    String getTransactionDetails(String transactionID);
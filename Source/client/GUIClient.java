@@ -8,4 +8,11 @@ public interface GUIClient {
    void updateTransaction(String transactionID);
    
    String getTimeStamp();
+
+   // These let the adapter run a refresh's searches and queries itself,
+   // away from the event thread, and hand the client the results
+   String getSearchPattern();
+   String getSearchOrder();
+   void showStatistics(String inventoryCount, String completedCount, String inProgressCount);
+   void showInventory(String pattern, String order, String[] items);
 }
@@ -9,18 +9,63 @@ import Source.client.GUIAdapter;
 import Source.client.GUIClient;
 import Source.server.POSServer;
 import Source.server.ReadServer;
+import Source.server.SearchPage;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Adapter implements GUIAdapter {
    private HashMap<Integer, GUIClient> ids; //hash map of client ids
-   private ArrayList<GUIClient> clients;      //arraylist of client ids so we can traverse and update on all clients
    private POSServer server;
+   //matches fetched from the server per call while searching
+   private static final int PAGE_SIZE = 500;
+   //the fields shown for each match
+   private static final POSServer.ItemField[] FIELDS = {POSServer.ItemField.CODE,
+         POSServer.ItemField.DESCRIPTION, POSServer.ItemField.COST,
+         POSServer.ItemField.QUANTITY, POSServer.ItemField.BACKORDER_QUANTITY};
+   //shortest time between two refreshes of the windows
+   private static final long FRAME_MILLIS = 16;
+   private RefreshDispatcher refresher;
+   //transaction id -> codes of the items added to it
+   private HashMap<String, Set<String>> transactionItems;
+   //searches read a page at a time, by search id (used off the event thread)
+   private final ConcurrentHashMap<String, PagedSearch> searches = new ConcurrentHashMap<>();
+   private final AtomicLong lastSearchID = new AtomicLong();
+
+   /**
+    * A search being read a page at a time by one client.
+    */
+   private static class PagedSearch {
+      final int client;
+      final String pattern;
+      final POSServer.ItemField order;
+      //the server's continuation, once the first page has been read
+      boolean started;
+      String continuation;
+
+      PagedSearch(int client, String pattern, POSServer.ItemField order) {
+         this.client = client;
+         this.pattern = pattern;
+         this.order = order;
+      }
+   }
+
    public Adapter(){
+      this(ReadServer.getServer());
+   }
+
+   /**
+    * @param server the server the clients talk to
+    */
+   public Adapter(POSServer server){
       ids = new HashMap<>();
-      clients = new ArrayList<>();
-      server = ReadServer.getServer();
+      transactionItems = new HashMap<>();
+      this.server = server;
+      refresher = new RefreshDispatcher(this, server, FRAME_MILLIS);
    }
 
    /**
@@ -50,37 +95,39 @@ public class Adapter implements GUIAdapter {
 
    /**
     * search for a pattern in the inventory of items
+    * @param clientID of the client searching
     * @param pattern to be searched
     * @param order in which we will search
     * @return the arryay o all items list
     */
    @Override
-   public String[] search(String pattern, String order) {
+   public String[] search(int clientID, String pattern, String order) {
+      return search(clientID, pattern, order, null);
+   }
+
+   /**
+    * search for a pattern in the inventory of items
+    * @param clientID of the client searching
+    * @param pattern to be searched
+    * @param order in which we will search
+    * @param codes if not null, gets the code of every item found
+    * @return the arryay o all items list
+    */
+   String[] search(int clientID, String pattern, String order, Set<String> codes) {
       if(pattern!=null && order!=null) {
          ArrayList<String> result = new ArrayList<>();
-         String singleItem;
-         POSServer.ItemField itemField = POSServer.ItemField.CODE;
-         if (order.equals("COST")) { //if it iss cost
-            itemField = POSServer.ItemField.COST;
-         } else if (order.equals("DESCRIPTION")) {
-            itemField = POSServer.ItemField.DESCRIPTION;
-         } else if (order.equals("QUANTITY")) {
-            itemField = POSServer.ItemField.QUANTITY;
-         } else if (order.equals("BACKORDER_QUANTITY")) {
-            itemField = POSServer.ItemField.BACKORDER_QUANTITY;
-         }
-         //search the server
-         String id = server.search(pattern, itemField);
-         //add the result to teh string
-         while (server.next(id)) {
-            singleItem = server.queryMatch(id, POSServer.ItemField.CODE);
-            //add other infos
-         singleItem += " ("+server.queryMatch(id, POSServer.ItemField.DESCRIPTION)+")";
-         int cost = Integer.parseInt(server.queryMatch(id, POSServer.ItemField.COST));
-         singleItem += " ($"+(cost / 100) + "." + (cost % 100 < 10 ? "0" : "") + (cost % 100)+")";
-         singleItem+=" (Quantity: "+server.queryMatch(id, POSServer.ItemField.QUANTITY)+")";
-         singleItem+=" (Backorder: "+server.queryMatch(id, POSServer.ItemField.BACKORDER_QUANTITY)+")";
-            result.add(singleItem);
+         //search the server a page at a time
+         SearchPage page = server.searchPage(pattern, toItemField(order), clientID, PAGE_SIZE, FIELDS);
+         while (page != null) {
+            //add each match with its other infos
+            for (int row = 0; row < page.size(); row++) {
+               result.add(format(page, row));
+               if (codes != null) {
+                  codes.add(page.getCode(row));
+               }
+            }
+            String continuation = page.getContinuation();
+            page = continuation == null ? null : server.nextPage(continuation, PAGE_SIZE, FIELDS);
          }
          //get the string
          String[] info = new String[result.size()];
@@ -94,6 +141,102 @@ public class Adapter implements GUIAdapter {
       }
    }
 
+   /**
+    * begin a search that is read a page at a time
+    * @param clientID of the client searching
+    * @param pattern to be searched
+    * @param order in which we will search
+    * @return the search id, or null if the inputs are null
+    */
+   @Override
+   public String beginSearch(int clientID, String pattern, String order) {
+      if(pattern!=null && order!=null) {
+         String searchID = clientID + ":" + lastSearchID.incrementAndGet();
+         searches.put(searchID, new PagedSearch(clientID, pattern, toItemField(order)));
+         return searchID;
+      }
+      else {
+         return null;
+      }
+   }
+
+   /**
+    * get the next page of a search
+    * @param searchID of the search
+    * @return the items on the page, or null when there are no more
+    */
+   @Override
+   public String[] nextSearchPage(String searchID) {
+      PagedSearch search = searchID == null ? null : searches.get(searchID);
+      if (search == null) {
+         return null;
+      }
+      SearchPage page;
+      if (!search.started) {
+         search.started = true;
+         page = server.searchPage(search.pattern, search.order, search.client, PAGE_SIZE, FIELDS);
+      } else if (search.continuation != null) {
+         page = server.nextPage(search.continuation, PAGE_SIZE, FIELDS);
+      } else {
+         page = null;
+      }
+      if (page == null) {
+         searches.remove(searchID);
+         return null;
+      }
+      search.continuation = page.getContinuation();
+      String[] items = new String[page.size()];
+      for (int row = 0; row < items.length; row++) {
+         items[row] = format(page, row);
+      }
+      return items;
+   }
+
+   /**
+    * forget a search, whether or not all of it was read
+    * @param searchID of the search
+    */
+   @Override
+   public void endSearch(String searchID) {
+      if (searchID != null) {
+         searches.remove(searchID);
+      }
+   }
+
+   /**
+    * @param order the order as the client names it
+    * @return the field to order by (code if the order is unknown)
+    */
+   private static POSServer.ItemField toItemField(String order) {
+      POSServer.ItemField itemField = POSServer.ItemField.CODE;
+      if (order.equals("COST")) { //if it iss cost
+         itemField = POSServer.ItemField.COST;
+      } else if (order.equals("DESCRIPTION")) {
+         itemField = POSServer.ItemField.DESCRIPTION;
+      } else if (order.equals("QUANTITY")) {
+         itemField = POSServer.ItemField.QUANTITY;
+      } else if (order.equals("BACKORDER_QUANTITY")) {
+         itemField = POSServer.ItemField.BACKORDER_QUANTITY;
+      }
+      return itemField;
+   }
+
+   /**
+    * @param page a page of matches
+    * @param row a match on it
+    * @return the match as the client shows it
+    */
+   private static String format(SearchPage page, int row) {
+      int cost = page.getCost(row);
+      StringBuilder singleItem = new StringBuilder();
+      singleItem.append(page.getCode(row));
+      singleItem.append(" (").append(page.getDescription(row)).append(")");
+      singleItem.append(" ($").append(cost / 100).append(".").append(cost % 100 < 10 ? "0" : "").append(cost % 100).append(")");
+      singleItem.append(" (Quantity: ").append(page.getQuantity(row)).append(")");
+      singleItem.append(" (Backorder: ").append(page.getBackorder(row)).append(")");
+      return singleItem.toString();
+   }
+
    /**
     * get the transaction details
     * @param transactionID transaction id to be detailed
@@ -162,14 +305,14 @@ public class Adapter implements GUIAdapter {
    }
 
    /**
-    * transaction cost of the trnsaction
+    * transaction cost of the trnsaction, after any promotions
     * @param transactionID of the transaction
-    * @return total cost
+    * @return total cost less discount
     */
    @Override
    public String getTransactionCost(String transactionID) {
       if(transactionID!=null) {
-         return server.queryTransaction(transactionID, POSServer.TransactionQuery.TOTAL_COST);
+         return server.queryTransaction(transactionID, POSServer.TransactionQuery.NET_COST);
       }
       else {
          return "";
@@ -195,12 +338,9 @@ public class Adapter implements GUIAdapter {
          } else if (type.equals("RESTOCK")) {
             transactionType = POSServer.TransactionType.RESTOCK;
          }
-         //update client after adding
+         //update clients after adding; no stock has changed yet
          String id = server.createTransaction(transactionType, time, clientID);
-         for (GUIClient client : clients) {
-            client.updateStatistics();
-            client.updateInventory();
-         }
+         refresher.statisticsChanged();
          return id;
       }
       else {
@@ -221,6 +361,15 @@ public class Adapter implements GUIAdapter {
       if(transactionID!=null && item!=null && quantity!=null) {
          String[] itemCode = item.split("\\s+");
          String result = server.addItemToTransaction(transactionID, itemCode[0], Integer.parseInt(quantity));
+         if (result == null) {
+            //remember the item so the windows showing it are refreshed at the end
+            Set<String> items = transactionItems.get(transactionID);
+            if (items == null) {
+               items = new HashSet<>();
+               transactionItems.put(transactionID, items);
+            }
+            items.add(itemCode[0]);
+         }
          //update the transaction
          ids.get(clientID).updateTransaction(transactionID);
          return result;
@@ -246,9 +395,10 @@ public class Adapter implements GUIAdapter {
          } else {
             server.completeTransaction(transactionID);
          }
-         for (GUIClient client: clients){
-            client.updateStatistics();
-            client.updateInventory();
+         Set<String> items = transactionItems.remove(transactionID);
+         refresher.statisticsChanged();
+         if (items != null) {
+            refresher.inventoryChanged(items);
          }
       }
 
@@ -264,6 +414,6 @@ public class Adapter implements GUIAdapter {
    @Override
    public void newClient(int clientID, GUIClient client) {
       ids.put(clientID, client);
-      clients.add(client);
+      refresher.register(clientID, client);
    }
 }
@@ -0,0 +1,185 @@
+/**
+ * Refreshes the client windows after changes, on a thread of its own rather
+ * than the caller's. Changes are collected and applied at most once per
+ * frame, however many arrive. The statistics are read once per refresh for
+ * all windows, and a window's search is re-run only if an item it shows was
+ * touched (windows showing the same search share one run). The results are
+ * handed to the windows on the event thread.
+ */
+package Source.main;
+
+import Source.client.GUIClient;
+import Source.server.POSServer;
+
+import java.awt.EventQueue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+class RefreshDispatcher {
+   private final Adapter adapter;
+   private final POSServer server;
+   private final long frameNanos;
+   private final ScheduledExecutorService refresher;
+   private final List<Window> windows = new CopyOnWriteArrayList<>();
+   //guarded by this: changes waiting for the next refresh
+   private boolean statisticsChanged;
+   private Set<String> touched = new HashSet<>();
+   private boolean scheduled;
+   //System.nanoTime() of the last refresh
+   private long lastRefresh;
+
+   /**
+    * What the dispatcher knows about one window: the search it last ran
+    * for it and the item codes that search showed. Refresher thread only.
+    */
+   private static class Window {
+      final int clientID;
+      final GUIClient client;
+      String pattern;
+      String order;
+      Set<String> codes;
+
+      Window(int clientID, GUIClient client) {
+         this.clientID = clientID;
+         this.client = client;
+      }
+   }
+
+   /**
+    * @param adapter     runs the searches
+    * @param server      answers the statistics queries
+    * @param frameMillis the shortest time between refreshes
+    */
+   RefreshDispatcher(Adapter adapter, POSServer server, long frameMillis) {
+      this.adapter = adapter;
+      this.server = server;
+      this.frameNanos = TimeUnit.MILLISECONDS.toNanos(frameMillis);
+      this.lastRefresh = System.nanoTime() - frameNanos;
+      refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "client-refresh");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   /**
+    * @param clientID the window's client ID, which its searches are run as
+    * @param client   a window to keep up to date
+    */
+   void register(int clientID, GUIClient client) {
+      windows.add(new Window(clientID, client));
+   }
+
+   /**
+    * The transaction counts have changed.
+    */
+   synchronized void statisticsChanged() {
+      statisticsChanged = true;
+      schedule();
+   }
+
+   /**
+    * The stock of some items has changed.
+    *
+    * @param codes the codes of the items
+    */
+   synchronized void inventoryChanged(Set<String> codes) {
+      touched.addAll(codes);
+      schedule();
+   }
+
+   //arrange a refresh, no sooner than a frame after the last one
+   private void schedule() {
+      if (!scheduled) {
+         scheduled = true;
+         long delay = Math.max(0, lastRefresh + frameNanos - System.nanoTime());
+         refresher.schedule(new Runnable() {
+            public void run() {
+               refresh();
+            }
+         }, delay, TimeUnit.NANOSECONDS);
+      }
+   }
+
+   /**
+    * Apply every change collected since the last refresh.
+    */
+   private void refresh() {
+      boolean statistics;
+      Set<String> codes;
+      synchronized (this) {
+         statistics = statisticsChanged;
+         codes = touched;
+         statisticsChanged = false;
+         touched = new HashSet<>();
+         scheduled = false;
+         lastRefresh = System.nanoTime();
+      }
+
+      if (statistics) {
+         final String inventoryCount = server.queryServer(POSServer.ServerQuery.INVENTORY_COUNT);
+         final String completedCount = server.queryServer(POSServer.ServerQuery.TRANSACTION_COMPLETED_COUNT);
+         final String inProgressCount = server.queryServer(POSServer.ServerQuery.TRANSACTION_IN_PROGRESS_COUNT);
+         for (final Window window : windows) {
+            EventQueue.invokeLater(new Runnable() {
+               public void run() {
+                  window.client.showStatistics(inventoryCount, completedCount, inProgressCount);
+               }
+            });
+         }
+      }
+
+      if (!codes.isEmpty()) {
+         //searches run in this refresh, by pattern and order
+         Map<String, String[]> results = new HashMap<>();
+         Map<String, Set<String>> resultCodes = new HashMap<>();
+         for (final Window window : windows) {
+            final String pattern = window.client.getSearchPattern();
+            final String order = window.client.getSearchOrder();
+            if (pattern == null || order == null) {
+               continue;
+            }
+            //a window still showing the search we last ran for it only needs
+            //refreshing if it shows a touched item
+            if (pattern.equals(window.pattern) && order.equals(window.order) && !showsAny(window.codes, codes)) {
+               continue;
+            }
+
+            String key = order + '\n' + pattern;
+            if (!results.containsKey(key)) {
+               Set<String> shown = new HashSet<>();
+               results.put(key, adapter.search(window.clientID, pattern, order, shown));
+               resultCodes.put(key, shown);
+            }
+            final String[] items = results.get(key);
+            window.pattern = pattern;
+            window.order = order;
+            window.codes = resultCodes.get(key);
+            EventQueue.invokeLater(new Runnable() {
+               public void run() {
+                  window.client.showInventory(pattern, order, items);
+               }
+            });
+         }
+      }
+   }
+
+   private static boolean showsAny(Set<String> shown, Set<String> codes) {
+      for (String code : codes) {
+         if (shown.contains(code)) {
+            return true;
+         }
+      }
+      return false;
+   }
+}
@@ -0,0 +1,136 @@
+/**
+ * Starts a server and its network listeners without a display: the
+ * settings come from a properties file, system properties and the command
+ * line, in that order, each overriding the one before. An option -name
+ * value sets pos.name, so these two start the same server:
+ *
+ *    java Source.main.ServerMain -inventory items.txt -data state -port 7070
+ *    java -Dpos.inventory=items.txt Source.main.ServerMain -config pos.properties
+ *
+ * with pos.properties holding pos.data=state and pos.port=7070. The server
+ * itself is set up by ReadServer.newServer(Properties); this reads:
+ *
+ *    pos.port      the port for lanes (see NetServer)
+ *    pos.workers   the threads carrying out lane requests
+ *    pos.http      the port for the HTTP/JSON gateway (see HttpGateway)
+ *    pos.gui       true to open a client window on the server as well
+ *
+ * Swing and AWT are only loaded for the client window. The time from the
+ * JVM starting to the listeners being ready is printed; Source.bench.ColdStart
+ * measures from outside how long a lane waits for its first transaction.
+ *
+ * Usage: java Source.main.ServerMain [-config file] [-inventory file] [-data dir]
+ *        [-packed true] [-promotions file] [-snapshot.seconds n] [-archive.seconds n]
+ *        [-port n] [-workers n] [-http n] [-metrics true] [-metrics.report n] [-gui true]
+ */
+package Source.main;
+
+import Source.client.GUI;
+import Source.net.HttpGateway;
+import Source.net.NetServer;
+import Source.server.POSServer;
+import Source.server.ReadServer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+
+public class ServerMain {
+   private ServerMain() {
+   }
+
+   public static void main(String[] args) throws IOException {
+      Properties settings;
+      try {
+         settings = settings(args);
+      } catch (IllegalArgumentException iae) {
+         System.out.println(iae.getMessage());
+         usage();
+         return;
+      }
+      String port = settings.getProperty("pos.port");
+      String http = settings.getProperty("pos.http");
+      boolean gui = Boolean.parseBoolean(settings.getProperty("pos.gui"));
+      if (settings.getProperty("pos.inventory") == null || (port == null && http == null && !gui)) {
+         usage();
+         return;
+      }
+
+      POSServer server = ReadServer.newServer(settings);
+      if (port != null) {
+         String workers = settings.getProperty("pos.workers");
+         NetServer net = new NetServer(server, new InetSocketAddress(Integer.parseInt(port.trim())),
+               workers == null ? 4 * Runtime.getRuntime().availableProcessors() : Integer.parseInt(workers.trim()));
+         System.out.println("Lanes on port " + net.getPort());
+      }
+      if (http != null) {
+         HttpGateway gateway = new HttpGateway(server, new InetSocketAddress(Integer.parseInt(http.trim())));
+         System.out.println("HTTP on port " + gateway.getPort());
+      }
+      System.out.println("Ready " + sinceStart() + "ms after start");
+      if (gui) {
+         ClientWindow.open(server);
+      }
+   }
+
+   /**
+    * Gather the settings: the -config file, then the pos.* system
+    * properties, then the -name value options.
+    *
+    * @param args the command line
+    * @return the settings
+    * @throws IOException if the -config file cannot be read
+    * @throws IllegalArgumentException if an option has no value
+    */
+   private static Properties settings(String[] args) throws IOException {
+      Properties settings = new Properties();
+      for (int i = 0; i < args.length; i += 2) {
+         if (!args[i].startsWith("-") || i + 1 == args.length) {
+            throw new IllegalArgumentException("Expected -name value, not " + args[i]);
+         }
+         if (args[i].equals("-config")) {
+            InputStream in = new FileInputStream(args[i + 1]);
+            try {
+               settings.load(in);
+            } finally {
+               in.close();
+            }
+         }
+      }
+      for (String name : System.getProperties().stringPropertyNames()) {
+         if (name.startsWith("pos.")) {
+            settings.setProperty(name, System.getProperty(name));
+         }
+      }
+      for (int i = 0; i < args.length; i += 2) {
+         if (!args[i].equals("-config")) {
+            settings.setProperty("pos." + args[i].substring(1), args[i + 1]);
+         }
+      }
+      return settings;
+   }
+
+   private static long sinceStart() {
+      return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+   }
+
+   private static void usage() {
+      System.out.println("Usage: java Source.main.ServerMain [-config file] [-inventory file] [-data dir]\n"
+            + "       [-packed true] [-promotions file] [-snapshot.seconds n] [-archive.seconds n]\n"
+            + "       [-port n] [-workers n] [-http n] [-metrics true] [-metrics.report n] [-gui true]\n"
+            + "Needs an inventory, and a port, an HTTP port or the client window.");
+   }
+
+   /**
+    * Opens the client window. A class of its own, so Swing is loaded
+    * only when a window is asked for.
+    */
+   private static class ClientWindow {
+      static void open(POSServer server) {
+         GUI.getClient(new Adapter(server));
+      }
+   }
+}
@@ -0,0 +1,12 @@
+/**
+ * A value read when it is reported, such as the number of items in the
+ * inventory. Reading it should be cheap and must not block for long.
+ */
+package Source.metrics;
+
+public interface Gauge {
+   /**
+    * @return the current value
+    */
+   long getValue();
+}
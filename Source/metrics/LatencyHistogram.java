@@ -0,0 +1,158 @@
+/**
+ * A histogram of latencies in nanoseconds, in the manner of HdrHistogram:
+ * buckets are exact below 256ns and above that split each power of two
+ * into 128 steps, so any recorded value is known to within 1% from 1ns to
+ * over a minute in a few thousand counters. Recording is a shift and an
+ * increment, with no allocation. A histogram belongs to one thread;
+ * histograms from many threads are added together to report (LatencyTimer
+ * does this for a histogram shared by many threads).
+ */
+package Source.metrics;
+
+import java.util.Arrays;
+
+public class LatencyHistogram {
+   //values below SUB_COUNT get a bucket each; above, each power of two is split into HALF_COUNT
+   private static final int SUB_BITS = 8;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int HALF_COUNT = SUB_COUNT / 2;
+   //largest value told apart from larger ones (about 69s); beyond it, values share the top bucket
+   private static final long HIGHEST = (1L << 36) - 1;
+   private static final int BUCKETS = index(HIGHEST) + 1;
+
+   private final long[] counts = new long[BUCKETS];
+   private long count;
+   private long total;
+   private long max;
+
+   /**
+    * @param  value a value, at least 0
+    * @return the index of its bucket
+    */
+   private static int index(long value) {
+      if (value < SUB_COUNT) {
+         return (int) value;
+      }
+      //shift the value down to SUB_BITS bits: HALF_COUNT to SUB_COUNT - 1
+      int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+      return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+   }
+
+   /**
+    * @param  index a bucket
+    * @return the largest value that falls in it
+    */
+   private static long highest(int index) {
+      if (index < SUB_COUNT) {
+         return index;
+      }
+      int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+      long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+      return ((sub + 1) << shift) - 1;
+   }
+
+   /**
+    * Record a latency.
+    *
+    * @param nanos the latency; negative values count as 0
+    */
+   public void record(long nanos) {
+      long value = Math.max(0, nanos);
+      counts[index(Math.min(value, HIGHEST))]++;
+      count++;
+      total += value;
+      max = Math.max(max, value);
+   }
+
+   /**
+    * Add the latencies recorded in another histogram to this one.
+    *
+    * @param other the other histogram, which must not be recording meanwhile
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; i++) {
+         counts[i] += other.counts[i];
+      }
+      count += other.count;
+      total += other.total;
+      max = Math.max(max, other.max);
+   }
+
+   /**
+    * Take out the latencies in an earlier copy of this histogram, leaving
+    * those recorded since. The exact max of those is not known, so it
+    * becomes the top of the highest bucket left.
+    *
+    * @param earlier the earlier copy
+    */
+   public void subtract(LatencyHistogram earlier) {
+      int highest = -1;
+      for (int i = 0; i < BUCKETS; i++) {
+         counts[i] -= earlier.counts[i];
+         if (counts[i] > 0) {
+            highest = i;
+         }
+      }
+      count -= earlier.count;
+      total -= earlier.total;
+      if (highest < 0) {
+         max = 0;
+      } else if (highest < BUCKETS - 1) {
+         max = Math.min(max, highest(highest));
+      }
+   }
+
+   /**
+    * Forget everything recorded.
+    */
+   public void reset() {
+      Arrays.fill(counts, 0);
+      count = 0;
+      total = 0;
+      max = 0;
+   }
+
+   /**
+    * @return the number of latencies recorded
+    */
+   public long getCount() {
+      return count;
+   }
+
+   /**
+    * @return the mean latency, or 0 if none were recorded
+    */
+   public double getMean() {
+      return count == 0 ? 0 : (double) total / count;
+   }
+
+   /**
+    * @return the largest latency recorded
+    */
+   public long getMax() {
+      return max;
+   }
+
+   /**
+    * Get a percentile: the latency that the given share of the recorded
+    * latencies are at or below, rounded up to the top of its bucket.
+    *
+    * @param  percent the percentile, 0 to 100 (say 99.9)
+    * @return the latency, or 0 if none were recorded
+    */
+   public long getPercentile(double percent) {
+      if (count == 0) {
+         return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percent)) / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += counts[i];
+         if (seen >= rank) {
+            //the top bucket also holds everything too big to tell apart
+            return i == BUCKETS - 1 ? max : Math.min(highest(i), max);
+         }
+      }
+      return max;
+   }
+}
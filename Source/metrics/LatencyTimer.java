@@ -0,0 +1,177 @@
+/**
+ * Times an operation called from many threads: counts the calls, keeps a
+ * histogram of their latencies and counts the ones that failed, by error
+ * message. Each thread records into one of a few striped histograms,
+ * picked by its thread ID, so threads seldom wait on each other and a
+ * recording costs about as much as an uncontended lock. Reading takes a
+ * snapshot that adds the stripes together.
+ *
+ * Error messages are counted with their numbers replaced by '#', so
+ * "Unable to find transaction 12" and "Unable to find transaction 13" are
+ * counted as one; past MAX_MESSAGES kinds, the rest are counted as "other".
+ */
+package Source.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyTimer implements LatencyTimerMBean {
+   //most kinds of error message counted apart
+   private static final int MAX_MESSAGES = 32;
+   private static final String OTHER = "other";
+   //histograms recorded into, one per stripe (a power of two)
+   private static final int STRIPES = Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+   private final String name;
+   private final LatencyHistogram[] stripes = new LatencyHistogram[STRIPES];
+   private final LongAdder errors = new LongAdder();
+   private final ConcurrentHashMap<String, LongAdder> messages = new ConcurrentHashMap<>();
+
+   /**
+    * @param name what is timed
+    */
+   public LatencyTimer(String name) {
+      this.name = name;
+      for (int i = 0; i < STRIPES; i++) {
+         stripes[i] = new LatencyHistogram();
+      }
+   }
+
+   /**
+    * @return what is timed
+    */
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * Record a call that succeeded.
+    *
+    * @param nanos how long it took
+    */
+   public void record(long nanos) {
+      LatencyHistogram stripe = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+      synchronized (stripe) {
+         stripe.record(nanos);
+      }
+   }
+
+   /**
+    * Record a call, and count it as failed if it gave an error message.
+    *
+    * @param nanos the time it took
+    * @param error its error message, or null if it succeeded
+    */
+   public void record(long nanos, String error) {
+      record(nanos);
+      if (error != null) {
+         errors.increment();
+         String kind = kind(error);
+         LongAdder count = messages.get(kind);
+         if (count == null) {
+            if (messages.size() >= MAX_MESSAGES) {
+               kind = OTHER;
+            }
+            LongAdder added = new LongAdder();
+            count = messages.putIfAbsent(kind, added);
+            if (count == null) {
+               count = added;
+            }
+         }
+         count.increment();
+      }
+   }
+
+   //an error message with every run of digits replaced by '#'
+   private static String kind(String message) {
+      StringBuilder kind = null;
+      for (int i = 0; i < message.length(); i++) {
+         char c = message.charAt(i);
+         if (c >= '0' && c <= '9') {
+            if (kind == null) {
+               kind = new StringBuilder(message.length()).append(message, 0, i);
+            }
+            if (i == 0 || message.charAt(i - 1) < '0' || message.charAt(i - 1) > '9') {
+               kind.append('#');
+            }
+         } else if (kind != null) {
+            kind.append(c);
+         }
+      }
+      return kind == null ? message : kind.toString();
+   }
+
+   /**
+    * @return every latency recorded so far, in one histogram
+    */
+   public LatencyHistogram snapshot() {
+      LatencyHistogram total = new LatencyHistogram();
+      for (LatencyHistogram stripe : stripes) {
+         synchronized (stripe) {
+            total.add(stripe);
+         }
+      }
+      return total;
+   }
+
+   /**
+    * @return the number of failed calls so far
+    */
+   public long getErrorCount() {
+      return errors.sum();
+   }
+
+   /**
+    * @return the number of failed calls by kind of error message
+    */
+   public Map<String, Long> getErrorsByMessage() {
+      TreeMap<String, Long> result = new TreeMap<>();
+      for (Map.Entry<String, LongAdder> entry : messages.entrySet()) {
+         result.put(entry.getKey(), entry.getValue().sum());
+      }
+      return result;
+   }
+
+   @Override
+   public long getCount() {
+      return snapshot().getCount();
+   }
+
+   @Override
+   public double getMeanMicros() {
+      return snapshot().getMean() / 1000;
+   }
+
+   @Override
+   public double getP50Micros() {
+      return snapshot().getPercentile(50) / 1000.0;
+   }
+
+   @Override
+   public double getP99Micros() {
+      return snapshot().getPercentile(99) / 1000.0;
+   }
+
+   @Override
+   public double getP999Micros() {
+      return snapshot().getPercentile(99.9) / 1000.0;
+   }
+
+   @Override
+   public double getMaxMicros() {
+      return snapshot().getMax() / 1000.0;
+   }
+
+   @Override
+   public String[] getErrorMessages() {
+      Map<String, Long> counts = getErrorsByMessage();
+      String[] result = new String[counts.size()];
+      int i = 0;
+      for (Map.Entry<String, Long> entry : counts.entrySet()) {
+         result[i++] = entry.getValue() + " " + entry.getKey();
+      }
+      return result;
+   }
+}
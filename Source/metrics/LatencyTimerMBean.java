@@ -0,0 +1,32 @@
+/**
+ * What JMX shows of a LatencyTimer. Each reading takes a fresh snapshot,
+ * so the figures cover every call since the timer was made.
+ */
+package Source.metrics;
+
+public interface LatencyTimerMBean {
+   /**
+    * @return the number of calls
+    */
+   long getCount();
+
+   /**
+    * @return the number of calls that failed
+    */
+   long getErrorCount();
+
+   double getMeanMicros();
+
+   double getP50Micros();
+
+   double getP99Micros();
+
+   double getP999Micros();
+
+   double getMaxMicros();
+
+   /**
+    * @return "count message" for each kind of error message
+    */
+   String[] getErrorMessages();
+}
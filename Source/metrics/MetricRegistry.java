@@ -0,0 +1,91 @@
+/**
+ * The timers and gauges of a process, by name. Timers are made the first
+ * time they are asked for, so code that times something just asks for its
+ * timer by name; gauges are registered by whoever can read them. Both can
+ * be shown over JMX, and printed now and then by a MetricsReporter.
+ */
+package Source.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+public class MetricRegistry {
+   //name -> timer, in name order so reports list them the same way each time
+   private final ConcurrentSkipListMap<String, LatencyTimer> timers = new ConcurrentSkipListMap<>();
+   private final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+   /**
+    * Get the timer with a name, making it if there is none yet.
+    *
+    * @param name what is timed
+    * @return the timer
+    */
+   public LatencyTimer timer(String name) {
+      LatencyTimer timer = timers.get(name);
+      if (timer == null) {
+         LatencyTimer made = new LatencyTimer(name);
+         timer = timers.putIfAbsent(name, made);
+         if (timer == null) {
+            timer = made;
+         }
+      }
+      return timer;
+   }
+
+   /**
+    * Register a gauge, replacing any with the same name.
+    *
+    * @param name  what the gauge shows
+    * @param gauge reads the value
+    */
+   public void gauge(String name, Gauge gauge) {
+      gauges.put(name, gauge);
+   }
+
+   /**
+    * @return the timers by name
+    */
+   public SortedMap<String, LatencyTimer> getTimers() {
+      return timers;
+   }
+
+   /**
+    * @return the gauges by name
+    */
+   public SortedMap<String, Gauge> getGauges() {
+      return gauges;
+   }
+
+   /**
+    * Show every timer and gauge registered so far as an MBean of the
+    * platform MBean server, named domain:type=Timer,name=... or
+    * domain:type=Gauge,name=..., replacing any already there.
+    *
+    * @param domain the domain of the MBean names
+    * @throws JMException if one cannot be registered
+    */
+   public void registerMBeans(String domain) throws JMException {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      for (Map.Entry<String, LatencyTimer> entry : timers.entrySet()) {
+         register(server, new ObjectName(domain + ":type=Timer,name=" + ObjectName.quote(entry.getKey())),
+               new StandardMBean(entry.getValue(), LatencyTimerMBean.class));
+      }
+      for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+         register(server, new ObjectName(domain + ":type=Gauge,name=" + ObjectName.quote(entry.getKey())),
+               new StandardMBean(entry.getValue(), Gauge.class));
+      }
+   }
+
+   private static void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+      if (server.isRegistered(name)) {
+         server.unregisterMBean(name);
+      }
+      server.registerMBean(bean, name);
+   }
+}
@@ -0,0 +1,96 @@
+/**
+ * Prints the metrics of a registry at a fixed interval from a background
+ * thread: for each timer, the calls made since the last report, their rate,
+ * how many failed and their p50, p99 and p99.9 latencies; then the value of
+ * each gauge. Timers with no calls in the interval are left out; the first
+ * report covers every call since the timers were made.
+ */
+package Source.metrics;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsReporter implements Closeable {
+   private final MetricRegistry registry;
+   private final PrintStream out;
+   private final ScheduledExecutorService reporter;
+   //timer name -> its histogram and error count at the last report
+   private final Map<String, LatencyHistogram> previous = new HashMap<>();
+   private final Map<String, Long> previousErrors = new HashMap<>();
+   private long previousAt = System.nanoTime();
+
+   /**
+    * Start reporting.
+    *
+    * @param registry the metrics to report
+    * @param out      where to print them
+    * @param period   time between reports
+    * @param unit     the unit of the period
+    */
+   public MetricsReporter(MetricRegistry registry, PrintStream out, long period, TimeUnit unit) {
+      this.registry = registry;
+      this.out = out;
+      reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "metrics reporter");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      reporter.scheduleAtFixedRate(new Runnable() {
+         public void run() {
+            report();
+         }
+      }, period, period, unit);
+   }
+
+   /**
+    * Print a report now, covering the time since the last one.
+    */
+   public synchronized void report() {
+      long now = System.nanoTime();
+      double seconds = Math.max(1, now - previousAt) / 1e9;
+      previousAt = now;
+
+      StringBuilder report = new StringBuilder();
+      report.append(String.format("%-28s %10s %10s %8s %10s %10s %10s%n",
+            "metric", "calls", "calls/s", "errors", "p50 us", "p99 us", "p99.9 us"));
+      for (LatencyTimer timer : registry.getTimers().values()) {
+         LatencyHistogram current = timer.snapshot();
+         long errors = timer.getErrorCount();
+         LatencyHistogram interval = new LatencyHistogram();
+         interval.add(current);
+         LatencyHistogram last = previous.put(timer.getName(), current);
+         if (last != null) {
+            interval.subtract(last);
+         }
+         Long lastErrors = previousErrors.put(timer.getName(), errors);
+         if (interval.getCount() > 0) {
+            report.append(String.format("%-28s %10d %10.1f %8d %10.1f %10.1f %10.1f%n",
+                  timer.getName(), interval.getCount(), interval.getCount() / seconds,
+                  errors - (lastErrors == null ? 0 : lastErrors),
+                  interval.getPercentile(50) / 1000.0, interval.getPercentile(99) / 1000.0,
+                  interval.getPercentile(99.9) / 1000.0));
+         }
+      }
+      for (Map.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
+         report.append(String.format("%-28s %10d%n", entry.getKey(), entry.getValue().getValue()));
+      }
+      out.print(report);
+      out.flush();
+   }
+
+   /**
+    * Stop reporting.
+    */
+   @Override
+   public void close() {
+      reporter.shutdownNow();
+   }
+}
@@ -0,0 +1,548 @@
+/**
+ * An HTTP/JSON gateway to a POSServer for back-office tools and handheld
+ * scanners, on the JDK's built-in HTTP server. Each request runs on its own
+ * thread: a virtual thread when the JVM has them, otherwise a thread from an
+ * unbounded pool, so slow requests never queue behind a fixed set of threads.
+ *
+ *    GET  /search?pattern=p&order=COST[&pageSize=n&continuation=c&client=id]
+ *    POST /transactions?type=RESTOCK&time=t&client=id
+ *    GET  /transactions/{id}
+ *    POST /transactions/{id}/items?code=c&quantity=n
+ *    POST /transactions/{id}/complete
+ *    POST /transactions/{id}/cancel?time=t&client=id
+ *    GET  /stats
+ *    GET  /sales?count=n[&time=t]    the best sellers of t's hour, or of all time
+ *    GET  /sales?code=c              an item's sales hour by hour
+ *    GET  /export/inventory[?format=csv|columns]
+ *    GET  /export/transactions[?format=csv|columns&from=t&to=t&types=PURCHASE,RETURN]
+ *
+ * Parameters may be given in the query string or as a form body. Search
+ * results are written out a page at a time as they are read from the
+ * server; without a pageSize, every match is returned in one response.
+ * A paged search left idle is closed; one given a client counts against
+ * that client's limit on open searches, and those without one share a
+ * single limit. A search returned whole reads its matches to the end.
+ * A request the server refuses gets status 409 and {"error": message}.
+ * Exports are streamed as they are read (see Exporter), as CSV by default;
+ * they need a server in this process.
+ *
+ * Usage: java Source.net.HttpGateway inventoryFile port
+ */
+package Source.net;
+
+import Source.server.Exporter;
+import Source.server.POSServer;
+import Source.server.ReadServer;
+import Source.server.SalesReport;
+import Source.server.SearchPage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HttpGateway {
+   //matches read from the server at a time while streaming a search
+   private static final int STREAM_PAGE = 500;
+   private static final POSServer.ItemField[] ALL_FIELDS = POSServer.ItemField.values();
+   //client ID for paged searches begun without one, below any lane's ID
+   private static final int PAGED_CLIENT = -2;
+
+   private final POSServer server;
+   private final HttpServer http;
+   private final ExecutorService executor;
+   //client IDs for whole searches begun without one, counting down from PAGED_CLIENT
+   private final AtomicInteger streamClients = new AtomicInteger(PAGED_CLIENT);
+
+   /**
+    * Start the gateway.
+    *
+    * @param server  the server to expose
+    * @param address the address to listen on (port 0 picks a free port)
+    * @throws IOException if the address cannot be bound
+    */
+   public HttpGateway(POSServer server, InetSocketAddress address) throws IOException {
+      this.server = server;
+      executor = newThreadPerRequestExecutor();
+      http = HttpServer.create(address, 4096);
+      http.setExecutor(executor);
+      http.createContext("/search", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            serve(exchange, "GET", new Action() {
+               public void run(HttpExchange exchange, Map<String, String> params) throws IOException {
+                  search(exchange, params);
+               }
+            });
+         }
+      });
+      http.createContext("/transactions", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            transactions(exchange);
+         }
+      });
+      http.createContext("/stats", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            serve(exchange, "GET", new Action() {
+               public void run(HttpExchange exchange, Map<String, String> params) throws IOException {
+                  stats(exchange);
+               }
+            });
+         }
+      });
+      http.createContext("/export", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            serve(exchange, "GET", new Action() {
+               public void run(HttpExchange exchange, Map<String, String> params) throws IOException {
+                  export(exchange, params);
+               }
+            });
+         }
+      });
+      http.createContext("/sales", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            serve(exchange, "GET", new Action() {
+               public void run(HttpExchange exchange, Map<String, String> params) throws IOException {
+                  sales(exchange, params);
+               }
+            });
+         }
+      });
+      http.start();
+   }
+
+   /**
+    * @return the port the gateway is listening on
+    */
+   public int getPort() {
+      return http.getAddress().getPort();
+   }
+
+   /**
+    * Stop the gateway, giving requests in progress a second to finish.
+    */
+   public void close() {
+      http.stop(1);
+      executor.shutdown();
+   }
+
+   /**
+    * Get an executor that starts a virtual thread per task if the JVM has
+    * virtual threads (Java 21 and later), or else a new or idle platform
+    * thread per task.
+    *
+    * @return the executor
+    */
+   static ExecutorService newThreadPerRequestExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException roe) {
+         return Executors.newCachedThreadPool();
+      }
+   }
+
+   /**
+    * The work of one endpoint.
+    */
+   private interface Action {
+      void run(HttpExchange exchange, Map<String, String> params) throws IOException;
+   }
+
+   /**
+    * Check the method, read the parameters and run an action, turning bad
+    * parameters into a 400 response. An action that fails after its headers
+    * have gone out cannot send an error any more; the exchange is then left
+    * unfinished and the failure passed on, so the HTTP server drops the
+    * connection and the client sees the response cut short rather than
+    * ending as if complete.
+    */
+   private void serve(HttpExchange exchange, String method, Action action) throws IOException {
+      boolean aborted = false;
+      try {
+         if (!exchange.getRequestMethod().equals(method)) {
+            error(exchange, 405, "Use " + method);
+            return;
+         }
+         action.run(exchange, params(exchange));
+      } catch (RuntimeException re) {
+         if (exchange.getResponseCode() != -1) {
+            aborted = true;
+            throw re;
+         }
+         if (re instanceof IllegalArgumentException) {
+            error(exchange, 400, re.getMessage());
+         } else {
+            // the server could not be reached, or failed
+            error(exchange, 500, String.valueOf(re.getMessage()));
+         }
+      } finally {
+         if (!aborted) {
+            exchange.close();
+         }
+      }
+   }
+
+   /**
+    * Route /transactions and /transactions/{id}[/action].
+    */
+   private void transactions(HttpExchange exchange) throws IOException {
+      String[] path = exchange.getRequestURI().getPath().split("/");
+      // path[0] is empty and path[1] is "transactions"
+      if (path.length < 2 || !path[1].equals("transactions")) {
+         try {
+            error(exchange, 404, "No such resource");
+         } finally {
+            exchange.close();
+         }
+         return;
+      }
+      if (path.length == 2) {
+         serve(exchange, "POST", new Action() {
+            public void run(HttpExchange exchange, Map<String, String> params) throws IOException {
+               POSServer.TransactionType type = parseEnum(POSServer.TransactionType.class, required(params, "type"));
+               long time = parseLong(params, "time");
+               int client = parseInt(params, "client");
+               String id = server.createTransaction(type, time, client);
+               if (id == null) {
+                  error(exchange, 409, "Unable to create the transaction");
+               } else {
+                  respond(exchange, 201).beginObject().name("id").value(id).endObject().flush();
+               }
+            }
+         });
+         return;
+      }
+
+      final String id = path[2];
+      String action = path.length > 3 ? path[3] : "";
+      if (path.length > 4) {
+         action = null;
+      }
+      if ("".equals(action)) {
+         serve(exchange, "GET", new Action() {
+            public void run(HttpExchange exchange, Map<String, String> params) throws IOException {
+               transaction(exchange, id);
+            }
+         });
+      } else if ("items".equals(action)) {
+         serve(exchange, "POST", new Action() {
+            public void run(HttpExchange exchange, Map<String, String> params) throws IOException {
+               String code = required(params, "code");
+               int quantity = parseInt(params, "quantity");
+               result(exchange, server.addItemToTransaction(id, code, quantity));
+            }
+         });
+      } else if ("complete".equals(action)) {
+         serve(exchange, "POST", new Action() {
+            public void run(HttpExchange exchange, Map<String, String> params) throws IOException {
+               result(exchange, server.completeTransaction(id));
+            }
+         });
+      } else if ("cancel".equals(action)) {
+         serve(exchange, "POST", new Action() {
+            public void run(HttpExchange exchange, Map<String, String> params) throws IOException {
+               long time = parseLong(params, "time");
+               int client = parseInt(params, "client");
+               result(exchange, server.cancelTransaction(id, time, client));
+            }
+         });
+      } else {
+         try {
+            error(exchange, 404, "No such resource");
+         } finally {
+            exchange.close();
+         }
+      }
+   }
+
+   /**
+    * Write the matches of a search, a page at a time.
+    */
+   private void search(HttpExchange exchange, Map<String, String> params) throws IOException {
+      String continuation = params.get("continuation");
+      String pageSize = params.get("pageSize");
+      int size = pageSize == null ? STREAM_PAGE : parsePositive(params, "pageSize");
+
+      SearchPage page;
+      if (continuation != null) {
+         page = server.nextPage(continuation, size, ALL_FIELDS);
+         if (page == null) {
+            error(exchange, 404, "No such search");
+            return;
+         }
+      } else {
+         POSServer.ItemField order = parseEnum(POSServer.ItemField.class, params.containsKey("order") ? params.get("order") : "CODE");
+         // paged searches without a client share one cursor limit, so
+         // callers that never come back cannot pile up cursors; a whole
+         // search reads its cursor to the end at once, so it gets an ID of
+         // its own and cannot be closed by the others part way through
+         int client;
+         if (params.containsKey("client")) {
+            client = parseInt(params, "client");
+         } else if (pageSize != null) {
+            client = PAGED_CLIENT;
+         } else {
+            client = streamClients.decrementAndGet();
+         }
+         page = server.searchPage(required(params, "pattern"), order, client, size, ALL_FIELDS);
+      }
+
+      JsonWriter json = respond(exchange, 200);
+      json.beginObject().name("items").beginArray();
+      while (page != null) {
+         for (int row = 0; row < page.size(); row++) {
+            json.beginObject()
+                  .name("code").value(page.getCode(row))
+                  .name("description").value(page.getDescription(row))
+                  .name("cost").value(page.getCost(row))
+                  .name("quantity").value(page.getQuantity(row))
+                  .name("backorder").value(page.getBackorder(row))
+                  .endObject();
+         }
+         continuation = page.getContinuation();
+         if (pageSize != null || continuation == null) {
+            break;
+         }
+         page = server.nextPage(continuation, size, ALL_FIELDS);
+      }
+      json.endArray();
+      if (pageSize != null) {
+         json.name("continuation").value(continuation);
+      }
+      json.endObject().flush();
+   }
+
+   /**
+    * Write the details of a transaction.
+    */
+   private void transaction(HttpExchange exchange, String id) throws IOException {
+      String type = server.queryTransaction(id, POSServer.TransactionQuery.TYPE);
+      if (type == null) {
+         error(exchange, 404, "No such transaction");
+         return;
+      }
+      JsonWriter json = respond(exchange, 200);
+      json.beginObject().name("id").value(id).name("type").value(type);
+      json.name("itemCount").value(server.queryTransaction(id, POSServer.TransactionQuery.ITEM_COUNT));
+      json.name("totalQuantity").value(server.queryTransaction(id, POSServer.TransactionQuery.TOTAL_QUANTITY));
+      json.name("totalCost").value(server.queryTransaction(id, POSServer.TransactionQuery.TOTAL_COST));
+      json.name("discount").value(server.queryTransaction(id, POSServer.TransactionQuery.DISCOUNT));
+      json.name("netCost").value(server.queryTransaction(id, POSServer.TransactionQuery.NET_COST));
+      json.name("complete").value(server.queryTransaction(id, POSServer.TransactionQuery.IS_COMPLETE));
+      json.name("details").value(server.toString(id));
+      json.endObject().flush();
+   }
+
+   /**
+    * Write every server statistic.
+    */
+   private void stats(HttpExchange exchange) throws IOException {
+      JsonWriter json = respond(exchange, 200).beginObject();
+      for (POSServer.ServerQuery query : POSServer.ServerQuery.values()) {
+         json.name(query.name()).value(server.queryServer(query));
+      }
+      json.endObject().flush();
+   }
+
+   /**
+    * Stream the inventory or the transactions, as CSV or columns.
+    */
+   private void export(HttpExchange exchange, Map<String, String> params) throws IOException {
+      String table = exchange.getRequestURI().getPath().substring("/export".length());
+      if (!table.equals("/inventory") && !table.equals("/transactions")) {
+         error(exchange, 404, "No such resource");
+         return;
+      }
+      String format = params.containsKey("format") ? params.get("format") : "csv";
+      if (!format.equals("csv") && !format.equals("columns")) {
+         throw new IllegalArgumentException("format must be csv or columns");
+      }
+      boolean csv = format.equals("csv");
+      Exporter exporter;
+      try {
+         exporter = new Exporter(server);
+      } catch (IllegalArgumentException iae) {
+         error(exchange, 501, iae.getMessage());
+         return;
+      }
+      if (params.containsKey("from") || params.containsKey("to")) {
+         exporter.between(params.containsKey("from") ? parseLong(params, "from") : Long.MIN_VALUE,
+               params.containsKey("to") ? parseLong(params, "to") : Long.MAX_VALUE);
+      }
+      if (params.containsKey("types")) {
+         String[] names = params.get("types").split(",");
+         POSServer.TransactionType[] types = new POSServer.TransactionType[names.length];
+         for (int i = 0; i < names.length; i++) {
+            types[i] = parseEnum(POSServer.TransactionType.class, names[i].trim());
+         }
+         exporter.types(types);
+      }
+
+      exchange.getResponseHeaders().set("Content-Type", csv ? "text/csv; charset=utf-8" : "application/octet-stream");
+      exchange.sendResponseHeaders(200, 0);
+      if (csv) {
+         OutputStreamWriter out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8);
+         if (table.equals("/inventory")) {
+            exporter.inventoryCsv(out);
+         } else {
+            exporter.transactionsCsv(out);
+         }
+      } else if (table.equals("/inventory")) {
+         exporter.inventoryColumns(exchange.getResponseBody());
+      } else {
+         exporter.transactionsColumns(exchange.getResponseBody());
+      }
+   }
+
+   /**
+    * Write the best sellers, or one item's sales.
+    */
+   private void sales(HttpExchange exchange, Map<String, String> params) throws IOException {
+      SalesReport report;
+      if (params.containsKey("code")) {
+         report = server.itemSales(params.get("code"));
+      } else {
+         long time = params.containsKey("time") ? parseLong(params, "time") : SalesReport.ALL_TIME;
+         report = server.topSellers(time, parsePositive(params, "count"));
+      }
+      if (report == null) {
+         error(exchange, 404, params.containsKey("code") ? "No such item" : "Invalid time or count");
+         return;
+      }
+      JsonWriter json = respond(exchange, 200);
+      json.beginObject().name("sales").beginArray();
+      for (int row = 0; row < report.size(); row++) {
+         json.beginObject()
+               .name("code").value(report.getCode(row))
+               .name("hour").value(report.getHour(row))
+               .name("units").value(report.getUnits(row))
+               .name("revenue").value(report.getRevenue(row))
+               .endObject();
+      }
+      json.endArray().endObject().flush();
+   }
+
+   /**
+    * Answer with the outcome of a server call that returns an error message
+    * or null on success.
+    */
+   private void result(HttpExchange exchange, String message) throws IOException {
+      if (message != null) {
+         error(exchange, 409, message);
+      } else {
+         respond(exchange, 200).beginObject().name("error").value((String) null).endObject().flush();
+      }
+   }
+
+   private void error(HttpExchange exchange, int status, String message) throws IOException {
+      respond(exchange, status).beginObject().name("error").value(message).endObject().flush();
+   }
+
+   /**
+    * Send the headers of a JSON response whose body is streamed (chunked).
+    *
+    * @return a writer for the body
+    */
+   private JsonWriter respond(HttpExchange exchange, int status) throws IOException {
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(status, 0);
+      return new JsonWriter(new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 16 * 1024));
+   }
+
+   /**
+    * Read the parameters from the query string and, for a form post, the body.
+    */
+   private static Map<String, String> params(HttpExchange exchange) throws IOException {
+      Map<String, String> params = new HashMap<>();
+      decode(exchange.getRequestURI().getRawQuery(), params);
+      String type = exchange.getRequestHeaders().getFirst("Content-Type");
+      if (type != null && type.startsWith("application/x-www-form-urlencoded")) {
+         ByteArrayOutputStream body = new ByteArrayOutputStream();
+         InputStream in = exchange.getRequestBody();
+         byte[] buffer = new byte[4096];
+         int n;
+         while ((n = in.read(buffer)) > 0) {
+            body.write(buffer, 0, n);
+         }
+         decode(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+      }
+      return params;
+   }
+
+   private static void decode(String query, Map<String, String> params) throws UnsupportedEncodingException {
+      if (query == null || query.isEmpty()) {
+         return;
+      }
+      for (String pair : query.split("&")) {
+         int equals = pair.indexOf('=');
+         String name = equals < 0 ? pair : pair.substring(0, equals);
+         String value = equals < 0 ? "" : pair.substring(equals + 1);
+         params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+      }
+   }
+
+   private static String required(Map<String, String> params, String name) {
+      String value = params.get(name);
+      if (value == null) {
+         throw new IllegalArgumentException("Missing parameter " + name);
+      }
+      return value;
+   }
+
+   private static long parseLong(Map<String, String> params, String name) {
+      String value = required(params, name);
+      try {
+         return Long.parseLong(value);
+      } catch (NumberFormatException nfe) {
+         throw new IllegalArgumentException("Parameter " + name + " is not a number: " + value);
+      }
+   }
+
+   private static int parseInt(Map<String, String> params, String name) {
+      String value = required(params, name);
+      try {
+         return Integer.parseInt(value);
+      } catch (NumberFormatException nfe) {
+         throw new IllegalArgumentException("Parameter " + name + " is not a number in range: " + value);
+      }
+   }
+
+   private static int parsePositive(Map<String, String> params, String name) {
+      int value = parseInt(params, name);
+      if (value <= 0) {
+         throw new IllegalArgumentException(name + " must be positive");
+      }
+      return value;
+   }
+
+   private static <E extends Enum<E>> E parseEnum(Class<E> type, String value) {
+      try {
+         return Enum.valueOf(type, value.toUpperCase());
+      } catch (IllegalArgumentException iae) {
+         throw new IllegalArgumentException("Unknown " + type.getSimpleName() + " " + value);
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.out.println("Usage: java Source.net.HttpGateway inventoryFile port");
+         return;
+      }
+      HttpGateway gateway = new HttpGateway(ReadServer.newServer(new File(args[0])), new InetSocketAddress(Integer.parseInt(args[1])));
+      System.out.println("Listening on port " + gateway.getPort());
+   }
+}
@@ -0,0 +1,138 @@
+/**
+ * Writes JSON straight to a stream as it is produced, so a large document
+ * is never held in memory as a whole. Commas are put in as needed; names
+ * and values are escaped.
+ */
+package Source.net;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.BitSet;
+
+class JsonWriter {
+   private final Writer out;
+   //depth of the object or array being written
+   private int depth;
+   //depths at which something has been written, so the next item needs a comma
+   private final BitSet started = new BitSet();
+   //a name was just written, so the value needs no comma
+   private boolean named;
+
+   /**
+    * @param out where the JSON goes; it should be buffered
+    */
+   JsonWriter(Writer out) {
+      this.out = out;
+   }
+
+   JsonWriter beginObject() throws IOException {
+      open('{');
+      return this;
+   }
+
+   JsonWriter endObject() throws IOException {
+      close('}');
+      return this;
+   }
+
+   JsonWriter beginArray() throws IOException {
+      open('[');
+      return this;
+   }
+
+   JsonWriter endArray() throws IOException {
+      close(']');
+      return this;
+   }
+
+   JsonWriter name(String name) throws IOException {
+      separate();
+      string(name);
+      out.write(':');
+      named = true;
+      return this;
+   }
+
+   JsonWriter value(String value) throws IOException {
+      separate();
+      if (value == null) {
+         out.write("null");
+      } else {
+         string(value);
+      }
+      return this;
+   }
+
+   JsonWriter value(long value) throws IOException {
+      separate();
+      out.write(Long.toString(value));
+      return this;
+   }
+
+   JsonWriter value(boolean value) throws IOException {
+      separate();
+      out.write(value ? "true" : "false");
+      return this;
+   }
+
+   void flush() throws IOException {
+      out.flush();
+   }
+
+   private void open(char bracket) throws IOException {
+      separate();
+      out.write(bracket);
+      depth++;
+      started.clear(depth);
+   }
+
+   private void close(char bracket) throws IOException {
+      out.write(bracket);
+      depth--;
+   }
+
+   //write a comma before every item but the first at this depth
+   private void separate() throws IOException {
+      if (named) {
+         named = false;
+         return;
+      }
+      if (started.get(depth)) {
+         out.write(',');
+      }
+      started.set(depth);
+   }
+
+   private void string(String s) throws IOException {
+      out.write('"');
+      int start = 0;
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '"' || c == '\\' || c < 0x20) {
+            out.write(s, start, i - start);
+            switch (c) {
+            case '"':
+               out.write("\\\"");
+               break;
+            case '\\':
+               out.write("\\\\");
+               break;
+            case '\n':
+               out.write("\\n");
+               break;
+            case '\r':
+               out.write("\\r");
+               break;
+            case '\t':
+               out.write("\\t");
+               break;
+            default:
+               out.write(String.format("\\u%04x", (int) c));
+            }
+            start = i + 1;
+         }
+      }
+      out.write(s, start, s.length() - start);
+      out.write('"');
+   }
+}
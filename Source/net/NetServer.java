@@ -0,0 +1,440 @@
+/**
+ * Serves a POSServer to checkout lanes over the network, using the protocol
+ * in Protocol. One selector thread accepts connections and moves bytes; the
+ * requests themselves are carried out by a pool of worker threads, one
+ * request of a connection at a time and in the order they arrived, so a
+ * lane may send several requests without waiting for each response. (So a
+ * changesSince call that waits for changes holds up the requests behind it;
+ * it is best made on a connection of its own. The server waits at most
+ * MAX_CHANGES_WAIT_MILLIS, whatever the lane asks for, so long polls cannot
+ * keep the workers from other connections for long.) Searches begun without a
+ * client ID are charged to an ID of the connection's own, so lanes do not
+ * close each other's searches.
+ *
+ * Usage: java Source.net.NetServer inventoryFile port [workers]
+ */
+package Source.net;
+
+import Source.server.POSServer;
+import Source.server.ReadServer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NetServer implements Closeable {
+   //requests a connection may have waiting before we stop reading from it
+   private static final int MAX_PIPELINE = 256;
+   //longest a changesSince call may hold a worker waiting for a change
+   private static final long MAX_CHANGES_WAIT_MILLIS = 5000;
+
+   private final POSServer server;
+   private final ServerSocketChannel listener;
+   private final Selector selector;
+   private final ExecutorService workers;
+   //connections whose interest in reading or writing may have changed
+   private final ConcurrentLinkedQueue<Connection> changed = new ConcurrentLinkedQueue<>();
+   private final Thread selectorThread;
+   private volatile boolean closed;
+   //client IDs for the searches of connections, counting up from below any lane's ID
+   private final AtomicInteger searchClients = new AtomicInteger(Integer.MIN_VALUE);
+
+   /**
+    * Start serving.
+    *
+    * @param server  the server to expose
+    * @param address the address to listen on (port 0 picks a free port)
+    * @param workers the number of threads carrying out requests
+    * @throws IOException if the address cannot be bound
+    */
+   public NetServer(POSServer server, InetSocketAddress address, int workers) throws IOException {
+      this.server = server;
+      selector = Selector.open();
+      listener = ServerSocketChannel.open();
+      listener.bind(address, 1024);
+      listener.configureBlocking(false);
+      listener.register(selector, SelectionKey.OP_ACCEPT);
+
+      this.workers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+         private int count;
+
+         public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "net-worker-" + ++count);
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+
+      selectorThread = new Thread(new Runnable() {
+         public void run() {
+            selectLoop();
+         }
+      }, "net-selector");
+      selectorThread.start();
+   }
+
+   /**
+    * @return the port the server is listening on
+    */
+   public int getPort() {
+      return listener.socket().getLocalPort();
+   }
+
+   /**
+    * Stop listening and drop every connection.
+    */
+   @Override
+   public void close() throws IOException {
+      closed = true;
+      selector.wakeup();
+      try {
+         selectorThread.join();
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      }
+      workers.shutdown();
+   }
+
+   /**
+    * The selector thread: accept connections, read requests, write
+    * responses, until closed.
+    */
+   private void selectLoop() {
+      try {
+         while (!closed) {
+            selector.select();
+
+            Connection connection;
+            while ((connection = changed.poll()) != null) {
+               connection.updateInterest();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+               SelectionKey key = keys.next();
+               keys.remove();
+               if (!key.isValid()) {
+                  continue;
+               }
+               if (key.isAcceptable()) {
+                  accept();
+                  continue;
+               }
+               connection = (Connection) key.attachment();
+               try {
+                  if (key.isReadable()) {
+                     connection.read();
+                  }
+                  if (key.isValid() && key.isWritable()) {
+                     connection.write();
+                  }
+                  if (key.isValid()) {
+                     connection.updateInterest();
+                  }
+               } catch (IOException ioe) {
+                  connection.close();
+               }
+            }
+         }
+      } catch (IOException ioe) {
+         System.out.println("Network server stopped: " + ioe.getMessage());
+      } finally {
+         for (SelectionKey key : selector.keys()) {
+            try {
+               key.channel().close();
+            } catch (IOException ioe) {
+               // closing anyway
+            }
+         }
+         try {
+            selector.close();
+         } catch (IOException ioe) {
+            // closing anyway
+         }
+      }
+   }
+
+   /**
+    * Accept one connection. A failure here (out of file descriptors, a
+    * client that reset at once) drops only that connection; the listener
+    * stays registered and is tried again on the next select.
+    */
+   private void accept() {
+      SocketChannel channel = null;
+      try {
+         channel = listener.accept();
+         if (channel == null) {
+            return;
+         }
+         channel.configureBlocking(false);
+         channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+         Connection connection = new Connection(channel);
+         connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch (IOException ioe) {
+         if (channel != null) {
+            try {
+               channel.close();
+            } catch (IOException closing) {
+               // closing anyway
+            }
+         }
+      }
+   }
+
+   /**
+    * Carry out one request.
+    *
+    * @param frame        the request, after the length
+    * @param searchClient the client ID for searches begun without one
+    * @return the response frame
+    */
+   private ByteBuffer handle(ByteBuffer frame, int searchClient) {
+      int number = frame.getInt();
+      Protocol.FrameReader in = new Protocol.FrameReader(frame);
+      Protocol.FrameWriter out = new Protocol.FrameWriter(number);
+      try {
+         byte operation = in.getByte();
+         switch (operation) {
+         case Protocol.CREATE_TRANSACTION: {
+            POSServer.TransactionType type = in.getEnum(POSServer.TransactionType.values());
+            long time = in.getLong();
+            out.putByte(Protocol.OK).putString(server.createTransaction(type, time, in.getInt()));
+            break;
+         }
+         case Protocol.ADD_ITEM_TO_TRANSACTION: {
+            String id = in.getString();
+            String item = in.getString();
+            out.putByte(Protocol.OK).putString(server.addItemToTransaction(id, item, in.getInt()));
+            break;
+         }
+         case Protocol.COMPLETE_TRANSACTION:
+            out.putByte(Protocol.OK).putString(server.completeTransaction(in.getString()));
+            break;
+         case Protocol.QUERY_TRANSACTION: {
+            String id = in.getString();
+            POSServer.TransactionQuery query = in.getEnum(POSServer.TransactionQuery.values());
+            out.putByte(Protocol.OK).putString(server.queryTransaction(id, query));
+            break;
+         }
+         case Protocol.TRANSACTION_TO_STRING:
+            out.putByte(Protocol.OK).putString(server.toString(in.getString()));
+            break;
+         case Protocol.QUERY_SERVER:
+            out.putByte(Protocol.OK).putString(server.queryServer(in.getEnum(POSServer.ServerQuery.values())));
+            break;
+         case Protocol.SERVER_TO_STRING:
+            out.putByte(Protocol.OK).putString(server.toString());
+            break;
+         case Protocol.SEARCH: {
+            String pattern = in.getString();
+            POSServer.ItemField order = in.getEnum(POSServer.ItemField.values());
+            out.putByte(Protocol.OK).putString(server.search(pattern, order, searchClient));
+            break;
+         }
+         case Protocol.CLIENT_SEARCH: {
+            String pattern = in.getString();
+            POSServer.ItemField order = in.getEnum(POSServer.ItemField.values());
+            out.putByte(Protocol.OK).putString(server.search(pattern, order, in.getInt()));
+            break;
+         }
+         case Protocol.NEXT:
+            out.putByte(Protocol.OK).putBoolean(server.next(in.getString()));
+            break;
+         case Protocol.QUERY_MATCH: {
+            String iID = in.getString();
+            POSServer.ItemField field = in.getEnum(POSServer.ItemField.values());
+            out.putByte(Protocol.OK).putString(server.queryMatch(iID, field));
+            break;
+         }
+         case Protocol.SEARCH_PAGE: {
+            String pattern = in.getString();
+            POSServer.ItemField order = in.getEnum(POSServer.ItemField.values());
+            int client = in.getInt();
+            int pageSize = in.getInt();
+            out.putByte(Protocol.OK).putPage(server.searchPage(pattern, order, client, pageSize, in.getFields()));
+            break;
+         }
+         case Protocol.NEXT_PAGE: {
+            String continuation = in.getString();
+            int pageSize = in.getInt();
+            out.putByte(Protocol.OK).putPage(server.nextPage(continuation, pageSize, in.getFields()));
+            break;
+         }
+         case Protocol.CANCEL_TRANSACTION: {
+            String id = in.getString();
+            long time = in.getLong();
+            out.putByte(Protocol.OK).putString(server.cancelTransaction(id, time, in.getInt()));
+            break;
+         }
+         case Protocol.CHANGES_SINCE: {
+            long sequence = in.getLong();
+            int max = in.getInt();
+            long waitMillis = Math.min(in.getLong(), MAX_CHANGES_WAIT_MILLIS);
+            out.putByte(Protocol.OK).putChanges(server.changesSince(sequence, max, waitMillis));
+            break;
+         }
+         case Protocol.TOP_SELLERS: {
+            long time = in.getLong();
+            out.putByte(Protocol.OK).putSales(server.topSellers(time, in.getInt()));
+            break;
+         }
+         case Protocol.ITEM_SALES:
+            out.putByte(Protocol.OK).putSales(server.itemSales(in.getString()));
+            break;
+         default:
+            throw new IllegalArgumentException("Unknown operation " + operation);
+         }
+      } catch (BufferUnderflowException bue) {
+         out = new Protocol.FrameWriter(number).putByte(Protocol.FAILED).putString("Request is too short");
+      } catch (RuntimeException re) {
+         out = new Protocol.FrameWriter(number).putByte(Protocol.FAILED).putString(String.valueOf(re.getMessage()));
+      }
+      return out.toBuffer();
+   }
+
+   /**
+    * One lane's connection. The selector thread reads and writes it; a
+    * worker carries out its requests, one at a time.
+    */
+   private class Connection implements Runnable {
+      private final SocketChannel channel;
+      private SelectionKey key;
+      //the client ID for this connection's searches begun without one
+      private final int searchClient = searchClients.getAndIncrement();
+      //bytes read but not yet made into requests (selector thread only)
+      private ByteBuffer in = ByteBuffer.allocate(8 * 1024);
+      //guarded by this: requests waiting, responses waiting and whether a worker has this connection
+      private final ArrayDeque<ByteBuffer> requests = new ArrayDeque<>();
+      private final ArrayDeque<ByteBuffer> responses = new ArrayDeque<>();
+      private boolean running;
+
+      Connection(SocketChannel channel) {
+         this.channel = channel;
+      }
+
+      /**
+       * Read what has arrived and queue each complete request.
+       */
+      void read() throws IOException {
+         if (channel.read(in) < 0) {
+            close();
+            return;
+         }
+         in.flip();
+         while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 4 || length > Protocol.MAX_REQUEST + 4) {
+               throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+               if (in.capacity() < 4 + length) {
+                  ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                  larger.put(in);
+                  in = larger;
+                  return;
+               }
+               break;
+            }
+            byte[] frame = new byte[length];
+            in.position(in.position() + 4);
+            in.get(frame);
+            enqueue(ByteBuffer.wrap(frame));
+         }
+         in.compact();
+      }
+
+      private synchronized void enqueue(ByteBuffer request) {
+         requests.add(request);
+         if (!running) {
+            running = true;
+            workers.execute(this);
+         }
+      }
+
+      /**
+       * Carry out the waiting requests in order (on a worker thread).
+       */
+      public void run() {
+         while (true) {
+            ByteBuffer request;
+            synchronized (this) {
+               request = requests.poll();
+               if (request == null) {
+                  running = false;
+                  return;
+               }
+            }
+            ByteBuffer response = handle(request, searchClient);
+            synchronized (this) {
+               responses.add(response);
+            }
+            changed.add(this);
+            selector.wakeup();
+         }
+      }
+
+      /**
+       * Write as many waiting responses as the socket will take.
+       */
+      synchronized void write() throws IOException {
+         while (!responses.isEmpty()) {
+            ByteBuffer response = responses.peek();
+            channel.write(response);
+            if (response.hasRemaining()) {
+               return;
+            }
+            responses.poll();
+         }
+      }
+
+      /**
+       * Read while there is room for more requests, and write while there
+       * are responses waiting. Selector thread only.
+       */
+      void updateInterest() {
+         if (!key.isValid()) {
+            return;
+         }
+         int ops;
+         synchronized (this) {
+            ops = (requests.size() < MAX_PIPELINE ? SelectionKey.OP_READ : 0)
+                  | (responses.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+         }
+         key.interestOps(ops);
+      }
+
+      void close() {
+         key.cancel();
+         try {
+            channel.close();
+         } catch (IOException ioe) {
+            // closing anyway
+         }
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.out.println("Usage: java Source.net.NetServer inventoryFile port [workers]");
+         return;
+      }
+      int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4 * Runtime.getRuntime().availableProcessors();
+      NetServer net = new NetServer(ReadServer.newServer(new File(args[0])), new InetSocketAddress(Integer.parseInt(args[1])), workers);
+      System.out.println("Listening on port " + net.getPort());
+   }
+}
@@ -0,0 +1,376 @@
+/**
+ * The binary protocol spoken between RemoteServer and NetServer. Every
+ * message is a frame:
+ *
+ *    length (int, bytes after this field) | request number (int) | body
+ *
+ * A request body is an operation code (byte) followed by the arguments of
+ * the POSServer method; a response body is a status (byte) followed by the
+ * return value, or by an error message if the status is FAILED. The request
+ * number is echoed in the response, so a client may send many requests
+ * before reading any responses. Requests on one connection are carried out
+ * in the order they were sent.
+ *
+ * Strings are a length (int, -1 for null) and UTF-8 bytes; enums are their
+ * ordinal (byte, -1 for null); a set of item fields is a bit mask of
+ * ordinals (byte).
+ */
+package Source.net;
+
+import Source.server.ItemChanges;
+import Source.server.POSServer;
+import Source.server.SalesReport;
+import Source.server.SearchPage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+final class Protocol {
+   //operation codes, one per POSServer method
+   static final byte CREATE_TRANSACTION = 1;
+   static final byte ADD_ITEM_TO_TRANSACTION = 2;
+   static final byte COMPLETE_TRANSACTION = 3;
+   static final byte QUERY_TRANSACTION = 4;
+   static final byte TRANSACTION_TO_STRING = 5;
+   static final byte QUERY_SERVER = 6;
+   static final byte SERVER_TO_STRING = 7;
+   static final byte SEARCH = 8;
+   static final byte NEXT = 9;
+   static final byte QUERY_MATCH = 10;
+   static final byte SEARCH_PAGE = 11;
+   static final byte NEXT_PAGE = 12;
+   static final byte CANCEL_TRANSACTION = 13;
+   static final byte CHANGES_SINCE = 14;
+   static final byte TOP_SELLERS = 15;
+   static final byte ITEM_SALES = 16;
+   static final byte CLIENT_SEARCH = 17;
+
+   //response statuses
+   static final byte OK = 0;
+   static final byte FAILED = 1;
+
+   //largest request body accepted; responses may be larger
+   static final int MAX_REQUEST = 1 << 20;
+
+   private static final POSServer.ItemField[] ITEM_FIELDS = POSServer.ItemField.values();
+
+   //no instances
+   private Protocol() {}
+
+   /**
+    * Builds one frame.
+    */
+   static class FrameWriter {
+      private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      private final DataOutputStream out = new DataOutputStream(bytes);
+
+      /**
+       * @param request the request number
+       */
+      FrameWriter(int request) {
+         try {
+            out.writeInt(0);   //length, filled in by toBuffer()
+            out.writeInt(request);
+         } catch (IOException ioe) {
+            throw new AssertionError(ioe);   //not thrown by a byte array
+         }
+      }
+
+      FrameWriter putByte(int value) {
+         bytes.write(value);
+         return this;
+      }
+
+      FrameWriter putBoolean(boolean value) {
+         return putByte(value ? 1 : 0);
+      }
+
+      FrameWriter putInt(int value) {
+         try {
+            out.writeInt(value);
+         } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+         }
+         return this;
+      }
+
+      FrameWriter putLong(long value) {
+         try {
+            out.writeLong(value);
+         } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+         }
+         return this;
+      }
+
+      FrameWriter putString(String value) {
+         if (value == null) {
+            return putInt(-1);
+         }
+         byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+         putInt(utf8.length);
+         bytes.write(utf8, 0, utf8.length);
+         return this;
+      }
+
+      FrameWriter putEnum(Enum<?> value) {
+         return putByte(value == null ? -1 : value.ordinal());
+      }
+
+      FrameWriter putFields(POSServer.ItemField... fields) {
+         int mask = 0;
+         for (POSServer.ItemField field : fields) {
+            mask |= 1 << field.ordinal();
+         }
+         return putByte(mask);
+      }
+
+      /**
+       * Write a page, or null, with only the fields it holds.
+       */
+      FrameWriter putPage(SearchPage page) {
+         if (page == null) {
+            return putInt(-1);
+         }
+         int size = page.size();
+         putInt(size);
+         putString(page.getContinuation());
+         int mask = 0;
+         for (POSServer.ItemField field : ITEM_FIELDS) {
+            if (page.hasField(field)) {
+               mask |= 1 << field.ordinal();
+            }
+         }
+         putByte(mask);
+         for (POSServer.ItemField field : ITEM_FIELDS) {
+            if ((mask & 1 << field.ordinal()) == 0) {
+               continue;
+            }
+            for (int row = 0; row < size; row++) {
+               switch (field) {
+               case CODE:
+                  putString(page.getCode(row));
+                  break;
+               case COST:
+                  putInt(page.getCost(row));
+                  break;
+               case DESCRIPTION:
+                  putString(page.getDescription(row));
+                  break;
+               case QUANTITY:
+                  putInt(page.getQuantity(row));
+                  break;
+               case BACKORDER_QUANTITY:
+                  putInt(page.getBackorder(row));
+                  break;
+               }
+            }
+         }
+         return this;
+      }
+
+      /**
+       * Write a run of item changes, or null.
+       */
+      FrameWriter putChanges(ItemChanges changes) {
+         if (changes == null) {
+            return putInt(-1);
+         }
+         putInt(changes.size());
+         putLong(changes.getLastSequence() - changes.size() + 1);
+         putLong(changes.getLatestSequence());
+         putBoolean(changes.isMissed());
+         for (int i = 0; i < changes.size(); i++) {
+            putString(changes.getCode(i));
+            putInt(changes.getInStock(i));
+            putInt(changes.getBackorder(i));
+         }
+         return this;
+      }
+
+      /**
+       * Write a sales report, or null.
+       */
+      FrameWriter putSales(SalesReport report) {
+         if (report == null) {
+            return putInt(-1);
+         }
+         putInt(report.size());
+         for (int row = 0; row < report.size(); row++) {
+            putString(report.getCode(row));
+            putLong(report.getHour(row));
+            putLong(report.getUnits(row));
+            putLong(report.getRevenue(row));
+         }
+         return this;
+      }
+
+      /**
+       * @return the finished frame, ready to be written
+       */
+      ByteBuffer toBuffer() {
+         ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+         frame.putInt(0, frame.capacity() - 4);
+         return frame;
+      }
+   }
+
+   /**
+    * Reads the body of one frame. A frame that ends too soon throws
+    * BufferUnderflowException.
+    */
+   static class FrameReader {
+      private final ByteBuffer body;
+
+      /**
+       * @param body the frame after the request number
+       */
+      FrameReader(ByteBuffer body) {
+         this.body = body;
+      }
+
+      byte getByte() {
+         return body.get();
+      }
+
+      boolean getBoolean() {
+         return body.get() != 0;
+      }
+
+      int getInt() {
+         return body.getInt();
+      }
+
+      long getLong() {
+         return body.getLong();
+      }
+
+      String getString() {
+         int length = body.getInt();
+         if (length < 0) {
+            return null;
+         }
+         if (length > body.remaining()) {
+            throw new BufferUnderflowException();
+         }
+         String value = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+         body.position(body.position() + length);
+         return value;
+      }
+
+      <E extends Enum<E>> E getEnum(E[] values) {
+         int ordinal = body.get();
+         if (ordinal == -1) {
+            return null;
+         }
+         if (ordinal < 0 || ordinal >= values.length) {
+            throw new IllegalArgumentException("Unknown value " + ordinal);
+         }
+         return values[ordinal];
+      }
+
+      POSServer.ItemField[] getFields() {
+         int mask = body.get();
+         POSServer.ItemField[] fields = new POSServer.ItemField[Integer.bitCount(mask & ((1 << ITEM_FIELDS.length) - 1))];
+         int n = 0;
+         for (POSServer.ItemField field : ITEM_FIELDS) {
+            if ((mask & 1 << field.ordinal()) != 0) {
+               fields[n++] = field;
+            }
+         }
+         return fields;
+      }
+
+      SearchPage getPage() {
+         int size = body.getInt();
+         if (size < 0) {
+            return null;
+         }
+         String continuation = getString();
+         int mask = body.get();
+         String[] codes = null;
+         String[] descriptions = null;
+         int[] costs = null;
+         int[] quantities = null;
+         int[] backorders = null;
+         for (POSServer.ItemField field : ITEM_FIELDS) {
+            if ((mask & 1 << field.ordinal()) == 0) {
+               continue;
+            }
+            switch (field) {
+            case CODE:
+               codes = new String[size];
+               for (int row = 0; row < size; row++) {
+                  codes[row] = getString();
+               }
+               break;
+            case COST:
+               costs = getInts(size);
+               break;
+            case DESCRIPTION:
+               descriptions = new String[size];
+               for (int row = 0; row < size; row++) {
+                  descriptions[row] = getString();
+               }
+               break;
+            case QUANTITY:
+               quantities = getInts(size);
+               break;
+            case BACKORDER_QUANTITY:
+               backorders = getInts(size);
+               break;
+            }
+         }
+         return new SearchPage(size, continuation, codes, descriptions, costs, quantities, backorders);
+      }
+
+      ItemChanges getChanges() {
+         int size = body.getInt();
+         if (size < 0) {
+            return null;
+         }
+         long first = body.getLong();
+         long latest = body.getLong();
+         boolean missed = getBoolean();
+         String[] codes = new String[size];
+         int[] inStock = new int[size];
+         int[] backorders = new int[size];
+         for (int i = 0; i < size; i++) {
+            codes[i] = getString();
+            inStock[i] = body.getInt();
+            backorders[i] = body.getInt();
+         }
+         return new ItemChanges(first, latest, missed, codes, inStock, backorders);
+      }
+
+      SalesReport getSales() {
+         int size = body.getInt();
+         if (size < 0) {
+            return null;
+         }
+         String[] codes = new String[size];
+         long[] hours = new long[size];
+         long[] units = new long[size];
+         long[] revenue = new long[size];
+         for (int row = 0; row < size; row++) {
+            codes[row] = getString();
+            hours[row] = body.getLong();
+            units[row] = body.getLong();
+            revenue[row] = body.getLong();
+         }
+         return new SalesReport(codes, hours, units, revenue);
+      }
+
+      private int[] getInts(int size) {
+         int[] values = new int[size];
+         for (int row = 0; row < size; row++) {
+            values[row] = body.getInt();
+         }
+         return values;
+      }
+   }
+}
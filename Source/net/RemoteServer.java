@@ -0,0 +1,228 @@
+/**
+ * A POSServer that lives on the other end of a network connection to a
+ * NetServer. Each call sends one request and waits for its response. Calls
+ * from several threads share the connection and do not wait for each other:
+ * their requests are sent as soon as they are made, and a reader thread
+ * hands each response to the call it answers.
+ *
+ * If the connection is lost, every call throws UncheckedIOException.
+ */
+package Source.net;
+
+import Source.server.ItemChanges;
+import Source.server.POSServer;
+import Source.server.SalesReport;
+import Source.server.SearchPage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RemoteServer implements POSServer, Closeable {
+   private final Socket socket;
+   private final OutputStream out;
+   //request number -> the call waiting for its response
+   private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> calls = new ConcurrentHashMap<>();
+   private final AtomicInteger lastRequest = new AtomicInteger();
+   private final Thread reader;
+   //why the connection was lost, or null while it is up
+   private volatile IOException failure;
+
+   /**
+    * Connect to a server.
+    *
+    * @param host the server's host
+    * @param port the server's port
+    * @throws IOException if the connection cannot be made
+    */
+   public RemoteServer(String host, int port) throws IOException {
+      socket = new Socket();
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port));
+      out = socket.getOutputStream();
+
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+      reader = new Thread(new Runnable() {
+         public void run() {
+            readLoop(in);
+         }
+      }, "remote-server-reader");
+      reader.setDaemon(true);
+      reader.start();
+   }
+
+   /**
+    * Hand each response to its call until the connection is lost.
+    */
+   private void readLoop(DataInputStream in) {
+      try {
+         while (true) {
+            int length = in.readInt();
+            int number = in.readInt();
+            byte[] body = new byte[length - 4];
+            in.readFully(body);
+            CompletableFuture<ByteBuffer> call = calls.remove(number);
+            if (call != null) {
+               call.complete(ByteBuffer.wrap(body));
+            }
+         }
+      } catch (IOException ioe) {
+         failure = ioe;
+         for (CompletableFuture<ByteBuffer> call : calls.values()) {
+            call.completeExceptionally(ioe);
+         }
+         calls.clear();
+      }
+   }
+
+   /**
+    * Close the connection. Calls still waiting fail.
+    */
+   @Override
+   public void close() throws IOException {
+      socket.close();
+   }
+
+   //start a request
+   private Protocol.FrameWriter request(byte operation) {
+      return new Protocol.FrameWriter(lastRequest.incrementAndGet()).putByte(operation);
+   }
+
+   /**
+    * Send a request and wait for its response.
+    *
+    * @param request the request
+    * @return the response, after the status
+    */
+   private Protocol.FrameReader call(Protocol.FrameWriter request) {
+      ByteBuffer frame = request.toBuffer();
+      int number = frame.getInt(4);
+      CompletableFuture<ByteBuffer> call = new CompletableFuture<>();
+      calls.put(number, call);
+      try {
+         if (failure != null) {
+            throw failure;
+         }
+         synchronized (out) {
+            out.write(frame.array(), 0, frame.limit());
+         }
+         ByteBuffer response = call.get();
+         Protocol.FrameReader reader = new Protocol.FrameReader(response);
+         if (reader.getByte() != Protocol.OK) {
+            throw new IllegalStateException(reader.getString());
+         }
+         return reader;
+      } catch (IOException ioe) {
+         calls.remove(number);
+         throw new UncheckedIOException(ioe);
+      } catch (ExecutionException ee) {
+         throw new UncheckedIOException((IOException) ee.getCause());
+      } catch (InterruptedException ie) {
+         calls.remove(number);
+         Thread.currentThread().interrupt();
+         throw new UncheckedIOException(new InterruptedIOException("Interrupted waiting for the server"));
+      }
+   }
+
+   @Override
+   public String createTransaction(TransactionType type, long time, int client) {
+      return call(request(Protocol.CREATE_TRANSACTION).putEnum(type).putLong(time).putInt(client)).getString();
+   }
+
+   @Override
+   public String addItemToTransaction(String id, String item, int quantity) {
+      return call(request(Protocol.ADD_ITEM_TO_TRANSACTION).putString(id).putString(item).putInt(quantity)).getString();
+   }
+
+   @Override
+   public String completeTransaction(String id) {
+      return call(request(Protocol.COMPLETE_TRANSACTION).putString(id)).getString();
+   }
+
+   @Override
+   public String queryTransaction(String id, TransactionQuery query) {
+      return call(request(Protocol.QUERY_TRANSACTION).putString(id).putEnum(query)).getString();
+   }
+
+   @Override
+   public String toString(String id) {
+      return call(request(Protocol.TRANSACTION_TO_STRING).putString(id)).getString();
+   }
+
+   @Override
+   public String queryServer(ServerQuery query) {
+      return call(request(Protocol.QUERY_SERVER).putEnum(query)).getString();
+   }
+
+   /**
+    * Describe the inventory of items on the server.
+    *
+    * @return the server's description of its inventory
+    */
+   @Override
+   public String toString() {
+      return call(request(Protocol.SERVER_TO_STRING)).getString();
+   }
+
+   @Override
+   public String search(String pattern, ItemField order) {
+      return call(request(Protocol.SEARCH).putString(pattern).putEnum(order)).getString();
+   }
+
+   @Override
+   public String search(String pattern, ItemField order, int client) {
+      return call(request(Protocol.CLIENT_SEARCH).putString(pattern).putEnum(order).putInt(client)).getString();
+   }
+
+   @Override
+   public boolean next(String iID) {
+      return call(request(Protocol.NEXT).putString(iID)).getBoolean();
+   }
+
+   @Override
+   public String queryMatch(String iID, ItemField query) {
+      return call(request(Protocol.QUERY_MATCH).putString(iID).putEnum(query)).getString();
+   }
+
+   @Override
+   public SearchPage searchPage(String pattern, ItemField order, int client, int pageSize, ItemField... fields) {
+      return call(request(Protocol.SEARCH_PAGE).putString(pattern).putEnum(order)
+            .putInt(client).putInt(pageSize).putFields(fields)).getPage();
+   }
+
+   @Override
+   public SearchPage nextPage(String continuation, int pageSize, ItemField... fields) {
+      return call(request(Protocol.NEXT_PAGE).putString(continuation).putInt(pageSize).putFields(fields)).getPage();
+   }
+
+   @Override
+   public ItemChanges changesSince(long sequence, int max, long waitMillis) {
+      return call(request(Protocol.CHANGES_SINCE).putLong(sequence).putInt(max).putLong(waitMillis)).getChanges();
+   }
+
+   @Override
+   public SalesReport topSellers(long time, int count) {
+      return call(request(Protocol.TOP_SELLERS).putLong(time).putInt(count)).getSales();
+   }
+
+   @Override
+   public SalesReport itemSales(String code) {
+      return call(request(Protocol.ITEM_SALES).putString(code)).getSales();
+   }
+
+   @Override
+   public String cancelTransaction(String id, long time, int client) {
+      return call(request(Protocol.CANCEL_TRANSACTION).putString(id).putLong(time).putInt(client)).getString();
+   }
+}
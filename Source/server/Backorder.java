@@ -25,48 +25,54 @@ class Backorder extends Transaction {
 
    /**
     *check if enough quantity exist in store to complete the transacion
-    * @param  unit the unit to check
+    * @param  line the index of the line to check
     * @return  true if can complete or false otherwise
     */
    @Override
-   public boolean canCompleteTransaction(TransactionUnit unit) {
+   public boolean canCompleteTransaction(int line) {
       // Can always complete a backorder
       return true;
    }
    /**
     * completes the transction
-    * @param unit           one unit from the transaction
-    * @param canCompleteAll true if all the units in the transaction returned true for canCompleteTransaction()
+    * @param line           the index of one line of the transaction
+    * @param canCompleteAll true if all the lines in the transaction returned true for canCompleteTransaction()
     */
    @Override
-   public void completeTransaction(TransactionUnit unit, boolean canCompleteAll) {
+   public void completeTransaction(int line, boolean canCompleteAll) {
       //get the quantity
-      int transactionQuantity = unit.getQuantity();
+      int transactionQuantity = getLineQuantity(line);
       //get the item
-      Item item = unit.getItem();
-      int itemQuantity = item.getInStock();
-      
-      if (transactionQuantity <= itemQuantity) {
-         //if enough item exist then purchase
-         item.reduceInStock(transactionQuantity); 
-      } else {
-         // backorder if we do not have enough item
-         int backorderQuantity = transactionQuantity - itemQuantity;
-         item.reduceInStock(itemQuantity);
-         item.increaseBackorder(backorderQuantity);
+      Item item = getLineItem(line);
+      //hold the item so the stock cannot change between the check and the update
+      item.lock();
+      try {
+         int itemQuantity = item.getInStock();
+
+         if (transactionQuantity <= itemQuantity) {
+            //if enough item exist then purchase
+            item.reduceInStock(transactionQuantity);
+         } else {
+            // backorder if we do not have enough item
+            int backorderQuantity = transactionQuantity - itemQuantity;
+            item.reduceInStock(itemQuantity);
+            item.increaseBackorder(backorderQuantity);
+         }
+      } finally {
+         item.unlock();
       }
    }
    
    /**
-    * Make the leftovers from an unit in a transaction into a back order.
+    * Make the leftovers from a line in a transaction into a back order.
     * 
-    * @param unit the unit that is back ordered
+    * @param line the index of the line that is back ordered
     * @param quantity the quantity of the back order
-    * @return true if there is nothing left in the original unit; false otherwise
+    * @return true if there is nothing left on the original line; false otherwise
     */
-   public boolean makeBackOrder(TransactionUnit unit, int quantity) {
-      backOrder.add(new TransactionUnit(unit.getItem(), quantity));
-      return unit.getQuantity() == 0;
+   public boolean makeBackOrder(int line, int quantity) {
+      backOrder.add(new TransactionUnit(getLineItem(line), quantity));
+      return getLineQuantity(line) == 0;
    }
 
    /**
@@ -0,0 +1,201 @@
+/**
+ * The ordered feed of changes to item stock and backorder quantities. Every
+ * change gets the next sequence number and is kept in a ring of fixed size,
+ * so the feed never holds more than the newest changes; a reader that falls
+ * further behind than that is told it missed some.
+ *
+ * Sequence numbers carry on across restarts: the newest is kept in each
+ * snapshot and restored before the journal is replayed, and the replay
+ * numbers its changes as they were numbered the first time. The changes
+ * from before the restart are not held, so a reader asking for them is
+ * told it missed some, as is a reader ahead of the feed (one that read
+ * from a server which has since lost its state).
+ *
+ * Changes are recorded with the item locked, so the changes to one item are
+ * numbered in the order they were made. Recording takes no lock of its own:
+ * a change claims the next sequence number atomically and writes its slot,
+ * and the feed is read up to the newest change before which every change
+ * has been written. The monitor is only taken to wake waiting readers.
+ */
+package Source.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class ChangeFeed implements ItemListener {
+   private final int mask;
+   //the newest changes, each in the slot of its sequence number
+   private final AtomicReferenceArray<Change> slots;
+   //sequence number of the newest change claimed (0 before the first)
+   private final AtomicLong claimed = new AtomicLong();
+   //sequence number of the newest change up to which every slot is written
+   private final AtomicLong published = new AtomicLong();
+   //the newest change not held, as it came before a restart
+   private volatile long restored;
+   //readers waiting for a change; changed under the monitor
+   private volatile int waiting;
+
+   /**
+    * One change: its sequence number and the item's quantities after it.
+    */
+   private static final class Change {
+      final long sequence;
+      final String code;
+      final int inStock;
+      final int backorder;
+
+      Change(long sequence, String code, int inStock, int backorder) {
+         this.sequence = sequence;
+         this.code = code;
+         this.inStock = inStock;
+         this.backorder = backorder;
+      }
+   }
+
+   /**
+    * @param capacity the most changes kept (rounded up to a power of two)
+    */
+   public ChangeFeed(int capacity) {
+      int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+      mask = size - 1;
+      slots = new AtomicReferenceArray<>(size);
+   }
+
+   @Override
+   public void itemChanging(Item item, POSServer.ItemField field) {
+      // only the new values are recorded
+   }
+
+   /**
+    * Record the item's new quantities. Called with the item locked.
+    */
+   @Override
+   public void itemChanged(Item item, POSServer.ItemField field) {
+      long sequence = claimed.incrementAndGet();
+      Change change = new Change(sequence, item.getCode(), item.getInStock(), item.getBackorder());
+      int slot = (int) (sequence & mask);
+      //a writer held up for a whole lap of the ring finds its slot taken, and leaves it
+      Change old = slots.get(slot);
+      while ((old == null || old.sequence < sequence) && !slots.compareAndSet(slot, old, change)) {
+         old = slots.get(slot);
+      }
+      publish();
+   }
+
+   /**
+    * Move the published sequence number past every change whose slot is
+    * written (or already reused by a later lap), and wake the readers if it
+    * moved. Each writer does this after writing, so the last of a run of
+    * writers to finish publishes the whole run.
+    */
+   private void publish() {
+      boolean moved = false;
+      long done = published.get();
+      while (true) {
+         long end = done;
+         long last = claimed.get();
+         while (end < last) {
+            Change next = slots.get((int) ((end + 1) & mask));
+            if (next == null || next.sequence < end + 1) {
+               break;
+            }
+            end++;
+         }
+         if (end == done) {
+            break;
+         }
+         if (published.compareAndSet(done, end)) {
+            moved = true;
+         }
+         //another writer may have moved it meanwhile, or written more since
+         done = published.get();
+      }
+      if (moved && waiting > 0) {
+         synchronized (this) {
+            notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Carry on numbering from where a feed left off. Called before any change.
+    *
+    * @param sequence the sequence number of the feed's newest change
+    */
+   public void restore(long sequence) {
+      claimed.set(sequence);
+      published.set(sequence);
+      restored = sequence;
+   }
+
+   /**
+    * @return the sequence number of the newest change (0 before the first)
+    */
+   public long latest() {
+      return published.get();
+   }
+
+   /**
+    * Get the changes after a sequence number, waiting a while for one if
+    * there are none yet. A sequence number newer than the newest change is
+    * answered at once, from the oldest change held, as missed.
+    *
+    * @param sequence the last sequence number already seen
+    * @param max      the most changes to return
+    * @param wait     how long to wait for a change (0 not to wait)
+    * @param unit     the unit of wait
+    * @return the changes
+    */
+   public ItemChanges since(long sequence, int max, long wait, TimeUnit unit) {
+      if (published.get() == sequence && wait > 0) {
+         long deadline = System.nanoTime() + unit.toNanos(wait);
+         synchronized (this) {
+            waiting++;
+            try {
+               long left;
+               while (published.get() == sequence && (left = deadline - System.nanoTime()) > 0) {
+                  TimeUnit.NANOSECONDS.timedWait(this, left);
+               }
+            } catch (InterruptedException ie) {
+               Thread.currentThread().interrupt();
+            } finally {
+               waiting--;
+            }
+         }
+      }
+
+      while (true) {
+         long latest = published.get();
+         long oldest = Math.max(restored + 1, latest - mask);
+         boolean ahead = sequence > latest;
+         long first = ahead ? oldest : Math.max(sequence + 1, oldest);
+         boolean missed = ahead || first > sequence + 1;
+         int count = (int) Math.max(0, Math.min(latest - first + 1, max));
+         if (count == 0) {
+            // nothing new: the next call should ask from the same place
+            first = Math.min(sequence, latest) + 1;
+         }
+
+         String[] changedCodes = new String[count];
+         int[] changedStock = new int[count];
+         int[] changedBackorders = new int[count];
+         boolean lapped = false;
+         for (int i = 0; i < count && !lapped; i++) {
+            Change change = slots.get((int) ((first + i) & mask));
+            if (change.sequence != first + i) {
+               lapped = true;
+            } else {
+               changedCodes[i] = change.code;
+               changedStock[i] = change.inStock;
+               changedBackorders[i] = change.backorder;
+            }
+         }
+         if (!lapped) {
+            return new ItemChanges(first, latest, missed, changedCodes, changedStock, changedBackorders);
+         }
+         // writers went a whole lap round the ring while this was read: read
+         // again from the oldest change now held
+      }
+   }
+}
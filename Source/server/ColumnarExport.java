@@ -0,0 +1,250 @@
+/**
+ * Writes an export in a compact binary columnar format, a block of rows at
+ * a time, so a reader can skip the columns it doesn't want and neither side
+ * holds more than a block. Layout:
+ *
+ *    magic (int) | version (byte) | table (byte: 0 items, 1 transactions)
+ *    blocks, each: row count (varint), then per column:
+ *       byte length (varint) | the column's values for every row of the block
+ *    a row count of 0 ends the table
+ *
+ * Item columns:        code | description | cost | in stock | backorder
+ * Transaction columns: id | type | time | client | flags | code | quantity
+ *                      | cost | discount | net cost
+ *
+ * Numbers are zig-zag varints; the id and time columns hold the difference
+ * from the row before (from 0 at the start of a block), which is small as
+ * rows come out near ID order. Type and flags (1 complete, 2 cancelled) are
+ * bytes. Strings are a varint of the UTF-8 length plus one (0 for null)
+ * followed by the bytes.
+ */
+package Source.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+class ColumnarExport implements ExportSink {
+   private static final int MAGIC = 0x504f5358;   // "POSX"
+   private static final int VERSION = 1;
+   //rows in a full block
+   static final int BLOCK = 4096;
+   //transaction flags
+   private static final int COMPLETE = 1;
+   private static final int CANCELLED = 2;
+   private static final POSServer.TransactionType[] TYPES = POSServer.TransactionType.values();
+
+   private final OutputStream out;
+   //the block being built, a buffer per column
+   private final Column[] columns;
+   private int rows;
+   //the row count and column lengths, as they are written
+   private final Column header = new Column(16);
+   //the id and time of the row before, for the differences
+   private long lastID;
+   private long lastTime;
+
+   /**
+    * A column of the block being built.
+    */
+   private static final class Column extends ByteArrayOutputStream {
+      Column(int size) {
+         super(size);
+      }
+
+      void putLong(long value) {
+         //zig-zag, so small negative numbers stay short
+         long bits = (value << 1) ^ (value >> 63);
+         while ((bits & ~0x7fL) != 0) {
+            write((int) (bits & 0x7f) | 0x80);
+            bits >>>= 7;
+         }
+         write((int) bits);
+      }
+
+      void putString(String value) {
+         if (value == null) {
+            putLong(0);
+            return;
+         }
+         byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+         putLong(bytes.length + 1L);
+         write(bytes, 0, bytes.length);
+      }
+   }
+
+   /**
+    * Start a table and write its header.
+    *
+    * @param out   where to write; flushed at the end, not closed
+    * @param table the table being exported
+    */
+   ColumnarExport(OutputStream out, Table table) throws IOException {
+      this.out = new BufferedOutputStream(out, 64 * 1024);
+      columns = new Column[table == Table.ITEMS ? 5 : 10];
+      for (int i = 0; i < columns.length; i++) {
+         columns[i] = new Column(BLOCK * 2);
+      }
+      writeInt(MAGIC);
+      this.out.write(VERSION);
+      this.out.write(table.ordinal());
+   }
+
+   @Override
+   public void item(String code, String description, int cost, int inStock, int backorder) throws IOException {
+      columns[0].putString(code);
+      columns[1].putString(description);
+      columns[2].putLong(cost);
+      columns[3].putLong(inStock);
+      columns[4].putLong(backorder);
+      endRow();
+   }
+
+   @Override
+   public void line(int id, POSServer.TransactionType type, long time, int client, boolean complete, boolean cancelled,
+                    String code, int quantity, int cost, long discount, long netCost) throws IOException {
+      columns[0].putLong(id - lastID);
+      columns[1].write(type.ordinal());
+      columns[2].putLong(time - lastTime);
+      columns[3].putLong(client);
+      columns[4].write((complete ? COMPLETE : 0) | (cancelled ? CANCELLED : 0));
+      columns[5].putString(code);
+      columns[6].putLong(quantity);
+      columns[7].putLong(cost);
+      columns[8].putLong(discount);
+      columns[9].putLong(netCost);
+      lastID = id;
+      lastTime = time;
+      endRow();
+   }
+
+   private void endRow() throws IOException {
+      rows++;
+      if (rows == BLOCK) {
+         writeBlock();
+      }
+   }
+
+   private void writeBlock() throws IOException {
+      header.reset();
+      header.putLong(rows);
+      header.writeTo(out);
+      for (Column column : columns) {
+         header.reset();
+         header.putLong(column.size());
+         header.writeTo(out);
+         column.writeTo(out);
+         column.reset();
+      }
+      rows = 0;
+      lastID = 0;
+      lastTime = 0;
+   }
+
+   @Override
+   public void finish() throws IOException {
+      if (rows > 0) {
+         writeBlock();
+      }
+      out.write(0);
+      out.flush();
+   }
+
+   private void writeInt(int value) throws IOException {
+      out.write(value >>> 24);
+      out.write(value >>> 16);
+      out.write(value >>> 8);
+      out.write(value);
+   }
+
+   /**
+    * Read an export written in this format, handing each row to a sink.
+    *
+    * @param in   the export
+    * @param sink receives the rows
+    * @throws IOException if the export cannot be read or is not in this format
+    */
+   static void read(InputStream in, ExportSink sink) throws IOException {
+      DataInputStream data = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+      if (data.readInt() != MAGIC || data.readByte() != VERSION) {
+         throw new IOException("Not a columnar export");
+      }
+      boolean items = data.readByte() == Table.ITEMS.ordinal();
+      int width = items ? 5 : 10;
+      long[][] numbers = new long[width][];
+      String[][] strings = new String[width][];
+      int rows;
+      while ((rows = (int) getLong(data)) > 0) {
+         for (int c = 0; c < width; c++) {
+            getLong(data);
+            boolean text = items ? c < 2 : c == 5;
+            boolean bytes = !items && (c == 1 || c == 4);
+            if (text) {
+               strings[c] = new String[rows];
+            } else {
+               numbers[c] = new long[rows];
+            }
+            long running = 0;
+            for (int r = 0; r < rows; r++) {
+               if (text) {
+                  strings[c][r] = getString(data);
+               } else if (bytes) {
+                  numbers[c][r] = data.readUnsignedByte();
+               } else {
+                  numbers[c][r] = getLong(data);
+                  //the id and time columns are differences
+                  if (!items && (c == 0 || c == 2)) {
+                     running += numbers[c][r];
+                     numbers[c][r] = running;
+                  }
+               }
+            }
+         }
+         for (int r = 0; r < rows; r++) {
+            if (items) {
+               sink.item(strings[0][r], strings[1][r], (int) numbers[2][r], (int) numbers[3][r], (int) numbers[4][r]);
+            } else {
+               int flags = (int) numbers[4][r];
+               sink.line((int) numbers[0][r], TYPES[(int) numbers[1][r]], numbers[2][r], (int) numbers[3][r],
+                     (flags & COMPLETE) != 0, (flags & CANCELLED) != 0, strings[5][r],
+                     (int) numbers[6][r], (int) numbers[7][r], numbers[8][r], numbers[9][r]);
+            }
+         }
+      }
+      sink.finish();
+   }
+
+   private static long getLong(DataInputStream in) throws IOException {
+      long bits = 0;
+      for (int shift = 0; ; shift += 7) {
+         if (shift > 63) {
+            throw new IOException("Bad number in columnar export");
+         }
+         int b = in.read();
+         if (b < 0) {
+            throw new EOFException("Columnar export is truncated");
+         }
+         bits |= (long) (b & 0x7f) << shift;
+         if ((b & 0x80) == 0) {
+            break;
+         }
+      }
+      return (bits >>> 1) ^ -(bits & 1);
+   }
+
+   private static String getString(DataInputStream in) throws IOException {
+      long length = getLong(in);
+      if (length == 0) {
+         return null;
+      }
+      byte[] bytes = new byte[(int) (length - 1)];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+}
@@ -0,0 +1,83 @@
+/**
+ * Writes an export as CSV (RFC 4180): a header row, then one row per item
+ * or transaction line. Amounts are in cents. A transaction's status is
+ * open, complete or cancelled.
+ *
+ *    code,description,cost,in_stock,backorder
+ *    id,type,time,client,status,code,quantity,cost,discount,net_cost
+ */
+package Source.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+class CsvExport implements ExportSink {
+   private final Writer out;
+   //the row being built, reused
+   private final StringBuilder row = new StringBuilder(128);
+
+   /**
+    * Start a table and write its header.
+    *
+    * @param out   where to write; flushed at the end, not closed
+    * @param table the table being exported
+    */
+   CsvExport(Writer out, Table table) throws IOException {
+      this.out = new BufferedWriter(out, 64 * 1024);
+      this.out.write(table == Table.ITEMS ? "code,description,cost,in_stock,backorder\n"
+            : "id,type,time,client,status,code,quantity,cost,discount,net_cost\n");
+   }
+
+   @Override
+   public void item(String code, String description, int cost, int inStock, int backorder) throws IOException {
+      row.setLength(0);
+      field(code).append(',');
+      field(description).append(',');
+      row.append(cost).append(',').append(inStock).append(',').append(backorder).append('\n');
+      out.append(row);
+   }
+
+   @Override
+   public void line(int id, POSServer.TransactionType type, long time, int client, boolean complete, boolean cancelled,
+                    String code, int quantity, int cost, long discount, long netCost) throws IOException {
+      row.setLength(0);
+      row.append(id).append(',').append(type).append(',').append(time).append(',').append(client).append(',');
+      row.append(cancelled ? "cancelled" : complete ? "complete" : "open").append(',');
+      if (code != null) {
+         field(code).append(',').append(quantity).append(',').append(cost).append(',').append(discount);
+      } else {
+         row.append(",,,");
+      }
+      row.append(',').append(netCost).append('\n');
+      out.append(row);
+   }
+
+   @Override
+   public void finish() throws IOException {
+      out.flush();
+   }
+
+   /**
+    * Add a field to the row, quoted if it holds a comma, quote or line break.
+    */
+   private StringBuilder field(String value) {
+      boolean quote = false;
+      for (int i = 0; i < value.length() && !quote; i++) {
+         char c = value.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote) {
+         return row.append(value);
+      }
+      row.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if (c == '"') {
+            row.append('"');
+         }
+         row.append(c);
+      }
+      return row.append('"');
+   }
+}
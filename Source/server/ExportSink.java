@@ -0,0 +1,46 @@
+/**
+ * Receives the rows of an export as they are read from the server and
+ * writes them out in some format (see CsvExport and ColumnarExport). An
+ * export is a table of items, or of transaction lines: one row per line,
+ * carrying its transaction's fields, so a file can be read a row at a time.
+ */
+package Source.server;
+
+import java.io.IOException;
+
+interface ExportSink {
+   /**
+    * The tables an export can hold.
+    */
+   enum Table { ITEMS, TRANSACTIONS }
+
+   /**
+    * Write an item.
+    */
+   void item(String code, String description, int cost, int inStock, int backorder) throws IOException;
+
+   /**
+    * Write one line of a transaction. A transaction without lines is
+    * written as one row with a null code.
+    *
+    * @param id        the transaction ID
+    * @param type      the transaction type
+    * @param time      the transaction time
+    * @param client    the client that created it
+    * @param complete  whether it is complete
+    * @param cancelled whether it is cancelled
+    * @param code      the item code, or null
+    * @param quantity  the quantity of the item
+    * @param cost      the cost of a unit, in cents
+    * @param discount  the discount on the line, in cents
+    * @param netCost   what the whole transaction comes to after discounts, in cents
+    */
+   void line(int id, POSServer.TransactionType type, long time, int client, boolean complete, boolean cancelled,
+             String code, int quantity, int cost, long discount, long netCost) throws IOException;
+
+   /**
+    * Write out whatever is buffered and end the table. The stream written
+    * to is flushed, not closed.
+    */
+   void finish() throws IOException;
+}
@@ -0,0 +1,200 @@
+/**
+ * Streams the inventory or the transaction history of a server out to a
+ * Writer as CSV, or to an OutputStream in a compact binary columnar format
+ * (see CsvExport and ColumnarExport for the layouts). Rows are written as
+ * they are read, so an export takes the same memory however much it holds,
+ * and the lanes carry on meanwhile: each transaction is locked only while
+ * its lines are copied, and archived transactions are read back from the
+ * archive one at a time. Transactions can be limited to a range of times
+ * and to some types:
+ *
+ *    new Exporter(server).between(20240101000000L, 20240102000000L)
+ *          .types(POSServer.TransactionType.PURCHASE).transactionsCsv(writer);
+ *
+ * An export sees every transaction that existed when it began, each once;
+ * one created meanwhile may or may not be included.
+ */
+package Source.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+public final class Exporter {
+   private final Server server;
+   //transaction times from (inclusive) and to (exclusive)
+   private long from = Long.MIN_VALUE;
+   private long to = Long.MAX_VALUE;
+   //the transaction types exported
+   private EnumSet<POSServer.TransactionType> types = EnumSet.allOf(POSServer.TransactionType.class);
+
+   /**
+    * @param server a server running in this process (from ReadServer),
+    *               or a MeteredServer wrapping one
+    * @throws IllegalArgumentException if the server is elsewhere (a RemoteServer)
+    */
+   public Exporter(POSServer server) {
+      if (server instanceof MeteredServer) {
+         server = ((MeteredServer) server).getServer();
+      }
+      if (!(server instanceof Server)) {
+         throw new IllegalArgumentException("Only a server in this process can be exported");
+      }
+      this.server = (Server) server;
+   }
+
+   /**
+    * Export only the transactions whose time is in a range.
+    *
+    * @param from the earliest time (yyyyMMddHHmmss), inclusive
+    * @param to   the latest time, exclusive
+    * @return this exporter
+    */
+   public Exporter between(long from, long to) {
+      this.from = from;
+      this.to = to;
+      return this;
+   }
+
+   /**
+    * Export only the transactions of some types.
+    *
+    * @param types the types
+    * @return this exporter
+    */
+   public Exporter types(POSServer.TransactionType... types) {
+      this.types = types.length == 0 ? EnumSet.noneOf(POSServer.TransactionType.class)
+            : EnumSet.copyOf(Arrays.asList(types));
+      return this;
+   }
+
+   /**
+    * Write the inventory as CSV.
+    *
+    * @param out where to write; flushed, not closed
+    * @throws IOException if the export cannot be written
+    */
+   public void inventoryCsv(Writer out) throws IOException {
+      items(new CsvExport(out, ExportSink.Table.ITEMS));
+   }
+
+   /**
+    * Write the inventory in the columnar format.
+    *
+    * @param out where to write; flushed, not closed
+    * @throws IOException if the export cannot be written
+    */
+   public void inventoryColumns(OutputStream out) throws IOException {
+      items(new ColumnarExport(out, ExportSink.Table.ITEMS));
+   }
+
+   /**
+    * Write the transactions as CSV, a row per line.
+    *
+    * @param out where to write; flushed, not closed
+    * @throws IOException if the export cannot be written or the archive read
+    */
+   public void transactionsCsv(Writer out) throws IOException {
+      transactions(new CsvExport(out, ExportSink.Table.TRANSACTIONS));
+   }
+
+   /**
+    * Write the transactions in the columnar format, a row per line.
+    *
+    * @param out where to write; flushed, not closed
+    * @throws IOException if the export cannot be written or the archive read
+    */
+   public void transactionsColumns(OutputStream out) throws IOException {
+      transactions(new ColumnarExport(out, ExportSink.Table.TRANSACTIONS));
+   }
+
+   /**
+    * Turn a columnar export back into CSV, a block at a time.
+    *
+    * @param in  the columnar export
+    * @param out where to write the CSV; flushed, not closed
+    * @throws IOException if the export cannot be read or the CSV written
+    */
+   public static void columnsToCsv(InputStream in, Writer out) throws IOException {
+      final Writer csvOut = out;
+      ColumnarExport.read(in, new ExportSink() {
+         private CsvExport csv;
+
+         public void item(String code, String description, int cost, int inStock, int backorder) throws IOException {
+            csv(Table.ITEMS).item(code, description, cost, inStock, backorder);
+         }
+
+         public void line(int id, POSServer.TransactionType type, long time, int client, boolean complete, boolean cancelled,
+                          String code, int quantity, int cost, long discount, long netCost) throws IOException {
+            csv(Table.TRANSACTIONS).line(id, type, time, client, complete, cancelled, code, quantity, cost, discount, netCost);
+         }
+
+         public void finish() throws IOException {
+            if (csv != null) {
+               csv.finish();
+            }
+         }
+
+         //the header is only known once the first row is read
+         private CsvExport csv(Table table) throws IOException {
+            if (csv == null) {
+               csv = new CsvExport(csvOut, table);
+            }
+            return csv;
+         }
+      });
+   }
+
+   private void items(ExportSink sink) throws IOException {
+      for (Item item : server.items()) {
+         sink.item(item.getCode(), item.getDescription(), item.getCost(), item.getInStock(), item.getBackorder());
+      }
+      sink.finish();
+   }
+
+   private void transactions(final ExportSink sink) throws IOException {
+      server.forEachTransaction(from, to, types, new Server.TransactionVisitor() {
+         //the lines of the transaction being written, copied out under its lock
+         private Item[] items = new Item[16];
+         private int[] quantities = new int[16];
+         private long[] discounts = new long[16];
+
+         public void visit(Transaction t) throws IOException {
+            int id = Integer.parseInt(t.getID());
+            boolean complete;
+            boolean cancelled;
+            long netCost;
+            int lines;
+            synchronized (t) {
+               complete = t.isComplete();
+               cancelled = t.isCancelled();
+               netCost = t.netCost();
+               lines = t.itemCount();
+               if (lines > items.length) {
+                  items = new Item[Math.max(lines, items.length * 2)];
+                  quantities = new int[items.length];
+                  discounts = new long[items.length];
+               }
+               for (int line = 0; line < lines; line++) {
+                  items[line] = t.getLineItem(line);
+                  quantities[line] = t.getLineQuantity(line);
+                  discounts[line] = t.getLineDiscount(line);
+               }
+            }
+
+            if (lines == 0) {
+               sink.line(id, t.getType(), t.getTime(), t.getClientID(), complete, cancelled, null, 0, 0, 0, netCost);
+            }
+            for (int line = 0; line < lines; line++) {
+               sink.line(id, t.getType(), t.getTime(), t.getClientID(), complete, cancelled,
+                     items[line].getCode(), quantities[line], items[line].getCost(), discounts[line], netCost);
+               items[line] = null;
+            }
+         }
+      });
+      sink.finish();
+   }
+}
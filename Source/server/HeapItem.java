@@ -0,0 +1,72 @@
+/**
+ * An item kept as an object of its own, with its code and description as
+ * Strings. This is how the inventory has always been held; see
+ * PackedItemStore for a more compact one.
+ */
+package Source.server;
+
+class HeapItem extends Item {
+
+   private final String code; //item code
+   private final String description;   //item description
+   private final int cost; //cost of the unit to purchase
+   private volatile int inStock; //in stock availability of the item
+   private volatile int backorder;  //backorder quantity of this item
+   private final String searchCode;   //lower-cased code used by searches
+   private final String searchDescription;  //lower-cased description used by searches
+
+   public HeapItem(int id, String code, String description, int cost, int quantity) {
+      this(id, code, description, cost, quantity, 0);
+   }
+
+   public HeapItem(int id, String code, String description, int cost, int quantity, int backorder) {
+      super(id);
+      this.code = code;
+      this.description = description;
+      this.cost = cost;
+      this.inStock = quantity;
+      this.backorder = backorder;
+      this.searchCode = code.toLowerCase();
+      this.searchDescription = description.toLowerCase();
+   }
+
+   public String getCode() {
+      return code;
+   }
+
+   public int getCost() {
+      return cost;
+   }
+
+   public int getInStock() {
+      return inStock;
+   }
+
+   public int getBackorder() {
+      return backorder;
+   }
+
+   public String getDescription() {
+      return description;
+   }
+
+   protected void setInStock(int inStock) {
+      this.inStock = inStock;
+   }
+
+   protected void setBackorder(int backorder) {
+      this.backorder = backorder;
+   }
+
+   public boolean matchesLowerCase(String pattern) {
+      return searchCode.contains(pattern) || searchDescription.contains(pattern);
+   }
+
+   public String getSearchCode() {
+      return searchCode;
+   }
+
+   public String getSearchDescription() {
+      return searchDescription;
+   }
+}
@@ -0,0 +1,31 @@
+/**
+ * Keeps the inventory as HeapItems in a concurrent skip list by code.
+ */
+package Source.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+class HeapItemStore implements ItemStore {
+   private final ConcurrentSkipListMap<String, Item> items = new ConcurrentSkipListMap<>();
+
+   public Item newItem(int id, String code, String description, int cost, int inStock, int backorder) {
+      return new HeapItem(id, code, description, cost, inStock, backorder);
+   }
+
+   public Item put(Item item) {
+      return items.put(item.getCode(), item);
+   }
+
+   public Item get(String code) {
+      return items.get(code);
+   }
+
+   public Collection<Item> values() {
+      return items.values();
+   }
+
+   public Collection<Item> tail(String code) {
+      return items.tailMap(code, false).values();
+   }
+}
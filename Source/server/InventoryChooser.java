@@ -0,0 +1,28 @@
+/**
+ * Asks for the inventory file with a file chooser. Kept apart from
+ * ReadServer so a server started without a display never loads Swing.
+ */
+package Source.server;
+
+import javax.swing.JFileChooser;
+import javax.swing.filechooser.FileSystemView;
+import java.io.File;
+
+class InventoryChooser {
+   private InventoryChooser() {
+   }
+
+   /**
+    * Show a file chooser until a file is picked.
+    *
+    * @return the file picked
+    */
+   static File choose() {
+      JFileChooser fileChooser = new JFileChooser(FileSystemView.getFileSystemView().getHomeDirectory());
+      int returnVal = fileChooser.showOpenDialog(null);
+      while (!(returnVal == JFileChooser.APPROVE_OPTION)) {
+         returnVal = fileChooser.showOpenDialog(null);
+      }
+      return fileChooser.getSelectedFile();
+   }
+}
@@ -0,0 +1,385 @@
+/**
+ * Loads an inventory file (one "code,description,cost,quantity" item per
+ * line) on several cores. The file is cut into byte ranges that start and
+ * end on line boundaries, each range is parsed by its own task with a
+ * hand-written field scanner, and the items are handed over in file order.
+ *
+ * The rules are the same as reading the file line by line: a line needs
+ * exactly four fields (trailing empty fields are ignored, as String.split
+ * does) and a cost and quantity that are integers of zero or more.
+ */
+package Source.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class InventoryLoader {
+   //smallest range worth a task of its own
+   private static final long MIN_CHUNK = 1L << 20;
+   //most errors kept with their details; the rest are only counted
+   static final int MAX_ERRORS = 100;
+
+   //no instances
+   private InventoryLoader() {}
+
+   /**
+    * Receives the valid items of the file, in file order.
+    */
+   interface Sink {
+      void item(String code, String description, int cost, int quantity);
+   }
+
+   /**
+    * Load a file.
+    *
+    * @param file    the inventory file
+    * @param threads the number of lines parsed at once
+    * @param sink    receives the items
+    * @return the errors found
+    */
+   static LoadReport load(File file, int threads, Sink sink) {
+      LoadReport report = new LoadReport();
+      ExecutorService pool = null;
+
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+         long size = channel.size();
+         long[] bounds = split(channel, size, Math.max(MIN_CHUNK, size / (threads * 4L) + 1));
+
+         pool = Executors.newFixedThreadPool(threads);
+         List<Future<Chunk>> futures = new ArrayList<>();
+         for (int i = 0; i + 1 < bounds.length; i++) {
+            final long start = bounds[i];
+            final long end = bounds[i + 1];
+            final FileChannel source = channel;
+            futures.add(pool.submit(new Callable<Chunk>() {
+               public Chunk call() throws IOException {
+                  return new Chunk(source.map(FileChannel.MapMode.READ_ONLY, start, end - start)).parse();
+               }
+            }));
+         }
+
+         //merge in file order; line numbers continue from the previous chunk
+         long lines = 0;
+         for (Future<Chunk> future : futures) {
+            Chunk chunk = future.get();
+            for (int i = 0; i < chunk.count; i++) {
+               sink.item(chunk.codes[i], chunk.descriptions[i], chunk.costs[i], chunk.quantities[i]);
+            }
+            for (LoadError error : chunk.errors) {
+               report.add(new LoadError(lines + error.line, error.kind, error.text));
+            }
+            report.skipped(chunk.errorCount - chunk.errors.size());
+            lines += chunk.lines;
+         }
+      } catch (IOException ioe) {
+         report.failed(ioe.getMessage());
+      } catch (ExecutionException ee) {
+         report.failed(ee.getCause().getMessage());
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         report.failed("Interrupted");
+      } finally {
+         if (pool != null) {
+            pool.shutdownNow();
+         }
+      }
+
+      return report;
+   }
+
+   /**
+    * Cut the file into ranges of about the given size, each ending just
+    * after a newline (or at the end of the file).
+    *
+    * @return the range boundaries, from 0 to the file size
+    */
+   private static long[] split(FileChannel channel, long size, long chunk) throws IOException {
+      ArrayList<Long> bounds = new ArrayList<>();
+      bounds.add(0L);
+      long position = chunk;
+      ByteBuffer block = ByteBuffer.allocate(4096);
+      while (position < size) {
+         //find the next newline
+         long newline = -1;
+         while (newline < 0 && position < size) {
+            block.clear();
+            int n = channel.read(block, position);
+            if (n <= 0) {
+               break;
+            }
+            for (int i = 0; i < n; i++) {
+               if (block.get(i) == '\n') {
+                  newline = position + i;
+                  break;
+               }
+            }
+            position += n;
+         }
+         if (newline < 0) {
+            break;
+         }
+         bounds.add(newline + 1);
+         position = newline + 1 + chunk;
+      }
+      if (bounds.get(bounds.size() - 1) < size) {
+         bounds.add(size);
+      }
+
+      long[] result = new long[bounds.size()];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = bounds.get(i);
+      }
+      return result;
+   }
+
+   /**
+    * One range of the file and the items parsed from it.
+    */
+   private static class Chunk {
+      private final MappedByteBuffer buffer;
+      String[] codes = new String[64];
+      String[] descriptions = new String[64];
+      int[] costs = new int[64];
+      int[] quantities = new int[64];
+      int count;
+      //lines in the range
+      long lines;
+      //errors, numbered from the start of the range
+      ArrayList<LoadError> errors = new ArrayList<>();
+      //errors found, including those not kept
+      long errorCount;
+      //start and end (exclusive) of the fields of the current line
+      private final int[] fieldStart = new int[4];
+      private final int[] fieldEnd = new int[4];
+
+      Chunk(MappedByteBuffer buffer) {
+         this.buffer = buffer;
+      }
+
+      Chunk parse() {
+         int limit = buffer.limit();
+         int start = 0;
+         while (start < limit) {
+            //a line ends at \n, \r or \r\n, as for BufferedReader.readLine
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n' && buffer.get(end) != '\r') {
+               end++;
+            }
+            lines++;
+            parseLine(start, end);
+            if (end < limit && buffer.get(end) == '\r' && end + 1 < limit && buffer.get(end + 1) == '\n') {
+               end++;
+            }
+            start = end + 1;
+         }
+         return this;
+      }
+
+      private void parseLine(int start, int end) {
+         //find the fields; only the first four are kept
+         int fields = 0;
+         int nonEmpty = 0;   //fields up to the last non-empty one
+         int fieldBegin = start;
+         for (int i = start; i <= end; i++) {
+            if (i == end || buffer.get(i) == ',') {
+               if (fields < 4) {
+                  fieldStart[fields] = fieldBegin;
+                  fieldEnd[fields] = i;
+               }
+               fields++;
+               if (i > fieldBegin) {
+                  nonEmpty = fields;
+               }
+               fieldBegin = i + 1;
+            }
+         }
+
+         //String.split drops trailing empty fields
+         if (nonEmpty != 4) {
+            error(LoadError.Kind.INVALID_LINE, start, end);
+            return;
+         }
+
+         int cost = parseCount(fieldStart[2], fieldEnd[2]);
+         int quantity = cost < 0 ? -1 : parseCount(fieldStart[3], fieldEnd[3]);
+         if (cost < 0) {
+            error(LoadError.Kind.INVALID_COST, start, end);
+         } else if (quantity < 0) {
+            error(LoadError.Kind.INVALID_QUANTITY, start, end);
+         } else {
+            if (count == codes.length) {
+               grow();
+            }
+            codes[count] = text(fieldStart[0], fieldEnd[0]);
+            descriptions[count] = text(fieldStart[1], fieldEnd[1]);
+            costs[count] = cost;
+            quantities[count] = quantity;
+            count++;
+         }
+      }
+
+      /**
+       * Parse a decimal integer the way Integer.parseInt does.
+       *
+       * @return the value, or -1 if it is not an integer (or is negative)
+       */
+      private int parseCount(int start, int end) {
+         if (start == end) {
+            return -1;
+         }
+         boolean negative = false;
+         int i = start;
+         byte first = buffer.get(i);
+         if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+            if (i == end) {
+               return -1;
+            }
+         }
+         long value = 0;
+         for (; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+               return -1;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+               return -1;
+            }
+         }
+         if (negative) {
+            return value == 0 ? 0 : -1;
+         }
+         return value > Integer.MAX_VALUE ? -1 : (int) value;
+      }
+
+      private String text(int start, int end) {
+         byte[] bytes = new byte[end - start];
+         for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+         }
+         return new String(bytes, StandardCharsets.UTF_8);
+      }
+
+      private void error(LoadError.Kind kind, int start, int end) {
+         errorCount++;
+         if (errors.size() < MAX_ERRORS) {
+            errors.add(new LoadError(lines, kind, text(start, end)));
+         }
+      }
+
+      private void grow() {
+         int size = codes.length * 2;
+         codes = Arrays.copyOf(codes, size);
+         descriptions = Arrays.copyOf(descriptions, size);
+         costs = Arrays.copyOf(costs, size);
+         quantities = Arrays.copyOf(quantities, size);
+      }
+   }
+
+   /**
+    * One invalid line of the file.
+    */
+   static class LoadError {
+      enum Kind {
+         INVALID_LINE("Invalid line"), INVALID_COST("Invalid cost"), INVALID_QUANTITY("Invalid quantity");
+
+         private final String message;
+
+         Kind(String message) {
+            this.message = message;
+         }
+      }
+
+      final long line;
+      final Kind kind;
+      final String text;
+
+      LoadError(long line, Kind kind, String text) {
+         this.line = line;
+         this.kind = kind;
+         this.text = text;
+      }
+
+      @Override
+      public String toString() {
+         return "Line " + line + ": " + kind.message + ": " + text;
+      }
+   }
+
+   /**
+    * The errors found loading a file. Only the first MAX_ERRORS are kept;
+    * the rest are counted.
+    */
+   static class LoadReport {
+      private final ArrayList<LoadError> errors = new ArrayList<>();
+      private long errorCount;
+      private String failure;
+
+      void add(LoadError error) {
+         errorCount++;
+         if (errors.size() < MAX_ERRORS) {
+            errors.add(error);
+         }
+      }
+
+      //count errors whose details were not kept
+      void skipped(long count) {
+         errorCount += count;
+      }
+
+      void failed(String message) {
+         failure = message;
+      }
+
+      /**
+       * @return the errors kept, in line order
+       */
+      List<LoadError> getErrors() {
+         return errors;
+      }
+
+      /**
+       * @return the number of invalid lines
+       */
+      long getErrorCount() {
+         return errorCount;
+      }
+
+      /**
+       * @return true if every line was loaded
+       */
+      boolean isEmpty() {
+         return errorCount == 0 && failure == null;
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder result = new StringBuilder();
+         for (LoadError error : errors) {
+            result.append(error).append('\n');
+         }
+         if (errorCount > errors.size()) {
+            result.append("... and ").append(errorCount - errors.size()).append(" more invalid lines\n");
+         }
+         if (failure != null) {
+            result.append(failure);
+         }
+         return result.toString();
+      }
+   }
+}
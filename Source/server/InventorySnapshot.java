@@ -0,0 +1,414 @@
+/**
+ * Point-in-time binary snapshots of the server: every item with its stock
+ * and backorder, every transaction with its items, and the statistics and
+ * sales analytics counted so far, so a restart need not count them again
+ * from the transactions. A snapshot also records how far into the journal
+ * it reaches, so a restart loads the newest snapshot and only replays the
+ * journal written after it, and how much of the archive it relies on.
+ *
+ * Layout (big-endian):
+ *
+ *    magic (int) | version (int) | journal offset (long) | next transaction ID (int)
+ *    change sequence (long) | archive end (long)
+ *    counter count (int), then the counters (long each; see ServerStatistics)
+ *    item count (int), then per item:
+ *       code | description | cost (int) | in stock (int) | backorder (int)
+ *    transaction count (int), then per transaction:
+ *       ID (int) | type (byte) | time (long) | client (int) | flags (byte)
+ *       basket discount (long)
+ *       line count (int), then per line: code | quantity (int) | discount (long)
+ *    sales count (int), then per item and hour:
+ *       code | hour (long) | units (long) | revenue (long)
+ *
+ * Strings are a length (int) followed by UTF-8 bytes. Snapshots are read
+ * through memory-mapped windows of the file.
+ */
+package Source.server;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+class InventorySnapshot {
+   private static final int MAGIC = 0x504f5353;   // "POSS"
+   private static final int VERSION = 1;
+   private static final String PREFIX = "snapshot-";
+   private static final String SUFFIX = ".bin";
+   //transaction flags
+   private static final int COMPLETE = 1;
+   private static final int CANCELLED = 2;
+   //largest piece of the file mapped at once
+   private static final long WINDOW = 256L * 1024 * 1024;
+
+   //no instances
+   private InventorySnapshot() {}
+
+   /**
+    * Receives the contents of a snapshot as it is loaded.
+    */
+   interface Loader {
+      void counters(long[] counters);
+
+      void item(String code, String description, int cost, int inStock, int backorder);
+
+      void transaction(int id, POSServer.TransactionType type, long time, int client,
+                       boolean complete, boolean cancelled, String[] codes, int[] quantities,
+                       long[] discounts, long basketDiscount);
+
+      void sale(String code, long hour, long units, long revenue);
+   }
+
+   /**
+    * Find the newest snapshot in a directory.
+    *
+    * @param directory the data directory
+    * @return the snapshot reaching furthest into the journal, or null if none
+    */
+   static File latest(File directory) {
+      File latest = null;
+      long latestOffset = -1;
+      File[] files = directory.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            long offset = offsetOf(file);
+            if (offset > latestOffset) {
+               latest = file;
+               latestOffset = offset;
+            }
+         }
+      }
+      return latest;
+   }
+
+   /**
+    * Get the journal offset from a snapshot's file name.
+    *
+    * @param file the file
+    * @return the offset, or -1 if the file is not a snapshot
+    */
+   private static long offsetOf(File file) {
+      String name = file.getName();
+      if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+         return -1;
+      }
+      try {
+         return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+      } catch (NumberFormatException nfe) {
+         return -1;
+      }
+   }
+
+   /**
+    * The state of the server copied out for a snapshot, so the file can be
+    * written while the server goes on changing.
+    */
+   static final class Image {
+      private final long journalOffset;
+      private final int nextID;
+      private final long changes;
+      private final long archiveEnd;
+      private final long[] counters;
+      //the items
+      private final String[] codes;
+      private final String[] descriptions;
+      private final int[] costs;
+      private final int[] inStock;
+      private final int[] backorders;
+      //the transactions, and the lines of each
+      private final int[] ids;
+      private final byte[] types;
+      private final long[] times;
+      private final int[] clients;
+      private final byte[] flags;
+      private final long[] basketDiscounts;
+      private final TransactionUnit[][] lines;
+      private final SalesReport sales;
+
+      private Image(long journalOffset, int nextID, long changes, long archiveEnd, long[] counters,
+                    int itemCount, int transactionCount, SalesReport sales) {
+         this.journalOffset = journalOffset;
+         this.nextID = nextID;
+         this.changes = changes;
+         this.archiveEnd = archiveEnd;
+         this.counters = counters;
+         codes = new String[itemCount];
+         descriptions = new String[itemCount];
+         costs = new int[itemCount];
+         inStock = new int[itemCount];
+         backorders = new int[itemCount];
+         ids = new int[transactionCount];
+         types = new byte[transactionCount];
+         times = new long[transactionCount];
+         clients = new int[transactionCount];
+         flags = new byte[transactionCount];
+         basketDiscounts = new long[transactionCount];
+         lines = new TransactionUnit[transactionCount][];
+         this.sales = sales;
+      }
+   }
+
+   /**
+    * Copy out the state of the server for a snapshot. The caller makes
+    * sure nothing changes while this runs; copying is much quicker than
+    * writing, so changes wait only for this, and the copy is written with
+    * write() afterwards.
+    *
+    * @param journalOffset how far into the journal the state reaches
+    * @param nextID        the next transaction ID to be handed out
+    * @param changes       the sequence number of the newest item change
+    * @param archiveEnd    the end of the archive records the state relies on
+    * @param counters      the statistics counters (see ServerStatistics.counters)
+    * @param items         all the items
+    * @param transactions  all the transactions
+    * @param sales         the sales by item and hour (see SalesAnalytics.sales)
+    * @return the copy
+    */
+   static Image capture(long journalOffset, int nextID, long changes, long archiveEnd, long[] counters,
+                        Collection<Item> items, Collection<Transaction> transactions, SalesReport sales) {
+      Image image = new Image(journalOffset, nextID, changes, archiveEnd, counters,
+            items.size(), transactions.size(), sales);
+      int i = 0;
+      for (Item item : items) {
+         image.codes[i] = item.getCode();
+         image.descriptions[i] = item.getDescription();
+         image.costs[i] = item.getCost();
+         image.inStock[i] = item.getInStock();
+         image.backorders[i] = item.getBackorder();
+         i++;
+      }
+      i = 0;
+      for (Transaction t : transactions) {
+         image.ids[i] = Integer.parseInt(t.getID());
+         image.types[i] = (byte) t.getType().ordinal();
+         image.times[i] = t.getTime();
+         image.clients[i] = t.getClientID();
+         image.flags[i] = (byte) ((t.isComplete() ? COMPLETE : 0) | (t.isCancelled() ? CANCELLED : 0));
+         image.basketDiscounts[i] = t.basketDiscount();
+         image.lines[i] = t.getUnits().toArray(new TransactionUnit[0]);
+         i++;
+      }
+      return image;
+   }
+
+   /**
+    * Write a snapshot to a temporary file next to where it will go. The
+    * file is published with publish() once the journal is durable up to
+    * the image's offset.
+    *
+    * @param directory the data directory
+    * @param image     the state copied out by capture()
+    * @return the temporary file
+    * @throws IOException if the file cannot be written
+    */
+   static File write(File directory, Image image) throws IOException {
+      File temp = new File(directory, PREFIX + image.journalOffset + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 256 * 1024))) {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeLong(image.journalOffset);
+         out.writeInt(image.nextID);
+         out.writeLong(image.changes);
+         out.writeLong(image.archiveEnd);
+         out.writeInt(image.counters.length);
+         for (long counter : image.counters) {
+            out.writeLong(counter);
+         }
+
+         out.writeInt(image.codes.length);
+         for (int i = 0; i < image.codes.length; i++) {
+            writeString(out, image.codes[i]);
+            writeString(out, image.descriptions[i]);
+            out.writeInt(image.costs[i]);
+            out.writeInt(image.inStock[i]);
+            out.writeInt(image.backorders[i]);
+         }
+
+         out.writeInt(image.ids.length);
+         for (int i = 0; i < image.ids.length; i++) {
+            out.writeInt(image.ids[i]);
+            out.writeByte(image.types[i]);
+            out.writeLong(image.times[i]);
+            out.writeInt(image.clients[i]);
+            out.writeByte(image.flags[i]);
+            out.writeLong(image.basketDiscounts[i]);
+            out.writeInt(image.lines[i].length);
+            for (TransactionUnit unit : image.lines[i]) {
+               writeString(out, unit.getItem().getCode());
+               out.writeInt(unit.getQuantity());
+               out.writeLong(unit.getDiscount());
+            }
+         }
+
+         SalesReport sales = image.sales;
+         out.writeInt(sales.size());
+         for (int row = 0; row < sales.size(); row++) {
+            writeString(out, sales.getCode(row));
+            out.writeLong(sales.getHour(row));
+            out.writeLong(sales.getUnits(row));
+            out.writeLong(sales.getRevenue(row));
+         }
+      }
+      return temp;
+   }
+
+   /**
+    * Make a written snapshot the newest one: sync it, rename it into place
+    * and delete the older snapshots.
+    *
+    * @param temp the file returned by write()
+    * @throws IOException if the file cannot be synced or renamed
+    */
+   static void publish(File temp) throws IOException {
+      try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+         channel.force(true);
+      }
+      String name = temp.getName();
+      File target = new File(temp.getParentFile(), name.substring(0, name.length() - ".tmp".length()) + SUFFIX);
+      Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+      File[] files = target.getParentFile().listFiles();
+      if (files != null) {
+         for (File file : files) {
+            long offset = offsetOf(file);
+            if (offset >= 0 && offset < offsetOf(target)) {
+               file.delete();
+            }
+         }
+      }
+   }
+
+   /**
+    * Load a snapshot.
+    *
+    * @param file   the snapshot file
+    * @param loader receives the counters, the items, the transactions, then the sales
+    * @return the next transaction ID, the journal offset, the change
+    *         sequence and the archive end, as {nextID, offset, changes, archiveEnd}
+    * @throws IOException if the file cannot be read or is not a snapshot
+    */
+   static long[] load(File file, Loader loader) throws IOException {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+         Reader in = new Reader(channel);
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException(file + " is not a snapshot");
+         }
+         long offset = in.readLong();
+         int nextID = in.readInt();
+         long changes = in.readLong();
+         long archiveEnd = in.readLong();
+         long[] counters = new long[in.readInt()];
+         for (int i = 0; i < counters.length; i++) {
+            counters[i] = in.readLong();
+         }
+         loader.counters(counters);
+
+         int itemCount = in.readInt();
+         for (int i = 0; i < itemCount; i++) {
+            String code = in.readString();
+            String description = in.readString();
+            int cost = in.readInt();
+            int inStock = in.readInt();
+            loader.item(code, description, cost, inStock, in.readInt());
+         }
+
+         POSServer.TransactionType[] types = POSServer.TransactionType.values();
+         int transactionCount = in.readInt();
+         for (int i = 0; i < transactionCount; i++) {
+            int id = in.readInt();
+            POSServer.TransactionType type = types[in.readByte()];
+            long time = in.readLong();
+            int client = in.readInt();
+            int flags = in.readByte();
+            long basketDiscount = in.readLong();
+            int lines = in.readInt();
+            String[] codes = new String[lines];
+            int[] quantities = new int[lines];
+            long[] discounts = new long[lines];
+            for (int j = 0; j < lines; j++) {
+               codes[j] = in.readString();
+               quantities[j] = in.readInt();
+               discounts[j] = in.readLong();
+            }
+            loader.transaction(id, type, time, client, (flags & COMPLETE) != 0, (flags & CANCELLED) != 0,
+                  codes, quantities, discounts, basketDiscount);
+         }
+
+         int salesCount = in.readInt();
+         for (int i = 0; i < salesCount; i++) {
+            String code = in.readString();
+            long hour = in.readLong();
+            long units = in.readLong();
+            loader.sale(code, hour, units, in.readLong());
+         }
+         return new long[] {nextID, offset, changes, archiveEnd};
+      }
+   }
+
+   private static void writeString(DataOutputStream out, String s) throws IOException {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   /**
+    * Reads a file through a memory-mapped window that moves along as the
+    * file is read, so files of any size can be loaded.
+    */
+   private static class Reader {
+      private final FileChannel channel;
+      private final long size;
+      //file position of the start of the window
+      private long base;
+      private MappedByteBuffer window;
+
+      Reader(FileChannel channel) throws IOException {
+         this.channel = channel;
+         this.size = channel.size();
+         map(0);
+      }
+
+      private void map(long position) throws IOException {
+         base = position;
+         window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+      }
+
+      //make sure the next n bytes are in the window
+      private void ensure(int n) throws IOException {
+         if (window.remaining() < n) {
+            long position = base + window.position();
+            if (size - position < n) {
+               throw new EOFException("Snapshot is truncated");
+            }
+            map(position);
+         }
+      }
+
+      byte readByte() throws IOException {
+         ensure(1);
+         return window.get();
+      }
+
+      int readInt() throws IOException {
+         ensure(4);
+         return window.getInt();
+      }
+
+      long readLong() throws IOException {
+         ensure(8);
+         return window.getLong();
+      }
+
+      String readString() throws IOException {
+         int length = readInt();
+         ensure(length);
+         byte[] bytes = new byte[length];
+         window.get(bytes);
+         return new String(bytes, StandardCharsets.UTF_8);
+      }
+   }
+}
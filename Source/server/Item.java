@@ -1,25 +1,22 @@
 /**
 
  * A class representing an item in the inventory. Includes the item
- * code, its description, and its cost.
+ * code, its description, and its cost. The stock and backorder quantities
+ * only change while the item's lock (see ItemLocks) is held. Where the
+ * values are kept is up to the item store that made the item (see
+ * ItemStore).
  */
 
 package Source.server;
 import java.util.Comparator;
 
-class Item {
+abstract class Item {
 
-   private String code; //item code
-   private String description;   //item description
-   private int cost; //cost of the unit to purchase
-   private int inStock; //in stock availability of the item
-   private int backorder;  //backorder quantity of this item
+   private final int id;   //dense item ID, assigned when the item is loaded
+   private ItemListener listener;   //told about stock and backorder changes
 
-   public Item(String code, String description, int cost, int quantity) {
-      this.code = code;
-      this.description = description;
-      this.cost = cost;
-      this.inStock = quantity;
+   protected Item(int id) {
+      this.id = id;
    }
 
    /**
@@ -29,13 +26,39 @@ class Item {
     * @return true if the code matches this item; false otherwise
     */
    public boolean matchCode(String code) {
-      return code.equals(this.code);
+      return compareCode(code) == 0;
    }
 
+   /**
+    * Lock the item's stock and backorder quantities. Use this around any
+    * check of a quantity that is followed by a change to it.
+    */
+   public void lock() {
+      ItemLocks.forItem(this).lock();
+   }
+
+   /**
+    * Release the lock taken by lock().
+    */
+   public void unlock() {
+      ItemLocks.forItem(this).unlock();
+   }
+
+   /**
+    * reduce amount in stock
+    * @param amount to be reduced
+    */
    public void reduceInStock(int amount) {
-      assert amount <= inStock;
-      assert amount >= 0;
-      inStock -= amount;
+      lock();
+      try {
+         assert amount <= getInStock();
+         assert amount >= 0;
+         changing(POSServer.ItemField.QUANTITY);
+         setInStock(getInStock() - amount);
+         changed(POSServer.ItemField.QUANTITY);
+      } finally {
+         unlock();
+      }
    }
 
    /**
@@ -43,8 +66,15 @@ class Item {
     * @param amount to be increased
     */
    public void increaseInStock(int amount){
-      assert amount>=0;
-      inStock += amount;
+      lock();
+      try {
+         assert amount>=0;
+         changing(POSServer.ItemField.QUANTITY);
+         setInStock(getInStock() + amount);
+         changed(POSServer.ItemField.QUANTITY);
+      } finally {
+         unlock();
+      }
    }
 
    /**
@@ -52,9 +82,16 @@ class Item {
     * @param amount to be increased
     */
    public void increaseBackorder(int amount) {
-      assert inStock == 0;
-      assert amount >= 0;
-      backorder += amount;
+      lock();
+      try {
+         assert getInStock() == 0;
+         assert amount >= 0;
+         changing(POSServer.ItemField.BACKORDER_QUANTITY);
+         setBackorder(getBackorder() + amount);
+         changed(POSServer.ItemField.BACKORDER_QUANTITY);
+      } finally {
+         unlock();
+      }
    }
 
    /**
@@ -62,45 +99,83 @@ class Item {
     * @param amount  to be reduced
     */
    public void reduceBackorder(int amount){
-      assert amount>=0;
-      assert amount<=backorder;
-      backorder -= amount;
+      lock();
+      try {
+         assert amount>=0;
+         assert amount<=getBackorder();
+         changing(POSServer.ItemField.BACKORDER_QUANTITY);
+         setBackorder(getBackorder() - amount);
+         changed(POSServer.ItemField.BACKORDER_QUANTITY);
+      } finally {
+         unlock();
+      }
    }
 
    /**
-    * @return item code
+    * set the listener told about stock and backorder changes
+    * @param listener the listener, or null for none
     */
-   public String getCode() {
-      return code;
+   public void setListener(ItemListener listener) {
+      this.listener = listener;
+   }
+
+   //tell the listener a field is about to change
+   private void changing(POSServer.ItemField field) {
+      if (listener != null) {
+         listener.itemChanging(this, field);
+      }
+   }
+
+   //tell the listener a field has changed
+   private void changed(POSServer.ItemField field) {
+      if (listener != null) {
+         listener.itemChanged(this, field);
+      }
    }
 
    /**
-    * @return get cost
+    * @return item ID
     */
-   public int getCost() {
-      return cost;
+   public int getID() {
+      return id;
    }
 
+   /**
+    * @return item code
+    */
+   public abstract String getCode();
+
+   /**
+    * @return get cost
+    */
+   public abstract int getCost();
+
    /**
     * @return in stock quantity
     */
-   public int getInStock() {
-      return inStock;
-   }
+   public abstract int getInStock();
 
    /**
     * @return backorder quanitity
     */
-   public int getBackorder() {
-      return backorder;
-   }
+   public abstract int getBackorder();
 
    /**
     * @return description of the item
     */
-   public String getDescription() {
-      return description;
-   }
+   public abstract String getDescription();
+
+   /**
+    * set the in stock quantity (the item is locked)
+    * @param inStock the new quantity
+    */
+   protected abstract void setInStock(int inStock);
+
+   /**
+    * set the backorder quantity (the item is locked)
+    * @param backorder the new quantity
+    */
+   protected abstract void setBackorder(int backorder);
 
    /**
     * checks if a pattern is matched with this item
@@ -108,18 +183,64 @@ class Item {
     * @return  true if macthed, false otherwise
     */
    public boolean matches(String pattern) {
-      return code.toLowerCase().contains(pattern.toLowerCase()) || description.toLowerCase().contains(pattern.toLowerCase());
+      return matchesLowerCase(pattern.toLowerCase());
+   }
+
+   /**
+    * checks if an already lower-cased pattern is matched with this item
+    * @param pattern to be matched, in lower case
+    * @return  true if matched, false otherwise
+    */
+   public abstract boolean matchesLowerCase(String pattern);
+
+   /**
+    * @return lower-cased item code
+    */
+   public abstract String getSearchCode();
+
+   /**
+    * @return lower-cased description of the item
+    */
+   public abstract String getSearchDescription();
+
+   /**
+    * compare the codes of two items, as Strings compare
+    * @param other the other item
+    * @return negative, zero or positive as this code is less, equal or greater
+    */
+   public int compareCode(Item other) {
+      return getCode().compareTo(other.getCode());
+   }
+
+   /**
+    * compare this item's code with a code, as Strings compare
+    * @param code the code
+    * @return negative, zero or positive as this code is less, equal or greater
+    */
+   public int compareCode(String code) {
+      return getCode().compareTo(code);
+   }
+
+   /**
+    * compare the descriptions of two items, as Strings compare
+    * @param other the other item
+    * @return negative, zero or positive as this description is less, equal or greater
+    */
+   public int compareDescription(Item other) {
+      return getDescription().compareTo(other.getDescription());
    }
 
    @Override
    public String toString() {
-      return "Code: " + code + " description: " + description + " cost: $" + (cost / 100) + "." + (cost % 100 < 10 ? "0" : "") + (cost % 100) + " (" + inStock + ")";
+      int cost = getCost();
+      return "Code: " + getCode() + " description: " + getDescription() + " cost: $" + (cost / 100) + "." + (cost % 100 < 10 ? "0" : "") + (cost % 100) + " (" + getInStock() + ")";
    }
 
    /**
-    * get the iterator with matched pattern
+    * get the comparator for the given order. Items that are equal on the
+    * field are ordered by code, so every comparator is a total order.
     * @param order the order in which we will sort
-    * @return iterator
+    * @return comparator
     */
    public static Comparator<Item> getComparator(POSServer.ItemField order) {
       // This returns one of four comparators. To prevent class explosion,
@@ -129,31 +250,35 @@ class Item {
       case CODE:
          return new Comparator<Item>() {
             public int compare(Item a, Item b) {
-               return a.code.compareTo(b.code);
+               return a.compareCode(b);
             }
          };
       case COST:
          return new Comparator<Item>() {
             public int compare(Item a, Item b) {
-               return a.cost - b.cost;
+               int result = Integer.compare(a.getCost(), b.getCost());
+               return result != 0 ? result : a.compareCode(b);
             }
          };
       case DESCRIPTION:
          return new Comparator<Item>() {
             public int compare(Item a, Item b) {
-               return a.description.compareTo(b.description);
+               int result = a.compareDescription(b);
+               return result != 0 ? result : a.compareCode(b);
             }
          };
       case QUANTITY:
          return new Comparator<Item>() {
             public int compare(Item a, Item b) {
-               return a.inStock - b.inStock;
+               int result = Integer.compare(a.getInStock(), b.getInStock());
+               return result != 0 ? result : a.compareCode(b);
             }
          };
       case BACKORDER_QUANTITY:
          return new Comparator<Item>() {
             public int compare(Item a, Item b) {
-               return a.backorder - b.backorder;
+               int result = Integer.compare(a.getBackorder(), b.getBackorder());
+               return result != 0 ? result : a.compareCode(b);
             }
          };
       }
@@ -0,0 +1,101 @@
+/**
+ * A run of item changes from the server's change feed, in the order they
+ * happened. Each change gives an item's code and its stock and backorder
+ * quantities just after the change, and has a sequence number one higher
+ * than the change before it.
+ */
+package Source.server;
+
+public final class ItemChanges {
+   private final long firstSequence;
+   private final long latestSequence;
+   private final boolean missed;
+   private final String[] codes;
+   private final int[] inStock;
+   private final int[] backorders;
+
+   /**
+    * Make a run of changes. Used by the server, and to rebuild a run that
+    * came over the network.
+    *
+    * @param firstSequence  the sequence number of the first change
+    * @param latestSequence the sequence number of the newest change in the feed
+    * @param missed         true if changes were dropped before the first one
+    * @param codes          item codes
+    * @param inStock        in stock quantities
+    * @param backorders     backorder quantities
+    */
+   public ItemChanges(long firstSequence, long latestSequence, boolean missed,
+                      String[] codes, int[] inStock, int[] backorders) {
+      this.firstSequence = firstSequence;
+      this.latestSequence = latestSequence;
+      this.missed = missed;
+      this.codes = codes;
+      this.inStock = inStock;
+      this.backorders = backorders;
+   }
+
+   /**
+    * @return the number of changes
+    */
+   public int size() {
+      return codes.length;
+   }
+
+   /**
+    * @param i the change
+    * @return its sequence number
+    */
+   public long getSequence(int i) {
+      return firstSequence + i;
+   }
+
+   /**
+    * @return the sequence number to ask for changes after next time: that
+    *         of the last change here, or the one asked for if there are none
+    */
+   public long getLastSequence() {
+      return firstSequence + codes.length - 1;
+   }
+
+   /**
+    * @return the sequence number of the newest change the feed holds
+    */
+   public long getLatestSequence() {
+      return latestSequence;
+   }
+
+   /**
+    * @return true if the changes asked for were too old to still be held,
+    *         or the sequence number asked from is newer than the feed (the
+    *         server lost its state), so some were skipped; whatever depends
+    *         on them must be reloaded
+    */
+   public boolean isMissed() {
+      return missed;
+   }
+
+   /**
+    * @param i the change
+    * @return item code
+    */
+   public String getCode(int i) {
+      return codes[i];
+   }
+
+   /**
+    * @param i the change
+    * @return in stock quantity after the change
+    */
+   public int getInStock(int i) {
+      return inStock[i];
+   }
+
+   /**
+    * @param i the change
+    * @return backorder quantity after the change
+    */
+   public int getBackorder(int i) {
+      return backorders[i];
+   }
+}
@@ -1,63 +1,141 @@
 /**
- * An iterator used on the server to traverse the list of inventory items.
- * Keeps a local copy of the list (because it specifies limited matches and ordering).
+ * A search cursor used on the server to traverse the items matching a search.
+ * A large match set is kept as a bit per item ID and read by walking the
+ * shared sorted index from the last item handed out; a small one is cheaper
+ * to sort once and keep as a short array.
  */
 package Source.server;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 class ItemIterator {
-   private static int lastID = 0;
-   
+   private static final AtomicInteger lastID = new AtomicInteger();
+
    private int id;
-   private int position;
-   private Comparator<Item> comp;
-   private ArrayList<Item> items;
-   
-   public ItemIterator(Comparator<Item> comp) {
-      lastID++;
-      id = lastID;
-
-      position = -1;
-      this.comp = comp;
-      items = new ArrayList<Item>(); 
-   }
-   
+   private int client;
+   private POSServer.ItemField order;
+   private SortedIndexes indexes;
+   //walking: matches not handed out yet, and the last entry handed out
+   private BitSet remaining;
+   private int remainingCount;
+   private SortedIndexes.Entry position;
+   //sorted: the matches in order, and how many have been handed out
+   private Item[] sorted;
+   private int taken;
+   private Item current;
+   //System.nanoTime() of the last use
+   private volatile long lastUsed;
+
    /**
-    * Add an item to the list being iterated over. Ordered by the comparator.
-    * 
-    * @param item the item to add
+    * @param client    the client that started the search
+    * @param matches   the matched items
+    * @param order     the order they are handed out in
+    * @param indexes   the sorted indexes to walk
+    * @param itemCount one more than the largest item ID
     */
-   public void add(Item item) {
-      // Ordered insertion
-      for (int i = 0; i < items.size(); i++)
-         if (comp.compare(items.get(i), item) > 0) {
-            items.add(i, item);
-            return;
+   public ItemIterator(int client, List<Item> matches, POSServer.ItemField order,
+                       SortedIndexes indexes, int itemCount) {
+      id = lastID.incrementAndGet();
+      this.client = client;
+      this.order = order;
+      this.indexes = indexes;
+      lastUsed = System.nanoTime();
+
+      int size = matches.size();
+      if (size > 0 && (long) size * (32 - Integer.numberOfLeadingZeros(size)) >= itemCount) {
+         remaining = new BitSet(itemCount);
+         for (Item item : matches) {
+            remaining.set(item.getID());
          }
-      items.add(item);
+         remainingCount = size;
+      } else {
+         sorted = indexes.sort(matches, order);
+      }
    }
 
-   public boolean hasNext() {
-      return position < (items.size() - 1);
+   public synchronized boolean hasNext() {
+      return sorted != null ? taken < sorted.length : remainingCount > 0;
    }
-   
-   public Item next() {
-      if (position >= items.size() - 1) {
-         return null;
-      }
-      position++;
-      return items.get(position);
+
+   public synchronized Item next() {
+      List<Item> page = next(1);
+      return page.isEmpty() ? null : page.get(0);
    }
-   
-   public Item current() {
-      if (position >= items.size() || position < 0) {
-         return null;
+
+   /**
+    * Move past up to count items at once.
+    *
+    * @param count the most items to take
+    * @return the items moved past, in order; the last one becomes current
+    */
+   public synchronized List<Item> next(int count) {
+      lastUsed = System.nanoTime();
+      List<Item> page;
+      if (sorted != null) {
+         int end = (int) Math.min(sorted.length, (long) taken + count);
+         page = Arrays.asList(sorted).subList(taken, end);
+         taken = end;
+      } else {
+         page = new ArrayList<>(Math.min(count, remainingCount));
+         position = indexes.walk(order, position, remaining, count, page);
+         if (page.size() < count && remainingCount > page.size()) {
+            // items that moved behind the position are found by walking again
+            // from the start; items gone from the inventory are never found
+            position = indexes.walk(order, null, remaining, count - page.size(), page);
+         }
+         if (page.size() < count && remainingCount > page.size()) {
+            // an item being moved in the index right then was missed by both
+            // walks; the code order never moves an item, so take whatever is
+            // left from it, out of order rather than not at all
+            indexes.walk(POSServer.ItemField.CODE, null, remaining, count - page.size(), page);
+         }
+         remainingCount -= page.size();
+         if (page.size() < count) {
+            // nothing left that can still be found
+            remaining.clear();
+            remainingCount = 0;
+         }
       }
-      return items.get(position);
+      if (!page.isEmpty()) {
+         current = page.get(page.size() - 1);
+      }
+      return page;
+   }
+
+   public synchronized Item current() {
+      return current;
    }
-   
+
    public String getID() {
       return "" + id;
    }
+
+   /**
+    * @return the client that started the search
+    */
+   public int getClient() {
+      return client;
+   }
+
+   /**
+    * @return System.nanoTime() of the last use
+    */
+   public long getLastUsed() {
+      return lastUsed;
+   }
+
+   /**
+    * @return roughly how many bytes the cursor holds on to
+    */
+   public synchronized long memory() {
+      long bytes = 64;
+      if (remaining != null) {
+         bytes += remaining.size() / 8;
+      }
+      if (sorted != null) {
+         bytes += 16 + 8L * sorted.length;
+      }
+      return bytes;
+   }
 }
@@ -0,0 +1,23 @@
+/**
+ * Receives notice of changes to an item's stock or backorder quantity, so
+ * that structures ordered by those values can follow them.
+ */
+package Source.server;
+
+interface ItemListener {
+   /**
+    * Called just before a field of the item changes.
+    *
+    * @param item  the item
+    * @param field the field about to change (QUANTITY or BACKORDER_QUANTITY)
+    */
+   void itemChanging(Item item, POSServer.ItemField field);
+
+   /**
+    * Called just after a field of the item changed.
+    *
+    * @param item  the item
+    * @param field the field that changed (QUANTITY or BACKORDER_QUANTITY)
+    */
+   void itemChanged(Item item, POSServer.ItemField field);
+}
@@ -0,0 +1,86 @@
+/**
+ * Striped locks guarding the stock and backorder quantities of the items.
+ * An item's lock is picked by its ID, so the whole inventory shares a fixed
+ * set of locks and lanes working on different items rarely wait on each other.
+ * A transaction that changes several items holds all their stripes at once
+ * (see lockAll), so it checks and changes them as one step.
+ */
+package Source.server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class ItemLocks {
+   //number of stripes, a power of two
+   private static final int STRIPES = 1024;
+   private static final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+   static {
+      for (int i = 0; i < STRIPES; i++) {
+         locks[i] = new ReentrantLock();
+      }
+   }
+
+   //no instances
+   private ItemLocks() {}
+
+   /**
+    * Get the stripe number of an item.
+    *
+    * @param item the item
+    * @return the index of the lock guarding the item
+    */
+   static int stripe(Item item) {
+      return item.getID() & (STRIPES - 1);
+   }
+
+   /**
+    * Get the lock guarding an item.
+    *
+    * @param item the item
+    * @return the item's lock
+    */
+   static ReentrantLock forItem(Item item) {
+      return locks[stripe(item)];
+   }
+
+   /**
+    * Lock the stripes of many items at once. The stripes are taken in
+    * increasing order, so lanes locking overlapping sets of items can
+    * never deadlock, and each stripe is taken once however many of the
+    * items share it.
+    *
+    * @param items the items (the first count are locked)
+    * @param count the number of items
+    * @return the stripes locked, to hand to unlockAll()
+    */
+   static int[] lockAll(Item[] items, int count) {
+      int[] stripes = new int[count];
+      for (int i = 0; i < count; i++) {
+         stripes[i] = stripe(items[i]);
+      }
+      Arrays.sort(stripes);
+      int distinct = 0;
+      for (int i = 0; i < count; i++) {
+         if (distinct == 0 || stripes[i] != stripes[distinct - 1]) {
+            stripes[distinct++] = stripes[i];
+         }
+      }
+      stripes = Arrays.copyOf(stripes, distinct);
+      for (int stripe : stripes) {
+         locks[stripe].lock();
+      }
+      return stripes;
+   }
+
+   /**
+    * Release the stripes taken by lockAll().
+    *
+    * @param stripes the stripes lockAll() returned
+    */
+   static void unlockAll(int[] stripes) {
+      for (int i = stripes.length - 1; i >= 0; i--) {
+         locks[stripes[i]].unlock();
+      }
+   }
+}
@@ -0,0 +1,49 @@
+/**
+ * Where the server keeps its inventory: makes the items, and finds them by
+ * code and in code order. Items are only added while the server starts,
+ * before it is shared between threads.
+ */
+package Source.server;
+
+import java.util.Collection;
+
+interface ItemStore {
+   /**
+    * Make an item kept by this store. It is not in the store until put().
+    *
+    * @param id          the item ID (dense, handed out in increasing order)
+    * @param code        item code
+    * @param description item description
+    * @param cost        cost of the unit
+    * @param inStock     in stock quantity
+    * @param backorder   backorder quantity
+    * @return the item
+    */
+   Item newItem(int id, String code, String description, int cost, int inStock, int backorder);
+
+   /**
+    * Put an item made by newItem() in the store, replacing any item with
+    * the same code.
+    *
+    * @param item the item
+    * @return the item replaced, or null if there was none
+    */
+   Item put(Item item);
+
+   /**
+    * @param code an item code
+    * @return the item with that code, or null if there is none
+    */
+   Item get(String code);
+
+   /**
+    * @return every item, in code order
+    */
+   Collection<Item> values();
+
+   /**
+    * @param code an item code (which need not be in the store)
+    * @return the items whose codes come after it, in code order
+    */
+   Collection<Item> tail(String code);
+}
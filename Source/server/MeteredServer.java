@@ -0,0 +1,238 @@
+/**
+ * A POSServer that passes every call on to another and times it: each
+ * method has a timer of its own in a registry, named after the method,
+ * counting its calls, their latencies and the ones that failed by error
+ * message. A call fails when it returns an error message (adding to,
+ * completing or cancelling a transaction) or null where a value was asked
+ * for. Gauges read the inventory size, the open transactions, the open
+ * search cursors and the total backordered from the server when reported.
+ *
+ * Wrapping a server in this process also times the waits inside its
+ * operations (see ServerTimers):
+ *
+ *    MetricRegistry registry = new MetricRegistry();
+ *    POSServer server = new MeteredServer(ReadServer.newServer(file), registry);
+ *    registry.registerMBeans("Source.server");
+ */
+package Source.server;
+
+import Source.metrics.Gauge;
+import Source.metrics.LatencyTimer;
+import Source.metrics.MetricRegistry;
+
+public class MeteredServer implements POSServer {
+   //the error recorded for a call that returned null
+   private static final String NO_RESULT = "no result";
+
+   private final POSServer server;
+   private final LatencyTimer createTransaction;
+   private final LatencyTimer addItemToTransaction;
+   private final LatencyTimer completeTransaction;
+   private final LatencyTimer queryTransaction;
+   private final LatencyTimer describeTransaction;
+   private final LatencyTimer queryServer;
+   private final LatencyTimer describeInventory;
+   private final LatencyTimer search;
+   private final LatencyTimer next;
+   private final LatencyTimer queryMatch;
+   private final LatencyTimer searchPage;
+   private final LatencyTimer nextPage;
+   private final LatencyTimer changesSince;
+   private final LatencyTimer topSellers;
+   private final LatencyTimer itemSales;
+   private final LatencyTimer cancelTransaction;
+
+   /**
+    * @param server   the server the calls are passed on to
+    * @param registry where the timers and gauges are registered
+    */
+   public MeteredServer(POSServer server, MetricRegistry registry) {
+      this.server = server;
+      createTransaction = registry.timer("createTransaction");
+      addItemToTransaction = registry.timer("addItemToTransaction");
+      completeTransaction = registry.timer("completeTransaction");
+      queryTransaction = registry.timer("queryTransaction");
+      describeTransaction = registry.timer("toString(id)");
+      queryServer = registry.timer("queryServer");
+      describeInventory = registry.timer("toString");
+      search = registry.timer("search");
+      next = registry.timer("next");
+      queryMatch = registry.timer("queryMatch");
+      searchPage = registry.timer("searchPage");
+      nextPage = registry.timer("nextPage");
+      changesSince = registry.timer("changesSince");
+      topSellers = registry.timer("topSellers");
+      itemSales = registry.timer("itemSales");
+      cancelTransaction = registry.timer("cancelTransaction");
+
+      registry.gauge("inventory", gauge(ServerQuery.INVENTORY_COUNT));
+      registry.gauge("transactionsInProgress", gauge(ServerQuery.TRANSACTION_IN_PROGRESS_COUNT));
+      registry.gauge("searchCursors", gauge(ServerQuery.SEARCH_CURSOR_COUNT));
+      registry.gauge("backorderTotal", gauge(ServerQuery.BACKORDER_TOTAL));
+      if (server instanceof Server) {
+         ((Server) server).instrument(registry);
+      }
+   }
+
+   /**
+    * @return the server the calls are passed on to
+    */
+   public POSServer getServer() {
+      return server;
+   }
+
+   //reads a number from the wrapped server, without timing the read
+   private Gauge gauge(final ServerQuery query) {
+      return new Gauge() {
+         public long getValue() {
+            String value = server.queryServer(query);
+            return value == null ? -1 : Long.parseLong(value);
+         }
+      };
+   }
+
+   //records a call that returned a value, failing if it is null
+   private static void value(LatencyTimer timer, long start, Object result) {
+      timer.record(System.nanoTime() - start, result == null ? NO_RESULT : null);
+   }
+
+   @Override
+   public String createTransaction(TransactionType type, long time, int client) {
+      long start = System.nanoTime();
+      String result = server.createTransaction(type, time, client);
+      value(createTransaction, start, result);
+      return result;
+   }
+
+   @Override
+   public String addItemToTransaction(String id, String item, int quantity) {
+      long start = System.nanoTime();
+      String error = server.addItemToTransaction(id, item, quantity);
+      addItemToTransaction.record(System.nanoTime() - start, error);
+      return error;
+   }
+
+   @Override
+   public String completeTransaction(String id) {
+      long start = System.nanoTime();
+      String error = server.completeTransaction(id);
+      completeTransaction.record(System.nanoTime() - start, error);
+      return error;
+   }
+
+   @Override
+   public String queryTransaction(String id, TransactionQuery query) {
+      long start = System.nanoTime();
+      String result = server.queryTransaction(id, query);
+      value(queryTransaction, start, result);
+      return result;
+   }
+
+   @Override
+   public String toString(String id) {
+      long start = System.nanoTime();
+      String result = server.toString(id);
+      value(describeTransaction, start, result);
+      return result;
+   }
+
+   @Override
+   public String queryServer(ServerQuery query) {
+      long start = System.nanoTime();
+      String result = server.queryServer(query);
+      value(queryServer, start, result);
+      return result;
+   }
+
+   @Override
+   public String toString() {
+      long start = System.nanoTime();
+      String result = server.toString();
+      describeInventory.record(System.nanoTime() - start);
+      return result;
+   }
+
+   @Override
+   public String search(String pattern, ItemField order) {
+      long start = System.nanoTime();
+      String result = server.search(pattern, order);
+      value(search, start, result);
+      return result;
+   }
+
+   @Override
+   public String search(String pattern, ItemField order, int client) {
+      long start = System.nanoTime();
+      String result = server.search(pattern, order, client);
+      value(search, start, result);
+      return result;
+   }
+
+   @Override
+   public boolean next(String iID) {
+      long start = System.nanoTime();
+      boolean result = server.next(iID);
+      next.record(System.nanoTime() - start);
+      return result;
+   }
+
+   @Override
+   public String queryMatch(String iID, ItemField query) {
+      long start = System.nanoTime();
+      String result = server.queryMatch(iID, query);
+      value(queryMatch, start, result);
+      return result;
+   }
+
+   @Override
+   public SearchPage searchPage(String pattern, ItemField order, int client, int pageSize, ItemField... fields) {
+      long start = System.nanoTime();
+      SearchPage result = server.searchPage(pattern, order, client, pageSize, fields);
+      value(searchPage, start, result);
+      return result;
+   }
+
+   /**
+    * Pass on the call. A null result is not counted as failed, since it
+    * also means the search is finished.
+    */
+   @Override
+   public SearchPage nextPage(String continuation, int pageSize, ItemField... fields) {
+      long start = System.nanoTime();
+      SearchPage result = server.nextPage(continuation, pageSize, fields);
+      nextPage.record(System.nanoTime() - start);
+      return result;
+   }
+
+   @Override
+   public ItemChanges changesSince(long sequence, int max, long waitMillis) {
+      long start = System.nanoTime();
+      ItemChanges result = server.changesSince(sequence, max, waitMillis);
+      value(changesSince, start, result);
+      return result;
+   }
+
+   @Override
+   public SalesReport topSellers(long time, int count) {
+      long start = System.nanoTime();
+      SalesReport result = server.topSellers(time, count);
+      value(topSellers, start, result);
+      return result;
+   }
+
+   @Override
+   public SalesReport itemSales(String code) {
+      long start = System.nanoTime();
+      SalesReport result = server.itemSales(code);
+      value(itemSales, start, result);
+      return result;
+   }
+
+   @Override
+   public String cancelTransaction(String id, long time, int client) {
+      long start = System.nanoTime();
+      String error = server.cancelTransaction(id, time, client);
+      cancelTransaction.record(System.nanoTime() - start, error);
+      return error;
+   }
+}
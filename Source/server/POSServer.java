@@ -14,11 +14,15 @@ public interface POSServer {
    }
 
    enum TransactionQuery {
-      TYPE, ITEM_COUNT, TOTAL_QUANTITY, TOTAL_COST, IS_COMPLETE
+      TYPE, ITEM_COUNT, TOTAL_QUANTITY, TOTAL_COST, IS_COMPLETE, DISCOUNT, NET_COST
    }
 
    enum ServerQuery {
-      INVENTORY_COUNT, TRANSACTION_COMPLETED_COUNT, TRANSACTION_IN_PROGRESS_COUNT 
+      INVENTORY_COUNT, TRANSACTION_COMPLETED_COUNT, TRANSACTION_IN_PROGRESS_COUNT,
+      TRANSACTION_CREATED_COUNT, TRANSACTION_CANCELLED_COUNT,
+      PURCHASE_COMPLETED_COUNT, RETURN_COMPLETED_COUNT, BACKORDER_COMPLETED_COUNT, RESTOCK_COMPLETED_COUNT,
+      REVENUE, SEARCH_CURSOR_COUNT, SEARCH_CURSOR_MEMORY, CHANGE_SEQUENCE, TRANSACTION_ARCHIVED_COUNT,
+      BACKORDER_TOTAL
    }
 
    public enum ItemField {
@@ -57,7 +61,9 @@ public interface POSServer {
    String completeTransaction(String id);
 
    /**
-    * Query some feature of a transaction.
+    * Query some feature of a transaction. Amounts are in cents: TOTAL_COST
+    * before any promotion, DISCOUNT what the promotions take off, and
+    * NET_COST what is left to pay.
     *
     * @param  id    the transaction ID
     * @param  query identifies the value requested
@@ -75,7 +81,13 @@ public interface POSServer {
    String toString(String id);
 
    /**
-    * Query some feature of the server.
+    * Query some feature of the server. REVENUE is the value in cents of the
+    * complete purchases and backorders less the complete returns.
+    * SEARCH_CURSOR_MEMORY is roughly how many bytes the open searches hold.
+    * CHANGE_SEQUENCE is the sequence number of the newest item change.
+    * TRANSACTION_ARCHIVED_COUNT is how many finished transactions have been
+    * moved out of memory; they are still counted by the other queries.
+    * BACKORDER_TOTAL is the backorder quantities of all the items added up.
     *
     * @param  query identifies the value requested
     * @return determined by the requested value; or null on error
@@ -92,13 +104,25 @@ public interface POSServer {
    String toString();
 
    /**
-    * Begin a search through item codes and descriptions.
+    * Begin a search through item codes and descriptions. Every caller that
+    * gives no client ID shares one limit on open searches; callers that
+    * keep searches open should use search(pattern, order, client).
     *
     * @param  pattern the string to search for (partial matches OK)
     * @param  order   the order that the results will be presented by the iterator
     * @return the iterator ID
     */
    String search(String pattern, ItemField order);
+
+   /**
+    * Begin a search through item codes and descriptions on behalf of a client.
+    *
+    * @param  pattern the string to search for (partial matches OK)
+    * @param  order   the order that the results will be presented by the iterator
+    * @param  client  the client ID; each client may only keep a few searches open
+    * @return the iterator ID
+    */
+   String search(String pattern, ItemField order, int client);
    
    /**
     * Get the next match for the search. Call this until it returns
@@ -106,6 +130,8 @@ public interface POSServer {
     * Call it once before the first match is available, and repeatedly
     * for each subsequent match.
     *
+    * A search left unused for a while is closed, and then this returns false.
+    *
     * @param  iID the iterator ID
     * @return true if the search has more matches; false if done
     */
@@ -118,7 +144,67 @@ public interface POSServer {
     * @return determined by the requested value; or null on error
     */
    String queryMatch(String iID, ItemField query);
+
+   /**
+    * Begin a search and get its first page of matches in one call.
+    * Only the requested fields are filled in on the page.
+    *
+    * @param  pattern  the string to search for (partial matches OK)
+    * @param  order    the order that the results will be presented in
+    * @param  client   the client ID; each client may only keep a few searches open
+    * @param  pageSize the most matches on a page
+    * @param  fields   the fields wanted for each match
+    * @return the first page, or null on error
+    */
+   SearchPage searchPage(String pattern, ItemField order, int client, int pageSize, ItemField... fields);
+
+   /**
+    * Get the next page of a search begun with searchPage.
+    *
+    * @param  continuation the continuation of the previous page
+    * @param  pageSize     the most matches on a page
+    * @param  fields       the fields wanted for each match
+    * @return the next page, or null on error (or if the search is finished or
+    *         was closed for sitting unused)
+    */
+   SearchPage nextPage(String continuation, int pageSize, ItemField... fields);
    
+   /**
+    * Get the changes to item stock and backorder quantities made after a
+    * sequence number, in order. Completing or cancelling a transaction
+    * changes its items. To follow the inventory, read CHANGE_SEQUENCE,
+    * load what is wanted, then keep asking for the changes after the last
+    * sequence number seen. Only recent changes are kept; if some were
+    * dropped before they were read, or the server restarted without the
+    * state the sequence number came from, the result says so.
+    *
+    * @param  sequence   the last sequence number already seen (0 for all)
+    * @param  max        the most changes to return
+    * @param  waitMillis how long to wait for a change if there are none yet
+    *                    (0 not to wait)
+    * @return the changes, or null on error
+    */
+   ItemChanges changesSince(long sequence, int max, long waitMillis);
+
+   /**
+    * Rank the items by units sold in an hour, or over all time. Sales are
+    * counted in the hour of their transaction's time; returns count
+    * against them, and cancelling a transaction takes it back out.
+    *
+    * @param  time  any time in the hour (yyyyMMddHHmmss), or -1 for all time
+    * @param  count the most items to return
+    * @return the best sellers, best first, or null on error
+    */
+   SalesReport topSellers(long time, int count);
+
+   /**
+    * Get an item's sales in each hour it sold in.
+    *
+    * @param  code the item code
+    * @return its sales, oldest hour first, or null on error (no such item)
+    */
+   SalesReport itemSales(String code);
+
    /**
     * Cancel an existing transaction.
     * Must be cancelled by the client that made the transaction.
@@ -0,0 +1,469 @@
+/**
+ * Keeps the inventory in columns indexed by item ID rather than in an
+ * object per item, for catalogs of millions of items. The cost, stock and
+ * backorder quantities are primitive arrays; the code and description of
+ * each item sit one after the other, in UTF-8, in an arena of large byte
+ * pages. The code order is a sorted array of item IDs, searched by halving.
+ *
+ * The Items handed out are small handles (an ID and a listener) that read
+ * the columns, so the indexes and transactions work as they do with
+ * HeapItems; the Strings of an item are only made when asked for. Codes
+ * and descriptions that are all ASCII (the usual case) are compared and
+ * searched as bytes without being decoded.
+ *
+ * Items are only added while the server starts, before it is shared, so
+ * the columns grow without any locking against readers. Codes are limited
+ * to 32767 bytes and descriptions to 65535.
+ */
+package Source.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+class PackedItemStore implements ItemStore {
+   //bytes in a page of the text arena
+   private static final int PAGE_SHIFT = 20;
+   private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+   private static final int MAX_PAGES = 1 << (31 - PAGE_SHIFT);
+   //longest code and description, in bytes
+   private static final int MAX_CODE = 0x7fff;
+   private static final int MAX_DESCRIPTION = 0xffff;
+   //set in an item's text lengths if its code or description is not all ASCII
+   private static final int NON_ASCII = 1 << 31;
+   //true if lower-casing ASCII letters gives ASCII letters (not so in a few locales)
+   private static final boolean ASCII_FOLDS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toLowerCase().equals("abcdefghijklmnopqrstuvwxyz");
+   private static final int INITIAL_CAPACITY = 1024;
+
+   //the columns, by item ID (replaced as they grow)
+   private volatile PackedItem[] items = new PackedItem[INITIAL_CAPACITY];
+   private volatile int[] costs = new int[INITIAL_CAPACITY];
+   private volatile AtomicIntegerArray inStock = new AtomicIntegerArray(INITIAL_CAPACITY);
+   private volatile AtomicIntegerArray backorders = new AtomicIntegerArray(INITIAL_CAPACITY);
+   //page << PAGE_SHIFT | offset of the item's code; its description follows
+   private volatile int[] textStarts = new int[INITIAL_CAPACITY];
+   //NON_ASCII | code length << 16 | description length
+   private volatile int[] textLengths = new int[INITIAL_CAPACITY];
+   //the text arena, and how much of its last page is used
+   private volatile byte[][] pages = new byte[0][];
+   private int pageUsed;
+   //the IDs of the items in the store, in code order
+   private volatile CodeOrder order = new CodeOrder(new int[INITIAL_CAPACITY], 0);
+
+   /**
+    * The item IDs in code order. A CodeOrder never changes once it is
+    * published: an item added at the end goes past the size, where no
+    * reader of this one looks, and any other change makes a new array.
+    */
+   private static final class CodeOrder {
+      final int[] ids;
+      final int size;
+
+      CodeOrder(int[] ids, int size) {
+         this.ids = ids;
+         this.size = size;
+      }
+   }
+
+   public synchronized Item newItem(int id, String code, String description, int cost, int inStock, int backorder) {
+      byte[] codeBytes = code.getBytes(StandardCharsets.UTF_8);
+      byte[] descriptionBytes = description.getBytes(StandardCharsets.UTF_8);
+      if (codeBytes.length > MAX_CODE) {
+         throw new IllegalArgumentException("Item code of " + codeBytes.length + " bytes is longer than " + MAX_CODE);
+      }
+      if (descriptionBytes.length > MAX_DESCRIPTION) {
+         throw new IllegalArgumentException("Description of item " + code + " is longer than " + MAX_DESCRIPTION + " bytes");
+      }
+      ensureCapacity(id + 1);
+
+      int length = codeBytes.length + descriptionBytes.length;
+      if (pages.length == 0 || pageUsed + length > PAGE_SIZE) {
+         if (pages.length == MAX_PAGES) {
+            throw new IllegalStateException("The item text arena is full");
+         }
+         byte[][] more = Arrays.copyOf(pages, pages.length + 1);
+         more[pages.length] = new byte[PAGE_SIZE];
+         pages = more;
+         pageUsed = 0;
+      }
+      byte[] page = pages[pages.length - 1];
+      System.arraycopy(codeBytes, 0, page, pageUsed, codeBytes.length);
+      System.arraycopy(descriptionBytes, 0, page, pageUsed + codeBytes.length, descriptionBytes.length);
+      boolean ascii = codeBytes.length == code.length() && descriptionBytes.length == description.length();
+      textStarts[id] = (pages.length - 1) << PAGE_SHIFT | pageUsed;
+      textLengths[id] = (ascii ? 0 : NON_ASCII) | codeBytes.length << 16 | descriptionBytes.length;
+      pageUsed += length;
+
+      costs[id] = cost;
+      this.inStock.set(id, inStock);
+      backorders.set(id, backorder);
+      PackedItem item = new PackedItem(id);
+      items[id] = item;
+      return item;
+   }
+
+   //grow the columns to hold at least the given number of IDs
+   private void ensureCapacity(int size) {
+      int capacity = items.length;
+      if (size <= capacity) {
+         return;
+      }
+      capacity = Math.max(size, capacity * 2);
+      items = Arrays.copyOf(items, capacity);
+      costs = Arrays.copyOf(costs, capacity);
+      inStock = grow(inStock, capacity);
+      backorders = grow(backorders, capacity);
+      textStarts = Arrays.copyOf(textStarts, capacity);
+      textLengths = Arrays.copyOf(textLengths, capacity);
+   }
+
+   private static AtomicIntegerArray grow(AtomicIntegerArray column, int capacity) {
+      AtomicIntegerArray larger = new AtomicIntegerArray(capacity);
+      for (int i = 0; i < column.length(); i++) {
+         larger.set(i, column.get(i));
+      }
+      return larger;
+   }
+
+   public synchronized Item put(Item item) {
+      int id = item.getID();
+      CodeOrder current = order;
+      int[] ids = current.ids;
+      int size = current.size;
+      if (size == 0 || compareCodes(ids[size - 1], id) < 0) {
+         // items usually arrive in code order
+         if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+         }
+         ids[size] = id;
+         order = new CodeOrder(ids, size + 1);
+         return null;
+      }
+
+      int at = find(current, id);
+      if (at >= 0) {
+         Item old = items[ids[at]];
+         int[] replaced = ids.clone();
+         replaced[at] = id;
+         order = new CodeOrder(replaced, size);
+         return old;
+      }
+      at = -at - 1;
+      int[] inserted = new int[Math.max(ids.length, size + 1)];
+      System.arraycopy(ids, 0, inserted, 0, at);
+      inserted[at] = id;
+      System.arraycopy(ids, at, inserted, at + 1, size - at);
+      order = new CodeOrder(inserted, size + 1);
+      return null;
+   }
+
+   public Item get(String code) {
+      CodeOrder current = order;
+      int at = find(current, code);
+      return at >= 0 ? items[current.ids[at]] : null;
+   }
+
+   public Collection<Item> values() {
+      return new Run(order, 0);
+   }
+
+   public Collection<Item> tail(String code) {
+      CodeOrder current = order;
+      int at = find(current, code);
+      return new Run(current, at >= 0 ? at + 1 : -at - 1);
+   }
+
+   /**
+    * Find the position of an item's code in the code order.
+    *
+    * @return the position, or -(insertion point) - 1 if no item has the code
+    */
+   private int find(CodeOrder current, int id) {
+      int low = 0;
+      int high = current.size - 1;
+      while (low <= high) {
+         int middle = (low + high) >>> 1;
+         int result = compareCodes(current.ids[middle], id);
+         if (result < 0) {
+            low = middle + 1;
+         } else if (result > 0) {
+            high = middle - 1;
+         } else {
+            return middle;
+         }
+      }
+      return -low - 1;
+   }
+
+   /**
+    * Find the position of a code in the code order.
+    *
+    * @return the position, or -(insertion point) - 1 if no item has the code
+    */
+   private int find(CodeOrder current, String code) {
+      int low = 0;
+      int high = current.size - 1;
+      while (low <= high) {
+         int middle = (low + high) >>> 1;
+         int result = compareCode(current.ids[middle], code);
+         if (result < 0) {
+            low = middle + 1;
+         } else if (result > 0) {
+            high = middle - 1;
+         } else {
+            return middle;
+         }
+      }
+      return -low - 1;
+   }
+
+   private byte[] page(int start) {
+      return pages[start >>> PAGE_SHIFT];
+   }
+
+   private static int offset(int start) {
+      return start & (PAGE_SIZE - 1);
+   }
+
+   private static int codeLength(int lengths) {
+      return (lengths >>> 16) & MAX_CODE;
+   }
+
+   private static int descriptionLength(int lengths) {
+      return lengths & MAX_DESCRIPTION;
+   }
+
+   private String decode(int start, int skip, int length) {
+      return new String(page(start), offset(start) + skip, length, StandardCharsets.UTF_8);
+   }
+
+   private String code(int id) {
+      return decode(textStarts[id], 0, codeLength(textLengths[id]));
+   }
+
+   private String description(int id) {
+      int lengths = textLengths[id];
+      return decode(textStarts[id], codeLength(lengths), descriptionLength(lengths));
+   }
+
+   /**
+    * Compare the codes of two items as Strings compare.
+    */
+   private int compareCodes(int a, int b) {
+      int aLengths = textLengths[a];
+      int bLengths = textLengths[b];
+      if (((aLengths | bLengths) & NON_ASCII) != 0) {
+         return code(a).compareTo(code(b));
+      }
+      int aStart = textStarts[a];
+      int bStart = textStarts[b];
+      return compareBytes(page(aStart), offset(aStart), codeLength(aLengths), page(bStart), offset(bStart), codeLength(bLengths));
+   }
+
+   /**
+    * Compare the descriptions of two items as Strings compare.
+    */
+   private int compareDescriptions(int a, int b) {
+      int aLengths = textLengths[a];
+      int bLengths = textLengths[b];
+      if (((aLengths | bLengths) & NON_ASCII) != 0) {
+         return description(a).compareTo(description(b));
+      }
+      int aStart = textStarts[a];
+      int bStart = textStarts[b];
+      return compareBytes(page(aStart), offset(aStart) + codeLength(aLengths), descriptionLength(aLengths),
+                          page(bStart), offset(bStart) + codeLength(bLengths), descriptionLength(bLengths));
+   }
+
+   //compare ASCII text byte by byte, which is the order of its Strings
+   private static int compareBytes(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+      int length = Math.min(aLength, bLength);
+      for (int i = 0; i < length; i++) {
+         int result = a[aOffset + i] - b[bOffset + i];
+         if (result != 0) {
+            return result;
+         }
+      }
+      return aLength - bLength;
+   }
+
+   /**
+    * Compare an item's code with a code as Strings compare.
+    */
+   private int compareCode(int id, String code) {
+      int lengths = textLengths[id];
+      if ((lengths & NON_ASCII) != 0) {
+         return code(id).compareTo(code);
+      }
+      // an ASCII byte is the char it stands for
+      int start = textStarts[id];
+      byte[] page = page(start);
+      int offset = offset(start);
+      int length = codeLength(lengths);
+      int shorter = Math.min(length, code.length());
+      for (int i = 0; i < shorter; i++) {
+         int result = page[offset + i] - code.charAt(i);
+         if (result != 0) {
+            return result;
+         }
+      }
+      return length - code.length();
+   }
+
+   /**
+    * Check whether ASCII text, lower-cased, contains a lower-cased pattern.
+    */
+   private static boolean containsLowerCase(byte[] page, int offset, int length, String pattern) {
+      int last = length - pattern.length();
+      for (int i = 0; i <= last; i++) {
+         int j = 0;
+         while (j < pattern.length()) {
+            int c = page[offset + i + j];
+            if (c >= 'A' && c <= 'Z') {
+               c += 'a' - 'A';
+            }
+            if (c != pattern.charAt(j)) {
+               break;
+            }
+            j++;
+         }
+         if (j == pattern.length()) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * An item kept in the columns. Holds only its ID (and listener).
+    */
+   private class PackedItem extends Item {
+      PackedItem(int id) {
+         super(id);
+      }
+
+      public String getCode() {
+         return code(getID());
+      }
+
+      public String getDescription() {
+         return description(getID());
+      }
+
+      public int getCost() {
+         return costs[getID()];
+      }
+
+      public int getInStock() {
+         return inStock.get(getID());
+      }
+
+      public int getBackorder() {
+         return backorders.get(getID());
+      }
+
+      protected void setInStock(int quantity) {
+         inStock.set(getID(), quantity);
+      }
+
+      protected void setBackorder(int quantity) {
+         backorders.set(getID(), quantity);
+      }
+
+      public boolean matchesLowerCase(String pattern) {
+         int id = getID();
+         int lengths = textLengths[id];
+         if ((lengths & NON_ASCII) != 0 || !ASCII_FOLDS) {
+            return getSearchCode().contains(pattern) || getSearchDescription().contains(pattern);
+         }
+         int start = textStarts[id];
+         byte[] page = page(start);
+         int offset = offset(start);
+         int codeLength = codeLength(lengths);
+         return containsLowerCase(page, offset, codeLength, pattern)
+               || containsLowerCase(page, offset + codeLength, descriptionLength(lengths), pattern);
+      }
+
+      public String getSearchCode() {
+         return getCode().toLowerCase();
+      }
+
+      public String getSearchDescription() {
+         return getDescription().toLowerCase();
+      }
+
+      @Override
+      public int compareCode(Item other) {
+         if (sameStore(other)) {
+            return compareCodes(getID(), other.getID());
+         }
+         return super.compareCode(other);
+      }
+
+      @Override
+      public int compareCode(String code) {
+         return PackedItemStore.this.compareCode(getID(), code);
+      }
+
+      @Override
+      public int compareDescription(Item other) {
+         if (sameStore(other)) {
+            return compareDescriptions(getID(), other.getID());
+         }
+         return super.compareDescription(other);
+      }
+
+      //true if the other item is kept in the same columns as this one
+      private boolean sameStore(Item other) {
+         return other instanceof PackedItem && ((PackedItem) other).store() == PackedItemStore.this;
+      }
+
+      private PackedItemStore store() {
+         return PackedItemStore.this;
+      }
+   }
+
+   /**
+    * The items from a position in the code order to its end.
+    */
+   private class Run extends AbstractCollection<Item> {
+      private final CodeOrder run;
+      private final int from;
+
+      Run(CodeOrder run, int from) {
+         this.run = run;
+         this.from = from;
+      }
+
+      @Override
+      public int size() {
+         return run.size - from;
+      }
+
+      @Override
+      public Iterator<Item> iterator() {
+         return new Iterator<Item>() {
+            private int next = from;
+
+            public boolean hasNext() {
+               return next < run.size;
+            }
+
+            public Item next() {
+               if (next >= run.size) {
+                  throw new NoSuchElementException();
+               }
+               return items[run.ids[next++]];
+            }
+
+            public void remove() {
+               throw new UnsupportedOperationException();
+            }
+         };
+      }
+   }
+}
@@ -0,0 +1,198 @@
+/**
+ * The promotions a server prices its purchases with. There are three kinds
+ * of rule:
+ *
+ *    multi-buy       buy a number of an item, pay for fewer
+ *    percent off     a percentage off every item whose code has a prefix
+ *    basket          an amount off a basket that comes to at least a minimum
+ *
+ * The multi-buy and percent-off rules price one line at a time, so a
+ * transaction only re-prices the line that changed; where both apply to a
+ * line, the larger discount wins. The basket rules are then applied to the
+ * total after the line discounts, and only the best one a basket reaches
+ * counts. Returns, backorders and restocks are not discounted.
+ *
+ * A promotions file has one rule per line ('#' starts a comment):
+ *
+ *    multibuy,CODE,3,2      buy 3 of item CODE, pay for 2
+ *    percent,PREFIX,10      10% off items whose codes start with PREFIX
+ *    basket,5000,500        $5.00 off baskets of $50.00 or more
+ *
+ * Rules are added before the promotions are handed to a server.
+ */
+package Source.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+public final class Promotions {
+   //multi-buy deals by item code, as {buy, pay}
+   private final HashMap<String, int[]> multiBuys = new HashMap<>();
+   //percent off by code prefix, and the lengths of those prefixes
+   private final HashMap<String, Integer> percentOffs = new HashMap<>();
+   private final TreeSet<Integer> prefixLengths = new TreeSet<>();
+   //basket minimums in increasing order, and the best discount reached at each
+   private long[] minimums = new long[0];
+   private long[] basketDiscounts = new long[0];
+
+   /**
+    * Add a multi-buy deal: every full group of buy units of the item costs
+    * the price of pay units.
+    *
+    * @param code the item code
+    * @param buy  the units in a group
+    * @param pay  the units paid for in a group
+    * @return these promotions
+    */
+   public Promotions multiBuy(String code, int buy, int pay) {
+      if (buy <= 0 || pay < 0 || pay >= buy) {
+         throw new IllegalArgumentException("Invalid multi-buy " + buy + " for " + pay);
+      }
+      multiBuys.put(code, new int[] {buy, pay});
+      return this;
+   }
+
+   /**
+    * Take a percentage off the items whose codes start with a prefix.
+    *
+    * @param prefix  the code prefix ("" for every item)
+    * @param percent the percentage off, 1 to 100
+    * @return these promotions
+    */
+   public Promotions percentOff(String prefix, int percent) {
+      if (percent <= 0 || percent > 100) {
+         throw new IllegalArgumentException("Invalid percentage " + percent);
+      }
+      percentOffs.put(prefix, percent);
+      prefixLengths.add(prefix.length());
+      return this;
+   }
+
+   /**
+    * Take an amount off a basket that comes to at least a minimum, after
+    * the line discounts.
+    *
+    * @param minimum  the least the basket must come to, in cents
+    * @param discount the amount off, in cents
+    * @return these promotions
+    */
+   public Promotions basket(long minimum, long discount) {
+      if (minimum < 0 || discount <= 0) {
+         throw new IllegalArgumentException("Invalid basket discount " + discount + " at " + minimum);
+      }
+      int at = Arrays.binarySearch(minimums, minimum);
+      if (at < 0) {
+         at = -at - 1;
+         minimums = insert(minimums, at, minimum);
+         basketDiscounts = insert(basketDiscounts, at, discount);
+      } else {
+         basketDiscounts[at] = Math.max(basketDiscounts[at], discount);
+      }
+      //a bigger basket gets at least what a smaller one does
+      for (int i = 1; i < basketDiscounts.length; i++) {
+         basketDiscounts[i] = Math.max(basketDiscounts[i], basketDiscounts[i - 1]);
+      }
+      return this;
+   }
+
+   private static long[] insert(long[] values, int at, long value) {
+      long[] result = new long[values.length + 1];
+      System.arraycopy(values, 0, result, 0, at);
+      result[at] = value;
+      System.arraycopy(values, at, result, at + 1, values.length - at);
+      return result;
+   }
+
+   /**
+    * Get the discount on one line of a purchase.
+    *
+    * @param item     the item on the line
+    * @param quantity the quantity on the line
+    * @return the discount, in cents
+    */
+   long lineDiscount(Item item, int quantity) {
+      if (quantity <= 0 || (multiBuys.isEmpty() && percentOffs.isEmpty())) {
+         return 0;
+      }
+      String code = item.getCode();
+      long cost = item.getCost();
+      long discount = 0;
+
+      int[] deal = multiBuys.get(code);
+      if (deal != null) {
+         discount = quantity / deal[0] * (long) (deal[0] - deal[1]) * cost;
+      }
+      for (int length : prefixLengths) {
+         if (length > code.length()) {
+            break;
+         }
+         Integer percent = percentOffs.get(code.substring(0, length));
+         if (percent != null) {
+            //split so the product cannot overflow
+            long value = cost * quantity;
+            discount = Math.max(discount, value / 100 * percent + value % 100 * percent / 100);
+         }
+      }
+      return discount;
+   }
+
+   /**
+    * Get the discount on a whole basket.
+    *
+    * @param subtotal what the basket comes to after the line discounts, in cents
+    * @return the discount, in cents (never more than the subtotal)
+    */
+   long basketDiscount(long subtotal) {
+      int at = Arrays.binarySearch(minimums, subtotal);
+      at = at >= 0 ? at : -at - 2;
+      return at < 0 ? 0 : Math.min(subtotal, basketDiscounts[at]);
+   }
+
+   /**
+    * Read promotions from a file (see above for the format).
+    *
+    * @param file the promotions file
+    * @return the promotions
+    * @throws IOException if the file cannot be read or has a bad rule
+    */
+   public static Promotions load(File file) throws IOException {
+      Promotions promotions = new Promotions();
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+         String line;
+         int number = 0;
+         while ((line = in.readLine()) != null) {
+            number++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+               line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+               continue;
+            }
+            String[] fields = line.split(",");
+            try {
+               if (fields[0].equals("multibuy") && fields.length == 4) {
+                  promotions.multiBuy(fields[1], Integer.parseInt(fields[2].trim()), Integer.parseInt(fields[3].trim()));
+               } else if (fields[0].equals("percent") && fields.length == 3) {
+                  promotions.percentOff(fields[1], Integer.parseInt(fields[2].trim()));
+               } else if (fields[0].equals("basket") && fields.length == 3) {
+                  promotions.basket(Long.parseLong(fields[1].trim()), Long.parseLong(fields[2].trim()));
+               } else {
+                  throw new IOException(file + " line " + number + ": unknown rule \"" + line + "\"");
+               }
+            } catch (IllegalArgumentException iae) {
+               throw new IOException(file + " line " + number + ": " + iae.getMessage());
+            }
+         }
+      }
+      return promotions;
+   }
+}
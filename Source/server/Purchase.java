@@ -9,6 +9,10 @@ class Purchase extends Transaction {
       super(id, time, clientID);
    }
 
+   public Purchase(String id, long time, int clientID, Promotions promotions) {
+      super(id, time, clientID, promotions);
+   }
+
    /**
     * return type of transaction it is
     * @return  type of transaction
@@ -20,26 +24,26 @@ class Purchase extends Transaction {
 
    /**
     *check if enough quantity exist in store to complete the transacion
-    * @param  unit the unit to check
+    * @param  line the index of the line to check
     * @return  true if can complete or false otherwise
     */
    @Override
-   public boolean canCompleteTransaction(TransactionUnit unit) {
-      return unit.getQuantity() <= unit.getItem().getInStock();
+   public boolean canCompleteTransaction(int line) {
+      return getLineQuantity(line) <= getLineItem(line).getInStock();
    }
 
    /**
     * completes the transction
-    * @param unit           one unit from the transaction
-    * @param canCompleteAll true if all the units in the transaction returned true for canCompleteTransaction()
+    * @param line           the index of one line of the transaction
+    * @param canCompleteAll true if all the lines in the transaction returned true for canCompleteTransaction()
     */
    @Override
-   public void completeTransaction(TransactionUnit unit, boolean canCompleteAll) {
+   public void completeTransaction(int line, boolean canCompleteAll) {
       if (canCompleteAll) {
-         unit.getItem().reduceInStock(unit.getQuantity());
+         getLineItem(line).reduceInStock(getLineQuantity(line));
       } else {
          // clear the transaction
-         unit.changeQuantity(0);
+         setLineQuantity(line, 0);
       }
    }
 
@@ -7,34 +7,189 @@
 
 package Source.server;
 
-import javax.swing.*;
-import javax.swing.filechooser.FileSystemView;
+import Source.metrics.MetricRegistry;
+import Source.metrics.MetricsReporter;
+import Source.net.RemoteServer;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
 
 public class ReadServer {
     //stores server
     private static POSServer server;
+    //the metrics of the server, if it is metered
+    private static MetricRegistry metrics;
     //private constructor so nobody can create an instance
     private ReadServer(){}
 
     /**
-     * Creates a server
+     * Creates a server, or connects to the one named by the pos.server
+     * system property (host:port) if it is set. A server created here is
+     * set up from the system properties as newServer(Properties) describes;
+     * if pos.inventory is not set, a file chooser asks for the inventory.
+     * If the pos.metrics system property is true, every call to the server
+     * is timed (see MeteredServer) and shown over JMX, and printed every
+     * pos.metrics.report seconds if that is set.
      * @return  server
      */
     public static POSServer getServer(){
+        String remote = System.getProperty("pos.server");
+        if(server==null && remote!=null){
+            //use a server running elsewhere
+            int colon = remote.lastIndexOf(':');
+            try {
+                server = new RemoteServer(remote.substring(0, colon), Integer.parseInt(remote.substring(colon + 1)));
+            } catch (IOException ioe) {
+                throw new UncheckedIOException("Unable to connect to " + remote, ioe);
+            }
+            if(Boolean.getBoolean("pos.metrics")){
+                server = meter(server, System.getProperties());
+            }
+        }
         if(server==null){
             //create the server if doesnt exist
-            JFileChooser fileChooser = new JFileChooser(FileSystemView.getFileSystemView().getHomeDirectory());
-            int returnVal = fileChooser.showOpenDialog(null);
-            while (!(returnVal == JFileChooser.APPROVE_OPTION)){
-                returnVal = fileChooser.showOpenDialog(null);
+            Properties settings = new Properties();
+            settings.putAll(System.getProperties());
+            if(settings.getProperty("pos.inventory")==null){
+                File selectedFile = InventoryChooser.choose();
+                System.out.println(selectedFile.getAbsolutePath());
+                settings.setProperty("pos.inventory", selectedFile.getPath());
             }
-            File selectedFile = fileChooser.getSelectedFile();
-            System.out.println(selectedFile.getAbsolutePath());
-            server = new Server(selectedFile);
+            server = newServer(settings);
         }
 
         //return the server
         return server;
     }
+
+    /**
+     * Creates a separate server from a set of settings, without Swing:
+     * <pre>
+     *    pos.inventory         the inventory file (required)
+     *    pos.data              the directory for the journal, snapshots and archive
+     *    pos.packed            true to keep the items packed in arrays
+     *    pos.promotions        the promotions file to price purchases with
+     *    pos.snapshot.seconds  time between snapshots (needs pos.data)
+     *    pos.archive.seconds   how long finished transactions stay in memory (needs pos.data)
+     *    pos.metrics           true to time every call (see MeteredServer)
+     *    pos.metrics.report    time in seconds between printed metrics reports
+     * </pre>
+     * @param settings the settings
+     * @return a new server
+     * @throws IllegalArgumentException if a setting is missing or wrong
+     */
+    public static POSServer newServer(Properties settings){
+        String inventory = settings.getProperty("pos.inventory");
+        if(inventory==null){
+            throw new IllegalArgumentException("pos.inventory is not set");
+        }
+        String data = settings.getProperty("pos.data");
+        long snapshotSeconds = seconds(settings, "pos.snapshot.seconds");
+        long archiveSeconds = seconds(settings, "pos.archive.seconds");
+        if(data==null && (snapshotSeconds>0 || archiveSeconds>0)){
+            throw new IllegalArgumentException("Snapshots and archiving need pos.data");
+        }
+
+        Server created = new Server(new File(inventory), data==null ? null : new File(data),
+                Boolean.parseBoolean(settings.getProperty("pos.packed")));
+        String promotions = settings.getProperty("pos.promotions");
+        if(promotions!=null){
+            try {
+                created.setPromotions(Promotions.load(new File(promotions)));
+            } catch (IOException ioe) {
+                throw new UncheckedIOException("Unable to read promotions " + promotions, ioe);
+            }
+        }
+        if(snapshotSeconds>0){
+            created.startSnapshots(snapshotSeconds, TimeUnit.SECONDS);
+        }
+        if(archiveSeconds>0){
+            created.startArchiving(archiveSeconds, TimeUnit.SECONDS);
+        }
+        if(Boolean.parseBoolean(settings.getProperty("pos.metrics"))){
+            return meter(created, settings);
+        }
+        return created;
+    }
+
+    //a setting in seconds, or 0 if it is not set
+    private static long seconds(Properties settings, String name){
+        String value = settings.getProperty(name);
+        try {
+            return value==null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException(name + " is not a number of seconds: " + value);
+        }
+    }
+
+    /**
+     * Gets the metrics of the server metered last (by getServer() or
+     * newServer(Properties)).
+     * @return the metrics, or null if no server is metered
+     */
+    public static MetricRegistry getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Wraps the server in a MeteredServer, shows its metrics over JMX and
+     * starts printing them if pos.metrics.report is set.
+     * @param unmetered the server
+     * @param settings where pos.metrics.report is read
+     * @return the metered server
+     */
+    private static POSServer meter(POSServer unmetered, Properties settings){
+        metrics = new MetricRegistry();
+        POSServer metered = new MeteredServer(unmetered, metrics);
+        try {
+            metrics.registerMBeans("Source.server");
+        } catch (JMException jme) {
+            System.out.println("Unable to register metrics: " + jme.getMessage());
+        }
+        long period = seconds(settings, "pos.metrics.report");
+        if(period>0){
+            new MetricsReporter(metrics, System.out, period, TimeUnit.SECONDS);
+        }
+        return metered;
+    }
+
+    /**
+     * Creates a separate server from an inventory file, without asking
+     * for the file. Used by tools such as the stress test and the benchmarks.
+     * @param inventoryFile the inventory file
+     * @return a new server
+     */
+    public static POSServer newServer(File inventoryFile){
+        return new Server(inventoryFile);
+    }
+
+    /**
+     * Creates a separate server from an inventory file, choosing how its
+     * items are kept.
+     * @param inventoryFile the inventory file
+     * @param packedItems true to keep the items packed in arrays, for very
+     *                    large catalogs; false for an object per item
+     * @return a new server
+     */
+    public static POSServer newServer(File inventoryFile, boolean packedItems){
+        return new Server(inventoryFile, null, packedItems);
+    }
+
+    /**
+     * Creates a separate server from an inventory file that prices its
+     * purchases with a set of promotions.
+     * @param inventoryFile the inventory file
+     * @param packedItems true to keep the items packed in arrays
+     * @param promotions the promotions, or null for none
+     * @return a new server
+     */
+    public static POSServer newServer(File inventoryFile, boolean packedItems, Promotions promotions){
+        Server created = new Server(inventoryFile, null, packedItems);
+        created.setPromotions(promotions);
+        return created;
+    }
 }
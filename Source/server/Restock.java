@@ -22,36 +22,42 @@ public class Restock extends Transaction {
 
    /**
     *
-    * @param  unit the unit to check
+    * @param  line the index of the line to check
     * @return true if yes, alse otherwise
     */
    @Override
-   public boolean canCompleteTransaction(TransactionUnit unit) {
+   public boolean canCompleteTransaction(int line) {
       return true;
    }
 
    /**
     * Complete the restock trnsaction
-    * @param unit           one unit from the transaction
-    * @param canCompleteAll true if all the units in the transaction returned true for canCompleteTransaction()
+    * @param line           the index of one line of the transaction
+    * @param canCompleteAll true if all the lines in the transaction returned true for canCompleteTransaction()
     */
    @Override
-   public void completeTransaction(TransactionUnit unit, boolean canCompleteAll) {
+   public void completeTransaction(int line, boolean canCompleteAll) {
       if(canCompleteAll){
-         int quantity = unit.getQuantity();
-         Item item = unit.getItem();
-         int backorder = item.getBackorder();
-         if(backorder>=quantity){
-            item.reduceBackorder(quantity);
-            quantity = 0;
-         }
-         else {
-            item.reduceBackorder(backorder);
-            quantity -= backorder;
-         }
+         int quantity = getLineQuantity(line);
+         Item item = getLineItem(line);
+         //hold the item so the backorder cannot change between the check and the update
+         item.lock();
+         try {
+            int backorder = item.getBackorder();
+            if(backorder>=quantity){
+               item.reduceBackorder(quantity);
+               quantity = 0;
+            }
+            else if(backorder>0){
+               item.reduceBackorder(backorder);
+               quantity -= backorder;
+            }
 
-         if(quantity>0){
-            item.increaseInStock(quantity);
+            if(quantity>0){
+               item.increaseInStock(quantity);
+            }
+         } finally {
+            item.unlock();
          }
       }
    }
@@ -15,21 +15,21 @@ class Return extends Transaction {
    }
    /**
     *check if enough quantity exist in store to complete the transacion
-    * @param  unit the unit to check
+    * @param  line the index of the line to check
     * @return  true if can complete or false otherwise
     */
    @Override
-   public boolean canCompleteTransaction(TransactionUnit unit) {
+   public boolean canCompleteTransaction(int line) {
       // Can always complete a return
       return true;
    }
    /**
     * completes the transction
-    * @param unit           one unit from the transaction
-    * @param canCompleteAll true if all the units in the transaction returned true for canCompleteTransaction()
+    * @param line           the index of one line of the transaction
+    * @param canCompleteAll true if all the lines in the transaction returned true for canCompleteTransaction()
     */
    @Override
-   public void completeTransaction(TransactionUnit unit, boolean canCompleteAll) {
+   public void completeTransaction(int line, boolean canCompleteAll) {
       // has no effect on inventory
    }
    /**
@@ -0,0 +1,317 @@
+/**
+ * Sales analytics kept up to date as transactions are completed and
+ * cancelled, so asking what sold best in an hour, or how an item sold hour
+ * by hour, never replays the transactions. A completed purchase or
+ * backorder adds its lines' units and revenue to the hour of its time, a
+ * completed return takes them off, and cancelling a completed transaction
+ * undoes what it added. Restocks are not sales.
+ *
+ * Each item has a cell per hour it sold in and one for all time. The cells
+ * with units sold are also kept ranked, best first, for each hour and for
+ * all time; a change moves just the item's two cells, so the rankings are
+ * exact even when a cancellation takes a sale back out, and the top N are
+ * read straight off the front.
+ *
+ * Lanes don't wait on one another here: a change is queued as it happens,
+ * and whichever lane finds a batch waiting and the lock free applies the
+ * queue for everyone. A query applies whatever is still queued first, so
+ * it sees every change made before it.
+ */
+package Source.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+class SalesAnalytics {
+   //sales queued before a lane stops to apply them
+   private static final int BATCH = 1024;
+
+   //most units first, then most revenue, then by item ID so no two cells tie
+   private static final Comparator<Cell> BEST_FIRST = new Comparator<Cell>() {
+      public int compare(Cell a, Cell b) {
+         if (a.units != b.units) {
+            return a.units > b.units ? -1 : 1;
+         }
+         if (a.revenue != b.revenue) {
+            return a.revenue > b.revenue ? -1 : 1;
+         }
+         return Integer.compare(a.item.getID(), b.item.getID());
+      }
+   };
+
+   /**
+    * One transaction's change to the sales, read when it happened.
+    */
+   private static final class Sale {
+      final long hour;
+      final Item[] items;
+      final long[] units;
+      final long[] revenue;
+
+      Sale(long hour, Item[] items, long[] units, long[] revenue) {
+         this.hour = hour;
+         this.items = items;
+         this.units = units;
+         this.revenue = revenue;
+      }
+   }
+
+   /**
+    * The sales of one item in one hour, or over all time.
+    */
+   private static final class Cell {
+      final Item item;
+      final long hour;
+      long units;
+      long revenue;
+
+      Cell(Item item, long hour) {
+         this.item = item;
+         this.hour = hour;
+      }
+   }
+
+   //changes not applied yet, and how many
+   private final ConcurrentLinkedQueue<Sale> queue = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger queued = new AtomicInteger();
+   //held while the queue is applied; guards everything below
+   private final ReentrantLock lock = new ReentrantLock();
+   //item ID -> the item's cells by hour, and its all-time cell
+   private final HashMap<Integer, TreeMap<Long, Cell>> hoursByItem = new HashMap<>();
+   private final HashMap<Integer, Cell> totals = new HashMap<>();
+   //hour -> the cells of that hour with units sold, best first
+   private final HashMap<Long, TreeSet<Cell>> hourly = new HashMap<>();
+   //the all-time cells with units sold, best first
+   private final TreeSet<Cell> allTime = new TreeSet<>(BEST_FIRST);
+
+   /**
+    * @param  time a transaction time (yyyyMMddHHmmss)
+    * @return its hour (yyyyMMddHH)
+    */
+   static long hour(long time) {
+      return time / 10000;
+   }
+
+   /**
+    * Account for a transaction that was just completed or cancelled, like
+    * ServerStatistics.changed(); the caller still holds the transaction's
+    * lock.
+    *
+    * @param t            the transaction
+    * @param wasComplete  whether it was complete before the change
+    * @param wasCancelled whether it was cancelled before the change
+    */
+   void changed(Transaction t, boolean wasComplete, boolean wasCancelled) {
+      boolean counted = wasComplete && !wasCancelled;
+      boolean counts = t.isComplete() && !t.isCancelled();
+      if (counted == counts) {
+         return;
+      }
+      int sign;
+      switch (t.getType()) {
+      case PURCHASE:
+      case BACKORDER:
+         sign = 1;
+         break;
+      case RETURN:
+         sign = -1;
+         break;
+      default:
+         return;
+      }
+      if (!counts) {
+         sign = -sign;
+      }
+
+      int lines = t.itemCount();
+      Item[] items = new Item[lines];
+      long[] units = new long[lines];
+      long[] revenue = new long[lines];
+      int sold = 0;
+      for (int line = 0; line < lines; line++) {
+         int quantity = t.getLineQuantity(line);
+         if (quantity != 0) {
+            Item item = t.getLineItem(line);
+            items[sold] = item;
+            units[sold] = sign * (long) quantity;
+            revenue[sold] = sign * ((long) item.getCost() * quantity - t.getLineDiscount(line));
+            sold++;
+         }
+      }
+      if (sold == 0) {
+         return;
+      }
+      if (sold < lines) {
+         items = Arrays.copyOf(items, sold);
+         units = Arrays.copyOf(units, sold);
+         revenue = Arrays.copyOf(revenue, sold);
+      }
+
+      queue.add(new Sale(hour(t.getTime()), items, units, revenue));
+      if (queued.incrementAndGet() >= BATCH && lock.tryLock()) {
+         try {
+            drain();
+         } finally {
+            lock.unlock();
+         }
+      }
+   }
+
+   /**
+    * Apply the queued sales. The caller holds the lock.
+    */
+   private void drain() {
+      Sale sale;
+      while ((sale = queue.poll()) != null) {
+         queued.decrementAndGet();
+         for (int i = 0; i < sale.items.length; i++) {
+            add(sale.hour, sale.items[i], sale.units[i], sale.revenue[i]);
+         }
+      }
+   }
+
+   /**
+    * Add to an item's sales in an hour and over all time. The caller holds
+    * the lock.
+    */
+   private void add(long hour, Item item, long units, long revenue) {
+      TreeSet<Cell> ranking = hourly.get(hour);
+      if (ranking == null) {
+         ranking = new TreeSet<>(BEST_FIRST);
+         hourly.put(hour, ranking);
+      }
+      TreeMap<Long, Cell> hours = hoursByItem.get(item.getID());
+      if (hours == null) {
+         hours = new TreeMap<>();
+         hoursByItem.put(item.getID(), hours);
+      }
+      Cell cell = hours.get(hour);
+      if (cell == null) {
+         cell = new Cell(item, hour);
+         hours.put(hour, cell);
+      }
+      add(ranking, cell, units, revenue);
+      //a sale taken back out leaves nothing behind
+      if (cell.units == 0 && cell.revenue == 0) {
+         hours.remove(hour);
+      }
+
+      Cell total = totals.get(item.getID());
+      if (total == null) {
+         total = new Cell(item, SalesReport.ALL_TIME);
+         totals.put(item.getID(), total);
+      }
+      add(allTime, total, units, revenue);
+   }
+
+   /**
+    * Add to a cell, moving it within its ranking. A cell is ranked only
+    * while it has units sold.
+    */
+   private static void add(TreeSet<Cell> ranking, Cell cell, long units, long revenue) {
+      if (cell.units > 0) {
+         ranking.remove(cell);
+      }
+      cell.units += units;
+      cell.revenue += revenue;
+      if (cell.units > 0) {
+         ranking.add(cell);
+      }
+   }
+
+   /**
+    * Get the best sellers of an hour, or of all time.
+    *
+    * @param  hour  the hour (yyyyMMddHH), or SalesReport.ALL_TIME
+    * @param  count the most items to return
+    * @return the best sellers, best first
+    */
+   SalesReport topSellers(long hour, int count) {
+      lock.lock();
+      try {
+         drain();
+         TreeSet<Cell> ranking = hour == SalesReport.ALL_TIME ? allTime : hourly.get(hour);
+         int size = ranking == null ? 0 : Math.min(count, ranking.size());
+         return report(size, ranking == null ? null : ranking.iterator());
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Get an item's sales in each hour it sold in.
+    *
+    * @param  item the item
+    * @return its sales, oldest hour first
+    */
+   SalesReport itemSales(Item item) {
+      lock.lock();
+      try {
+         drain();
+         TreeMap<Long, Cell> hours = hoursByItem.get(item.getID());
+         return report(hours == null ? 0 : hours.size(), hours == null ? null : hours.values().iterator());
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Copy out every item's sales hour by hour, for a snapshot. The
+    * all-time sales are the sum of the hours, so they are left out.
+    *
+    * @return the sales, by item and hour
+    */
+   SalesReport sales() {
+      lock.lock();
+      try {
+         drain();
+         ArrayList<Cell> cells = new ArrayList<>();
+         for (TreeMap<Long, Cell> hours : hoursByItem.values()) {
+            cells.addAll(hours.values());
+         }
+         return report(cells.size(), cells.iterator());
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Put back an item's sales in an hour, as saved by sales().
+    *
+    * @param item    the item
+    * @param hour    the hour (yyyyMMddHH)
+    * @param units   units sold
+    * @param revenue revenue in cents
+    */
+   void restore(Item item, long hour, long units, long revenue) {
+      lock.lock();
+      try {
+         add(hour, item, units, revenue);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private static SalesReport report(int size, Iterator<Cell> cells) {
+      String[] codes = new String[size];
+      long[] hours = new long[size];
+      long[] units = new long[size];
+      long[] revenue = new long[size];
+      for (int row = 0; row < size; row++) {
+         Cell cell = cells.next();
+         codes[row] = cell.item.getCode();
+         hours[row] = cell.hour;
+         units[row] = cell.units;
+         revenue[row] = cell.revenue;
+      }
+      return new SalesReport(codes, hours, units, revenue);
+   }
+}
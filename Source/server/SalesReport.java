@@ -0,0 +1,75 @@
+/**
+ * Sales figures from the server's analytics, one row per item and hour:
+ * either the best sellers of an hour (or of all time), best first, or one
+ * item's sales hour by hour, oldest first. Hours are transaction times
+ * (yyyyMMddHHmmss) cut down to yyyyMMddHH; a row covering all time has
+ * hour -1. Units and revenue are net of returns, and revenue is in cents
+ * after the line discounts (a basket discount is not split among the
+ * items).
+ */
+package Source.server;
+
+public final class SalesReport {
+   //the hour of a row that covers every hour
+   public static final long ALL_TIME = -1;
+
+   private final String[] codes;
+   private final long[] hours;
+   private final long[] units;
+   private final long[] revenue;
+
+   /**
+    * Make a report. Used by the server, and to rebuild a report that came
+    * over the network.
+    *
+    * @param codes   item codes
+    * @param hours   hours (yyyyMMddHH), or ALL_TIME
+    * @param units   units sold
+    * @param revenue revenue in cents
+    */
+   public SalesReport(String[] codes, long[] hours, long[] units, long[] revenue) {
+      this.codes = codes;
+      this.hours = hours;
+      this.units = units;
+      this.revenue = revenue;
+   }
+
+   /**
+    * @return the number of rows
+    */
+   public int size() {
+      return codes.length;
+   }
+
+   /**
+    * @param row the row
+    * @return item code
+    */
+   public String getCode(int row) {
+      return codes[row];
+   }
+
+   /**
+    * @param row the row
+    * @return the hour (yyyyMMddHH), or ALL_TIME
+    */
+   public long getHour(int row) {
+      return hours[row];
+   }
+
+   /**
+    * @param row the row
+    * @return units sold, less units returned
+    */
+   public long getUnits(int row) {
+      return units[row];
+   }
+
+   /**
+    * @param row the row
+    * @return revenue in cents, less refunds
+    */
+   public long getRevenue(int row) {
+      return revenue[row];
+   }
+}
@@ -0,0 +1,185 @@
+/**
+ * The open search cursors. Each client may only keep a few cursors open;
+ * opening one more closes that client's least recently used cursor. A
+ * cursor that is not used for a while is closed as well, so a search that
+ * is abandoned part way through does not hold on to memory.
+ *
+ * Opening a cursor looks only at its own client's few cursors and at the
+ * front of a queue of cursors by last use, so it costs the same however
+ * many cursors other clients have open. A cursor closed without the lock
+ * stays in those lists until they next reach it. Counting the cursors
+ * still looks at every one, but without the lock.
+ */
+package Source.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+class SearchCursors {
+   //iterator ID -> cursor
+   private final ConcurrentHashMap<String, ItemIterator> cursors = new ConcurrentHashMap<>();
+   //guarded by this: client ID -> the client's cursors, some perhaps closed already
+   private final HashMap<Integer, ArrayDeque<ItemIterator>> byClient = new HashMap<>();
+   //guarded by this: the cursors, roughly least recently used first
+   private final ArrayDeque<Queued> idle = new ArrayDeque<>();
+   private volatile int perClient;
+   private volatile long idleNanos;
+
+   /**
+    * A cursor in the idle queue, with the last use it was queued at. A
+    * cursor used since is queued again behind the others when it reaches
+    * the front, rather than moved on every use.
+    */
+   private static class Queued {
+      final ItemIterator cursor;
+      long used;
+
+      Queued(ItemIterator cursor) {
+         this.cursor = cursor;
+         this.used = cursor.getLastUsed();
+      }
+   }
+
+   /**
+    * @param perClient the most cursors a client may keep open
+    * @param idle      how long a cursor may go unused
+    * @param unit      the unit of idle
+    */
+   public SearchCursors(int perClient, long idle, TimeUnit unit) {
+      setLimits(perClient, idle, unit);
+   }
+
+   /**
+    * Change the limits. They apply from the next cursor opened or used.
+    *
+    * @param perClient the most cursors a client may keep open
+    * @param idle      how long a cursor may go unused
+    * @param unit      the unit of idle
+    */
+   public void setLimits(int perClient, long idle, TimeUnit unit) {
+      if (perClient <= 0 || idle <= 0) {
+         throw new IllegalArgumentException("Cursor limits must be positive");
+      }
+      this.perClient = perClient;
+      this.idleNanos = unit.toNanos(idle);
+   }
+
+   /**
+    * Register a new cursor, closing idle cursors and, if its client is at
+    * its limit, the client's least recently used ones.
+    *
+    * @param cursor the cursor
+    */
+   public synchronized void open(ItemIterator cursor) {
+      closeIdle(System.nanoTime());
+
+      ArrayDeque<ItemIterator> mine = byClient.get(cursor.getClient());
+      if (mine == null) {
+         mine = new ArrayDeque<>();
+         byClient.put(cursor.getClient(), mine);
+      }
+      for (Iterator<ItemIterator> i = mine.iterator(); i.hasNext(); ) {
+         if (!isOpen(i.next())) {
+            i.remove();
+         }
+      }
+      while (mine.size() >= perClient) {
+         ItemIterator oldest = null;
+         for (ItemIterator c : mine) {
+            if (oldest == null || c.getLastUsed() - oldest.getLastUsed() < 0) {
+               oldest = c;
+            }
+         }
+         mine.remove(oldest);
+         cursors.remove(oldest.getID(), oldest);
+      }
+      mine.add(cursor);
+      cursors.put(cursor.getID(), cursor);
+      idle.add(new Queued(cursor));
+   }
+
+   //close the cursors at the front of the idle queue that have been idle too long
+   private void closeIdle(long now) {
+      Queued queued;
+      while ((queued = idle.peek()) != null) {
+         ItemIterator cursor = queued.cursor;
+         long used = cursor.getLastUsed();
+         if (isOpen(cursor) && now - used <= idleNanos) {
+            if (used == queued.used) {
+               // the least recently used cursor is still in use
+               return;
+            }
+            idle.poll();
+            queued.used = used;
+            idle.add(queued);
+            continue;
+         }
+         idle.poll();
+         cursors.remove(cursor.getID(), cursor);
+         ArrayDeque<ItemIterator> theirs = byClient.get(cursor.getClient());
+         if (theirs != null) {
+            theirs.remove(cursor);
+            if (theirs.isEmpty()) {
+               byClient.remove(cursor.getClient());
+            }
+         }
+      }
+   }
+
+   private boolean isOpen(ItemIterator cursor) {
+      return cursors.get(cursor.getID()) == cursor;
+   }
+
+   /**
+    * @param id the iterator ID
+    * @return the cursor, or null if there is none or it has been idle too long
+    */
+   public ItemIterator get(String id) {
+      ItemIterator cursor = cursors.get(id);
+      if (cursor != null && System.nanoTime() - cursor.getLastUsed() > idleNanos) {
+         cursors.remove(id, cursor);
+         return null;
+      }
+      return cursor;
+   }
+
+   /**
+    * @param id the iterator ID
+    */
+   public void close(String id) {
+      cursors.remove(id);
+   }
+
+   /**
+    * @return the number of open cursors
+    */
+   public int count() {
+      expire();
+      return cursors.size();
+   }
+
+   /**
+    * @return roughly how many bytes the open cursors hold on to
+    */
+   public long memory() {
+      expire();
+      long bytes = 0;
+      for (ItemIterator cursor : cursors.values()) {
+         bytes += cursor.memory();
+      }
+      return bytes;
+   }
+
+   //close every cursor that has been idle too long
+   private void expire() {
+      long now = System.nanoTime();
+      for (Iterator<ItemIterator> i = cursors.values().iterator(); i.hasNext(); ) {
+         if (now - i.next().getLastUsed() > idleNanos) {
+            i.remove();
+         }
+      }
+   }
+}
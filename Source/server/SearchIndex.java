@@ -0,0 +1,283 @@
+/**
+ * An inverted trigram index over the lower-cased item codes and descriptions.
+ * Each three-character sequence maps to the sorted list of item IDs containing
+ * it, so a search only has to confirm the items found in every list of the
+ * pattern instead of scanning the whole inventory. Any number of searches
+ * may run at once; adding or removing an item waits for them to finish.
+ */
+package Source.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class SearchIndex {
+   //length of the indexed character sequences
+   private static final int GRAM = 3;
+
+   //trigram -> IDs of the items containing it
+   private HashMap<Long, PostingList> postings;
+   //indexed items by item ID (null once removed)
+   private ArrayList<Item> items;
+   //searches share the index; changes to it are exclusive
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+   public SearchIndex() {
+      postings = new HashMap<>();
+      items = new ArrayList<>();
+   }
+
+   /**
+    * Add an item to the index. Item IDs are handed out in increasing order,
+    * which keeps every posting list sorted without any extra work.
+    *
+    * @param item the item to index
+    */
+   public void add(Item item) {
+      int id = item.getID();
+      lock.writeLock().lock();
+      try {
+         while (items.size() <= id) {
+            items.add(null);
+         }
+         items.set(id, item);
+
+         addGrams(postings, item.getSearchCode(), id);
+         addGrams(postings, item.getSearchDescription(), id);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Add many items at once. Slices of the items are indexed on separate
+    * threads and their posting lists joined end to end, which keeps them
+    * sorted since each slice has higher IDs than the one before.
+    *
+    * @param items the items to index, in increasing ID order
+    */
+   public void addAll(List<Item> items) {
+      int slices = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), items.size() / 10000));
+      ArrayList<Future<HashMap<Long, PostingList>>> parts = new ArrayList<>();
+      for (int i = 0; i < slices; i++) {
+         final List<Item> slice = items.subList(items.size() * i / slices, items.size() * (i + 1) / slices);
+         parts.add(ForkJoinPool.commonPool().submit(new Callable<HashMap<Long, PostingList>>() {
+            public HashMap<Long, PostingList> call() {
+               HashMap<Long, PostingList> grams = new HashMap<>();
+               for (Item item : slice) {
+                  addGrams(grams, item.getSearchCode(), item.getID());
+                  addGrams(grams, item.getSearchDescription(), item.getID());
+               }
+               return grams;
+            }
+         }));
+      }
+
+      lock.writeLock().lock();
+      try {
+         for (Item item : items) {
+            int id = item.getID();
+            while (this.items.size() <= id) {
+               this.items.add(null);
+            }
+            this.items.set(id, item);
+         }
+         for (Future<HashMap<Long, PostingList>> part : parts) {
+            for (Map.Entry<Long, PostingList> entry : part.get().entrySet()) {
+               PostingList list = postings.get(entry.getKey());
+               if (list == null) {
+                  postings.put(entry.getKey(), entry.getValue());
+               } else {
+                  list.addAll(entry.getValue());
+               }
+            }
+         }
+      } catch (InterruptedException | ExecutionException e) {
+         throw new IllegalStateException("Unable to build the search index", e);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Remove an item from the index. The posting lists keep the stale ID;
+    * it is skipped when the candidates are confirmed.
+    *
+    * @param item the item to remove
+    */
+   public void remove(Item item) {
+      int id = item.getID();
+      lock.writeLock().lock();
+      try {
+         if (id < items.size() && items.get(id) == item) {
+            items.set(id, null);
+         }
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Find all the items whose code or description contains the pattern
+    * (case insensitive).
+    *
+    * @param pattern the string to search for (partial matches OK)
+    * @return the matching items, ordered by item ID
+    */
+   public List<Item> find(String pattern) {
+      lock.readLock().lock();
+      try {
+         return find(pattern.toLowerCase(), new ArrayList<Item>());
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Find the matching items. Called with the read lock held.
+    *
+    * @param lower  the lower-cased pattern
+    * @param result the list to add the matches to
+    * @return the result list
+    */
+   private List<Item> find(String lower, ArrayList<Item> result) {
+      if (lower.length() < GRAM) {
+         // too short to have a trigram, so every item is a candidate
+         for (Item item : items) {
+            if (item != null && item.matchesLowerCase(lower)) {
+               result.add(item);
+            }
+         }
+         return result;
+      }
+
+      PostingList[] lists = new PostingList[lower.length() - GRAM + 1];
+      for (int i = 0; i < lists.length; i++) {
+         lists[i] = postings.get(gram(lower, i));
+         if (lists[i] == null) {
+            // some trigram of the pattern is not in any item
+            return result;
+         }
+      }
+
+      // intersect starting from the shortest list to keep the candidates small
+      Arrays.sort(lists, new Comparator<PostingList>() {
+         public int compare(PostingList a, PostingList b) {
+            return a.size - b.size;
+         }
+      });
+      int[] candidates = Arrays.copyOf(lists[0].ids, lists[0].size);
+      int count = candidates.length;
+      for (int i = 1; i < lists.length && count > 0; i++) {
+         if (lists[i] != lists[i - 1]) {
+            count = lists[i].retain(candidates, count);
+         }
+      }
+
+      for (int i = 0; i < count; i++) {
+         Item item = items.get(candidates[i]);
+         // the trigrams only show the pattern may be there; confirm it
+         if (item != null && item.matchesLowerCase(lower)) {
+            result.add(item);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Record every trigram of the text in the posting lists.
+    *
+    * @param grams the posting lists
+    * @param text  the lower-cased text to index
+    * @param id    the ID of the item the text belongs to
+    */
+   private static void addGrams(HashMap<Long, PostingList> grams, String text, int id) {
+      for (int i = 0; i + GRAM <= text.length(); i++) {
+         Long key = gram(text, i);
+         PostingList list = grams.get(key);
+         if (list == null) {
+            list = new PostingList();
+            grams.put(key, list);
+         }
+         list.add(id);
+      }
+   }
+
+   /**
+    * Pack the trigram starting at the given position into a single key.
+    *
+    * @param text  the text
+    * @param start index of the first character
+    * @return the trigram key
+    */
+   private static Long gram(String text, int start) {
+      return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+   }
+
+   /**
+    * A growable, sorted array of item IDs.
+    */
+   private static class PostingList {
+      private int[] ids = new int[4];
+      private int size;
+
+      /**
+       * Append an ID. IDs arrive in increasing order; a repeat of the last ID
+       * (the trigram occurs twice in the same item) is ignored.
+       *
+       * @param id the item ID
+       */
+      void add(int id) {
+         if (size > 0 && ids[size - 1] == id) {
+            return;
+         }
+         if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+         }
+         ids[size++] = id;
+      }
+
+      /**
+       * Append all the IDs of a list whose IDs are all higher.
+       *
+       * @param other the list to append
+       */
+      void addAll(PostingList other) {
+         if (size + other.size > ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(size + other.size, size * 2));
+         }
+         System.arraycopy(other.ids, 0, ids, size, other.size);
+         size += other.size;
+      }
+
+      /**
+       * Keep only the candidates that are also in this list.
+       *
+       * @param candidates sorted candidate IDs, compacted in place
+       * @param count      number of valid candidates
+       * @return the number of candidates left
+       */
+      int retain(int[] candidates, int count) {
+         int kept = 0;
+         int j = 0;
+         for (int i = 0; i < count && j < size; i++) {
+            int id = candidates[i];
+            while (j < size && ids[j] < id) {
+               j++;
+            }
+            if (j < size && ids[j] == id) {
+               candidates[kept++] = id;
+            }
+         }
+         return kept;
+      }
+   }
+}
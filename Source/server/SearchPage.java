@@ -0,0 +1,164 @@
+/**
+ * A page of search results, holding only the item fields that were asked
+ * for. Each field is a column indexed by row, so a page is a handful of
+ * arrays no matter how many rows it holds.
+ */
+package Source.server;
+
+import java.util.List;
+
+public final class SearchPage {
+   private final int size;
+   private final String continuation;
+   //columns; null for the fields that were not asked for
+   private final String[] codes;
+   private final String[] descriptions;
+   private final int[] costs;
+   private final int[] quantities;
+   private final int[] backorders;
+
+   /**
+    * Make a page from its columns; a column is null if its field was not
+    * asked for. Used to rebuild a page that came over the network.
+    */
+   public SearchPage(int size, String continuation, String[] codes, String[] descriptions,
+              int[] costs, int[] quantities, int[] backorders) {
+      this.size = size;
+      this.continuation = continuation;
+      this.codes = codes;
+      this.descriptions = descriptions;
+      this.costs = costs;
+      this.quantities = quantities;
+      this.backorders = backorders;
+   }
+
+   /**
+    * Copy the requested fields of some items into a page.
+    *
+    * @param items        the items, in order
+    * @param continuation the token for the next page, or null
+    * @param fields       the fields to copy
+    * @return the page
+    */
+   static SearchPage of(List<Item> items, String continuation, POSServer.ItemField... fields) {
+      int size = items.size();
+      String[] codes = null;
+      String[] descriptions = null;
+      int[] costs = null;
+      int[] quantities = null;
+      int[] backorders = null;
+      for (POSServer.ItemField field : fields) {
+         switch (field) {
+         case CODE:
+            codes = new String[size];
+            break;
+         case COST:
+            costs = new int[size];
+            break;
+         case DESCRIPTION:
+            descriptions = new String[size];
+            break;
+         case QUANTITY:
+            quantities = new int[size];
+            break;
+         case BACKORDER_QUANTITY:
+            backorders = new int[size];
+            break;
+         }
+      }
+
+      for (int row = 0; row < size; row++) {
+         Item item = items.get(row);
+         if (codes != null) {
+            codes[row] = item.getCode();
+         }
+         if (descriptions != null) {
+            descriptions[row] = item.getDescription();
+         }
+         if (costs != null) {
+            costs[row] = item.getCost();
+         }
+         if (quantities != null) {
+            quantities[row] = item.getInStock();
+         }
+         if (backorders != null) {
+            backorders[row] = item.getBackorder();
+         }
+      }
+      return new SearchPage(size, continuation, codes, descriptions, costs, quantities, backorders);
+   }
+
+   /**
+    * @return the number of rows on this page
+    */
+   public int size() {
+      return size;
+   }
+
+   /**
+    * @return the token for the next page, or null if this is the last page
+    */
+   public String getContinuation() {
+      return continuation;
+   }
+
+   /**
+    * @param field an item field
+    * @return true if the page holds that field
+    */
+   public boolean hasField(POSServer.ItemField field) {
+      switch (field) {
+      case CODE:
+         return codes != null;
+      case COST:
+         return costs != null;
+      case DESCRIPTION:
+         return descriptions != null;
+      case QUANTITY:
+         return quantities != null;
+      case BACKORDER_QUANTITY:
+         return backorders != null;
+      }
+      return false;
+   }
+
+   /**
+    * @param row the row
+    * @return item code
+    */
+   public String getCode(int row) {
+      return codes[row];
+   }
+
+   /**
+    * @param row the row
+    * @return item description
+    */
+   public String getDescription(int row) {
+      return descriptions[row];
+   }
+
+   /**
+    * @param row the row
+    * @return item cost in cents
+    */
+   public int getCost(int row) {
+      return costs[row];
+   }
+
+   /**
+    * @param row the row
+    * @return in stock quantity
+    */
+   public int getQuantity(int row) {
+      return quantities[row];
+   }
+
+   /**
+    * @param row the row
+    * @return backorder quantity
+    */
+   public int getBackorder(int row) {
+      return backorders[row];
+   }
+}
@@ -1,19 +1,103 @@
 /**
  * Server class implementing the POSServer interface. Stores inventory
- * and transactions.
+ * and transactions. Safe to call from many lanes at once: the maps are
+ * concurrent, IDs are handed out atomically, each transaction is changed
+ * under its own lock and each item under its striped lock (see ItemLocks).
+ * Completing or cancelling a transaction holds the locks of all its items
+ * at once, so it happens all together or not at all.
  */
 
 package Source.server;
 import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.TreeMap;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import Source.metrics.MetricRegistry;
 
 class Server implements POSServer {
-   private TreeMap<String, Item> inventory;
-   private HashMap<String, Transaction> transactions;
-   private HashMap<String, ItemIterator> iterators;
-   private static int lastID = 1;
+   private ItemStore inventory;
+   private ConcurrentHashMap<String, Transaction> transactions;
+   private SearchCursors iterators;
+   private SearchIndex searchIndex;
+   private SortedIndexes sortedIndexes;
+   //every change to an item's stock or backorder, newest last
+   private ChangeFeed changeFeed;
+   private ServerStatistics statistics;
+   //units and revenue by item and hour, and the best sellers
+   private SalesAnalytics analytics;
+   private static final AtomicInteger lastID = new AtomicInteger(1);
+   //open search cursors allowed per client, and minutes a cursor may sit unused
+   private static final int DEFAULT_CURSORS_PER_CLIENT = 16;
+   private static final long DEFAULT_CURSOR_IDLE_MINUTES = 5;
+   //changes kept in the change feed
+   private static final int CHANGE_FEED_CAPACITY = 1 << 16;
+   //the client charged for searches begun without one
+   private static final int NO_CLIENT = -1;
+   private volatile int lastItemID = 0;
+   //number of items in the inventory (the skip list's size() is a full walk)
+   private final AtomicInteger itemCount = new AtomicInteger();
+   //records every change to the transactions, or null if not kept
+   private TransactionJournal journal;
+   //where the journal and snapshots are kept, or null if not kept
+   private File dataDirectory;
+   //changes share this lock; a snapshot takes it exclusively to see a consistent state
+   private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+   //held while a snapshot is written, one at a time
+   private final Object snapshotLock = new Object();
+   //takes the periodic snapshots, or null if not started
+   private ScheduledExecutorService snapshotter;
+   //finished transactions moved out of memory, or null if not kept
+   private TransactionArchive archive;
+   //true once old finished transactions are being archived
+   private volatile boolean archiving;
+   //finished transactions, in the order they finished, waiting to be archived
+   private final ConcurrentLinkedQueue<Finished> finished = new ConcurrentLinkedQueue<>();
+   //brings archived transactions back one at a time
+   private final Object restoreLock = new Object();
+   //held while a batch is written to the archive, one at a time
+   private final Object archiveLock = new Object();
+   //moves old finished transactions to the archive, or null if not started
+   private ScheduledExecutorService archiver;
+   //most transactions looked at per hold of the checkpoint lock while archiving
+   private static final int ARCHIVE_BATCH = 4096;
+   //the promotions new purchases are priced with, or null for none
+   private volatile Promotions promotions;
+   //where the waits inside operations are timed, or null until instrumented
+   private volatile ServerTimers timers;
+
+   /**
+    * Receives the transactions handed out by forEachTransaction().
+    */
+   interface TransactionVisitor {
+      void visit(Transaction t) throws IOException;
+   }
+
+   /**
+    * A transaction waiting to be archived, and when it finished.
+    */
+   private static class Finished {
+      final Transaction transaction;
+      final long at;
+
+      Finished(Transaction transaction, long at) {
+         this.transaction = transaction;
+         this.at = at;
+      }
+   }
 
    /**
     * Get the initial inventory from the given file.
@@ -21,59 +105,661 @@ class Server implements POSServer {
     * @param inventoryFile the name of the file to read inventory from
     */
    public Server(File inventoryFile) {
-      inventory = new TreeMap<>();
-      transactions = new HashMap<>();
-      iterators = new HashMap<>();
-      
-      String msg = readInventory(inventoryFile);
-      if (msg != null) {
-         System.out.println(msg);
+      this(inventoryFile, null);
+   }
+
+   /**
+    * Start a server that keeps its state in a data directory. If the
+    * directory holds a snapshot, the server starts from the newest one and
+    * the inventory file is not read; otherwise it starts from the inventory
+    * file. Either way, the journal written since is replayed to bring the
+    * inventory and transactions back to where they were, and changes from
+    * then on are added to the journal. Transactions archived before the
+    * snapshot are found in the directory's archive.
+    *
+    * @param inventoryFile the name of the file to read inventory from
+    * @param dataDirectory the directory for the journal and snapshots
+    *                      (created if missing), or null to keep none
+    */
+   public Server(File inventoryFile, File dataDirectory) {
+      this(inventoryFile, dataDirectory, false);
+   }
+
+   /**
+    * Start a server as above, choosing how the inventory is kept. Packed
+    * items (see PackedItemStore) take a fraction of the memory of the
+    * usual objects, for catalogs of millions of items.
+    *
+    * @param inventoryFile the name of the file to read inventory from
+    * @param dataDirectory the directory for the journal and snapshots
+    *                      (created if missing), or null to keep none
+    * @param packedItems   true to keep the items packed in arrays
+    */
+   public Server(File inventoryFile, File dataDirectory, boolean packedItems) {
+      inventory = packedItems ? new PackedItemStore() : new HeapItemStore();
+      transactions = new ConcurrentHashMap<>();
+      iterators = new SearchCursors(DEFAULT_CURSORS_PER_CLIENT, DEFAULT_CURSOR_IDLE_MINUTES, TimeUnit.MINUTES);
+      searchIndex = new SearchIndex();
+      changeFeed = new ChangeFeed(CHANGE_FEED_CAPACITY);
+      sortedIndexes = new SortedIndexes(inventory, changeFeed);
+      statistics = new ServerStatistics();
+      analytics = new SalesAnalytics();
+      this.dataDirectory = dataDirectory;
+
+      File snapshot = dataDirectory == null ? null : InventorySnapshot.latest(dataDirectory);
+      long journalOffset = 0;
+      long archiveEnd = 0;
+      if (snapshot != null) {
+         try {
+            long[] header = loadSnapshot(snapshot);
+            journalOffset = header[1];
+            archiveEnd = header[3];
+         } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to load snapshot " + snapshot, ioe);
+         }
+      } else {
+         String msg = readInventory(inventoryFile);
+         if (msg != null) {
+            System.out.println(msg);
+         }
+      }
+
+      if (dataDirectory != null) {
+         try {
+            Files.createDirectories(dataDirectory.toPath());
+            archive = new TransactionArchive(dataDirectory, archiveEnd);
+         } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to open archive in " + dataDirectory, ioe);
+         }
+
+         try {
+            journal = new TransactionJournal(dataDirectory, replayJournal(journalOffset));
+         } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to open journal in " + dataDirectory, ioe);
+         }
       }
    }
 
    /**
-    * Read the contents of a file into the inventory.
-    * 
-    * @param inventoryFile the name of the file
-    * @return null if successful; otherwise, a message describing the error(s)
+    * Load the inventory and transactions from a snapshot.
+    *
+    * @param snapshot the snapshot file
+    * @return the snapshot header (see InventorySnapshot.load)
+    * @throws IOException if the snapshot cannot be read
     */
-   private String readInventory(File inventoryFile) {
-      String msg = "";
-      BufferedReader in;
-      String line;
-      String[] tokens;
-      int cost, quantity;
-      
-      try {
-         in = new BufferedReader(new FileReader(inventoryFile));
-         
-         line = in.readLine();
-         while (line != null) {
-            tokens = line.split(",");
-            if (tokens.length != 4) {
-               msg += "Invalid line: " + line + "\n";
-            } else {
-               cost = -1;
-               quantity = -1;
+   private long[] loadSnapshot(File snapshot) throws IOException {
+      long[] header = InventorySnapshot.load(snapshot, new InventorySnapshot.Loader() {
+         public void counters(long[] counters) {
+            statistics.restore(counters);
+         }
+
+         public void item(String code, String description, int cost, int inStock, int backorder) {
+            addItem(inventory.newItem(lastItemID++, code, description, cost, inStock, backorder));
+         }
+
+         public void transaction(int id, TransactionType type, long time, int client,
+                                 boolean complete, boolean cancelled, String[] codes, int[] quantities,
+                                 long[] discounts, long basketDiscount) {
+            Transaction t = restore(id, type, time, client, complete, cancelled, codes, quantities,
+                  discounts, basketDiscount);
+            transactions.put(t.getID(), t);
+         }
+
+         public void sale(String code, long hour, long units, long revenue) {
+            analytics.restore(inventory.get(code), hour, units, revenue);
+         }
+      });
+      lastID.accumulateAndGet((int) header[0], Math::max);
+      //the journal replayed after this numbers its changes on from here
+      changeFeed.restore(header[2]);
+      return header;
+   }
+
+   /**
+    * Take a snapshot of the server now. Changes wait only while the state
+    * is copied out; the copy is written while they go on, and becomes the
+    * newest snapshot once the journal has reached the disk up to the same
+    * point. The journal segments it makes unnecessary are then deleted.
+    *
+    * @throws IOException if the snapshot cannot be written
+    */
+   public void snapshot() throws IOException {
+      if (journal == null) {
+         throw new IllegalStateException("Snapshots need a data directory");
+      }
+
+      ServerTimers timers = this.timers;
+      long start = timers == null ? 0 : System.nanoTime();
+      synchronized (snapshotLock) {
+         InventorySnapshot.Image image;
+         long offset;
+         checkpointLock.writeLock().lock();
+         try {
+            offset = journal.appendedOffset();
+            image = InventorySnapshot.capture(offset, lastID.get(), changeFeed.latest(), archive.end(),
+                  statistics.counters(), inventory.values(), transactions.values(), analytics.sales());
+         } finally {
+            checkpointLock.writeLock().unlock();
+         }
+         File temp = InventorySnapshot.write(dataDirectory, image);
+         journal.awaitDurable(offset);
+         //the snapshot leaves out what was archived before it
+         archive.force();
+         InventorySnapshot.publish(temp);
+         journal.discard(offset);
+      }
+      if (timers != null) {
+         timers.snapshot.record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+    * Take a snapshot at a fixed interval from a background thread.
+    *
+    * @param period time between snapshots
+    * @param unit   the unit of the period
+    */
+   public synchronized void startSnapshots(long period, TimeUnit unit) {
+      if (snapshotter == null) {
+         snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "snapshotter");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+         snapshotter.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
                try {
-                  cost = Integer.parseInt(tokens[2]);
-                  quantity = Integer.parseInt(tokens[3]);
-               } catch (NumberFormatException nfe) {
+                  snapshot();
+               } catch (IOException ioe) {
+                  System.out.println("Unable to take snapshot: " + ioe.getMessage());
+               }
+            }
+         }, period, period, unit);
+      }
+   }
+
+   /**
+    * Move the transactions that finished (completed or cancelled) at least
+    * the given time ago out of memory and into the archive. They can still
+    * be queried and cancelled; one that is changed is brought back first.
+    * Each batch is written to the archive while changes go on; changes
+    * wait only while the batch is taken out of memory.
+    *
+    * @param age  how long ago a transaction must have finished
+    * @param unit the unit of age
+    * @return the number of transactions moved
+    * @throws IOException if the archive cannot be written
+    */
+   public int archive(long age, TimeUnit unit) throws IOException {
+      if (archive == null) {
+         throw new IllegalStateException("Archiving needs a data directory");
+      }
+
+      ServerTimers timers = this.timers;
+      long start = System.nanoTime();
+      long cutoff = start - unit.toNanos(age);
+      int moved = 0;
+      boolean more = true;
+      synchronized (archiveLock) {
+         while (more) {
+            ArrayList<Finished> batch = new ArrayList<>();
+            int looked = 0;
+            Finished head;
+            while (looked < ARCHIVE_BATCH && (head = finished.peek()) != null && head.at - cutoff <= 0) {
+               finished.poll();
+               looked++;
+               Transaction t = head.transaction;
+               //the transaction is locked while it is written, so no change is half in
+               synchronized (t) {
+                  //skip it if it finished again since, or is gone already
+                  if (t.getFinishedAt() == head.at && (t.isComplete() || t.isCancelled())
+                        && transactions.get(t.getID()) == t) {
+                     archive.append(t);
+                     batch.add(head);
+                  }
+               }
+            }
+            more = looked == ARCHIVE_BATCH;
+            archive.flush();
+
+            checkpointLock.writeLock().lock();
+            try {
+               for (Finished written : batch) {
+                  Transaction t = written.transaction;
+                  //one changed since it was written stays, and is written again later
+                  if (t.getFinishedAt() == written.at && transactions.remove(t.getID(), t)) {
+                     moved++;
+                  }
                }
-               if (cost < 0)
-                  msg += "Invalid cost: " + line + "\n";
-               else if (quantity < 0)
-                  msg += "Invalid quantity: " + line + "\n";
-               else
-                  inventory.put(tokens[0], new Item(tokens[0], tokens[1], cost, quantity));
+            } finally {
+               checkpointLock.writeLock().unlock();
             }
-            line = in.readLine();
          }
+      }
+      if (timers != null) {
+         timers.archive.record(System.nanoTime() - start);
+      }
+      return moved;
+   }
+
+   /**
+    * Archive the transactions that finished at least the given time ago,
+    * from a background thread, from now on.
+    *
+    * @param age  how long ago a transaction must have finished
+    * @param unit the unit of age
+    */
+   public synchronized void startArchiving(final long age, final TimeUnit unit) {
+      if (archive == null) {
+         throw new IllegalStateException("Archiving needs a data directory");
+      }
+      if (archiver != null) {
+         return;
+      }
+
+      //queue what has finished already, oldest first
+      checkpointLock.writeLock().lock();
+      try {
+         ArrayList<Finished> done = new ArrayList<>();
+         long now = System.nanoTime();
+         for (Transaction t : transactions.values()) {
+            if (t.isComplete() || t.isCancelled()) {
+               if (t.getFinishedAt() == 0) {
+                  t.setFinishedAt(now);
+               }
+               done.add(new Finished(t, t.getFinishedAt()));
+            }
+         }
+         Collections.sort(done, new Comparator<Finished>() {
+            public int compare(Finished a, Finished b) {
+               return Long.compare(a.at - b.at, 0);
+            }
+         });
+         finished.addAll(done);
+         archiving = true;
+      } finally {
+         checkpointLock.writeLock().unlock();
+      }
+
+      archiver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "archiver");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      long period = Math.max(unit.toMillis(age) / 4, 1000);
+      archiver.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               archive(age, unit);
+            } catch (IOException ioe) {
+               System.out.println("Unable to archive transactions: " + ioe.getMessage());
+            }
+         }
+      }, period, period, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Note that a transaction has just finished, been changed after it
+    * finished, or been brought back from the archive, so the archiver takes
+    * it once it is old enough. Called with a change begun.
+    *
+    * @param t the transaction
+    */
+   private void finished(Transaction t) {
+      if (archiving) {
+         long now = System.nanoTime();
+         t.setFinishedAt(now);
+         finished.add(new Finished(t, now));
+      }
+   }
+
+   /**
+    * Find a transaction to look at: in memory, or read from the archive.
+    *
+    * @param id the transaction ID
+    * @return the transaction, or null if there is none
+    */
+   private Transaction find(String id) {
+      Transaction t = transactions.get(id);
+      if (t == null && archive != null) {
+         t = readArchived(id);
+      }
+      return t;
+   }
+
+   /**
+    * Find a transaction to change, bringing it back into memory if it was
+    * archived. Called with a change begun, so the archiver can't move it
+    * out again until the change ends.
+    *
+    * @param id the transaction ID
+    * @return the transaction, or null if there is none
+    */
+   private Transaction findForChange(String id) {
+      Transaction t = transactions.get(id);
+      if (t == null && archive != null) {
+         synchronized (restoreLock) {
+            t = transactions.get(id);
+            if (t == null) {
+               t = readArchived(id);
+               if (t != null) {
+                  transactions.put(id, t);
+                  finished(t);
+               }
+            }
+         }
+      }
+      return t;
+   }
+
+   /**
+    * Read a transaction from the archive, without putting it back.
+    *
+    * @param id the transaction ID
+    * @return the transaction, or null if it is not archived
+    */
+   private Transaction readArchived(String id) {
+      int number;
+      try {
+         number = Integer.parseInt(id);
+      } catch (NumberFormatException nfe) {
+         return null;
+      }
+
+      final Transaction[] result = new Transaction[1];
+      try {
+         archive.read(number, new TransactionArchive.Reader() {
+            public void transaction(int id, TransactionType type, long time, int client,
+                                    boolean complete, boolean cancelled, String[] codes, int[] quantities,
+                                    long[] discounts, long basketDiscount) {
+               result[0] = restore(id, type, time, client, complete, cancelled, codes, quantities,
+                     discounts, basketDiscount);
+            }
+         });
       } catch (IOException ioe) {
-         msg += ioe.getMessage();
+         throw new UncheckedIOException("Unable to read archived transaction " + id, ioe);
       }
-      
-      return msg.length() == 0 ? null : msg;
+      return result[0];
+   }
+
+   /**
+    * Rebuild a transaction as it was saved. The inventory already reflects
+    * it, so nothing else changes.
+    *
+    * @return the transaction
+    */
+   private Transaction restore(int id, TransactionType type, long time, int client,
+                               boolean complete, boolean cancelled, String[] codes, int[] quantities,
+                               long[] discounts, long basketDiscount) {
+      Transaction t = makeTransaction(id, type, time, client, promotions);
+      price(t, codes, quantities, discounts, basketDiscount);
+      t.restore(complete, cancelled);
+      return t;
+   }
+
+   /**
+    * Put back the lines of a transaction being restored, priced as they
+    * were saved rather than with the promotions now.
+    *
+    * @param discounts      the discount on each line
+    * @param basketDiscount the basket discount
+    */
+   private void price(Transaction t, String[] codes, int[] quantities, long[] discounts, long basketDiscount) {
+      for (int i = 0; i < codes.length; i++) {
+         t.addItem(inventory.get(codes[i]), quantities[i], discounts[i]);
+      }
+      t.restoreBasketDiscount(basketDiscount);
+   }
+
+   /**
+    * Begin a change to the transactions; a snapshot waits until it ends.
+    */
+   private void beginChange() {
+      if (journal != null) {
+         ServerTimers timers = this.timers;
+         if (timers == null) {
+            checkpointLock.readLock().lock();
+         } else {
+            long start = System.nanoTime();
+            checkpointLock.readLock().lock();
+            timers.checkpointWait.record(System.nanoTime() - start);
+         }
+      }
+   }
+
+   /**
+    * Check that changes can still be journaled. Once the journal has failed
+    * the server is read only: every change is refused before it is made,
+    * rather than made in memory and lost. A change already under way when
+    * the journal fails is reported as not recorded.
+    *
+    * @return an error message, or null if changes can be made
+    */
+   private String journalFailed() {
+      IOException failure = journal == null ? null : journal.failed();
+      return failure == null ? null : "Unable to record transaction: " + failure.getMessage();
+   }
+
+   /**
+    * End a change begun with beginChange().
+    */
+   private void endChange() {
+      if (journal != null) {
+         checkpointLock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Apply the records of the journal to the server, in order. Nothing is
+    * journaled while this runs.
+    *
+    * @param offset where to start in the journal
+    * @return the offset of the end of the last record replayed
+    * @throws IOException if the journal cannot be read
+    */
+   private long replayJournal(long offset) throws IOException {
+      return TransactionJournal.replay(dataDirectory, offset, new TransactionJournal.Replayer() {
+         public void create(int id, TransactionType type, long time, int client) {
+            newTransaction(id, type, time, client);
+         }
+
+         public void add(int id, String code, int quantity, long discount, long basketDiscount) {
+            addItemToTransaction("" + id, code, quantity, discount);
+            restoreBasketDiscount(id, basketDiscount);
+         }
+
+         public void complete(int id, long basketDiscount) {
+            restoreBasketDiscount(id, basketDiscount);
+            completeTransaction("" + id);
+         }
+
+         public void cancel(int id, long time, int client, long basketDiscount) {
+            restoreBasketDiscount(id, basketDiscount);
+            cancelTransaction("" + id, time, client);
+         }
+      });
+   }
+
+   /**
+    * Give a transaction being replayed the basket discount it had when the
+    * change was first made, so a completion or cancellation counts the
+    * revenue it did then.
+    *
+    * @param id       the transaction ID
+    * @param discount the basket discount
+    */
+   private void restoreBasketDiscount(int id, long discount) {
+      Transaction t = findForChange("" + id);
+      if (t != null) {
+         t.restoreBasketDiscount(discount);
+      }
+   }
+
+   /**
+    * Price purchases with a set of promotions. Each purchase keeps the
+    * promotions it was created with, so a change only reaches the
+    * purchases created after it. Purchases brought back from the journal,
+    * a snapshot or the archive keep the discounts they were priced with;
+    * only lines changed from then on are priced with these promotions.
+    *
+    * @param promotions the promotions, or null for none
+    */
+   public void setPromotions(Promotions promotions) {
+      this.promotions = promotions;
+   }
+
+   /**
+    * Sync the journal and stop writing to it. The server should not be
+    * changed after this.
+    *
+    * @throws IOException if the journal could not be synced
+    */
+   public void close() throws IOException {
+      synchronized (this) {
+         if (snapshotter != null) {
+            snapshotter.shutdownNow();
+         }
+         if (archiver != null) {
+            archiver.shutdownNow();
+         }
+      }
+      try {
+         if (journal != null) {
+            journal.close();
+         }
+      } finally {
+         if (archive != null) {
+            archive.close();
+         }
+      }
+   }
+
+   /**
+    * Wait for a journal record to reach the disk.
+    *
+    * @param offset the offset returned when the record was appended
+    * @return an error message, or null once the record is durable
+    */
+   private String awaitDurable(long offset) {
+      ServerTimers timers = this.timers;
+      long start = timers == null ? 0 : System.nanoTime();
+      try {
+         journal.awaitDurable(offset);
+         return null;
+      } catch (IOException ioe) {
+         return "Unable to record transaction: " + ioe.getMessage();
+      } finally {
+         if (timers != null) {
+            timers.journalSyncWait.record(System.nanoTime() - start);
+         }
+      }
+   }
+
+   /**
+    * Lock all the items of a transaction (see Transaction.lockItems).
+    *
+    * @param t the transaction
+    * @return the locks held, for ItemLocks.unlockAll
+    */
+   private int[] lockItems(Transaction t) {
+      ServerTimers timers = this.timers;
+      if (timers == null) {
+         return t.lockItems();
+      }
+      long start = System.nanoTime();
+      int[] locked = t.lockItems();
+      timers.itemLockWait.record(System.nanoTime() - start);
+      return locked;
+   }
+
+   /**
+    * Time the waits inside operations, and the snapshots and archiving,
+    * with timers from a registry from now on (see ServerTimers).
+    *
+    * @param registry where the timers are made
+    */
+   void instrument(MetricRegistry registry) {
+      timers = new ServerTimers(registry);
+   }
+
+   /**
+    * Read the contents of a file into the inventory. The file is parsed on
+    * all cores (see InventoryLoader); the items are added in file order.
+    * 
+    * @param inventoryFile the name of the file
+    * @return null if successful; otherwise, a message describing the error(s)
+    */
+   private String readInventory(File inventoryFile) {
+      final ArrayList<Item> loaded = new ArrayList<>();
+      InventoryLoader.LoadReport report = InventoryLoader.load(inventoryFile,
+            Runtime.getRuntime().availableProcessors(), new InventoryLoader.Sink() {
+         public void item(String code, String description, int cost, int quantity) {
+            loaded.add(inventory.newItem(lastItemID++, code, description, cost, quantity, 0));
+         }
+      });
+      addItems(loaded);
+
+      return report.isEmpty() ? null : report.toString();
+   }
+
+   /**
+    * Put many items in the inventory and its indexes at once. Each index
+    * is built from sorted input, which is much cheaper than adding the
+    * items one by one. A later item replaces an earlier one with the same
+    * code, as addItem() does.
+    *
+    * @param items the items, in ID order
+    */
+   private void addItems(List<Item> items) {
+      Item[] byCode = items.toArray(new Item[items.size()]);
+      //stable, so the last of the items with the same code stays last
+      Arrays.parallelSort(byCode, Item.getComparator(ItemField.CODE));
+
+      BitSet kept = new BitSet(lastItemID);
+      for (int i = 0; i < byCode.length; i++) {
+         if (i + 1 < byCode.length && byCode[i].compareCode(byCode[i + 1]) == 0) {
+            continue;
+         }
+         Item old = inventory.put(byCode[i]);
+         if (old != null) {
+            searchIndex.remove(old);
+            sortedIndexes.remove(old);
+         } else {
+            itemCount.incrementAndGet();
+         }
+         kept.set(byCode[i].getID());
+      }
+
+      ArrayList<Item> added = new ArrayList<>(kept.cardinality());
+      for (Item item : items) {
+         if (kept.get(item.getID())) {
+            added.add(item);
+         }
+      }
+      searchIndex.addAll(added);
+      sortedIndexes.addAll(added);
+   }
+
+   /**
+    * Put an item in the inventory and its indexes, replacing any item
+    * with the same code.
+    *
+    * @param item the item to add
+    */
+   private void addItem(Item item) {
+      Item old = inventory.put(item);
+      if (old != null) {
+         searchIndex.remove(old);
+         sortedIndexes.remove(old);
+      } else {
+         itemCount.incrementAndGet();
+      }
+      searchIndex.add(item);
+      sortedIndexes.add(item);
    }
 
    /**
@@ -85,14 +771,62 @@ class Server implements POSServer {
     * @return the transaction ID, or null on error
     */
    public String createTransaction(TransactionType type, long time, int client) {
+      Transaction t;
+      beginChange();
+      try {
+         if (journalFailed() != null) {
+            return null;
+         }
+         //create the id
+         int id = lastID.getAndIncrement();
+         t = newTransaction(id, type, time, client);
+         if (journal != null) {
+            journal.create(id, type, time, client);
+         }
+      } finally {
+         endChange();
+      }
+      return t.getID();
+   }
+
+   /**
+    * Construct a transaction with the given ID and add it to the server.
+    *
+    * @param  id     the transaction ID
+    * @param  type   the type of transaction
+    * @param  time   the date and time of the transaction
+    * @param  client the client id who created the transaction
+    * @return the transaction
+    */
+   private Transaction newTransaction(int id, TransactionType type, long time, int client) {
+      //IDs replayed from a journal must not be handed out again
+      lastID.accumulateAndGet(id + 1, Math::max);
+      Transaction t = makeTransaction(id, type, time, client, promotions);
+      //add the id to the transaction
+      statistics.created();
+      transactions.put(t.getID(), t);
+      
+      return t;
+   }
+
+   /**
+    * Construct a transaction of the given type, without adding it.
+    *
+    * @param  id     the transaction ID
+    * @param  type   the type of transaction
+    * @param  time   the date and time of the transaction
+    * @param  client the client id who created the transaction
+    * @param  promotions the promotions a purchase is priced with, or null for none
+    * @return the transaction
+    */
+   private static Transaction makeTransaction(int id, TransactionType type, long time, int client, Promotions promotions) {
       Transaction t = null;
-      //create the id
-      String tID = "" + lastID;
+      String tID = "" + id;
 
       switch (type) {
       case PURCHASE:
          //create purchase
-         t = new Purchase(tID, time, client);
+         t = new Purchase(tID, time, client, promotions);
          break;
       case RETURN:
          //create return
@@ -106,11 +840,7 @@ class Server implements POSServer {
       case RESTOCK:
          t= new Restock(tID, time, client);
       }
-      lastID++;
-      //add the id to the transaction
-      transactions.put(tID, t);
-      
-      return t.getID();
+      return t;
    }
    /**
     * Add a new item to a transaction, or change its quantity. If the item code is
@@ -125,25 +855,61 @@ class Server implements POSServer {
     * @return an error message, or null on success
     */
    public String addItemToTransaction(String id, String code, int quantity) {
+      return addItemToTransaction(id, code, quantity, Transaction.UNPRICED);
+   }
+
+   /**
+    * Add an item to a transaction, or change its quantity, giving its line
+    * the discount it was priced with when the change was first made.
+    *
+    * @param  discount the line's discount after the change, or
+    *         Transaction.UNPRICED to work it out from the promotions
+    * @return an error message, or null on success
+    */
+   private String addItemToTransaction(String id, String code, int quantity, long discount) {
       String result = null;
-      Transaction trans = transactions.get(id);
       Item item;
       
-      if (trans == null) {
-         result = "Unable to find transaction " + id + " to add an item";
-      } else if (code == null) {
-         result = "Invalid item code";
-      } else if (trans.isComplete()) {
-         result = "Transaction " + id + " already completed";
-      } else {
-         item = inventory.get(code);
-         if (item == null) {
-            result = "Unable to find item " + code + " in inventory";
+      beginChange();
+      try {
+         String failed = journalFailed();
+         if (failed != null) {
+            return failed;
+         }
+         Transaction trans = findForChange(id);
+         if (trans == null) {
+            result = "Unable to find transaction " + id + " to add an item";
+         } else if (code == null) {
+            result = "Invalid item code";
+         } else if (journal != null && !TransactionJournal.canRecord(code)) {
+            result = "Item code too long to record";
          } else {
-            if (!trans.addItem(item, quantity)) {
-               result = "Invalid quantity " + quantity + " of item " + code;
+            synchronized (trans) {
+               if (trans.isComplete()) {
+                  result = "Transaction " + id + " already completed";
+               } else {
+                  item = inventory.get(code);
+                  if (item == null) {
+                     result = "Unable to find item " + code + " in inventory";
+                  } else {
+                     if (!trans.addItem(item, quantity, discount)) {
+                        result = "Invalid quantity " + quantity + " of item " + code;
+                     } else {
+                        //a cancelled transaction being archived is written again
+                        if (trans.isCancelled()) {
+                           finished(trans);
+                        }
+                        if (journal != null) {
+                           journal.add(Integer.parseInt(trans.getID()), code, quantity,
+                                 trans.getDiscount(item), trans.basketDiscount());
+                        }
+                     }
+                  }
+               }
             }
          }
+      } finally {
+         endChange();
       }
 
       return result;
@@ -156,14 +922,50 @@ class Server implements POSServer {
     */
    public String completeTransaction(String id) {
       String result = null;
-      Transaction t = transactions.get(id);
+      long recorded = -1;
       
-      if (t == null)
-         result = "Unable to find transaction " + id;
-      else if (t.isComplete())
-         result = "Transaction already completed " + id;
-      else
-         t.complete();
+      beginChange();
+      try {
+         String failed = journalFailed();
+         if (failed != null) {
+            return failed;
+         }
+         Transaction t = findForChange(id);
+         if (t == null)
+            result = "Unable to find transaction " + id;
+         else {
+            synchronized (t) {
+               if (t.isComplete())
+                  result = "Transaction already completed " + id;
+               else {
+                  //the items stay locked until the completion is journaled, so
+                  //changes to the same items are journaled in the order they happened
+                  int[] locked = lockItems(t);
+                  try {
+                     boolean wasCancelled = t.isCancelled();
+                     long oldRevenue = ServerStatistics.revenue(t);
+                     long basketDiscount = t.basketDiscount();
+                     t.complete();
+                     statistics.changed(t, false, wasCancelled, oldRevenue);
+                     analytics.changed(t, false, wasCancelled);
+                     finished(t);
+                     if (journal != null) {
+                        recorded = journal.complete(Integer.parseInt(t.getID()), basketDiscount);
+                     }
+                  } finally {
+                     ItemLocks.unlockAll(locked);
+                  }
+               }
+            }
+         }
+      } finally {
+         endChange();
+      }
+
+      //wait for the sync outside the lock, so other lanes join the same one
+      if (recorded >= 0) {
+         result = awaitDurable(recorded);
+      }
 
       return result;
    }
@@ -176,7 +978,7 @@ class Server implements POSServer {
     */
    public String queryTransaction(String id, TransactionQuery query) {
       String result = null;
-      Transaction t = transactions.get(id);
+      Transaction t = find(id);
       
       if (t != null) {
          switch (query) {
@@ -187,10 +989,16 @@ class Server implements POSServer {
             result = Integer.toString(t.itemCount());
             break;
          case TOTAL_QUANTITY:
-            result = Integer.toString(t.totalQuantity());
+            result = Long.toString(t.totalQuantity());
             break;
          case TOTAL_COST:
-            result = Integer.toString(t.totalCost());
+            result = Long.toString(t.totalCost());
+            break;
+         case DISCOUNT:
+            result = Long.toString(t.discount());
+            break;
+         case NET_COST:
+            result = Long.toString(t.netCost());
             break;
          case IS_COMPLETE:
             result = Boolean.toString(t.isComplete());
@@ -209,7 +1017,7 @@ class Server implements POSServer {
     */
    public String toString(String id) {
       String result = null;
-      Transaction t = transactions.get(id);
+      Transaction t = find(id);
       
       if (t != null)
          result = t.toString();
@@ -227,44 +1035,55 @@ class Server implements POSServer {
 
       switch (query) {
       case INVENTORY_COUNT:
-         result = Integer.toString(inventory.size());
+         result = Integer.toString(itemCount.get());
          break;
       case TRANSACTION_COMPLETED_COUNT:
-         result = Integer.toString(countCompleteTransactions());
+         result = Long.toString(statistics.getCompletedCount());
          break;
       case TRANSACTION_IN_PROGRESS_COUNT:
-         result = Integer.toString(transactions.size() - countCompleteTransactions()-countCancelTrans());
+         result = Long.toString(statistics.getInProgressCount());
+         break;
+      case TRANSACTION_CREATED_COUNT:
+         result = Long.toString(statistics.getCreatedCount());
+         break;
+      case TRANSACTION_CANCELLED_COUNT:
+         result = Long.toString(statistics.getCancelledCount());
+         break;
+      case PURCHASE_COMPLETED_COUNT:
+         result = Long.toString(statistics.getCompletedCount(TransactionType.PURCHASE));
+         break;
+      case RETURN_COMPLETED_COUNT:
+         result = Long.toString(statistics.getCompletedCount(TransactionType.RETURN));
+         break;
+      case BACKORDER_COMPLETED_COUNT:
+         result = Long.toString(statistics.getCompletedCount(TransactionType.BACKORDER));
+         break;
+      case RESTOCK_COMPLETED_COUNT:
+         result = Long.toString(statistics.getCompletedCount(TransactionType.RESTOCK));
+         break;
+      case REVENUE:
+         result = Long.toString(statistics.getRevenue());
+         break;
+      case SEARCH_CURSOR_COUNT:
+         result = Integer.toString(iterators.count());
+         break;
+      case SEARCH_CURSOR_MEMORY:
+         result = Long.toString(iterators.memory());
+         break;
+      case CHANGE_SEQUENCE:
+         result = Long.toString(changeFeed.latest());
+         break;
+      case TRANSACTION_ARCHIVED_COUNT:
+         result = Integer.toString(archive == null ? 0 : archive.count());
+         break;
+      case BACKORDER_TOTAL:
+         result = Long.toString(sortedIndexes.backorderTotal());
          break;
       }
       
       return result;
    }
 
-   /**
-    * Private method that counts all the completed transaction
-    * @return number of completed transaction
-    */
-   private int countCompleteTransactions() {
-      int count = 0;
-      for (Map.Entry<String,Transaction> entry: transactions.entrySet()) {
-         if (entry.getValue().isComplete()) {
-            count++;
-         }
-      }
-      return count;
-   }
-
-   private int countCancelTrans(){
-      int count = 0;
-      for(Map.Entry<String, Transaction> entry: transactions.entrySet()){
-         if(entry.getValue().isCancelled()){
-            count++;
-         }
-      }
-
-      return count;
-   }
-
    /**
     * Describe the inventory of items for sale. Order the list alphabetically
     * by item code.
@@ -274,13 +1093,67 @@ class Server implements POSServer {
     */
    @Override
    public String toString() {
-      String result = "";
+      StringBuilder result = new StringBuilder(itemCount.get() * 64);
       
-      for (Map.Entry<String,Item> entry: inventory.entrySet()) {
-         result += entry.getValue().toString() + "\n";
+      for (Item item : inventory.values()) {
+         result.append(item.toString()).append('\n');
       }
 
-      return result;
+      return result.toString();
+   }
+
+   /**
+    * @return every item, in code order
+    */
+   Collection<Item> items() {
+      return inventory.values();
+   }
+
+   /**
+    * Hand out the transactions of some types whose times are in a range,
+    * without holding up the lanes: first those in memory, then those only
+    * in the archive, read back one at a time. A transaction archived or
+    * brought back meanwhile is still handed out once; one created
+    * meanwhile may be missed. The visitor locks a transaction to read it.
+    *
+    * @param from    the earliest time, inclusive
+    * @param to      the latest time, exclusive
+    * @param types   the types wanted
+    * @param visitor receives the transactions
+    * @throws IOException if the archive cannot be read, or from the visitor
+    */
+   void forEachTransaction(final long from, final long to, final Set<TransactionType> types,
+                           final TransactionVisitor visitor) throws IOException {
+      //IDs handed out from memory, to skip in the archive
+      final BitSet seen = new BitSet();
+      for (Transaction t : transactions.values()) {
+         if (types.contains(t.getType()) && t.getTime() >= from && t.getTime() < to) {
+            seen.set(Integer.parseInt(t.getID()));
+            visitor.visit(t);
+         }
+      }
+      if (archive == null) {
+         return;
+      }
+
+      try {
+         archive.readAll(new TransactionArchive.Reader() {
+            public void transaction(int id, TransactionType type, long time, int client,
+                                    boolean complete, boolean cancelled, String[] codes, int[] quantities,
+                                    long[] discounts, long basketDiscount) {
+               if (!seen.get(id) && types.contains(type) && time >= from && time < to) {
+                  try {
+                     visitor.visit(restore(id, type, time, client, complete, cancelled, codes, quantities,
+                           discounts, basketDiscount));
+                  } catch (IOException ioe) {
+                     throw new UncheckedIOException(ioe);
+                  }
+               }
+            }
+         });
+      } catch (UncheckedIOException uioe) {
+         throw uioe.getCause();
+      }
    }
 
    /**
@@ -292,23 +1165,43 @@ class Server implements POSServer {
     */
    @Override
    public String search(String pattern, ItemField order) {
-      if (pattern == null) {
+      return search(pattern, order, NO_CLIENT);
+   }
+
+   /**
+    * Begin a search on behalf of a client.
+    *
+    * @param pattern the string to search for (partial matches OK)
+    * @param order the order that the results will be presented by the iterator
+    * @param client the client ID
+    * @return the iterator ID
+    */
+   @Override
+   public String search(String pattern, ItemField order, int client) {
+      if (pattern == null || order == null) {
          return null;
       }
       
-      ItemIterator ii = new ItemIterator(Item.getComparator(order));
+      List<Item> matches = searchIndex.find(pattern);
+      ItemIterator ii = new ItemIterator(client, matches, order, sortedIndexes, lastItemID);
       
-      iterators.put(ii.getID(), ii);
-      
-      for (Map.Entry<String,Item> entry: inventory.entrySet()) {
-         Item item = entry.getValue();
-         if (item.matches(pattern))
-            ii.add(item);
-      }
+      iterators.open(ii);
       
       return ii.getID();
    }
 
+   /**
+    * Limit the search cursors: each client may keep perClient open, and a
+    * cursor unused for the idle time is closed.
+    *
+    * @param perClient the most cursors a client may keep open
+    * @param idle      how long a cursor may go unused
+    * @param unit      the unit of idle
+    */
+   public void setCursorLimits(int perClient, long idle, TimeUnit unit) {
+      iterators.setLimits(perClient, idle, unit);
+   }
+
    /**
     * Get the next match for the search. Call this until it returns
     * false; when it returns true, there is a matching item available.
@@ -321,11 +1214,10 @@ class Server implements POSServer {
    @Override
    public boolean next(String iID) {
       ItemIterator ii = iterators.get(iID);
-      if (ii != null && ii.hasNext()) {
-         ii.next();
+      if (ii != null && ii.next() != null) {
          return true;
       }
-      iterators.remove(iID);
+      iterators.close(iID);
       return false;
    }
 
@@ -366,6 +1258,92 @@ class Server implements POSServer {
       return result;
    }
 
+   /**
+    * Begin a search and get its first page of matches in one call.
+    *
+    * @param  pattern  the string to search for (partial matches OK)
+    * @param  order    the order that the results will be presented in
+    * @param  client   the client ID
+    * @param  pageSize the most matches on a page
+    * @param  fields   the fields wanted for each match
+    * @return the first page, or null on error
+    */
+   @Override
+   public SearchPage searchPage(String pattern, ItemField order, int client, int pageSize, ItemField... fields) {
+      if (pageSize <= 0) {
+         return null;
+      }
+      String iID = search(pattern, order, client);
+      return iID == null ? null : nextPage(iID, pageSize, fields);
+   }
+
+   /**
+    * Get the next page of a search. The search is forgotten once its
+    * last page has been handed out.
+    *
+    * @param  continuation the continuation of the previous page
+    * @param  pageSize     the most matches on a page
+    * @param  fields       the fields wanted for each match
+    * @return the next page, or null on error
+    */
+   @Override
+   public SearchPage nextPage(String continuation, int pageSize, ItemField... fields) {
+      ItemIterator ii = continuation == null ? null : iterators.get(continuation);
+      if (ii == null || pageSize <= 0) {
+         return null;
+      }
+      List<Item> items = ii.next(pageSize);
+      if (!ii.hasNext()) {
+         iterators.close(continuation);
+         continuation = null;
+      }
+      return SearchPage.of(items, continuation, fields);
+   }
+
+   /**
+    * Get the changes to item stock and backorder quantities made after a
+    * sequence number.
+    *
+    * @param  sequence   the last sequence number already seen (0 for all)
+    * @param  max        the most changes to return
+    * @param  waitMillis how long to wait for a change if there are none yet
+    * @return the changes, or null on error
+    */
+   @Override
+   public ItemChanges changesSince(long sequence, int max, long waitMillis) {
+      if (max <= 0 || waitMillis < 0) {
+         return null;
+      }
+      return changeFeed.since(sequence, max, waitMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Rank the items by units sold in an hour, or over all time.
+    *
+    * @param  time  any time in the hour (yyyyMMddHHmmss), or -1 for all time
+    * @param  count the most items to return
+    * @return the best sellers, or null on error
+    */
+   @Override
+   public SalesReport topSellers(long time, int count) {
+      if (count <= 0 || (time < 0 && time != SalesReport.ALL_TIME)) {
+         return null;
+      }
+      return analytics.topSellers(time < 0 ? SalesReport.ALL_TIME : SalesAnalytics.hour(time), count);
+   }
+
+   /**
+    * Get an item's sales hour by hour.
+    *
+    * @param  code the item code
+    * @return its sales, or null on error
+    */
+   @Override
+   public SalesReport itemSales(String code) {
+      Item item = code == null ? null : inventory.get(code);
+      return item == null ? null : analytics.itemSales(item);
+   }
+
    /**
     * cancel a given transaction
     * @param  id the transaction ID
@@ -377,24 +1355,54 @@ class Server implements POSServer {
    @Override
    public String cancelTransaction(String id, long time, int client) {
       String message = "Can not find the transaction";
-      //get the transaction
-      Transaction trans = transactions.get(id);
+      long recorded = -1;
 
-      if(trans!=null){
-         //if transaction is already cancelled print out the msg
-         if(trans.isCancelled()){
-            message = "Transaction is already cancelled";
-         }
-         else if(trans.getClientID()==client){
-            //cancel transaction
-            trans.cancelTransaction();
-            //return null on success
-            message = null;
+      beginChange();
+      try {
+         String failed = journalFailed();
+         if (failed != null) {
+            return failed;
          }
+         //get the transaction
+         Transaction trans = findForChange(id);
+         if(trans!=null){
+            synchronized (trans) {
+               //if transaction is already cancelled print out the msg
+               if(trans.isCancelled()){
+                  message = "Transaction is already cancelled";
+               }
+               else if(trans.getClientID()==client){
+                  //cancel transaction, with its items locked until it is journaled
+                  int[] locked = lockItems(trans);
+                  try {
+                     boolean wasComplete = trans.isComplete();
+                     long oldRevenue = ServerStatistics.revenue(trans);
+                     long basketDiscount = trans.basketDiscount();
+                     trans.cancelTransaction();
+                     statistics.changed(trans, wasComplete, false, oldRevenue);
+                     analytics.changed(trans, wasComplete, false);
+                     finished(trans);
+                     if (journal != null) {
+                        recorded = journal.cancel(Integer.parseInt(trans.getID()), time, client, basketDiscount);
+                     }
+                  } finally {
+                     ItemLocks.unlockAll(locked);
+                  }
+                  //return null on success
+                  message = null;
+               }
 
-         else {
-            message="Current client can not cancel this transaction";
+               else {
+                  message="Current client can not cancel this transaction";
+               }
+            }
          }
+      } finally {
+         endChange();
+      }
+
+      if (recorded >= 0) {
+         message = awaitDurable(recorded);
       }
 
 
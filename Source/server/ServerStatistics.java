@@ -0,0 +1,163 @@
+/**
+ * Live statistics about the transactions on the server. The counters are
+ * updated as transactions change state, so reading them costs the same no
+ * matter how many transactions the store has processed. LongAdders keep the
+ * updates cheap when many lanes change transactions at once.
+ */
+package Source.server;
+
+import java.util.EnumMap;
+import java.util.concurrent.atomic.LongAdder;
+
+class ServerStatistics {
+   //transactions ever created
+   private final LongAdder created = new LongAdder();
+   //transactions currently marked complete
+   private final LongAdder completed = new LongAdder();
+   //transactions currently marked cancelled
+   private final LongAdder cancelled = new LongAdder();
+   //transactions currently marked complete, by type
+   private final EnumMap<POSServer.TransactionType, LongAdder> completedByType;
+   //value of the complete sales less complete returns, in cents
+   private final LongAdder revenue = new LongAdder();
+
+   public ServerStatistics() {
+      completedByType = new EnumMap<>(POSServer.TransactionType.class);
+      for (POSServer.TransactionType type : POSServer.TransactionType.values()) {
+         completedByType.put(type, new LongAdder());
+      }
+   }
+
+   /**
+    * Count a newly created transaction.
+    */
+   public void created() {
+      created.increment();
+   }
+
+   /**
+    * Account for a transaction that was just completed or cancelled. The
+    * caller captures the transaction's state before the change and calls
+    * this, still holding the transaction's lock, after it.
+    *
+    * @param t            the transaction
+    * @param wasComplete  whether it was complete before the change
+    * @param wasCancelled whether it was cancelled before the change
+    * @param oldRevenue   revenue(t) before the change
+    */
+   public void changed(Transaction t, boolean wasComplete, boolean wasCancelled, long oldRevenue) {
+      if (t.isComplete() != wasComplete) {
+         int delta = t.isComplete() ? 1 : -1;
+         completed.add(delta);
+         completedByType.get(t.getType()).add(delta);
+      }
+      if (t.isCancelled() != wasCancelled) {
+         cancelled.add(t.isCancelled() ? 1 : -1);
+      }
+      long newRevenue = revenue(t);
+      if (newRevenue != oldRevenue) {
+         revenue.add(newRevenue - oldRevenue);
+      }
+   }
+
+   /**
+    * Get what a transaction adds to the store's revenue: the value of a
+    * complete sale after its discount, minus the value of a complete
+    * return, nothing otherwise.
+    *
+    * @param t the transaction
+    * @return its revenue in cents
+    */
+   public static long revenue(Transaction t) {
+      if (!t.isComplete() || t.isCancelled()) {
+         return 0;
+      }
+      switch (t.getType()) {
+      case PURCHASE:
+      case BACKORDER:
+         return t.netCost();
+      case RETURN:
+         return -t.netCost();
+      default:
+         return 0;
+      }
+   }
+
+   /**
+    * Copy out the counters, for a snapshot. Nothing may change meanwhile.
+    *
+    * @return created, completed, cancelled and revenue, then the completed
+    *         count of each transaction type
+    */
+   public long[] counters() {
+      POSServer.TransactionType[] types = POSServer.TransactionType.values();
+      long[] counters = new long[4 + types.length];
+      counters[0] = created.sum();
+      counters[1] = completed.sum();
+      counters[2] = cancelled.sum();
+      counters[3] = revenue.sum();
+      for (int i = 0; i < types.length; i++) {
+         counters[4 + i] = completedByType.get(types[i]).sum();
+      }
+      return counters;
+   }
+
+   /**
+    * Start from counters saved by counters(), before anything is counted.
+    *
+    * @param counters the saved counters
+    */
+   public void restore(long[] counters) {
+      created.add(counters[0]);
+      completed.add(counters[1]);
+      cancelled.add(counters[2]);
+      revenue.add(counters[3]);
+      POSServer.TransactionType[] types = POSServer.TransactionType.values();
+      for (int i = 0; i < types.length && 4 + i < counters.length; i++) {
+         completedByType.get(types[i]).add(counters[4 + i]);
+      }
+   }
+
+   /**
+    * @return number of transactions ever created
+    */
+   public long getCreatedCount() {
+      return created.sum();
+   }
+
+   /**
+    * @return number of complete transactions
+    */
+   public long getCompletedCount() {
+      return completed.sum();
+   }
+
+   /**
+    * @return number of cancelled transactions
+    */
+   public long getCancelledCount() {
+      return cancelled.sum();
+   }
+
+   /**
+    * @return number of transactions neither complete nor cancelled
+    */
+   public long getInProgressCount() {
+      return created.sum() - completed.sum() - cancelled.sum();
+   }
+
+   /**
+    * @param type the transaction type
+    * @return number of complete transactions of that type
+    */
+   public long getCompletedCount(POSServer.TransactionType type) {
+      return completedByType.get(type).sum();
+   }
+
+   /**
+    * @return running revenue in cents
+    */
+   public long getRevenue() {
+      return revenue.sum();
+   }
+}
@@ -0,0 +1,32 @@
+/**
+ * The timers a Server records into once it is instrumented: the waits
+ * inside an operation that its caller cannot see apart (for the item
+ * locks, the journal sync and the checkpoint lock) and the background
+ * snapshots and archiving.
+ */
+package Source.server;
+
+import Source.metrics.MetricRegistry;
+import Source.metrics.LatencyTimer;
+
+class ServerTimers {
+   //waiting for the items of a transaction being completed or cancelled
+   final LatencyTimer itemLockWait;
+   //waiting for a journal record to reach the disk
+   final LatencyTimer journalSyncWait;
+   //waiting for a snapshot or an archive batch to let a change begin
+   final LatencyTimer checkpointWait;
+   final LatencyTimer snapshot;
+   final LatencyTimer archive;
+
+   /**
+    * @param registry where the timers are made
+    */
+   ServerTimers(MetricRegistry registry) {
+      itemLockWait = registry.timer("server.itemLockWait");
+      journalSyncWait = registry.timer("server.journalSyncWait");
+      checkpointWait = registry.timer("server.checkpointWait");
+      snapshot = registry.timer("server.snapshot");
+      archive = registry.timer("server.archive");
+   }
+}
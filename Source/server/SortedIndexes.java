@@ -0,0 +1,264 @@
+/**
+ * Sorted secondary indexes of the inventory, one per searchable field other
+ * than the code (the item store is already in code order). The quantity
+ * and backorder indexes follow the items as their values change, so search
+ * results can be read by walking an index instead of sorting the matches.
+ *
+ * The indexes are concurrent sets of immutable entries; a change to an item
+ * swaps its entry for one holding the new value, so readers never see a key
+ * change under them. The total backordered over all items is kept alongside,
+ * following the same changes.
+ */
+package Source.server;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+
+class SortedIndexes implements ItemListener {
+   //field -> entries ordered by that field (then by code)
+   private EnumMap<POSServer.ItemField, ConcurrentSkipListSet<Entry>> indexes;
+   //all items by code
+   private ItemStore byCode;
+   //told about each change once the indexes have followed it
+   private ItemListener changes;
+   //the backorder quantities of the indexed items added up
+   private final LongAdder backorderTotal = new LongAdder();
+
+   /**
+    * @param byCode  the inventory, which is already in code order
+    * @param changes told about each change to an item after the indexes
+    */
+   public SortedIndexes(ItemStore byCode, ItemListener changes) {
+      this.byCode = byCode;
+      this.changes = changes;
+      indexes = new EnumMap<>(POSServer.ItemField.class);
+      for (POSServer.ItemField field : POSServer.ItemField.values()) {
+         if (field != POSServer.ItemField.CODE) {
+            indexes.put(field, new ConcurrentSkipListSet<>(Entry.getComparator(field)));
+         }
+      }
+   }
+
+   /**
+    * Add an item to every index and start following its changes.
+    *
+    * @param item the item to add
+    */
+   public void add(Item item) {
+      item.lock();
+      try {
+         for (POSServer.ItemField field : indexes.keySet()) {
+            indexes.get(field).add(new Entry(item, field));
+         }
+         backorderTotal.add(item.getBackorder());
+         item.setListener(this);
+      } finally {
+         item.unlock();
+      }
+   }
+
+   /**
+    * Add many items at once. Each index is filled in ascending order from
+    * a sorted array, which is much cheaper than adding items in any order.
+    *
+    * @param items the items to add
+    */
+   public void addAll(List<Item> items) {
+      for (POSServer.ItemField field : indexes.keySet()) {
+         Entry[] entries = new Entry[items.size()];
+         for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry(items.get(i), field);
+         }
+         Arrays.parallelSort(entries, Entry.getComparator(field));
+         ConcurrentSkipListSet<Entry> index = indexes.get(field);
+         for (Entry entry : entries) {
+            index.add(entry);
+         }
+      }
+      for (Item item : items) {
+         backorderTotal.add(item.getBackorder());
+         item.setListener(this);
+      }
+   }
+
+   /**
+    * Remove an item from every index.
+    *
+    * @param item the item to remove
+    */
+   public void remove(Item item) {
+      item.lock();
+      try {
+         item.setListener(null);
+         for (POSServer.ItemField field : indexes.keySet()) {
+            indexes.get(field).remove(new Entry(item, field));
+         }
+         backorderTotal.add(-item.getBackorder());
+      } finally {
+         item.unlock();
+      }
+   }
+
+   /**
+    * Take the item's entry out of the field's index while it still holds
+    * the old value. Called with the item locked.
+    */
+   @Override
+   public void itemChanging(Item item, POSServer.ItemField field) {
+      indexes.get(field).remove(new Entry(item, field));
+      if (field == POSServer.ItemField.BACKORDER_QUANTITY) {
+         backorderTotal.add(-item.getBackorder());
+      }
+      changes.itemChanging(item, field);
+   }
+
+   /**
+    * Put an entry with the item's new value in the field's index. Called
+    * with the item locked.
+    */
+   @Override
+   public void itemChanged(Item item, POSServer.ItemField field) {
+      indexes.get(field).add(new Entry(item, field));
+      if (field == POSServer.ItemField.BACKORDER_QUANTITY) {
+         backorderTotal.add(item.getBackorder());
+      }
+      changes.itemChanged(item, field);
+   }
+
+   /**
+    * @return the backorder quantities of all the indexed items added up
+    */
+   public long backorderTotal() {
+      return backorderTotal.sum();
+   }
+
+   /**
+    * Put a set of matched items in the given order by sorting them.
+    *
+    * @param matches the matched items
+    * @param order   the order of the result
+    * @return the matched items in order
+    */
+   public Item[] sort(List<Item> matches, POSServer.ItemField order) {
+      // sort entries rather than items so every comparison sees the same values
+      Entry[] entries = new Entry[matches.size()];
+      for (int i = 0; i < entries.length; i++) {
+         entries[i] = new Entry(matches.get(i), order);
+      }
+      Arrays.sort(entries, Entry.getComparator(order));
+
+      Item[] result = new Item[entries.length];
+      for (int i = 0; i < entries.length; i++) {
+         result[i] = entries[i].item;
+      }
+      return result;
+   }
+
+   /**
+    * Walk the field's index from a position, taking the items whose IDs
+    * are set. Each item taken has its bit cleared, so an item seen again
+    * after it moved is skipped.
+    *
+    * @param order    the index to walk
+    * @param after    the entry to start after, or null to start at the beginning
+    * @param matched  the IDs of the items wanted
+    * @param count    the most items to take
+    * @param result   the list to add the items to
+    * @return the entry of the last item taken (after, if none were taken)
+    */
+   public Entry walk(POSServer.ItemField order, Entry after, BitSet matched, int count, List<Item> result) {
+      int taken = 0;
+      if (order == POSServer.ItemField.CODE) {
+         Collection<Item> items = after == null ? byCode.values() : byCode.tail(after.item.getCode());
+         for (Item item : items) {
+            if (taken == count) {
+               break;
+            }
+            if (matched.get(item.getID())) {
+               matched.clear(item.getID());
+               result.add(item);
+               after = new Entry(item, order);
+               taken++;
+            }
+         }
+      } else {
+         ConcurrentSkipListSet<Entry> index = indexes.get(order);
+         for (Entry entry : after == null ? index : index.tailSet(after, false)) {
+            if (taken == count) {
+               break;
+            }
+            if (matched.get(entry.item.getID())) {
+               matched.clear(entry.item.getID());
+               result.add(entry.item);
+               after = entry;
+               taken++;
+            }
+         }
+      }
+      return after;
+   }
+
+   /**
+    * An index entry: an item and the value of the indexed field when the
+    * entry was made.
+    */
+   static class Entry {
+      private final Item item;
+      private final int value;
+
+      Entry(Item item, POSServer.ItemField field) {
+         this.item = item;
+         switch (field) {
+         case COST:
+            value = item.getCost();
+            break;
+         case QUANTITY:
+            value = item.getInStock();
+            break;
+         case BACKORDER_QUANTITY:
+            value = item.getBackorder();
+            break;
+         default:
+            // the code and description are fixed, so they are read from the item
+            value = 0;
+         }
+      }
+
+      /**
+       * Get the comparator for entries of the given field, matching
+       * Item.getComparator for that field.
+       *
+       * @param field the indexed field
+       * @return comparator
+       */
+      static Comparator<Entry> getComparator(POSServer.ItemField field) {
+         if (field == POSServer.ItemField.CODE) {
+            return new Comparator<Entry>() {
+               public int compare(Entry a, Entry b) {
+                  return a.item.compareCode(b.item);
+               }
+            };
+         }
+         if (field == POSServer.ItemField.DESCRIPTION) {
+            return new Comparator<Entry>() {
+               public int compare(Entry a, Entry b) {
+                  int result = a.item.compareDescription(b.item);
+                  return result != 0 ? result : a.item.compareCode(b.item);
+               }
+            };
+         }
+         return new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+               int result = Integer.compare(a.value, b.value);
+               return result != 0 ? result : a.item.compareCode(b.item);
+            }
+         };
+      }
+   }
+}
@@ -1,11 +1,21 @@
 /**
  * An abstract transaction (currently, a purchase or return). Includes the transaction
  * ID, the time the transaction started, and a list of the items and their quantities.
+ * The lines are kept in parallel arrays in the order they were added, found by the
+ * item's dense ID: by a scan while there are few, by a small hash table after that.
+ * The total quantity, cost and discount are kept up to date as lines change, so
+ * reading them costs the same however big the basket, and a change re-prices only
+ * its own line (see Promotions). Amounts are in cents, as longs.
+ * A transaction restored from the journal, a snapshot or the archive keeps the
+ * discounts it was priced with then, whatever the promotions are now.
+ * Lanes may query a transaction from other threads, so its methods synchronize on it;
+ * the server holds that lock across any check-then-change on a transaction.
  */
 package Source.server;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 
 abstract class Transaction {
    //id of the client who created this transaction
@@ -14,17 +24,51 @@ abstract class Transaction {
    private String id;
    //time when trans was created
    private long time;
-   //items in the transaction
-   private Map<String, TransactionUnit> units;
+   //lines of the transaction: item, item ID and quantity (the first lineCount are used)
+   private Item[] lineItems;
+   private int[] lineIDs;
+   private int[] lineQuantities;
+   private int lineCount;
+   //discount on each line from the promotions
+   private long[] lineDiscounts;
+   //running totals of the lines: quantity, cost and line discounts
+   private long totalQuantity;
+   private long totalCost;
+   private long totalLineDiscount;
+   //the promotions the lines are priced with, or null for none
+   private final Promotions promotions;
+   //the basket discount as restored, or UNPRICED to work it out from the promotions
+   private long basketDiscount = UNPRICED;
+   //line index + 1 by item ID, open addressing; null while the lines are few enough to scan
+   private int[] lineTable;
+   //lines room is made for at first
+   private static final int INITIAL_LINES = 4;
+   //most lines found by a scan rather than the table
+   private static final int SCAN_LINES = 8;
+   //a discount still to be worked out from the promotions
+   static final long UNPRICED = -1;
    //complete mark
-   private boolean complete;
+   private volatile boolean complete;
    //cancel mark
-   private boolean cancelled;
+   private volatile boolean cancelled;
+   //System.nanoTime() when last completed, cancelled or brought back from the archive
+   private volatile long finishedAt;
 
    public Transaction(String id, long time, int clientID) {
+      this(id, time, clientID, null);
+   }
+
+   /**
+    * @param promotions the promotions to price the lines with, or null for none
+    */
+   public Transaction(String id, long time, int clientID, Promotions promotions) {
       this.id = id;
       this.time = time;
-      this.units = new HashMap<>();
+      this.lineItems = new Item[INITIAL_LINES];
+      this.lineIDs = new int[INITIAL_LINES];
+      this.lineQuantities = new int[INITIAL_LINES];
+      this.lineDiscounts = new long[INITIAL_LINES];
+      this.promotions = promotions;
       this.complete = false;  //item is not completed at the beginnign
       this.clientID = clientID;
       cancelled = false;   //item is not cancelled at the beginning
@@ -37,70 +81,246 @@ abstract class Transaction {
     * @param  quantity the quantity of the item
     * @return true if the add was successful or false if not (invalid quantity)
     */
-   public boolean addItem(Item item, int quantity) {
+   public synchronized boolean addItem(Item item, int quantity) {
+      return addItem(item, quantity, UNPRICED);
+   }
+
+   /**
+    * Add an item to the transaction, giving its line the discount it was
+    * priced with when the change was first made.
+    *
+    * @param  item the inventory item to add
+    * @param  quantity the quantity of the item
+    * @param  discount the discount on the item's line after the change, or
+    *         UNPRICED to work it out from the promotions
+    * @return true if the add was successful or false if not (invalid quantity)
+    */
+   public synchronized boolean addItem(Item item, int quantity, long discount) {
       boolean result = true;
 
-      TransactionUnit unit = units.get(item.getCode());
-      if (unit == null) {
+      int line = findLine(item.getID());
+      if (line < 0) {
          if (quantity < 0) {
             result = false;
          } else {
-            units.put(item.getCode(), new TransactionUnit(item, quantity));
+            addLine(item, quantity, discount);
          }
       } else {
-         if (unit.getQuantity() + quantity < 0) {
+         if (lineQuantities[line] + quantity < 0) {
             result = false;
-         } else if (unit.getQuantity() + quantity == 0) {
-            units.remove(item.getCode());
+         } else if (lineQuantities[line] + quantity == 0) {
+            removeLine(line);
          } else {
-            unit.changeQuantity(unit.getQuantity() + quantity);
+            price(line, lineQuantities[line] + quantity, discount);
          }
       }
       
       return result;
    }
 
+   /**
+    * @param  itemID the dense ID of an item
+    * @return the index of the item's line, or -1 if it has none
+    */
+   private int findLine(int itemID) {
+      if (lineTable == null) {
+         for (int i = 0; i < lineCount; i++) {
+            if (lineIDs[i] == itemID) {
+               return i;
+            }
+         }
+         return -1;
+      }
+      int mask = lineTable.length - 1;
+      for (int slot = hash(itemID) & mask; lineTable[slot] != 0; slot = (slot + 1) & mask) {
+         if (lineIDs[lineTable[slot] - 1] == itemID) {
+            return lineTable[slot] - 1;
+         }
+      }
+      return -1;
+   }
+
+   private void addLine(Item item, int quantity, long discount) {
+      if (lineCount == lineItems.length) {
+         lineItems = Arrays.copyOf(lineItems, lineCount * 2);
+         lineIDs = Arrays.copyOf(lineIDs, lineCount * 2);
+         lineQuantities = Arrays.copyOf(lineQuantities, lineCount * 2);
+         lineDiscounts = Arrays.copyOf(lineDiscounts, lineCount * 2);
+         lineTable = null;
+      }
+      lineItems[lineCount] = item;
+      lineIDs[lineCount] = item.getID();
+      lineQuantities[lineCount] = 0;
+      lineDiscounts[lineCount] = 0;
+      lineCount++;
+      price(lineCount - 1, quantity, discount);
+      if (lineTable != null) {
+         putLine(lineCount - 1);
+      } else if (lineCount > SCAN_LINES) {
+         buildTable();
+      }
+   }
+
+   //remove a line, keeping the others in order
+   private void removeLine(int line) {
+      price(line, 0, 0);
+      int moved = lineCount - line - 1;
+      System.arraycopy(lineItems, line + 1, lineItems, line, moved);
+      System.arraycopy(lineIDs, line + 1, lineIDs, line, moved);
+      System.arraycopy(lineQuantities, line + 1, lineQuantities, line, moved);
+      System.arraycopy(lineDiscounts, line + 1, lineDiscounts, line, moved);
+      lineCount--;
+      lineItems[lineCount] = null;
+      if (lineTable != null) {
+         buildTable();
+      }
+   }
+
+   /**
+    * Change the quantity on a line and bring the totals up to date. Only
+    * this line is priced again, and the basket discount is worked out anew.
+    *
+    * @param line     the index of a line
+    * @param quantity the new quantity
+    * @param discount the line's new discount, or UNPRICED to work it out
+    */
+   private void price(int line, int quantity, long discount) {
+      if (discount == UNPRICED) {
+         discount = promotions == null ? 0 : promotions.lineDiscount(lineItems[line], quantity);
+      }
+      int change = quantity - lineQuantities[line];
+      lineQuantities[line] = quantity;
+      totalQuantity += change;
+      totalCost += (long) lineItems[line].getCost() * change;
+      totalLineDiscount += discount - lineDiscounts[line];
+      lineDiscounts[line] = discount;
+      basketDiscount = UNPRICED;
+   }
+
+   //index every line; the table is kept at most half full
+   private void buildTable() {
+      if (lineCount <= SCAN_LINES) {
+         lineTable = null;
+         return;
+      }
+      lineTable = new int[lineItems.length * 2];
+      for (int i = 0; i < lineCount; i++) {
+         putLine(i);
+      }
+   }
+
+   private void putLine(int line) {
+      int mask = lineTable.length - 1;
+      int slot = hash(lineIDs[line]) & mask;
+      while (lineTable[slot] != 0) {
+         slot = (slot + 1) & mask;
+      }
+      lineTable[slot] = line + 1;
+   }
+
+   //spread dense IDs over the table
+   private static int hash(int itemID) {
+      return itemID * 0x9E3779B9 >>> 7;
+   }
+
    public abstract void cancelTransaction();
 
    /**
-    * Determine if it is possible to complete the transaction for this unit.
+    * Determine if it is possible to complete the transaction for this line.
     * 
-    * @param  unit the unit to check
+    * @param  line the index of the line to check
     * @return true if the transaction can be completed, or false otherwise
     */
-   public abstract boolean canCompleteTransaction(TransactionUnit unit);
+   public abstract boolean canCompleteTransaction(int line);
 
    /**
-    * Complete the transaction for this unit.
+    * Complete the transaction for this line.
     * 
-    * @param unit           one unit from the transaction
-    * @param canCompleteAll true if all the units in the transaction returned true for canCompleteTransaction()
+    * @param line           the index of one line of the transaction
+    * @param canCompleteAll true if all the lines in the transaction returned true for canCompleteTransaction()
+    */
+   public abstract void completeTransaction(int line, boolean canCompleteAll);
+
+   /**
+    * @param  line the index of a line
+    * @return the item on the line
+    */
+   protected Item getLineItem(int line) {
+      return lineItems[line];
+   }
+
+   /**
+    * @param  line the index of a line
+    * @return the quantity on the line
+    */
+   protected int getLineQuantity(int line) {
+      return lineQuantities[line];
+   }
+
+   /**
+    * @param  line the index of a line
+    * @return the discount on the line, in cents
+    */
+   protected long getLineDiscount(int line) {
+      return lineDiscounts[line];
+   }
+
+   /**
+    * Change the quantity on a line. The line stays even at zero.
+    *
+    * @param line     the index of a line
+    * @param quantity the new quantity (not negative)
     */
-   public abstract void completeTransaction(TransactionUnit unit, boolean canCompleteAll);
+   protected void setLineQuantity(int line, int quantity) {
+      price(line, quantity, UNPRICED);
+   }
 
 
    /**
-    * Complete the transaction.
+    * Lock every item of the transaction (see ItemLocks.lockAll). Held
+    * around complete() and cancelTransaction(), nothing else can change
+    * the items between the check of every line and the changes to them.
+    *
+    * @return the locks taken, to hand to ItemLocks.unlockAll()
     */
-   public void complete() {
+   public synchronized int[] lockItems() {
+      return ItemLocks.lockAll(lineItems, lineCount);
+   }
+
+   /**
+    * Complete the transaction: every line if every line can be, otherwise
+    * none. The caller holds the items' locks (see lockItems()).
+    */
+   public synchronized void complete() {
       assert !complete;
+      assert itemsLocked();
       
       boolean canComplete = true;
       
-      for (TransactionUnit unit: units.values()) {
-         if (!canCompleteTransaction(unit)) {
+      for (int i = 0; i < lineCount; i++) {
+         if (!canCompleteTransaction(i)) {
             canComplete = false;
             break;
          }
       }
       
-      for (TransactionUnit unit: units.values()) {
-         completeTransaction(unit, canComplete);
+      for (int i = 0; i < lineCount; i++) {
+         completeTransaction(i, canComplete);
       }
 
       complete = true;
    }
 
+   //true if this thread holds the lock of every item
+   private boolean itemsLocked() {
+      for (int i = 0; i < lineCount; i++) {
+         if (!ItemLocks.forItem(lineItems[i]).isHeldByCurrentThread()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
    /**
     * Determine if the given ID matches the transaction ID.
     * 
@@ -121,8 +341,8 @@ abstract class Transaction {
 
    public abstract POSServer.TransactionType getType();
 
-   public int itemCount() {
-      return units.size();
+   public synchronized int itemCount() {
+      return lineCount;
    }
 
    /**
@@ -130,26 +350,63 @@ abstract class Transaction {
     * 
     * @return the sum of the quantities of the items in the transaction
     */
-   public int totalQuantity() {
-      int count = 0;
-      for (TransactionUnit unit: units.values()) {
-         count += unit.getQuantity();
-      }
-      return count;
+   public synchronized long totalQuantity() {
+      return totalQuantity;
    }
 
    /**
-    * Get the total cost of the transaction.
+    * Get the total cost of the transaction, before any discount.
     * 
     * @return the sum of the cost of the items times quantities in the transaction
     */
-   public int totalCost() {
-      int total = 0;
+   public synchronized long totalCost() {
+      return totalCost;
+   }
+
+   /**
+    * Get the discount the promotions give the transaction: that of each
+    * line, then that of the basket.
+    *
+    * @return the discount, in cents
+    */
+   public synchronized long discount() {
+      return totalLineDiscount + basketDiscount();
+   }
+
+   /**
+    * @return the discount on the basket as a whole, in cents
+    */
+   public synchronized long basketDiscount() {
+      if (basketDiscount != UNPRICED) {
+         return basketDiscount;
+      }
+      return promotions == null ? 0 : promotions.basketDiscount(totalCost - totalLineDiscount);
+   }
+
+   /**
+    * Give a transaction being restored the basket discount it was priced
+    * with. It holds until the lines next change.
+    *
+    * @param discount the basket discount, in cents
+    */
+   public synchronized void restoreBasketDiscount(long discount) {
+      basketDiscount = discount;
+   }
 
-      for (TransactionUnit item : units.values())
-         total += item.getTotalCost();
+   /**
+    * @param item an inventory item
+    * @return the discount on the item's line, or 0 if it has none
+    */
+   public synchronized long getDiscount(Item item) {
+      int line = findLine(item.getID());
+      return line < 0 ? 0 : lineDiscounts[line];
+   }
 
-      return total;
+   /**
+    * @return the total cost less the discount, in cents
+    */
+   public synchronized long netCost() {
+      return totalCost - discount();
    }
 
    /**
@@ -157,17 +414,23 @@ abstract class Transaction {
     * @return summary of transaction
     */
    @Override
-   public String toString() {
-      int cost = totalCost();
-      String result = "ID: " + id + "\nTime: " + time + "\nItems:";
-      // "ID: " + id + " time: " + time + "\n items: " + units;
-      //ArrayList<TransactionUnit> unitsTemp = new ArrayList<>();
-      Object[] unitsTemp = units.values().toArray();
-      for (int i = 0; i <unitsTemp.length ; i++) {
-         result += "\t"+unitsTemp[i].toString()+"\n";
-      }
-      result += "Value: $" + (cost / 100) + "." + (cost % 100 < 10 ? "0" : "") + (cost % 100);
-      return result;
+   public synchronized String toString() {
+      StringBuilder result = new StringBuilder(32 + lineCount * 24);
+      result.append("ID: ").append(id).append("\nTime: ").append(time).append("\nItems:");
+      for (int i = 0; i < lineCount; i++) {
+         result.append('\t').append(lineItems[i].getCode()).append(" (").append(lineQuantities[i]).append(")\n");
+      }
+      result.append("Value: ").append(dollars(totalCost));
+      long discount = discount();
+      if (discount != 0) {
+         result.append("\nDiscount: ").append(dollars(discount)).append("\nTotal: ").append(dollars(totalCost - discount));
+      }
+      return result.toString();
+   }
+
+   //format an amount in cents as dollars
+   private static String dollars(long cents) {
+      return "$" + (cents / 100) + "." + (cents % 100 < 10 ? "0" : "") + (cents % 100);
    }
 
    //get the client id
@@ -175,6 +438,35 @@ abstract class Transaction {
       return clientID;
    }
 
+   //get the time the transaction was created
+   public long getTime(){
+      return time;
+   }
+
+   /**
+    * @return the items in this transaction
+    */
+   public synchronized Collection<TransactionUnit> getUnits() {
+      ArrayList<TransactionUnit> units = new ArrayList<>(lineCount);
+      for (int i = 0; i < lineCount; i++) {
+         units.add(new TransactionUnit(lineItems[i], lineQuantities[i], lineDiscounts[i]));
+      }
+      return units;
+   }
+
+   /**
+    * Set the complete and cancelled marks of a transaction being restored
+    * from a snapshot. Its items are already in place and the inventory
+    * already reflects them, so nothing else changes.
+    *
+    * @param complete  the complete mark
+    * @param cancelled the cancel mark
+    */
+   public synchronized void restore(boolean complete, boolean cancelled) {
+      this.complete = complete;
+      this.cancelled = cancelled;
+   }
+
    //get if this transction is cancelled
    public boolean isCancelled(){
       return cancelled;
@@ -187,16 +479,26 @@ abstract class Transaction {
    /**
     * returns all the items in this transaction back to inventory
     */
-   public void returnItems(){
+   public synchronized void returnItems(){
       //set complete false since we are cancelling
       changeComplete();
-      for (TransactionUnit unit: units.values()) {
+      for (int i = 0; i < lineCount; i++) {
          //increase the quantity in stock
-         unit.getItem().increaseInStock(unit.getQuantity());
+         lineItems[i].increaseInStock(lineQuantities[i]);
       }
    }
    //set the complete to false
    public void changeComplete(){
       complete = false;
    }
+
+   //get when the transaction last finished (0 if not since it was loaded)
+   public long getFinishedAt(){
+      return finishedAt;
+   }
+
+   //set when the transaction last finished
+   public void setFinishedAt(long finishedAt){
+      this.finishedAt = finishedAt;
+   }
 }
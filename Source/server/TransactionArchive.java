@@ -0,0 +1,468 @@
+/**
+ * An append-only file of finished transactions that have been moved out of
+ * memory. Each transaction is one record:
+ *
+ *    length (int) | ID (int) | type (byte) | time (long)
+ *    client (int) | flags (byte) | line count (int), then per line:
+ *       code length (short) | code (UTF-8) | quantity (int)
+ *    basket discount (long), then per line: discount (long)
+ *    offset of the record this one replaces (long, -1 if none)
+ *    | CRC32 of the body (int)
+ *
+ * A transaction archived again (after it was brought back to be changed)
+ * gets a new record, and the newest one counts. An index file, mapped into
+ * memory a segment at a time, holds the offset of each ID's newest record,
+ * so a lookup costs two reads and nothing is kept on the heap per
+ * transaction. The index is kept from one run to the next: its header
+ * notes how far into the archive it was synced, so a start reads only
+ * the records written after that.
+ *
+ * Each snapshot records the end of the archive when it was taken. A
+ * record past that end was written for a transaction the snapshot still
+ * holds, or one brought back since, so a start from the snapshot cuts
+ * those records off and points the index back at the records they
+ * replaced. Replaying the journal brings the transaction back to where
+ * it was.
+ */
+package Source.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+class TransactionArchive implements Closeable {
+   private static final String ARCHIVE_FILE = "archive.bin";
+   private static final String INDEX_FILE = "archive.idx";
+   private static final int INDEX_MAGIC = 0x504f5349;   // "POSI"
+   //index header: magic (int), unused (int), archive offset synced to (long)
+   private static final int HEADER = 16;
+   //bytes around the record body: length before, checksum after
+   private static final int OVERHEAD = 4 + 4;
+   //transaction flags
+   private static final int COMPLETE = 1;
+   private static final int CANCELLED = 2;
+   //IDs per mapped segment of the index (8 bytes each)
+   private static final int SEGMENT_SHIFT = 20;
+   private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+   private static final long SEGMENT_BYTES = (SEGMENT_MASK + 1) * 8L;
+
+   private final File file;
+   private final FileChannel channel;
+   private final FileChannel indexChannel;
+   private MappedByteBuffer header;
+   //guarded by this: mapped segments of the index, by ID >>> SEGMENT_SHIFT
+   private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+   //offset just past the last record written to the file
+   private volatile long end;
+   //records appended but not yet written, and the IDs and offsets they index
+   private final ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+   private final ArrayList<long[]> pendingIndex = new ArrayList<>();
+   //transactions with a record
+   private int count;
+
+   /**
+    * Receives archived transactions as they are read.
+    */
+   interface Reader {
+      void transaction(int id, POSServer.TransactionType type, long time, int client,
+                       boolean complete, boolean cancelled, String[] codes, int[] quantities,
+                       long[] discounts, long basketDiscount);
+   }
+
+   /**
+    * Receives the records found by scan(), with the offset of each.
+    */
+   private interface Visitor {
+      //false stops the scan before this record
+      boolean record(long offset, int id, ByteBuffer record) throws IOException;
+   }
+
+   private TransactionArchive(File directory) throws IOException {
+      file = new File(directory, ARCHIVE_FILE);
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      indexChannel = FileChannel.open(new File(directory, INDEX_FILE).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+   }
+
+   /**
+    * Open the archive in a data directory as a snapshot left it. Records
+    * past the end the snapshot recorded are cut off. The index is brought
+    * up to date by reading the records written after it was last synced,
+    * and those after the snapshot's end; it is rebuilt from the whole
+    * archive only if it is missing, was never synced, or holds a record
+    * that never reached the disk.
+    *
+    * @param directory the data directory
+    * @param validEnd  the archive end recorded by the snapshot being
+    *                  started from, or 0 if there is none (then nothing is kept)
+    * @throws IOException if the files cannot be opened or read, or the
+    *                     archive lost records the snapshot relies on
+    */
+   TransactionArchive(File directory, final long validEnd) throws IOException {
+      this(directory);
+      long indexed = validEnd == 0 ? -1 : synced();
+      if (indexed < 0) {
+         indexChannel.truncate(0);
+         indexed = 0;
+      }
+      mapIndex();
+
+      index(indexed, validEnd);
+      //point the index back past the records to be cut off
+      scan(validEnd, Long.MAX_VALUE, new Visitor() {
+         public boolean record(long offset, int id, ByteBuffer record) throws IOException {
+            if (offsetOf(id) >= validEnd) {
+               setOffset(id, record.getLong(record.limit() - 8));
+            }
+            return true;
+         }
+      });
+      end = validEnd;
+      if (end < channel.size()) {
+         channel.truncate(end);
+      }
+
+      count = sweep(false);
+      if (count < 0) {
+         sweep(true);
+         index(0, validEnd);
+         count = sweep(false);
+      }
+      syncIndex();
+   }
+
+   /**
+    * Read the index header.
+    *
+    * @return the archive offset the index was synced to, or -1 if the
+    *         index can't be used
+    */
+   private long synced() throws IOException {
+      long size = indexChannel.size();
+      if (size < HEADER || (size - HEADER) % SEGMENT_BYTES != 0) {
+         return -1;
+      }
+      ByteBuffer bytes = ByteBuffer.allocate(HEADER);
+      while (bytes.hasRemaining()) {
+         if (indexChannel.read(bytes, bytes.position()) < 0) {
+            return -1;
+         }
+      }
+      long synced = bytes.getLong(8);
+      return bytes.getInt(0) == INDEX_MAGIC && synced >= 0 && synced <= channel.size() ? synced : -1;
+   }
+
+   /**
+    * Map the index header and the segments the index file holds.
+    */
+   private synchronized void mapIndex() throws IOException {
+      header = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+      long held = (indexChannel.size() - HEADER) / SEGMENT_BYTES;
+      while (segments.size() < held) {
+         segments.add(indexChannel.map(FileChannel.MapMode.READ_WRITE, HEADER + segments.size() * SEGMENT_BYTES, SEGMENT_BYTES));
+      }
+   }
+
+   /**
+    * Index the records in part of the file, which must all be good.
+    *
+    * @throws IOException if a record can't be read
+    */
+   private void index(long from, long to) throws IOException {
+      if (scan(from, to, new Visitor() {
+         public boolean record(long offset, int id, ByteBuffer record) throws IOException {
+            setOffset(id, offset);
+            return true;
+         }
+      }) < to) {
+         throw new IOException(file + " is damaged before offset " + to);
+      }
+   }
+
+   /**
+    * Count the transactions with a record, checking that no index entry
+    * points past the end of the archive.
+    *
+    * @param clear true to clear every entry instead
+    * @return the number of transactions with a record, or -1 if an entry
+    *         points past the end
+    */
+   private synchronized int sweep(boolean clear) {
+      int indexed = 0;
+      for (MappedByteBuffer segment : segments) {
+         for (int slot = 0; slot <= SEGMENT_MASK; slot++) {
+            long entry = segment.getLong(slot * 8);
+            if (clear) {
+               segment.putLong(slot * 8, 0);
+            } else if (entry > end) {
+               return -1;
+            } else if (entry != 0) {
+               indexed++;
+            }
+         }
+      }
+      return indexed;
+   }
+
+   /**
+    * Read the records from a file offset, stopping at the given end, at
+    * the first bad record, or when the visitor says so.
+    *
+    * @return the offset just past the last record accepted
+    */
+   private long scan(long from, long to, Visitor visitor) throws IOException {
+      long good = from;
+      try (FileInputStream stream = new FileInputStream(file)) {
+         stream.getChannel().position(from);
+         DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+         byte[] body = new byte[256];
+         CRC32 crc = new CRC32();
+         while (good < to) {
+            int length;
+            try {
+               length = in.readInt();
+               if (length < 0 || length > channel.size()) {
+                  break;
+               }
+               if (length > body.length) {
+                  body = new byte[length];
+               }
+               in.readFully(body, 0, length);
+               crc.reset();
+               crc.update(body, 0, length);
+               if (in.readInt() != (int) crc.getValue()) {
+                  break;
+               }
+            } catch (EOFException eof) {
+               break;
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+            if (!visitor.record(good, record.getInt(), record)) {
+               break;
+            }
+            good += length + OVERHEAD;
+         }
+      }
+      return good;
+   }
+
+   /**
+    * Add a transaction to the archive. Nothing can be read back until the
+    * next flush().
+    *
+    * @param t the transaction, which must not change meanwhile
+    */
+   void append(Transaction t) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      int id = Integer.parseInt(t.getID());
+      out.writeInt(id);
+      out.writeByte(t.getType().ordinal());
+      out.writeLong(t.getTime());
+      out.writeInt(t.getClientID());
+      out.writeByte((t.isComplete() ? COMPLETE : 0) | (t.isCancelled() ? CANCELLED : 0));
+      Collection<TransactionUnit> units = t.getUnits();
+      out.writeInt(units.size());
+      for (TransactionUnit unit : units) {
+         byte[] code = unit.getItem().getCode().getBytes(StandardCharsets.UTF_8);
+         out.writeShort(code.length);
+         out.write(code);
+         out.writeInt(unit.getQuantity());
+      }
+      out.writeLong(t.basketDiscount());
+      for (TransactionUnit unit : units) {
+         out.writeLong(unit.getDiscount());
+      }
+      out.writeLong(offsetOf(id));
+
+      CRC32 crc = new CRC32();
+      crc.update(bytes.toByteArray());
+      DataOutputStream record = new DataOutputStream(pending);
+      record.writeInt(bytes.size());
+      bytes.writeTo(record);
+      record.writeInt((int) crc.getValue());
+
+      pendingIndex.add(new long[] {id, end + pending.size() - bytes.size() - OVERHEAD});
+   }
+
+   /**
+    * Write the appended records to the file and index them. They can be
+    * read from then on, though they are only durable after force().
+    */
+   void flush() throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+      while (buffer.hasRemaining()) {
+         channel.write(buffer, end + buffer.position());
+      }
+      synchronized (this) {
+         for (long[] entry : pendingIndex) {
+            if (offsetOf((int) entry[0]) < 0) {
+               count++;
+            }
+            setOffset((int) entry[0], entry[1]);
+         }
+         //indexed before the end moves, so the index is synced at least as far
+         end += pending.size();
+      }
+      pending.reset();
+      pendingIndex.clear();
+   }
+
+   /**
+    * Sync the records written so far, and the index of them, to the disk.
+    */
+   void force() throws IOException {
+      syncIndex();
+   }
+
+   /**
+    * Sync the archive and the index up to the current end, then note the
+    * end in the index header.
+    */
+   private void syncIndex() throws IOException {
+      long synced = end;
+      ArrayList<MappedByteBuffer> mapped;
+      synchronized (this) {
+         mapped = new ArrayList<>(segments);
+      }
+      channel.force(false);
+      for (MappedByteBuffer segment : mapped) {
+         segment.force();
+      }
+      synchronized (header) {
+         header.putInt(0, INDEX_MAGIC);
+         header.putLong(8, synced);
+         header.force();
+      }
+   }
+
+   /**
+    * @return the offset just past the last record written
+    */
+   long end() {
+      return end;
+   }
+
+   /**
+    * Hand the newest record of every archived transaction to a reader, as
+    * the archive stood when this was called. Records may be added
+    * meanwhile; they are not read.
+    *
+    * @param reader receives each archived transaction
+    * @throws IOException if the archive cannot be read
+    */
+   void readAll(final Reader reader) throws IOException {
+      final long limit = end;
+      scan(0, limit, new Visitor() {
+         public boolean record(long offset, int id, ByteBuffer record) throws IOException {
+            //a newer record past the limit was written after the scan began
+            long newest = offsetOf(id);
+            if (newest == offset || newest >= limit) {
+               decode(record, id, reader);
+            }
+            return true;
+         }
+      });
+   }
+
+   /**
+    * Read the newest record of an archived transaction.
+    *
+    * @param id     the transaction ID
+    * @param reader receives the transaction
+    * @return false if the transaction is not in the archive
+    * @throws IOException if the record cannot be read
+    */
+   boolean read(int id, Reader reader) throws IOException {
+      long offset = offsetOf(id);
+      if (offset < 0) {
+         return false;
+      }
+      ByteBuffer length = ByteBuffer.allocate(4);
+      readFully(length, offset);
+      ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+      readFully(record, offset + 4);
+      record.flip();
+      decode(record, record.getInt(), reader);
+      return true;
+   }
+
+   private void readFully(ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+         if (channel.read(buffer, position + buffer.position()) < 0) {
+            throw new EOFException("Archive record at " + position + " is truncated");
+         }
+      }
+   }
+
+   private static void decode(ByteBuffer record, int id, Reader reader) {
+      POSServer.TransactionType type = POSServer.TransactionType.values()[record.get()];
+      long time = record.getLong();
+      int client = record.getInt();
+      int flags = record.get();
+      int lines = record.getInt();
+      String[] codes = new String[lines];
+      int[] quantities = new int[lines];
+      for (int i = 0; i < lines; i++) {
+         byte[] code = new byte[record.getShort() & 0xffff];
+         record.get(code);
+         codes[i] = new String(code, StandardCharsets.UTF_8);
+         quantities[i] = record.getInt();
+      }
+      long basketDiscount = record.getLong();
+      long[] discounts = new long[lines];
+      for (int i = 0; i < lines; i++) {
+         discounts[i] = record.getLong();
+      }
+      reader.transaction(id, type, time, client, (flags & COMPLETE) != 0, (flags & CANCELLED) != 0,
+            codes, quantities, discounts, basketDiscount);
+   }
+
+   /**
+    * @return the number of transactions in the archive
+    */
+   synchronized int count() {
+      return count;
+   }
+
+   /**
+    * @param id a transaction ID
+    * @return the offset of its newest record, or -1 if it has none
+    */
+   private synchronized long offsetOf(int id) throws IOException {
+      if (id < 0 || id >>> SEGMENT_SHIFT >= segments.size()) {
+         return -1;
+      }
+      return segments.get(id >>> SEGMENT_SHIFT).getLong((id & SEGMENT_MASK) * 8) - 1;
+   }
+
+   private synchronized void setOffset(int id, long offset) throws IOException {
+      int segment = id >>> SEGMENT_SHIFT;
+      while (segments.size() <= segment) {
+         long base = (long) segments.size() << SEGMENT_SHIFT;
+         segments.add(indexChannel.map(FileChannel.MapMode.READ_WRITE, HEADER + base * 8, SEGMENT_BYTES));
+      }
+      //stored one higher, so an empty slot reads as -1
+      segments.get(segment).putLong((id & SEGMENT_MASK) * 8, offset + 1);
+   }
+
+   /**
+    * Sync the archive and close its files.
+    */
+   @Override
+   public void close() throws IOException {
+      try {
+         syncIndex();
+      } finally {
+         channel.close();
+         indexChannel.close();
+      }
+   }
+}
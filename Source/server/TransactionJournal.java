@@ -0,0 +1,543 @@
+/**
+ * An append-only write-ahead journal of the changes made to transactions.
+ * Each change is one small binary record:
+ *
+ *    length (short) | kind (byte) | fields ... | CRC32 of kind and fields (int)
+ *
+ * Records are collected in memory and written by a single committer thread,
+ * which syncs the file once for everything gathered since its last sync
+ * (group commit). Callers that need a change to be durable wait for the
+ * sync that covers their record, so one sync serves a whole burst of lanes.
+ *
+ * An add record carries the discounts on the item's line and on the basket
+ * after the change, and a complete or cancel record the basket discount
+ * just before it, so a replay prices the transactions as they were
+ * priced, whatever the promotions are now.
+ *
+ * A journal that fails to write or sync stays failed: records appended
+ * after that are dropped rather than buffered, and never become durable.
+ * The server checks failed() and refuses further changes.
+ *
+ * The journal is kept in segment files, each named after the journal
+ * offset it starts at (journal-<offset>.bin). The committer starts a new
+ * segment once the one it writes passes a size, and once a snapshot is
+ * published the segments wholly before it are deleted with discard(), so
+ * the journal on disk holds little more than what a restart replays.
+ */
+package Source.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+class TransactionJournal {
+   //record kinds
+   static final byte CREATE = 1;
+   static final byte ADD = 2;
+   static final byte COMPLETE = 3;
+   static final byte CANCEL = 4;
+
+   //bytes around the record body: length before, checksum after
+   private static final int OVERHEAD = 2 + 4;
+   //longest record body the length can hold
+   private static final int MAX_BODY = 0xffff;
+   //longest item code, in UTF-8 bytes, an add record can hold
+   private static final int MAX_CODE = MAX_BODY - (1 + 4 + 2 + 4 + 8 + 8);
+   //segment files
+   private static final String PREFIX = "journal-";
+   private static final String SUFFIX = ".bin";
+   //size a segment grows to before the committer starts the next
+   private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+   private final File directory;
+   private final long segmentBytes;
+   //the segment being written, and the offset it starts at; only the committer moves them on
+   private FileChannel channel;
+   private long segmentStart;
+   //guarded by this: the offsets the segments start at, oldest first
+   private final ArrayList<Long> starts;
+   //records waiting for the committer
+   private ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+   //journal offset just past the last appended record
+   private long appended;
+   //journal offset up to which the file has been synced
+   private long durable;
+   //the error that stopped the journal, if any
+   private IOException failure;
+   private boolean closed;
+   private final Thread committer;
+
+   /**
+    * Open the journal in a data directory for appending to its newest
+    * segment. The journal should already have been replayed, which also
+    * trims any torn record off its end.
+    *
+    * @param directory the data directory
+    * @param end       the offset replay() returned, where the first
+    *                  segment starts if there is none yet
+    * @throws IOException if the segment cannot be opened
+    */
+   public TransactionJournal(File directory, long end) throws IOException {
+      this(directory, end, SEGMENT_BYTES);
+   }
+
+   /**
+    * Open the journal as above, choosing the segment size.
+    *
+    * @param segmentBytes the size past which a new segment is started
+    */
+   TransactionJournal(File directory, long end, long segmentBytes) throws IOException {
+      this.directory = directory;
+      this.segmentBytes = segmentBytes;
+      starts = segments(directory);
+      if (starts.isEmpty()) {
+         starts.add(end);
+      }
+      segmentStart = starts.get(starts.size() - 1);
+      File segment = segment(directory, segmentStart);
+      boolean created = !segment.exists();
+      channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      if (created) {
+         syncDirectory(directory);
+      }
+      appended = segmentStart + channel.size();
+      durable = appended;
+      channel.position(channel.size());
+
+      committer = new Thread(new Runnable() {
+         public void run() {
+            commitLoop();
+         }
+      }, "journal-committer");
+      committer.setDaemon(true);
+      committer.start();
+   }
+
+   /**
+    * @param code an item code
+    * @return true if the code is short enough to be journaled
+    */
+   static boolean canRecord(String code) {
+      return code.length() <= MAX_CODE / 3 || code.getBytes(StandardCharsets.UTF_8).length <= MAX_CODE;
+   }
+
+   /**
+    * Record the creation of a transaction.
+    *
+    * @return the offset the record ends at
+    */
+   public long create(int id, POSServer.TransactionType type, long time, int client) {
+      ByteBuffer body = ByteBuffer.allocate(1 + 4 + 1 + 8 + 4);
+      body.put(CREATE).putInt(id).put((byte) type.ordinal()).putLong(time).putInt(client);
+      return append(body);
+   }
+
+   /**
+    * Record a change to the quantity of an item in a transaction.
+    *
+    * @param discount       the discount on the item's line after the change
+    * @param basketDiscount the transaction's basket discount after the change
+    * @return the offset the record ends at
+    * @throws IllegalArgumentException if the code is too long (see canRecord)
+    */
+   public long add(int id, String code, int quantity, long discount, long basketDiscount) {
+      byte[] codeBytes = code.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer body = ByteBuffer.allocate(1 + 4 + 2 + codeBytes.length + 4 + 8 + 8);
+      body.put(ADD).putInt(id).putShort((short) codeBytes.length).put(codeBytes).putInt(quantity)
+            .putLong(discount).putLong(basketDiscount);
+      return append(body);
+   }
+
+   /**
+    * Record the completion of a transaction.
+    *
+    * @param basketDiscount the transaction's basket discount before completing
+    * @return the offset the record ends at
+    */
+   public long complete(int id, long basketDiscount) {
+      ByteBuffer body = ByteBuffer.allocate(1 + 4 + 8);
+      body.put(COMPLETE).putInt(id).putLong(basketDiscount);
+      return append(body);
+   }
+
+   /**
+    * Record the cancellation of a transaction.
+    *
+    * @param basketDiscount the transaction's basket discount before cancelling
+    * @return the offset the record ends at
+    */
+   public long cancel(int id, long time, int client, long basketDiscount) {
+      ByteBuffer body = ByteBuffer.allocate(1 + 4 + 8 + 4 + 8);
+      body.put(CANCEL).putInt(id).putLong(time).putInt(client).putLong(basketDiscount);
+      return append(body);
+   }
+
+   /**
+    * Add a record to the pending batch and wake the committer. Once the
+    * journal has failed the record is dropped, and waiting for it throws
+    * the failure.
+    *
+    * @param body the record kind and fields
+    * @return the offset the record ends at
+    * @throws IllegalArgumentException if the record is too long for its length
+    */
+   private synchronized long append(ByteBuffer body) {
+      byte[] bytes = body.array();
+      if (bytes.length > MAX_BODY) {
+         throw new IllegalArgumentException("Journal record of " + bytes.length + " bytes is too long");
+      }
+      if (failure != null) {
+         return appended + 1;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, bytes.length);
+
+      pending.write(bytes.length >>> 8);
+      pending.write(bytes.length);
+      pending.write(bytes, 0, bytes.length);
+      int sum = (int) crc.getValue();
+      pending.write(sum >>> 24);
+      pending.write(sum >>> 16);
+      pending.write(sum >>> 8);
+      pending.write(sum);
+
+      appended += bytes.length + OVERHEAD;
+      notifyAll();
+      return appended;
+   }
+
+   /**
+    * @return the offset just past the last record appended
+    */
+   public synchronized long appendedOffset() {
+      return appended;
+   }
+
+   /**
+    * @return the error that stopped the journal, or null if it is working
+    */
+   public synchronized IOException failed() {
+      return failure;
+   }
+
+   /**
+    * Wait until the journal is synced up to the given offset.
+    *
+    * @param offset the offset returned when the record was appended
+    * @throws IOException if the journal failed before getting there
+    */
+   public synchronized void awaitDurable(long offset) throws IOException {
+      boolean interrupted = false;
+      while (durable < offset && failure == null) {
+         try {
+            wait();
+         } catch (InterruptedException ie) {
+            interrupted = true;
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+      if (durable < offset) {
+         throw failure;
+      }
+   }
+
+   /**
+    * Delete the segments that end at or before an offset, once a snapshot
+    * reaching that far has been published. The segment being written is
+    * kept.
+    *
+    * @param offset the journal offset of the snapshot
+    */
+   public void discard(long offset) {
+      ArrayList<Long> old = new ArrayList<>();
+      synchronized (this) {
+         while (starts.size() > 1 && starts.get(1) <= offset) {
+            old.add(starts.remove(0));
+         }
+      }
+      for (long start : old) {
+         segment(directory, start).delete();
+      }
+   }
+
+   /**
+    * Sync everything appended so far and stop the committer.
+    *
+    * @throws IOException if the last batch could not be written
+    */
+   public void close() throws IOException {
+      long end;
+      synchronized (this) {
+         end = appended;
+         closed = true;
+         notifyAll();
+      }
+      try {
+         awaitDurable(end);
+      } finally {
+         try {
+            committer.join();
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+         }
+         channel.close();
+      }
+   }
+
+   /**
+    * The committer thread: take whatever has been appended since the last
+    * pass, write it and sync it, then release everyone waiting on it.
+    */
+   private void commitLoop() {
+      ByteArrayOutputStream batch = new ByteArrayOutputStream(64 * 1024);
+      while (true) {
+         long end;
+         synchronized (this) {
+            while (pending.size() == 0 && !closed) {
+               try {
+                  wait();
+               } catch (InterruptedException ie) {
+                  // keep committing until closed
+               }
+            }
+            if (pending.size() == 0) {
+               return;
+            }
+            ByteArrayOutputStream full = pending;
+            pending = batch;
+            batch = full;
+            end = appended;
+         }
+
+         try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            while (buffer.hasRemaining()) {
+               channel.write(buffer);
+            }
+            channel.force(false);
+         } catch (IOException ioe) {
+            fail(ioe);
+            return;
+         }
+         batch.reset();
+
+         synchronized (this) {
+            durable = end;
+            notifyAll();
+         }
+
+         if (end - segmentStart >= segmentBytes) {
+            try {
+               startSegment(end);
+            } catch (IOException ioe) {
+               fail(ioe);
+               return;
+            }
+         }
+      }
+   }
+
+   /**
+    * Stop the journal after a write, sync or new segment failed.
+    */
+   private synchronized void fail(IOException ioe) {
+      failure = ioe;
+      //nothing more will be written, so keep nothing more
+      pending = new ByteArrayOutputStream(0);
+      notifyAll();
+   }
+
+   /**
+    * Move the committer on to a new segment, between batches.
+    *
+    * @param start the offset the segment starts at, the end of the last batch
+    */
+   private void startSegment(long start) throws IOException {
+      FileChannel next = FileChannel.open(segment(directory, start).toPath(),
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+      syncDirectory(directory);
+      channel.close();
+      channel = next;
+      segmentStart = start;
+      synchronized (this) {
+         starts.add(start);
+      }
+   }
+
+   /**
+    * Find the segments of the journal in a directory.
+    *
+    * @return the offsets they start at, oldest first
+    */
+   private static ArrayList<Long> segments(File directory) {
+      ArrayList<Long> starts = new ArrayList<>();
+      File[] files = directory.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+               try {
+                  starts.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+               } catch (NumberFormatException nfe) {
+                  // not a segment
+               }
+            }
+         }
+      }
+      Collections.sort(starts);
+      return starts;
+   }
+
+   /**
+    * @param start the offset a segment starts at
+    * @return the segment's file
+    */
+   private static File segment(File directory, long start) {
+      return new File(directory, PREFIX + start + SUFFIX);
+   }
+
+   //make a new segment's name durable; not every platform can sync a directory
+   private static void syncDirectory(File directory) {
+      try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+         channel.force(true);
+      } catch (IOException ioe) {
+         // left to the file system
+      }
+   }
+
+   /**
+    * Receives the records of a journal as it is replayed.
+    */
+   interface Replayer {
+      void create(int id, POSServer.TransactionType type, long time, int client);
+
+      void add(int id, String code, int quantity, long discount, long basketDiscount);
+
+      void complete(int id, long basketDiscount);
+
+      void cancel(int id, long time, int client, long basketDiscount);
+   }
+
+   /**
+    * Replay the journal in a data directory from the given offset, through
+    * each segment in turn. Replay stops at the first incomplete or damaged
+    * record (the tail of a write cut short by a crash); its segment is cut
+    * back to the end of the last good record, and any later segments,
+    * which no longer follow on, are deleted.
+    *
+    * @param directory the data directory
+    * @param offset    where to start reading
+    * @param replayer  receives each record in order
+    * @return the offset of the end of the last good record
+    * @throws IOException if the journal cannot be read, or starts after the offset
+    */
+   static long replay(File directory, long offset, Replayer replayer) throws IOException {
+      ArrayList<Long> starts = segments(directory);
+      int first = starts.size() - 1;
+      while (first >= 0 && starts.get(first) > offset) {
+         first--;
+      }
+      if (first < 0) {
+         if (!starts.isEmpty()) {
+            throw new IOException("Journal in " + directory + " starts after offset " + offset);
+         }
+         return offset;
+      }
+
+      long good = offset;
+      for (int i = first; i < starts.size(); i++) {
+         if (i > first && starts.get(i) != good) {
+            segment(directory, starts.get(i)).delete();
+         } else {
+            good = replay(segment(directory, starts.get(i)), starts.get(i), good, replayer);
+         }
+      }
+      return good;
+   }
+
+   /**
+    * Replay one segment from the given offset, cutting it back to the end
+    * of its last good record.
+    *
+    * @param file   the segment file
+    * @param start  the offset the segment starts at
+    * @param offset where to start reading
+    * @return the offset of the end of the last good record
+    */
+   private static long replay(File file, long start, long offset, Replayer replayer) throws IOException {
+      long good = offset;
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+         long skipped = 0;
+         while (skipped < offset - start) {
+            long n = in.skip(offset - start - skipped);
+            if (n <= 0) {
+               throw new EOFException("Journal is shorter than offset " + offset);
+            }
+            skipped += n;
+         }
+
+         byte[] body = new byte[256];
+         CRC32 crc = new CRC32();
+         while (true) {
+            int length;
+            try {
+               length = in.readUnsignedShort();
+               if (length > body.length) {
+                  body = new byte[length];
+               }
+               in.readFully(body, 0, length);
+               crc.reset();
+               crc.update(body, 0, length);
+               if (in.readInt() != (int) crc.getValue()) {
+                  break;
+               }
+            } catch (EOFException eof) {
+               break;
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+            byte kind = record.get();
+            int id = record.getInt();
+            switch (kind) {
+            case CREATE:
+               POSServer.TransactionType type = POSServer.TransactionType.values()[record.get()];
+               long time = record.getLong();
+               replayer.create(id, type, time, record.getInt());
+               break;
+            case ADD:
+               byte[] code = new byte[record.getShort() & 0xffff];
+               record.get(code);
+               int quantity = record.getInt();
+               long discount = record.getLong();
+               replayer.add(id, new String(code, StandardCharsets.UTF_8), quantity, discount, record.getLong());
+               break;
+            case COMPLETE:
+               replayer.complete(id, record.getLong());
+               break;
+            case CANCEL:
+               long cancelTime = record.getLong();
+               int client = record.getInt();
+               replayer.cancel(id, cancelTime, client, record.getLong());
+               break;
+            default:
+               throw new IOException("Unknown journal record " + kind + " at offset " + good);
+            }
+            good += length + OVERHEAD;
+         }
+      }
+
+      if (good - start < file.length()) {
+         try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(good - start);
+         }
+      }
+      return good;
+   }
+}
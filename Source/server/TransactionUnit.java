@@ -1,6 +1,6 @@
 /**
  * An item in a transaction. Points to the item in the inventory and the
- * quantity.
+ * quantity, with the discount on the line.
  */
 package Source.server;
 
@@ -9,10 +9,17 @@ class TransactionUnit {
    private Item item;
    //quanitty this transaction includes
    private int quantity;
+   //discount on the line, in cents
+   private long discount;
    
    public TransactionUnit(Item item, int quantity) {
+      this(item, quantity, 0);
+   }
+
+   public TransactionUnit(Item item, int quantity, long discount) {
       this.item = item;
       this.quantity = quantity;
+      this.discount = discount;
    }
 
    /**
@@ -31,6 +38,14 @@ class TransactionUnit {
       return quantity;
    }
 
+   /**
+    *
+    * @return discount on the line, in cents
+    */
+   public long getDiscount() {
+      return discount;
+   }
+
    /**
     * change the quantity of the transaction
     * @param quantity quanity to change
@@ -50,8 +65,8 @@ class TransactionUnit {
     * 
     * @return the cost of the item times the quantity
     */
-   public int getTotalCost() {
-      return item.getCost() * quantity;
+   public long getTotalCost() {
+      return (long) item.getCost() * quantity;
    }
 
    /**